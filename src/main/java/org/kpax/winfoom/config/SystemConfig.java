@@ -38,6 +38,10 @@ public class SystemConfig {
 
     public static final String BACKUP_DIR_NAME = "backup";
 
+    public static final String PAC_ENGINE_NASHORN = "nashorn";
+
+    public static final String PAC_ENGINE_GRAALJS = "graaljs";
+
     private final Logger logger = LoggerFactory.getLogger(SystemConfig.class);
 
     @Autowired
@@ -50,17 +54,43 @@ public class SystemConfig {
     private Integer maxConnectionsPerRoute;
 
     /**
-     * Connection pool property: max polled connections.
+     * Connection pool property: max leased connections, all the upstream proxies together.
+     * Opening a connection past this number of open connections closes the idle ones of the other upstream proxies.
      */
     @Value("${maxConnections:600}")
     private Integer maxConnections;
 
+    /**
+     * Connection pool property: max polled connections to a single upstream proxy.
+     */
+    @Value("${maxConnections.perUpstream:200}")
+    private Integer maxConnectionsPerUpstream;
+
+    /**
+     * Connection pool property: the number of sub-pools sharing the connections, to lower the lock contention.
+     */
+    @Value("${connectionPool.stripes:4}")
+    private Integer connectionPoolStripes;
+
+    /**
+     * The max number of HTTP clients kept for reuse, one per upstream proxy.
+     */
+    @Value("${httpClient.cacheSize:64}")
+    private Integer httpClientCacheSize;
+
     /**
      * The max size of the entity buffer (bytes).
      */
     @Value("${internalBuffer.length:102400}")
     private Integer internalBufferLength;
 
+    /**
+     * The max total size of the entity buffers, for all the requests in progress (bytes).
+     * The entities beyond this limit are cached into temporary files.
+     */
+    @Value("${internalBuffer.totalLength:16777216}")
+    private Integer internalBufferTotalLength;
+
     /**
      * The frequency of running purge idle
      * on the connection manager pool (seconds).
@@ -71,6 +101,7 @@ public class SystemConfig {
     /**
      * The connections idle timeout,
      * to be purged by a scheduled task (seconds).
+     * The pool of an upstream proxy unused for that long is closed.
      */
     @Value("${connectionManager.idleTimeout:30}")
     private Integer connectionManagerIdleTimeout;
@@ -81,6 +112,261 @@ public class SystemConfig {
     @Value("${serverSocket.backlog:1000}")
     private Integer serverSocketBacklog;
 
+    /**
+     * Whether to accept the connections and read the request's head
+     * using a non-blocking selector, instead of a thread per connection.
+     */
+    @Value("${serverSocket.nonBlocking:false}")
+    private boolean serverSocketNonBlocking;
+
+    /**
+     * The max time a persistent client's connection
+     * waits for the next request (seconds).
+     */
+    @Value("${keepAlive.idleTimeout:30}")
+    private Integer keepAliveIdleTimeout;
+
+    /**
+     * The max number of requests served on a client's connection.
+     * A value lower than 2 disables the persistent connections.
+     */
+    @Value("${keepAlive.maxRequests:100}")
+    private Integer keepAliveMaxRequests;
+
+    /**
+     * The max number of persistent client's connections waiting for the next request
+     * when the server socket is blocking. Beyond this limit, the oldest idle connection is closed.
+     */
+    @Value("${keepAlive.maxIdle:256}")
+    private Integer keepAliveMaxIdle;
+
+    /**
+     * Whether to relay the CONNECT tunnels' bytes using selector threads,
+     * instead of two threads per tunnel.
+     */
+    @Value("${tunnel.nonBlocking:false}")
+    private boolean tunnelNonBlocking;
+
+    /**
+     * The number of selector threads relaying the CONNECT tunnels' bytes.
+     */
+    @Value("${tunnel.selectorThreads:2}")
+    private Integer tunnelSelectorThreads;
+
+    /**
+     * The number of spare connections kept open to each upstream HTTP proxy, ready for the next CONNECT.
+     * Zero disables them.
+     */
+    @Value("${tunnel.warmConnections:0}")
+    private Integer tunnelWarmConnections;
+
+    /**
+     * The max time a spare connection to an upstream HTTP proxy is kept unused (seconds).
+     * The spare connections of a proxy no longer used for that long are closed.
+     */
+    @Value("${tunnel.warmConnectionIdleTimeout:10}")
+    private Integer tunnelWarmConnectionIdleTimeout;
+
+    /**
+     * Whether a CONNECT answers the upstream proxy's last authentication challenge right away,
+     * instead of waiting for a new one.
+     */
+    @Value("${tunnel.preemptiveAuth:true}")
+    private Boolean tunnelPreemptiveAuth;
+
+    /**
+     * Whether to handle the connections on virtual threads, when the JDK supports them.
+     * Otherwise, a pool of platform threads is used.
+     */
+    @Value("${threadPool.virtualThreads:false}")
+    private boolean virtualThreads;
+
+    /**
+     * The max number of client's connections handled at the same time.
+     * The established tunnels are relayed apart, they do not count.
+     */
+    @Value("${connections.maxActive:256}")
+    private Integer maxActiveConnections;
+
+    /**
+     * The max number of client's connections waiting to be handled.
+     * Beyond this limit, the connections are rejected with a 503 response.
+     */
+    @Value("${connections.maxQueued:256}")
+    private Integer maxQueuedConnections;
+
+    /**
+     * The value of the Retry-After header sent along with a rejected connection's 503 response (seconds).
+     */
+    @Value("${connections.retryAfter:5}")
+    private Integer rejectedConnectionRetryAfter;
+
+    /**
+     * The max number of PAC results kept for reuse.
+     */
+    @Value("${pacCache.size:1024}")
+    private Integer pacCacheSize;
+
+    /**
+     * The time a PAC result is reused (seconds). Zero disables the cache.
+     */
+    @Value("${pacCache.ttl:60}")
+    private Integer pacCacheTtl;
+
+    /**
+     * The max number of PAC script engines evaluating in parallel, the timed out evaluations still running included.
+     * Zero means the number of processors.
+     */
+    @Value("${pacEngine.poolSize:0}")
+    private Integer pacEnginePoolSize;
+
+    /**
+     * The max time a PAC script evaluation may take (seconds).
+     */
+    @Value("${pacEngine.timeout:10}")
+    private Integer pacEngineTimeout;
+
+    /**
+     * The JavaScript engine evaluating the PAC script: {@value #PAC_ENGINE_NASHORN} or {@value #PAC_ENGINE_GRAALJS}.
+     * GraalJS compiles the script only on GraalVM or with the JVMCI compiler enabled, otherwise it interprets it.
+     */
+    @Value("${pacEngine.type:" + PAC_ENGINE_NASHORN + "}")
+    private String pacEngineType;
+
+    /**
+     * The interval between the checks for a changed PAC file (seconds). Zero disables the reload.
+     * The download is bounded by the socket's connect and read timeouts.
+     */
+    @Value("${pacFile.refreshInterval:300}")
+    private Integer pacFileRefreshInterval;
+
+    /**
+     * Whether to start from the last good PAC script saved on disk, while the PAC file is downloaded in background.
+     */
+    @Value("${pacSnapshot.enabled:true}")
+    private Boolean pacSnapshotEnabled;
+
+    /**
+     * The max number of routing decisions saved along with the PAC script.
+     */
+    @Value("${pacSnapshot.maxDecisions:256}")
+    private Integer pacSnapshotMaxDecisions;
+
+    /**
+     * The interval between the health checks of the PAC proxies (seconds). Zero disables the health check.
+     */
+    @Value("${proxyHealth.checkInterval:30}")
+    private Integer proxyHealthCheckInterval;
+
+    /**
+     * The max time to wait for a PAC proxy to accept a health check connection (seconds).
+     */
+    @Value("${proxyHealth.connectTimeout:5}")
+    private Integer proxyHealthConnectTimeout;
+
+    /**
+     * The time a proxy is blacklisted after its first failure (seconds),
+     * doubled on each consecutive failure up to the {@code blacklist.timeout}.
+     */
+    @Value("${blacklist.initialTimeout:10}")
+    private Integer blacklistInitialTimeout;
+
+    /**
+     * Whether to try the PAC proxies in the order of their health, rather than in the PAC order.
+     */
+    @Value("${pacProxyOrder.latencyAware:false}")
+    private Boolean pacProxyOrderLatencyAware;
+
+    /**
+     * The connect latency difference that does not change the PAC order (milliseconds).
+     */
+    @Value("${pacProxyOrder.tolerance:50}")
+    private Integer pacProxyOrderTolerance;
+
+    /**
+     * Whether to race the connections to the PAC proxies when the first one is not known healthy,
+     * rather than wait for each one to time out.
+     */
+    @Value("${proxyRace.enabled:false}")
+    private Boolean proxyRaceEnabled;
+
+    /**
+     * The head start of a PAC proxy over the next one, when racing (milliseconds).
+     */
+    @Value("${proxyRace.delay:300}")
+    private Integer proxyRaceDelay;
+
+    /**
+     * Whether the simple PAC scripts are translated into Java rules, evaluated without the script engine.
+     */
+    @Value("${pacRules.enabled:true}")
+    private Boolean pacRulesEnabled;
+
+    /**
+     * Whether the translated PAC rules are checked against the script engine on sample URLs before use.
+     * When off, a translation mistake goes unnoticed.
+     */
+    @Value("${pacRules.verify:true}")
+    private Boolean pacRulesVerify;
+
+    /**
+     * The max number of host lookups of the PAC helper functions kept for reuse.
+     */
+    @Value("${pacDns.cacheSize:1024}")
+    private Integer pacDnsCacheSize;
+
+    /**
+     * The time a successful host lookup of the PAC helper functions is reused (seconds).
+     */
+    @Value("${pacDns.positiveTtl:300}")
+    private Integer pacDnsPositiveTtl;
+
+    /**
+     * The time a failed host lookup of the PAC helper functions is reused (seconds).
+     */
+    @Value("${pacDns.negativeTtl:30}")
+    private Integer pacDnsNegativeTtl;
+
+    /**
+     * The max time a PAC helper function waits for a host lookup (seconds).
+     * A PAC result depending on a timed out lookup is not cached.
+     */
+    @Value("${pacDns.timeout:2}")
+    private Integer pacDnsTimeout;
+
+    /**
+     * The max number of host lookups of the proxy's own connections kept for reuse.
+     */
+    @Value("${dns.cacheSize:1024}")
+    private Integer dnsCacheSize;
+
+    /**
+     * The time a successful host lookup of the proxy's own connections is reused (seconds). Zero disables the cache.
+     */
+    @Value("${dns.positiveTtl:60}")
+    private Integer dnsPositiveTtl;
+
+    /**
+     * The time a failed host lookup of the proxy's own connections is reused (seconds).
+     * Zero disables the caching of the failures.
+     */
+    @Value("${dns.negativeTtl:10}")
+    private Integer dnsNegativeTtl;
+
+    /**
+     * The head start of an address over the next one, when racing the connections to a dual-stack host
+     * (milliseconds).
+     */
+    @Value("${dns.connectionAttemptDelay:250}")
+    private Integer dnsConnectionAttemptDelay;
+
+    /**
+     * Whether a non-CONNECT request sends the credentials that authenticated the previous one to the same
+     * upstream HTTP proxy (Basic or Digest), instead of waiting for a new challenge.
+     */
+    @Value("${httpProxy.preemptiveAuth:true}")
+    private Boolean httpProxyPreemptiveAuth;
+
     /**
      * The timeout for read/write through socket channel (seconds).
      */
@@ -108,6 +394,18 @@ public class SystemConfig {
         return maxConnections;
     }
 
+    public Integer getMaxConnectionsPerUpstream() {
+        return maxConnectionsPerUpstream;
+    }
+
+    public Integer getConnectionPoolStripes() {
+        return connectionPoolStripes;
+    }
+
+    public Integer getHttpClientCacheSize() {
+        return httpClientCacheSize;
+    }
+
     public boolean isUseSystemProperties() {
         return useSystemProperties;
     }
@@ -116,6 +414,10 @@ public class SystemConfig {
         return internalBufferLength;
     }
 
+    public Integer getInternalBufferTotalLength() {
+        return internalBufferTotalLength;
+    }
+
     public Integer getConnectionManagerCleanInterval() {
         return connectionManagerCleanInterval;
     }
@@ -128,6 +430,162 @@ public class SystemConfig {
         return serverSocketBacklog;
     }
 
+    public boolean isServerSocketNonBlocking() {
+        return serverSocketNonBlocking;
+    }
+
+    public Integer getKeepAliveIdleTimeout() {
+        return keepAliveIdleTimeout;
+    }
+
+    public Integer getKeepAliveMaxRequests() {
+        return keepAliveMaxRequests;
+    }
+
+    public Integer getKeepAliveMaxIdle() {
+        return keepAliveMaxIdle;
+    }
+
+    public boolean isTunnelNonBlocking() {
+        return tunnelNonBlocking;
+    }
+
+    public Integer getTunnelSelectorThreads() {
+        return tunnelSelectorThreads;
+    }
+
+    public Integer getTunnelWarmConnections() {
+        return tunnelWarmConnections;
+    }
+
+    public Integer getTunnelWarmConnectionIdleTimeout() {
+        return tunnelWarmConnectionIdleTimeout;
+    }
+
+    public boolean isTunnelPreemptiveAuth() {
+        return tunnelPreemptiveAuth;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public Integer getMaxActiveConnections() {
+        return maxActiveConnections;
+    }
+
+    public Integer getMaxQueuedConnections() {
+        return maxQueuedConnections;
+    }
+
+    public Integer getRejectedConnectionRetryAfter() {
+        return rejectedConnectionRetryAfter;
+    }
+
+    public Integer getPacCacheSize() {
+        return pacCacheSize;
+    }
+
+    public Integer getPacCacheTtl() {
+        return pacCacheTtl;
+    }
+
+    public Integer getPacEnginePoolSize() {
+        return pacEnginePoolSize;
+    }
+
+    public Integer getPacEngineTimeout() {
+        return pacEngineTimeout;
+    }
+
+    public String getPacEngineType() {
+        return pacEngineType;
+    }
+
+    public Integer getPacFileRefreshInterval() {
+        return pacFileRefreshInterval;
+    }
+
+    public boolean isPacSnapshotEnabled() {
+        return pacSnapshotEnabled;
+    }
+
+    public Integer getPacSnapshotMaxDecisions() {
+        return pacSnapshotMaxDecisions;
+    }
+
+    public Integer getProxyHealthCheckInterval() {
+        return proxyHealthCheckInterval;
+    }
+
+    public Integer getProxyHealthConnectTimeout() {
+        return proxyHealthConnectTimeout;
+    }
+
+    public Integer getBlacklistInitialTimeout() {
+        return blacklistInitialTimeout;
+    }
+
+    public boolean isPacProxyOrderLatencyAware() {
+        return pacProxyOrderLatencyAware;
+    }
+
+    public Integer getPacProxyOrderTolerance() {
+        return pacProxyOrderTolerance;
+    }
+
+    public boolean isProxyRaceEnabled() {
+        return proxyRaceEnabled;
+    }
+
+    public Integer getProxyRaceDelay() {
+        return proxyRaceDelay;
+    }
+
+    public boolean isPacRulesEnabled() {
+        return pacRulesEnabled;
+    }
+
+    public boolean isPacRulesVerify() {
+        return pacRulesVerify;
+    }
+
+    public Integer getPacDnsCacheSize() {
+        return pacDnsCacheSize;
+    }
+
+    public Integer getPacDnsPositiveTtl() {
+        return pacDnsPositiveTtl;
+    }
+
+    public Integer getPacDnsNegativeTtl() {
+        return pacDnsNegativeTtl;
+    }
+
+    public Integer getPacDnsTimeout() {
+        return pacDnsTimeout;
+    }
+
+    public Integer getDnsCacheSize() {
+        return dnsCacheSize;
+    }
+
+    public Integer getDnsPositiveTtl() {
+        return dnsPositiveTtl;
+    }
+
+    public Integer getDnsNegativeTtl() {
+        return dnsNegativeTtl;
+    }
+
+    public Integer getDnsConnectionAttemptDelay() {
+        return dnsConnectionAttemptDelay;
+    }
+
+    public boolean isHttpProxyPreemptiveAuth() {
+        return httpProxyPreemptiveAuth;
+    }
+
     public Integer getSocketSoTimeout() {
         return socketSoTimeout;
     }
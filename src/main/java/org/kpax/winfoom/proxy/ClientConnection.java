@@ -27,6 +27,7 @@ import org.kpax.winfoom.util.ObjectFormat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -92,6 +93,31 @@ final class ClientConnection implements AutoCloseable {
      */
     private boolean requestPrepared;
 
+    /**
+     * Whether the client's connection remains open for the next request, once the response is written.
+     */
+    private boolean persistent;
+
+    /**
+     * Whether the request can still be processed with another proxy, should the current one fail.
+     */
+    private boolean failoverPossible;
+
+    /**
+     * Whether the underlying socket has been handed over to someone else, responsible for closing it.
+     */
+    private boolean detached;
+
+    /**
+     * The connection to the proxy that won the race, not used yet.
+     */
+    private Socket racedSocket;
+
+    /**
+     * The proxy the {@link #racedSocket} is connected to.
+     */
+    private ProxyInfo racedProxy;
+
     /**
      * Constructor.<br>
      * Has the responsibility of parsing the request.
@@ -101,16 +127,39 @@ final class ClientConnection implements AutoCloseable {
      * @throws HttpException
      */
     ClientConnection(Socket socket) throws IOException, HttpException {
+        this(socket, socket.getInputStream());
+    }
+
+    /**
+     * Constructor.<br>
+     * Has the responsibility of parsing the request.
+     *
+     * @param socket      the underlying socket.
+     * @param inputStream the stream to read the request from. It may replay bytes already read from the socket.
+     * @throws IOException
+     * @throws HttpException
+     */
+    ClientConnection(Socket socket, InputStream inputStream) throws IOException, HttpException {
+        this(socket, inputStream, createSessionInputBuffer(inputStream));
+    }
+
+    /**
+     * Constructor.<br>
+     * Has the responsibility of parsing the request.
+     *
+     * @param socket             the underlying socket.
+     * @param inputStream        the stream to read the request from.
+     * @param sessionInputBuffer the session input buffer bound to the input stream,
+     *                           shared by all the requests sent on a persistent connection.
+     * @throws IOException
+     * @throws HttpException
+     */
+    ClientConnection(Socket socket, InputStream inputStream, SessionInputBufferImpl sessionInputBuffer)
+            throws IOException, HttpException {
         this.socket = socket;
-        this.inputStream = socket.getInputStream();
+        this.inputStream = inputStream;
         this.outputStream = socket.getOutputStream();
-        this.sessionInputBuffer = new SessionInputBufferImpl(
-                new HttpTransportMetricsImpl(),
-                InputOutputs.DEFAULT_BUFFER_SIZE,
-                InputOutputs.DEFAULT_BUFFER_SIZE,
-                MessageConstraints.DEFAULT,
-                StandardCharsets.UTF_8.newDecoder());
-        this.sessionInputBuffer.bind(this.inputStream);
+        this.sessionInputBuffer = sessionInputBuffer;
         this.httpRequest = new DefaultHttpRequestParser(this.sessionInputBuffer).parse();
         this.requestLine = httpRequest.getRequestLine();
         try {
@@ -118,6 +167,32 @@ final class ClientConnection implements AutoCloseable {
         } catch (URISyntaxException e) {
             throw new HttpException("Invalid request uri", e);
         }
+        this.persistent = !HttpUtils.HTTP_CONNECT.equalsIgnoreCase(requestLine.getMethod())
+                && HttpUtils.isPersistentConnection(httpRequest);
+    }
+
+    /**
+     * Create a {@link SessionInputBufferImpl} instance bound to an input stream.
+     *
+     * @param inputStream the client's input stream.
+     * @return the bound {@link SessionInputBufferImpl} instance.
+     */
+    static SessionInputBufferImpl createSessionInputBuffer(InputStream inputStream) {
+        SessionInputBufferImpl sessionInputBuffer = new SessionInputBufferImpl(
+                new HttpTransportMetricsImpl(),
+                InputOutputs.DEFAULT_BUFFER_SIZE,
+                InputOutputs.DEFAULT_BUFFER_SIZE,
+                MessageConstraints.DEFAULT,
+                StandardCharsets.UTF_8.newDecoder());
+        sessionInputBuffer.bind(inputStream);
+        return sessionInputBuffer;
+    }
+
+    /**
+     * @return the client's socket
+     */
+    Socket getSocket() {
+        return socket;
     }
 
     /**
@@ -253,6 +328,85 @@ final class ClientConnection implements AutoCloseable {
         this.requestPrepared = true;
     }
 
+    /**
+     * Whether the request can be processed with another proxy, should the current one fail.<br>
+     * If not, the request's body can be streamed without caching.
+     *
+     * @return {@code true} iff there are other proxies to try.
+     */
+    boolean isFailoverPossible() {
+        return failoverPossible;
+    }
+
+    /**
+     * @param failoverPossible whether there are other proxies to try after the current one.
+     */
+    void setFailoverPossible(boolean failoverPossible) {
+        this.failoverPossible = failoverPossible;
+    }
+
+    /**
+     * Whether the client's connection remains open for the next request.<br>
+     * A non-CONNECT request's connection is persistent when the client asks for it
+     * and the persistence is not disabled while processing the request.
+     *
+     * @return {@code true} iff the connection is persistent.
+     */
+    boolean isPersistent() {
+        return persistent;
+    }
+
+    /**
+     * Mark the client's connection to be closed after the response is written.
+     */
+    void disablePersistence() {
+        this.persistent = false;
+    }
+
+    /**
+     * Read the bytes received from the client but not consumed yet:
+     * the ones buffered by the session input buffer, then the ones available without blocking.
+     *
+     * @return the unconsumed bytes, possibly empty.
+     * @throws IOException
+     */
+    byte[] readBufferedBytes() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[InputOutputs.DEFAULT_BUFFER_SIZE];
+        int length;
+        while (sessionInputBuffer.hasBufferedData()) {
+            length = sessionInputBuffer.read(buffer, 0, buffer.length);
+            out.write(buffer, 0, length);
+        }
+        int available;
+        while ((available = inputStream.available()) > 0) {
+            length = inputStream.read(buffer, 0, Math.min(available, buffer.length));
+            if (length < 0) {
+                break;
+            }
+            out.write(buffer, 0, length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Hand over the underlying socket to someone else, that becomes responsible for closing it.
+     *
+     * @return the client's socket.
+     */
+    Socket detach() {
+        this.detached = true;
+        this.persistent = false;
+        return socket;
+    }
+
+    /**
+     * @return {@code true} iff the underlying socket has been handed over.
+     */
+    boolean isDetached() {
+        return detached;
+    }
+
     /**
      * @return {@code true} iff the underlying socket is closed.
      */
@@ -267,6 +421,36 @@ final class ClientConnection implements AutoCloseable {
         return requestLine;
     }
 
+    /**
+     * Keep the connection to the proxy that won the race, to be used by the processor.
+     * Unless taken, it is closed along with this instance.
+     *
+     * @param proxyInfo the proxy.
+     * @param socket    the socket connected to the proxy.
+     */
+    void setRacedSocket(ProxyInfo proxyInfo, Socket socket) {
+        this.racedProxy = proxyInfo;
+        this.racedSocket = socket;
+        autoCloseables.add(socket);
+    }
+
+    /**
+     * Take the connection to the proxy that won the race, the caller becoming responsible for closing it.
+     *
+     * @param proxyInfo the proxy to connect to.
+     * @return the socket connected to this proxy, or {@code null} if there is none.
+     */
+    Socket takeRacedSocket(ProxyInfo proxyInfo) {
+        if (racedSocket == null || !racedProxy.equals(proxyInfo)) {
+            return null;
+        }
+        Socket socket = racedSocket;
+        racedSocket = null;
+        racedProxy = null;
+        autoCloseables.remove(socket);
+        return socket;
+    }
+
     /**
      * Register an {@link AutoCloseable} for later closing.
      *
@@ -17,8 +17,10 @@ import org.apache.http.HttpException;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpStatus;
 import org.apache.http.RequestLine;
+import org.apache.http.impl.io.SessionInputBufferImpl;
 import org.apache.http.protocol.HTTP;
 import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
 import org.kpax.winfoom.exception.PacFileException;
 import org.kpax.winfoom.util.HeaderDateGenerator;
 import org.kpax.winfoom.util.HttpUtils;
@@ -30,9 +32,11 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.ConnectException;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.util.Collections;
 import java.util.Iterator;
@@ -46,6 +50,9 @@ class ClientConnectionHandler {
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
+    @Autowired
+    private SystemConfig systemConfig;
+
     @Autowired
     private ProxyConfig proxyConfig;
 
@@ -55,6 +62,12 @@ class ClientConnectionHandler {
     @Autowired
     private ProxyBlacklist proxyBlacklist;
 
+    @Autowired
+    private ProxyStatistics proxyStatistics;
+
+    @Autowired
+    private ProxyCandidateRacer proxyCandidateRacer;
+
     @Autowired
     private ClientProcessorSelector clientProcessorSelector;
 
@@ -62,6 +75,8 @@ class ClientConnectionHandler {
      * Process the client connection with each available proxy.<br>
      * Un un-responding to connect proxy is blacklisted only if it is not the last
      * one available.<br>
+     * On a persistent connection, the requests are processed one after another,
+     * until the client closes the connection or it stays idle for too long.<br>
      * <b>Note:</b> If the {@link ClientConnection} is successfully created,
      * a proper response <i>must</i> be sent to the client.
      *
@@ -70,10 +85,112 @@ class ClientConnectionHandler {
      * @throws HttpException
      */
     void handleConnection(final Socket socket) throws IOException, HttpException {
+        handleConnection(socket, socket.getInputStream());
+    }
+
+    /**
+     * Same as {@link #handleConnection(Socket)} but the request is read from the provided input stream.
+     *
+     * @param socket      the client's socket
+     * @param inputStream the client's input stream, possibly replaying the bytes already read from the socket
+     * @throws IOException
+     * @throws HttpException
+     */
+    void handleConnection(final Socket socket, final InputStream inputStream) throws IOException, HttpException {
+        handleConnection(socket, inputStream, 0, true);
+    }
+
+    /**
+     * Process the requests sent on a client's connection, for as long as the connection is persistent.<br>
+     * Unless the connection is left idle, this method is responsible for closing the client's socket.
+     *
+     * @param socket             the client's socket
+     * @param inputStream        the client's input stream, possibly replaying the bytes already read from the socket
+     * @param servedRequests     the number of requests already served on this connection
+     * @param waitForNextRequest whether to wait for the next request when the connection becomes idle;
+     *                           otherwise the caller is responsible for that.
+     * @return the number of requests served on this connection, if it is persistent and idle,
+     * or {@code -1} when the socket has been either closed or handed over to a {@link TunnelRelay}.
+     * @throws IOException
+     * @throws HttpException
+     */
+    int handleConnection(final Socket socket,
+                         final InputStream inputStream,
+                         final int servedRequests,
+                         final boolean waitForNextRequest) throws IOException, HttpException {
+        SessionInputBufferImpl sessionInputBuffer = ClientConnection.createSessionInputBuffer(inputStream);
+        int requestCount = servedRequests;
+        boolean closeSocket = true;
+        try {
+            RequestOutcome outcome;
+            while ((outcome = handleRequest(socket, inputStream, sessionInputBuffer,
+                    ++requestCount < systemConfig.getKeepAliveMaxRequests())) == RequestOutcome.PERSISTENT) {
+                if (sessionInputBuffer.hasBufferedData() || inputStream.available() > 0) {
+                    logger.debug("Pipelined request available");
+                    continue;
+                }
+                if (!waitForNextRequest) {
+                    closeSocket = false;
+                    return requestCount;
+                }
+                if (!awaitNextRequest(socket, sessionInputBuffer)) {
+                    break;
+                }
+            }
+            if (outcome == RequestOutcome.HANDED_OVER) {
+                closeSocket = false;
+            }
+            return -1;
+        } finally {
+            if (closeSocket) {
+                InputOutputs.close(socket);
+            }
+        }
+    }
+
+    /**
+     * Wait for the next request on an idle persistent connection.
+     *
+     * @param socket             the client's socket
+     * @param sessionInputBuffer the session input buffer bound to the client's input stream
+     * @return {@code true} iff there are data available before the idle timeout.
+     * @throws IOException
+     */
+    private boolean awaitNextRequest(final Socket socket, final SessionInputBufferImpl sessionInputBuffer)
+            throws IOException {
+        int soTimeout = socket.getSoTimeout();
+        socket.setSoTimeout(systemConfig.getKeepAliveIdleTimeout() * 1000);
+        try {
+            return sessionInputBuffer.fillBuffer() > 0;
+        } catch (SocketTimeoutException e) {
+            logger.debug("Idle timeout on persistent connection");
+            return false;
+        } finally {
+            if (!socket.isClosed()) {
+                socket.setSoTimeout(soTimeout);
+            }
+        }
+    }
+
+    /**
+     * Process a request with each available proxy.
+     *
+     * @param socket             the client's socket
+     * @param inputStream        the client's input stream
+     * @param sessionInputBuffer the session input buffer bound to the client's input stream
+     * @param persistenceAllowed whether the connection can remain open after this request
+     * @return what to do next with the client's connection.
+     * @throws IOException
+     * @throws HttpException
+     */
+    private RequestOutcome handleRequest(final Socket socket,
+                                  final InputStream inputStream,
+                                  final SessionInputBufferImpl sessionInputBuffer,
+                                  final boolean persistenceAllowed) throws IOException, HttpException {
 
         final ClientConnection clientConnection;
         try {
-            clientConnection = new ClientConnection(socket);
+            clientConnection = new ClientConnection(socket, inputStream, sessionInputBuffer);
         } catch (HttpException e) {
             // Most likely a bad request
             // even though might not always be the case
@@ -89,6 +206,11 @@ class ClientConnectionHandler {
 
         RequestLine requestLine = clientConnection.getRequestLine();
         logger.debug("Handle request: {}", requestLine);
+        if (!persistenceAllowed) {
+            clientConnection.disablePersistence();
+        }
+
+        RequestOutcome outcome = RequestOutcome.CLOSE;
 
         try {
             List<ProxyInfo> proxyInfoList;
@@ -96,6 +218,12 @@ class ClientConnectionHandler {
                 URI requestUri = clientConnection.getRequestUri();
                 logger.debug("Extracted URI from request {}", requestUri);
                 proxyInfoList = proxyAutoconfig.findProxyForURL(requestUri);
+                if (systemConfig.isPacProxyOrderLatencyAware()) {
+                    proxyInfoList = proxyStatistics.order(proxyInfoList, systemConfig.getPacProxyOrderTolerance());
+                }
+                if (systemConfig.isProxyRaceEnabled()) {
+                    proxyInfoList = proxyCandidateRacer.race(clientConnection, proxyInfoList);
+                }
             } else {
 
                 // Manual proxy case
@@ -116,15 +244,24 @@ class ClientConnectionHandler {
                     }
                 }
                 connectionProcessor = clientProcessorSelector.selectClientProcessor(requestLine, proxyInfo);
+                clientConnection.setFailoverPossible(itr.hasNext());
                 try {
                     logger.debug("Process connection with proxy: {}", proxyInfo);
                     connectionProcessor.process(clientConnection, proxyInfo);
+                    proxyStatistics.recordSuccess(proxyInfo);
+                    proxyBlacklist.unblacklist(proxyInfo);
 
                     // Success, break the iteration
+                    if (clientConnection.isDetached()) {
+                        outcome = RequestOutcome.HANDED_OVER;
+                    } else if (clientConnection.isPersistent()) {
+                        outcome = RequestOutcome.PERSISTENT;
+                    }
                     break;
                 } catch (Exception e) {
                     if (e instanceof ConnectException || e.getCause() instanceof ConnectException) {
                         logger.debug("Connection error", e);
+                        proxyStatistics.recordFailure(proxyInfo);
                         if (itr.hasNext()) {
                             logger.debug("Failed to process connection with proxy: {}, retry with the next one",
                                     proxyInfo);
@@ -163,6 +300,27 @@ class ClientConnectionHandler {
             InputOutputs.close(clientConnection);
         }
         logger.debug("Done handling request: {}", requestLine);
+        return outcome;
+    }
+
+    /**
+     * What to do with the client's connection after a request has been processed.
+     */
+    private enum RequestOutcome {
+
+        /**
+         * Keep the connection open for the next request.
+         */
+        PERSISTENT,
+
+        /**
+         * Close the connection.
+         */
+        CLOSE,
 
+        /**
+         * The socket has been handed over, leave it alone.
+         */
+        HANDED_OVER
     }
 }
@@ -15,6 +15,8 @@ package org.kpax.winfoom.proxy;
 import org.apache.http.config.Registry;
 import org.apache.http.config.RegistryBuilder;
 import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.kpax.winfoom.config.SystemConfig;
 import org.kpax.winfoom.util.InputOutputs;
@@ -26,11 +28,21 @@ import org.springframework.stereotype.Component;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 /**
  * It manages the HTTP connection pooling mechanism.<br>
- * Only used for non-CONNECT HTTP requests.
+ * Only used for non-CONNECT HTTP requests.<br>
+ * Each upstream proxy (or the direct connection) has its own pool, capped by
+ * {@link SystemConfig#getMaxConnectionsPerUpstream()}, so a slow proxy cannot exhaust the connections of the others.
+ * All the pools lease from one connection budget, {@link SystemConfig#getMaxConnections()}, whatever the proxy type.
+ * The idle connections are pooled outside of this budget, so when a new connection would take the open ones
+ * past it, the idle connections of the other pools are closed.<br>
+ * The pool of a proxy left unused, whether idle or no longer returned by the PAC script, is closed
+ * together with its HTTP client.
  */
 @Component
 class ConnectionPoolingManager implements AutoCloseable {
@@ -40,73 +52,47 @@ class ConnectionPoolingManager implements AutoCloseable {
     @Autowired
     private SystemConfig systemConfig;
 
-    /**
-     * For HTTP proxy type
-     */
-    private volatile PoolingHttpClientConnectionManager httpConnectionManager;
+    @Autowired
+    private ProxyDnsResolver proxyDnsResolver;
 
-    /**
-     * For SOCKS5 proxy type
-     */
-    private volatile PoolingHttpClientConnectionManager socksConnectionManager;
+    @Autowired
+    private HttpClientBuilderFactory httpClientBuilderFactory;
 
     /**
-     * For SOCKS4 proxy type
+     * The pools, one per upstream proxy.
      */
-    private volatile PoolingHttpClientConnectionManager socks4ConnectionManager;
+    private final Map<ProxyInfo, StripedConnectionManager> connectionManagers = new ConcurrentHashMap<>();
 
     /**
-     * Whether this manager is started or not.
+     * The leases allowed for all the pools together, {@code null} if unlimited.
      */
-    private volatile boolean started;
+    private volatile Semaphore connectionBudget;
 
     /**
-     * Lazy getter for HTTP proxy.
-     *
-     * @return the existent {@link PoolingHttpClientConnectionManager} instance or a new one if {@code null}.
+     * Creates the connections of all the pools, counting the open ones.
      */
-    PoolingHttpClientConnectionManager getHttpConnectionManager() {
-        if (httpConnectionManager == null) {
-            synchronized (this) {
-                if (httpConnectionManager == null) {
-                    httpConnectionManager = createConnectionManager(null);
-                }
-            }
-        }
-        return httpConnectionManager;
-
-    }
+    private final CountingConnectionFactory connectionFactory = new CountingConnectionFactory();
 
     /**
-     * Lazy getter for SOCKS5 proxy.
-     *
-     * @return the existent {@link PoolingHttpClientConnectionManager} instance or a new one if {@code null}.
+     * Whether this manager is started or not.
      */
-    PoolingHttpClientConnectionManager getSocksConnectionManager() {
-        if (socksConnectionManager == null) {
-            synchronized (this) {
-                if (socksConnectionManager == null) {
-                    socksConnectionManager = createSocksConnectionManager(false);
-                }
-            }
-        }
-        return socksConnectionManager;
-    }
+    private volatile boolean started;
 
     /**
-     * Lazy getter for SOCKS4 proxy.
+     * Lazy getter for an upstream proxy's pool.
      *
-     * @return the existent {@link PoolingHttpClientConnectionManager} instance or a new one if {@code null}.
+     * @param proxyInfo the upstream proxy.
+     * @return the existent {@link StripedConnectionManager} instance or a new one if {@code null}.
+     * @throws IllegalStateException when this manager is not started.
      */
-    PoolingHttpClientConnectionManager getSocks4ConnectionManager() {
-        if (socks4ConnectionManager == null) {
+    StripedConnectionManager getConnectionManager(ProxyInfo proxyInfo) {
+        StripedConnectionManager connectionManager = connectionManagers.get(proxyInfo);
+        if (connectionManager == null) {
             synchronized (this) {
-                if (socks4ConnectionManager == null) {
-                    socks4ConnectionManager = createSocksConnectionManager(true);
-                }
+                connectionManager = connectionManagers.computeIfAbsent(proxyInfo, this::createConnectionManager);
             }
         }
-        return socks4ConnectionManager;
+        return connectionManager;
     }
 
     /**
@@ -115,99 +101,154 @@ class ConnectionPoolingManager implements AutoCloseable {
     synchronized void start() {
         if (!started) {
             started = true;
+            connectionBudget = systemConfig.getMaxConnections() != null
+                    ? new Semaphore(systemConfig.getMaxConnections()) : null;
         }
     }
 
-    /**
-     * @return all active {@link PoolingHttpClientConnectionManager} instances
-     */
-    private List<PoolingHttpClientConnectionManager> getAllActiveConnectionManagers() {
-        List<PoolingHttpClientConnectionManager> activeConnectionManagers = new ArrayList<>();
-        if (httpConnectionManager != null) {
-            activeConnectionManagers.add(httpConnectionManager);
-        }
-        if (socksConnectionManager != null) {
-            activeConnectionManagers.add(socksConnectionManager);
-        }
-        if (socks4ConnectionManager != null) {
-            activeConnectionManagers.add(socks4ConnectionManager);
-        }
-        return activeConnectionManagers;
-    }
-
     boolean isStarted() {
         return started;
     }
 
     /**
-     * A job that closes the idle/expired HTTP connections.
+     * A job that closes the idle/expired HTTP connections, and the pools of the proxies left unused.
      */
     @Scheduled(fixedRateString = "#{systemConfig.connectionManagerCleanInterval * 1000}")
     void cleanUpConnectionManager() {
         if (isStarted()) {
             logger.debug("Execute connection manager pool clean up task");
-            for (PoolingHttpClientConnectionManager connectionManager : getAllActiveConnectionManagers()) {
+            for (Map.Entry<ProxyInfo, StripedConnectionManager> entry : connectionManagers.entrySet()) {
+                StripedConnectionManager connectionManager = entry.getValue();
+                if (connectionManager.isUnused(systemConfig.getConnectionManagerIdleTimeout(), TimeUnit.SECONDS)) {
+                    removeConnectionManager(entry.getKey(), connectionManager);
+                    continue;
+                }
                 try {
                     connectionManager.closeExpiredConnections();
                     connectionManager.closeIdleConnections(systemConfig.getConnectionManagerIdleTimeout(),
                             TimeUnit.SECONDS);
                     if (logger.isDebugEnabled()) {
-                        logger.debug("PoolingHttpClientConnectionManager statistics {}",
+                        logger.debug("Connection manager statistics for {}: {}", entry.getKey(),
                                 connectionManager.getTotalStats());
+                        List<StripedConnectionManager.StripeStatistics> stripeStatistics =
+                                connectionManager.getStripeStatistics();
+                        for (int i = 0; i < stripeStatistics.size(); i++) {
+                            logger.debug("Stripe {} statistics {}", i, stripeStatistics.get(i));
+                        }
                     }
                 } catch (Exception e) {
                     logger.debug("Error on cleaning connection pool", e);
                 }
             }
+            Semaphore budget = connectionBudget;
+            if (budget != null) {
+                logger.debug("Connection budget: {} leases available", budget.availablePermits());
+            }
         }
     }
 
     /**
-     * Create a generic {@link PoolingHttpClientConnectionManager}
-     *
-     * @param socketFactoryRegistry the {@link Registry} instance used to configure the
-     *                              {@link PoolingHttpClientConnectionManager}.
-     * @return the new {@link PoolingHttpClientConnectionManager} instance.
-     * @throws IllegalStateException when this manager is not started.
+     * Close the pool of a proxy left unused, together with the HTTP client built on it.<br>
+     * A pool pinned in the meantime by a request is kept.
      */
-    private PoolingHttpClientConnectionManager createConnectionManager(Registry<ConnectionSocketFactory> socketFactoryRegistry) {
-        if (!started) {
-            throw new IllegalStateException("Cannot create connectionManagers: ConnectionPoolingManager is not " +
-                    "started");
+    private void removeConnectionManager(ProxyInfo proxyInfo, StripedConnectionManager connectionManager) {
+        synchronized (this) {
+            if (!connectionManager.retire() || !connectionManagers.remove(proxyInfo, connectionManager)) {
+                return;
+            }
         }
-        PoolingHttpClientConnectionManager connectionManager = socketFactoryRegistry != null
-                ? new PoolingHttpClientConnectionManager(socketFactoryRegistry) :
-                new PoolingHttpClientConnectionManager();
-        logger.info("Configure connection manager");
-        if (systemConfig.getMaxConnections() != null) {
-            connectionManager.setMaxTotal(systemConfig.getMaxConnections());
+        logger.debug("Close the connection manager of the unused proxy {}", proxyInfo);
+
+        // Out of the lock: a client being built holds the client cache's lock while getting its pool.
+        // The client first, so the next request builds a new one, on a new pool
+        httpClientBuilderFactory.removeHttpClient(proxyInfo);
+        InputOutputs.close(connectionManager);
+    }
+
+    /**
+     * Keep the open connections, all the pools together, within the budget:
+     * when a new connection takes them past it, close the idle connections of the other pools.
+     *
+     * @param proxyInfo the proxy of the pool opening the new connection.
+     */
+    private void checkOpenConnections(ProxyInfo proxyInfo) {
+        Integer maxConnections = systemConfig.getMaxConnections();
+        if (maxConnections == null) {
+            return;
         }
-        if (systemConfig.getMaxConnectionsPerRoute() != null) {
-            connectionManager.setDefaultMaxPerRoute(systemConfig.getMaxConnectionsPerRoute());
+        int openConnections = connectionFactory.getOpenConnections();
+        if (openConnections > maxConnections) {
+            logger.debug("{} open connections, over the budget: close the idle ones of the other pools",
+                    openConnections);
+            for (Map.Entry<ProxyInfo, StripedConnectionManager> entry : connectionManagers.entrySet()) {
+                if (!entry.getKey().equals(proxyInfo)) {
+                    entry.getValue().closeIdleConnections(0, TimeUnit.MILLISECONDS);
+                }
+            }
         }
-        return connectionManager;
     }
 
     /**
-     * Create a SOCKS {@link PoolingHttpClientConnectionManager}
+     * Create the {@link StripedConnectionManager} of an upstream proxy, its stripes resolving the hosts
+     * with the {@link ProxyDnsResolver}.<br>
+     * The upstream's limit is split among the stripes, so there are no more stripes than
+     * this limit allows without going under the per route limit.
      *
-     * @param isSocks4 whether the SOCKS version is {@code 4} or not.
-     * @return the new {@link PoolingHttpClientConnectionManager} instance.
+     * @param proxyInfo the upstream proxy.
+     * @return the new {@link StripedConnectionManager} instance.
      * @throws IllegalStateException when this manager is not started.
      */
-    private PoolingHttpClientConnectionManager createSocksConnectionManager(boolean isSocks4) {
-        ConnectionSocketFactory connectionSocketFactory = isSocks4
-                ? new Socks4ConnectionSocketFactory() : new SocksConnectionSocketFactory();
-        Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory>create()
-                .register("http", connectionSocketFactory)
-                .register("https", connectionSocketFactory)
-                .build();
-
-        return createConnectionManager(socketFactoryRegistry);
+    private StripedConnectionManager createConnectionManager(ProxyInfo proxyInfo) {
+        if (!started) {
+            throw new IllegalStateException("Cannot create connectionManagers: ConnectionPoolingManager is not " +
+                    "started");
+        }
+        Registry<ConnectionSocketFactory> socketFactoryRegistry;
+        if (proxyInfo.getType().isSocks()) {
+            ConnectionSocketFactory connectionSocketFactory = proxyInfo.getType().isSocks4()
+                    ? new Socks4ConnectionSocketFactory() : new SocksConnectionSocketFactory();
+            socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory>create()
+                    .register("http", connectionSocketFactory)
+                    .register("https", connectionSocketFactory)
+                    .build();
+        } else {
+            socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory>create()
+                    .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                    .register("https", SSLConnectionSocketFactory.getSocketFactory())
+                    .build();
+        }
+
+        Integer maxConnections = systemConfig.getMaxConnectionsPerUpstream();
+        if (maxConnections != null && systemConfig.getMaxConnections() != null) {
+            maxConnections = Math.min(maxConnections, systemConfig.getMaxConnections());
+        }
+        Integer maxConnectionsPerRoute = systemConfig.getMaxConnectionsPerRoute();
+        int stripeCount = 1;
+        if (maxConnections != null) {
+            stripeCount = Math.max(1, Math.min(systemConfig.getConnectionPoolStripes(),
+                    maxConnectionsPerRoute != null ? maxConnections / maxConnectionsPerRoute : maxConnections));
+        }
+        logger.info("Configure connection manager for {} with {} stripes", proxyInfo, stripeCount);
+        List<PoolingHttpClientConnectionManager> stripes = new ArrayList<>(stripeCount);
+        for (int i = 0; i < stripeCount; i++) {
+            PoolingHttpClientConnectionManager connectionManager =
+                    new PoolingHttpClientConnectionManager(socketFactoryRegistry, connectionFactory,
+                            proxyDnsResolver);
+            if (maxConnections != null) {
+                // Spread the remainder over the first stripes
+                connectionManager.setMaxTotal(maxConnections / stripeCount
+                        + (i < maxConnections % stripeCount ? 1 : 0));
+            }
+            if (maxConnectionsPerRoute != null) {
+                connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+            }
+            stripes.add(connectionManager);
+        }
+        return new StripedConnectionManager(stripes, connectionBudget, () -> checkOpenConnections(proxyInfo));
     }
 
     /**
-     * If started close all active {@link PoolingHttpClientConnectionManager} instances then nullifies them,
+     * If started close all active {@link StripedConnectionManager} instances then removes them,
      * otherwise does nothing.
      *
      * @return {@code true} iff this manager is started.
@@ -215,12 +256,9 @@ class ConnectionPoolingManager implements AutoCloseable {
     synchronized boolean stop() {
         if (started) {
             started = false;
-            InputOutputs.close(httpConnectionManager);
-            InputOutputs.close(socksConnectionManager);
-            InputOutputs.close(socks4ConnectionManager);
-            httpConnectionManager = null;
-            socksConnectionManager = null;
-            socks4ConnectionManager = null;
+            connectionManagers.values().forEach(InputOutputs::close);
+            connectionManagers.clear();
+            connectionBudget = null;
             return true;
         } else {
             return false;
@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpConnectionMetrics;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.config.ConnectionConfig;
+import org.apache.http.conn.HttpConnectionFactory;
+import org.apache.http.conn.ManagedHttpClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.ManagedHttpClientConnectionFactory;
+import org.apache.http.protocol.HttpContext;
+
+import javax.net.ssl.SSLSession;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link ManagedHttpClientConnectionFactory} that keeps count of the connections it has created
+ * and that are not closed yet, whatever pool they belong to.
+ */
+class CountingConnectionFactory implements HttpConnectionFactory<HttpRoute, ManagedHttpClientConnection> {
+
+    private final AtomicInteger openConnections = new AtomicInteger();
+
+    @Override
+    public ManagedHttpClientConnection create(HttpRoute route, ConnectionConfig config) {
+        ManagedHttpClientConnection connection = ManagedHttpClientConnectionFactory.INSTANCE.create(route, config);
+        openConnections.incrementAndGet();
+        return new CountedConnection(connection);
+    }
+
+    /**
+     * @return the connections created and not closed yet.
+     */
+    int getOpenConnections() {
+        return openConnections.get();
+    }
+
+    /**
+     * A connection that leaves the count when first closed or shut down.
+     */
+    private final class CountedConnection implements ManagedHttpClientConnection, HttpContext {
+
+        private final ManagedHttpClientConnection connection;
+
+        private final AtomicBoolean counted = new AtomicBoolean(true);
+
+        CountedConnection(ManagedHttpClientConnection connection) {
+            this.connection = connection;
+        }
+
+        private void uncount() {
+            if (counted.compareAndSet(true, false)) {
+                openConnections.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                connection.close();
+            } finally {
+                uncount();
+            }
+        }
+
+        @Override
+        public void shutdown() throws IOException {
+            try {
+                connection.shutdown();
+            } finally {
+                uncount();
+            }
+        }
+
+        @Override
+        public String getId() {
+            return connection.getId();
+        }
+
+        @Override
+        public void bind(Socket socket) throws IOException {
+            connection.bind(socket);
+        }
+
+        @Override
+        public Socket getSocket() {
+            return connection.getSocket();
+        }
+
+        @Override
+        public SSLSession getSSLSession() {
+            return connection.getSSLSession();
+        }
+
+        @Override
+        public boolean isResponseAvailable(int timeout) throws IOException {
+            return connection.isResponseAvailable(timeout);
+        }
+
+        @Override
+        public void sendRequestHeader(HttpRequest request) throws HttpException, IOException {
+            connection.sendRequestHeader(request);
+        }
+
+        @Override
+        public void sendRequestEntity(HttpEntityEnclosingRequest request) throws HttpException, IOException {
+            connection.sendRequestEntity(request);
+        }
+
+        @Override
+        public HttpResponse receiveResponseHeader() throws HttpException, IOException {
+            return connection.receiveResponseHeader();
+        }
+
+        @Override
+        public void receiveResponseEntity(HttpResponse response) throws HttpException, IOException {
+            connection.receiveResponseEntity(response);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            connection.flush();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return connection.isOpen();
+        }
+
+        @Override
+        public boolean isStale() {
+            return connection.isStale();
+        }
+
+        @Override
+        public void setSocketTimeout(int timeout) {
+            connection.setSocketTimeout(timeout);
+        }
+
+        @Override
+        public int getSocketTimeout() {
+            return connection.getSocketTimeout();
+        }
+
+        @Override
+        public HttpConnectionMetrics getMetrics() {
+            return connection.getMetrics();
+        }
+
+        @Override
+        public InetAddress getLocalAddress() {
+            return connection.getLocalAddress();
+        }
+
+        @Override
+        public int getLocalPort() {
+            return connection.getLocalPort();
+        }
+
+        @Override
+        public InetAddress getRemoteAddress() {
+            return connection.getRemoteAddress();
+        }
+
+        @Override
+        public int getRemotePort() {
+            return connection.getRemotePort();
+        }
+
+        @Override
+        public Object getAttribute(String id) {
+            return connection instanceof HttpContext ? ((HttpContext) connection).getAttribute(id) : null;
+        }
+
+        @Override
+        public void setAttribute(String id, Object obj) {
+            if (connection instanceof HttpContext) {
+                ((HttpContext) connection).setAttribute(id, obj);
+            }
+        }
+
+        @Override
+        public Object removeAttribute(String id) {
+            return connection instanceof HttpContext ? ((HttpContext) connection).removeAttribute(id) : null;
+        }
+    }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.commons.lang3.Validate;
+import org.kpax.winfoom.util.ByteBufferPool;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The memory shared by all the {@link RepeatableHttpEntity} instances for buffering the request bodies.<br>
+ * The bodies are held in pooled direct chunks, off-heap. The total size of the chunks in use, including the ones
+ * buffering the writes into the temporary files, cannot exceed a global budget.
+ * The bodies that do not fit are cached into temporary files instead.
+ *
+ * @author Eugen Covaci
+ */
+final class EntityBufferPool {
+
+    /**
+     * The capacity of a chunk (bytes).
+     */
+    static final int CHUNK_SIZE = 16 * 1024;
+
+    private final ByteBufferPool chunkPool;
+
+    /**
+     * The max total length of the buffered bodies (bytes).
+     */
+    private final long budget;
+
+    /**
+     * The length currently reserved by the buffered bodies (bytes).
+     */
+    private final AtomicLong reserved = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param budget the max total length of the buffered bodies (bytes).
+     */
+    EntityBufferPool(long budget) {
+        Validate.isTrue(budget >= 0, "budget cannot be negative");
+        this.budget = budget;
+        // Enough released chunks are kept to hold the whole budget, the reservations already bound their number
+        this.chunkPool = new ByteBufferPool(CHUNK_SIZE, (int) Math.min(Integer.MAX_VALUE, budget / CHUNK_SIZE));
+    }
+
+    /**
+     * The memory taken by the chunks holding a length, that is the length rounded up to a multiple of
+     * {@link #CHUNK_SIZE}.
+     *
+     * @param length the length to hold (bytes).
+     * @return the size of the chunks (bytes).
+     */
+    static long footprint(long length) {
+        return (length + CHUNK_SIZE - 1) / CHUNK_SIZE * CHUNK_SIZE;
+    }
+
+    /**
+     * Reserve a length from the global budget.
+     *
+     * @param length the length to reserve (bytes).
+     * @return {@code true} iff the length has been reserved,
+     * in which case it must be given back by {@link #unreserve(long)}.
+     */
+    boolean reserve(long length) {
+        long current;
+        do {
+            current = reserved.get();
+            if (current + length > budget) {
+                return false;
+            }
+        } while (!reserved.compareAndSet(current, current + length));
+        return true;
+    }
+
+    /**
+     * Give back a length reserved by {@link #reserve(long)}.
+     *
+     * @param length the reserved length (bytes).
+     */
+    void unreserve(long length) {
+        reserved.addAndGet(-length);
+    }
+
+    /**
+     * @return a cleared chunk of {@link #CHUNK_SIZE} capacity.
+     */
+    ByteBuffer acquire() {
+        return chunkPool.acquire();
+    }
+
+    /**
+     * @param chunk the chunk to give back, can be {@code null}.
+     */
+    void release(ByteBuffer chunk) {
+        chunkPool.release(chunk);
+    }
+
+    /**
+     * @return the length currently reserved by the buffered bodies (bytes).
+     */
+    long getReserved() {
+        return reserved.get();
+    }
+
+}
@@ -15,16 +15,24 @@ package org.kpax.winfoom.proxy;
 import org.apache.http.HttpHost;
 import org.apache.http.client.CredentialsProvider;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.client.WinHttpClients;
 import org.apache.http.impl.conn.DefaultProxyRoutePlanner;
 import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.util.InputOutputs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * A factory for {@link HttpClientBuilder} for different proxy types.<br>
+ * It also keeps the built {@link CloseableHttpClient}s for reuse, one per proxy.<br>
  * <b>Note:</b> The {@link HttpClientBuilder} class is not thread safe.
  *
  * @author Eugen Covaci {@literal eugen.covaci.q@gmail.com}
@@ -33,6 +41,8 @@ import org.springframework.stereotype.Component;
 @Component
 class HttpClientBuilderFactory {
 
+    private final Logger logger = LoggerFactory.getLogger(HttpClientBuilderFactory.class);
+
     @Autowired
     private SystemConfig systemConfig;
 
@@ -43,34 +53,125 @@ class HttpClientBuilderFactory {
     private ConnectionPoolingManager connectionPoolingManager;
 
     /**
-     * Create a new instance of {@link HttpClientBuilder} according to the requested proxy.
+     * The built clients, with their last use.
+     */
+    private final Map<ProxyInfo, CachedHttpClient> httpClients = new ConcurrentHashMap<>();
+
+    /**
+     * Get the HTTP client for the requested proxy, building it if necessary,
+     * and pin its connection pool so it is not closed as unused while the client is in use.<br>
+     * The client is shared: closing the returned {@link PinnedHttpClient} only unpins the pool,
+     * which must be done once the response is consumed.
+     *
+     * @param proxyInfo the proxy.
+     * @return the pinned {@link CloseableHttpClient} instance for the requested proxy.
+     */
+    PinnedHttpClient getHttpClient(ProxyInfo proxyInfo) {
+        for (; ; ) {
+            CachedHttpClient cachedHttpClient = httpClients.get(proxyInfo);
+            if (cachedHttpClient == null) {
+                cachedHttpClient = httpClients.computeIfAbsent(proxyInfo, key -> {
+                    StripedConnectionManager connectionManager = connectionPoolingManager.getConnectionManager(key);
+                    return new CachedHttpClient(createClientBuilder(key, connectionManager).build(),
+                            connectionManager);
+                });
+                if (httpClients.size() > systemConfig.getHttpClientCacheSize()) {
+                    // Only when a client has been built, not on the hot path
+                    evictLeastRecentlyUsed(proxyInfo);
+                }
+            }
+            cachedHttpClient.lastUsed = System.nanoTime();
+            if (cachedHttpClient.connectionManager.pin()) {
+                return new PinnedHttpClient(cachedHttpClient);
+            }
+
+            // Its pool is being closed as unused, build a new one
+            httpClients.remove(proxyInfo, cachedHttpClient);
+        }
+    }
+
+    /**
+     * Close and remove the least recently used clients, until the cache size is back within its limit.
+     *
+     * @param keep the proxy whose client has just been built, never evicted.
+     */
+    private void evictLeastRecentlyUsed(ProxyInfo keep) {
+        while (httpClients.size() > systemConfig.getHttpClientCacheSize()) {
+            Map.Entry<ProxyInfo, CachedHttpClient> eldest = null;
+            for (Map.Entry<ProxyInfo, CachedHttpClient> entry : httpClients.entrySet()) {
+                if (!entry.getKey().equals(keep)
+                        && (eldest == null || entry.getValue().lastUsed - eldest.getValue().lastUsed < 0)) {
+                    eldest = entry;
+                }
+            }
+            if (eldest == null) {
+                break;
+            }
+            if (httpClients.remove(eldest.getKey(), eldest.getValue())) {
+                logger.debug("Evict the HTTP client for {}", eldest.getKey());
+
+                // The connection manager is shared, so it is safe
+                // to close the client even while it's still in use
+                InputOutputs.close(eldest.getValue().httpClient);
+            }
+        }
+    }
+
+    /**
+     * Close and remove the client of a proxy, if any.
      *
      * @param proxyInfo the proxy.
+     */
+    void removeHttpClient(ProxyInfo proxyInfo) {
+        CachedHttpClient cachedHttpClient = httpClients.remove(proxyInfo);
+        if (cachedHttpClient != null) {
+            InputOutputs.close(cachedHttpClient.httpClient);
+        }
+    }
+
+    /**
+     * Close and remove all the built clients.<br>
+     * It must be called whenever the connection managers or the proxy settings change.
+     */
+    void clearHttpClients() {
+        logger.debug("Clear {} HTTP clients", httpClients.size());
+        for (ProxyInfo proxyInfo : httpClients.keySet()) {
+            removeHttpClient(proxyInfo);
+        }
+    }
+
+    /**
+     * Create a new instance of {@link HttpClientBuilder} according to the requested proxy.
+     *
+     * @param proxyInfo         the proxy.
+     * @param connectionManager the proxy's connection pool.
      * @return a pre-configured {@link HttpClientBuilder} instance for the requested proxy.
      */
-    HttpClientBuilder createClientBuilder(ProxyInfo proxyInfo) {
+    HttpClientBuilder createClientBuilder(ProxyInfo proxyInfo, StripedConnectionManager connectionManager) {
         if (proxyInfo.getType().isSocks()) {
-            return createSocksClientBuilder(proxyInfo.getType().isSocks4());
+            return createSocksClientBuilder(connectionManager);
         } else if (proxyInfo.getType().isHttp()) {
-            return createHttpClientBuilder(proxyInfo);
+            return createHttpClientBuilder(proxyInfo, connectionManager);
         } else {
-            return createDirectClientBuilder();
+            return createDirectClientBuilder(connectionManager);
         }
     }
 
     /**
      * For HTTP proxies.
      *
-     * @param proxyInfo the proxy.
+     * @param proxyInfo         the proxy.
+     * @param connectionManager the proxy's connection pool.
      * @return a pre-configured {@link HttpClientBuilder} instance for HTTP proxies.
      */
-    private HttpClientBuilder createHttpClientBuilder(ProxyInfo proxyInfo) {
+    private HttpClientBuilder createHttpClientBuilder(ProxyInfo proxyInfo,
+                                                      StripedConnectionManager connectionManager) {
         RequestConfig requestConfig = systemConfig.applyConfig(RequestConfig.custom())
                 .setProxy(new HttpHost(proxyInfo.getProxyHost().getHostName(), proxyInfo.getProxyHost().getPort()))
                 .setCircularRedirectsAllowed(true)
                 .build();
         HttpClientBuilder builder = WinHttpClients.custom().setDefaultCredentialsProvider(credentialsProvider)
-                .setConnectionManager(connectionPoolingManager.getHttpConnectionManager())
+                .setConnectionManager(connectionManager)
                 .setConnectionManagerShared(true)
                 .setDefaultRequestConfig(requestConfig)
                 .setRoutePlanner(new DefaultProxyRoutePlanner(requestConfig.getProxy()))
@@ -87,11 +188,12 @@ class HttpClientBuilderFactory {
     /**
      * For no proxy case.
      *
+     * @param connectionManager the connection pool.
      * @return a pre-configured {@link HttpClientBuilder} instance for direct connections (no proxy).
      */
-    private HttpClientBuilder createDirectClientBuilder() {
+    private HttpClientBuilder createDirectClientBuilder(StripedConnectionManager connectionManager) {
         HttpClientBuilder builder = HttpClients.custom()
-                .setConnectionManager(connectionPoolingManager.getHttpConnectionManager())
+                .setConnectionManager(connectionManager)
                 .setConnectionManagerShared(true)
                 .setDefaultRequestConfig(systemConfig.applyConfig(RequestConfig.custom())
                         .setCircularRedirectsAllowed(true)
@@ -109,14 +211,12 @@ class HttpClientBuilderFactory {
     /**
      * For SOCKS proxies.
      *
-     * @param isSocks4 whether the SOCKS version is {@code 4} or not.
+     * @param connectionManager the proxy's connection pool.
      * @return a pre-configured {@link HttpClientBuilder} instance for SOCKS proxies.
      */
-    private HttpClientBuilder createSocksClientBuilder(boolean isSocks4) {
+    private HttpClientBuilder createSocksClientBuilder(StripedConnectionManager connectionManager) {
         HttpClientBuilder builder = HttpClients.custom()
-                .setConnectionManager(isSocks4 ?
-                        connectionPoolingManager.getSocks4ConnectionManager() :
-                        connectionPoolingManager.getSocksConnectionManager())
+                .setConnectionManager(connectionManager)
                 .setDefaultRequestConfig(systemConfig.applyConfig(RequestConfig.custom())
                         .setCircularRedirectsAllowed(true)
                         .build())
@@ -131,5 +231,48 @@ class HttpClientBuilderFactory {
         return builder;
     }
 
+    private static final class CachedHttpClient {
+
+        private final CloseableHttpClient httpClient;
+
+        /**
+         * The time of the last use (nanoseconds), to evict the least recently used clients.
+         */
+        private volatile long lastUsed = System.nanoTime();
+
+        private final StripedConnectionManager connectionManager;
+
+        CachedHttpClient(CloseableHttpClient httpClient, StripedConnectionManager connectionManager) {
+            this.httpClient = httpClient;
+            this.connectionManager = connectionManager;
+        }
+    }
+
+    /**
+     * A shared HTTP client, its connection pool pinned until closed.
+     */
+    static final class PinnedHttpClient implements AutoCloseable {
+
+        private final CloseableHttpClient httpClient;
+
+        private final StripedConnectionManager connectionManager;
+
+        private PinnedHttpClient(CachedHttpClient cachedHttpClient) {
+            this.httpClient = cachedHttpClient.httpClient;
+            this.connectionManager = cachedHttpClient.connectionManager;
+        }
+
+        CloseableHttpClient getHttpClient() {
+            return httpClient;
+        }
+
+        /**
+         * Unpin the connection pool, the client itself is left open.
+         */
+        @Override
+        public void close() {
+            connectionManager.unpin();
+        }
+    }
 
 }
@@ -37,10 +37,10 @@ class HttpConnectClientConnectionProcessor implements ClientConnectionProcessor
     private final Logger logger = LoggerFactory.getLogger(HttpConnectClientConnectionProcessor.class);
 
     @Autowired
-    private ProxyContext proxyContext;
+    private TunnelConnection tunnelConnection;
 
     @Autowired
-    private TunnelConnection tunnelConnection;
+    private TunnelRelay tunnelRelay;
 
     @Override
     public void process(final ClientConnection clientConnection, final ProxyInfo proxyInfo)
@@ -50,30 +50,11 @@ class HttpConnectClientConnectionProcessor implements ClientConnectionProcessor
         HttpHost target = HttpHost.create(requestLine.getUri());
         HttpHost proxy = new HttpHost(proxyInfo.getProxyHost().getHostName(), proxyInfo.getProxyHost().getPort());
 
-        try (Tunnel tunnel = tunnelConnection.open(proxy, target, requestLine.getProtocolVersion())) {
-            try {
-                // Handle the tunnel response
-                logger.debug("Write status line");
-                clientConnection.write(tunnel.getStatusLine());
-
-                logger.debug("Write headers");
-                for (Header header : tunnel.getResponse().getAllHeaders()) {
-                    clientConnection.write(header);
-                }
-                clientConnection.writeln();
-
-                // The proxy facade mediates the full duplex communication
-                // between the client and the remote proxy.
-                // This usually ends on connection reset, timeout or any other error
-                InputOutputs.duplex(proxyContext.executorService(),
-                        tunnel.getInputStream(),
-                        tunnel.getOutputStream(),
-                        clientConnection.getInputStream(),
-                        clientConnection.getOutputStream());
-
-            } catch (Exception e) {
-                logger.debug("Error on handling CONNECT response", e);
-            }
+        final Tunnel tunnel;
+        try {
+            // The connection made by the proxy race, if any
+            tunnel = tunnelConnection.open(proxy, target, requestLine.getProtocolVersion(),
+                    clientConnection.takeRacedSocket(proxyInfo));
         } catch (TunnelRefusedException tre) {
             logger.debug("The tunnel request was rejected by the proxy host", tre);
             try {
@@ -81,6 +62,32 @@ class HttpConnectClientConnectionProcessor implements ClientConnectionProcessor
             } catch (Exception e) {
                 logger.debug("Error on writing response", e);
             }
+            return;
+        }
+
+        boolean relayed = false;
+        try {
+            // Handle the tunnel response
+            logger.debug("Write status line");
+            clientConnection.write(tunnel.getStatusLine());
+
+            logger.debug("Write headers");
+            for (Header header : tunnel.getResponse().getAllHeaders()) {
+                clientConnection.write(header);
+            }
+            clientConnection.writeln();
+
+            // The relay mediates the full duplex communication
+            // between the client and the remote proxy, off this thread
+            tunnelRelay.relay(clientConnection, tunnel.getConnection().getSocket());
+            relayed = true;
+        } catch (Exception e) {
+            logger.debug("Error on handling CONNECT response", e);
+        } finally {
+            // Once relayed, the tunnel is closed by the relay
+            if (!relayed) {
+                InputOutputs.close(tunnel);
+            }
         }
 
     }
@@ -15,16 +15,30 @@ package org.kpax.winfoom.proxy;
 import org.apache.commons.lang3.StringUtils;
 import org.kpax.winfoom.config.ProxyConfig;
 import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.util.HttpUtils;
 import org.kpax.winfoom.util.InputOutputs;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import java.io.ByteArrayInputStream;
 import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * The local proxy server.<br>
@@ -35,6 +49,16 @@ import java.net.SocketException;
 @Component
 class LocalProxyServer implements Closeable {
 
+    /**
+     * The min delay before accepting again, once out of resources (milliseconds).
+     */
+    static final long MIN_ACCEPT_BACKOFF = 10;
+
+    /**
+     * The max delay before accepting again, once out of resources (milliseconds).
+     */
+    static final long MAX_ACCEPT_BACKOFF = 1000;
+
     private final Logger logger = LoggerFactory.getLogger(LocalProxyServer.class);
 
     @Autowired
@@ -51,6 +75,18 @@ class LocalProxyServer implements Closeable {
 
     private ServerSocket serverSocket;
 
+    private SelectorAcceptor selectorAcceptor;
+
+    /**
+     * The idle persistent connections waiting for the next request in blocking mode, the oldest first.
+     */
+    private final Set<Socket> idleSockets = new LinkedHashSet<>();
+
+    /**
+     * The response sent to the rejected connections, created once per start.
+     */
+    private byte[] serviceUnavailableResponse;
+
     private volatile boolean started;
 
     /**
@@ -60,7 +96,13 @@ class LocalProxyServer implements Closeable {
      * <li>Opens a {@link ServerSocket} on a local port, then listen for connections</li>
      * <li>When a connection arrives, it delegates the handling to the {@link ClientConnectionHandler}, on a new
      * thread.</li>
+     * <li>While a persistent connection waits for the next request, it does not hold a connection handling
+     * thread.</li>
+     * <li>When too many connections are already active or waiting, the connection is rejected with a 503
+     * response.</li>
      * </ul>
+     * When {@link SystemConfig#isServerSocketNonBlocking()} is {@code true}, the connections are accepted
+     * by a {@link SelectorAcceptor} instead.<br>
      * The proxy settings are saved after the local proxy server successfully starts.<br>
      *
      * @throws IllegalStateException if the server had been started.
@@ -74,50 +116,236 @@ class LocalProxyServer implements Closeable {
         logger.info("Start local proxy server with userConfig {}", proxyConfig);
 
         try {
+            serviceUnavailableResponse = HttpUtils.createServiceUnavailableResponse(
+                    systemConfig.getRejectedConnectionRetryAfter());
+            if (systemConfig.isServerSocketNonBlocking()) {
+                startNonBlocking();
+            } else {
+                startBlocking();
+            }
+
+            try {
+                // Save the user properties
+                proxyConfig.save();
+            } catch (Exception e) {
+                logger.warn("Error on saving user configuration", e);
+            }
+
+            logger.info("Server started, listening on port: " + proxyConfig.getLocalPort());
+        } catch (Exception e) {
+            // Cleanup on exception
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Accept the connections with a {@link SelectorAcceptor}, that hands them over
+     * to the {@link ClientConnectionHandler} once the request's head is read.
+     *
+     * @throws IOException
+     */
+    private void startNonBlocking() throws IOException {
+        selectorAcceptor = new SelectorAcceptor(proxyConfig.getLocalPort(),
+                systemConfig.getServerSocketBacklog(),
+                systemConfig.getSocketSoTimeout() * 1000,
+                systemConfig.getKeepAliveIdleTimeout() * 1000,
+                proxyContext.connectionExecutorService(),
+                clientConnectionHandler,
+                serviceUnavailableResponse);
+        started = true;
+        selectorAcceptor.start(proxyContext.platformExecutorService());
+    }
+
+    /**
+     * Accept the connections with a {@link ServerSocket}, each one being handled on its own thread.
+     *
+     * @throws IOException
+     */
+    private void startBlocking() throws IOException {
+        if (systemConfig.isTunnelNonBlocking()) {
+            // The accepted sockets need a channel to be relayed by the TunnelRelay
+            serverSocket = ServerSocketChannel.open().socket();
+            serverSocket.bind(new InetSocketAddress(proxyConfig.getLocalPort()),
+                    systemConfig.getServerSocketBacklog());
+        } else {
             serverSocket = new ServerSocket(proxyConfig.getLocalPort(),
                     systemConfig.getServerSocketBacklog());
+        }
 
-            started = true;
+        started = true;
 
-            proxyContext.executorService().execute(() -> {
-                while (started) {
-                    try {
-                        Socket socket = serverSocket.accept();
-                        socket.setSoTimeout(systemConfig.getSocketSoTimeout() * 1000);
-                        proxyContext.executorService().execute(() -> {
-                            try {
-                                clientConnectionHandler.handleConnection(socket);
-                            } catch (Exception e) {
-                                logger.debug("Error on handling connection", e);
-                            } finally {
-                                InputOutputs.close(socket);
-                            }
-                        });
-                    } catch (SocketException e) {
+        proxyContext.platformExecutorService().execute(() -> {
+            long acceptBackoff = 0;
+            while (started) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    acceptBackoff = 0;
+                    socket.setSoTimeout(systemConfig.getSocketSoTimeout() * 1000);
+                    dispatch(socket, socket.getInputStream(), 0);
+                } catch (Exception e) {
+                    if (HttpUtils.isResourceExhausted(e)) {
+                        // Retrying right away would only spin, give the connections in progress a chance to end
+                        acceptBackoff = Math.min(Math.max(MIN_ACCEPT_BACKOFF, acceptBackoff * 2), MAX_ACCEPT_BACKOFF);
+                        logger.warn("Out of resources on getting connection, retry in {} ms", acceptBackoff);
+                        try {
+                            Thread.sleep(acceptBackoff);
+                        } catch (InterruptedException ie) {
+                            Thread.currentThread().interrupt();
+                            break;
+                        }
+                    } else if (e instanceof SocketException) {
 
                         // Ignore java.net.SocketException: Interrupted function call.
                         // Get this whenever stop the server socket.
                         if (!StringUtils.startsWithIgnoreCase(e.getMessage(), "Interrupted function call")) {
                             logger.debug("Socket error on getting connection", e);
                         }
-                    } catch (Exception e) {
+                    } else {
                         logger.debug("Generic error on getting connection", e);
                     }
                 }
+            }
+        });
+    }
+
+    /**
+     * Handle a connection's requests on the bounded connection executor, until the connection becomes idle.
+     *
+     * @param socket         the client's socket.
+     * @param inputStream    the client's input stream, possibly replaying the bytes already read from the socket.
+     * @param servedRequests the number of requests already served on this connection.
+     */
+    private void dispatch(final Socket socket, final InputStream inputStream, final int servedRequests) {
+        try {
+            proxyContext.connectionExecutorService().execute(() -> {
+                try {
+                    // The handler closes the socket, unless it is idle or handed over
+                    int served = clientConnectionHandler.handleConnection(socket, inputStream, servedRequests, false);
+                    if (served >= 0) {
+                        awaitNextRequest(socket, served);
+                    }
+                } catch (Exception e) {
+                    logger.debug("Error on handling connection", e);
+                    InputOutputs.close(socket);
+                }
             });
+        } catch (RejectedExecutionException e) {
+            rejectConnection(socket);
+        }
+    }
 
-            try {
-                // Save the user properties
-                proxyConfig.save();
-            } catch (Exception e) {
-                logger.warn("Error on saving user configuration", e);
+    /**
+     * Wait for the next request of an idle persistent connection on the unbounded executor,
+     * so the idle connections do not hold the connection handling threads.
+     * The connection is dispatched again once the request's first byte arrives.<br>
+     * At most {@link SystemConfig#getKeepAliveMaxIdle()} connections wait at the same time,
+     * beyond this limit the oldest idle connection is closed.
+     *
+     * @param socket         the client's socket.
+     * @param servedRequests the number of requests already served on this connection.
+     */
+    private void awaitNextRequest(final Socket socket, final int servedRequests) {
+        if (!addIdleSocket(socket)) {
+            InputOutputs.close(socket);
+            return;
+        }
+        try {
+            proxyContext.executorService().execute(() -> {
+                try {
+                    int soTimeout = socket.getSoTimeout();
+                    socket.setSoTimeout(systemConfig.getKeepAliveIdleTimeout() * 1000);
+                    int firstByte;
+                    try {
+                        firstByte = socket.getInputStream().read();
+                    } catch (SocketTimeoutException e) {
+                        logger.debug("Idle timeout on persistent connection");
+                        firstByte = -1;
+                    }
+                    if (!removeIdleSocket(socket) || firstByte < 0 || !started) {
+                        InputOutputs.close(socket);
+                        return;
+                    }
+                    socket.setSoTimeout(soTimeout);
+                    dispatch(socket, new SequenceInputStream(new ByteArrayInputStream(new byte[]{(byte) firstByte}),
+                            socket.getInputStream()), servedRequests);
+                } catch (Exception e) {
+                    logger.debug("Error on waiting for the next request", e);
+                    removeIdleSocket(socket);
+                    InputOutputs.close(socket);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            removeIdleSocket(socket);
+            InputOutputs.close(socket);
+        }
+    }
+
+    /**
+     * Register an idle persistent connection, closing the oldest ones when too many connections are idle.
+     *
+     * @param socket the client's socket.
+     * @return {@code false} iff the server is stopped.
+     */
+    private boolean addIdleSocket(final Socket socket) {
+        List<Socket> evicted = new ArrayList<>();
+        synchronized (idleSockets) {
+            if (!started) {
+                return false;
             }
+            idleSockets.add(socket);
+            for (Iterator<Socket> itr = idleSockets.iterator();
+                 idleSockets.size() > systemConfig.getKeepAliveMaxIdle() && itr.hasNext(); ) {
+                evicted.add(itr.next());
+                itr.remove();
+            }
+        }
+        if (!evicted.isEmpty()) {
+            logger.debug("Too many idle persistent connections, close the {} oldest", evicted.size());
+            // Closing the socket ends the blocked read
+            evicted.forEach(InputOutputs::close);
+        }
+        return true;
+    }
 
-            logger.info("Server started, listening on port: " + proxyConfig.getLocalPort());
+    /**
+     * Unregister an idle persistent connection.
+     *
+     * @param socket the client's socket.
+     * @return {@code false} iff the connection was no longer registered, being closed meanwhile.
+     */
+    private boolean removeIdleSocket(final Socket socket) {
+        synchronized (idleSockets) {
+            return idleSockets.remove(socket);
+        }
+    }
+
+    /**
+     * Close all the idle persistent connections, ending their blocked reads.
+     */
+    private void closeIdleSockets() {
+        List<Socket> sockets;
+        synchronized (idleSockets) {
+            sockets = new ArrayList<>(idleSockets);
+            idleSockets.clear();
+        }
+        sockets.forEach(InputOutputs::close);
+    }
+
+    /**
+     * Reject a connection when too many connections are already active or waiting:
+     * write the precomputed 503 response, then close the socket.
+     *
+     * @param socket the client's socket.
+     */
+    private void rejectConnection(final Socket socket) {
+        logger.debug("Too many connections, reject the connection");
+        try {
+            socket.getOutputStream().write(serviceUnavailableResponse);
         } catch (Exception e) {
-            // Cleanup on exception
-            close();
-            throw e;
+            logger.debug("Error on writing the rejection response", e);
+        } finally {
+            InputOutputs.close(socket);
         }
     }
 
@@ -126,11 +354,18 @@ class LocalProxyServer implements Closeable {
         if (started) {
             started = false;
             logger.info("Now stop running the local proxy server");
-            try {
-                logger.info("Close the server socket");
-                serverSocket.close();
-            } catch (Exception e) {
-                logger.warn("Error on closing server socket", e);
+            if (selectorAcceptor != null) {
+                logger.info("Close the selector acceptor");
+                selectorAcceptor.close();
+                selectorAcceptor = null;
+            } else {
+                try {
+                    logger.info("Close the server socket");
+                    serverSocket.close();
+                } catch (Exception e) {
+                    logger.warn("Error on closing server socket", e);
+                }
+                closeIdleSockets();
             }
         } else {
             logger.info("Already closed, nothing to do");
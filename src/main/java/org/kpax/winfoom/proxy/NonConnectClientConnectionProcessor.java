@@ -14,11 +14,12 @@ package org.kpax.winfoom.proxy;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.*;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.NonRepeatableRequestException;
 import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpHead;
 import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.entity.AbstractHttpEntity;
-import org.apache.http.entity.InputStreamEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.protocol.HTTP;
 import org.apache.http.util.EntityUtils;
 import org.kpax.winfoom.config.ProxyConfig;
@@ -29,11 +30,11 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.URI;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
 
 /**
@@ -53,14 +54,29 @@ class NonConnectClientConnectionProcessor implements ClientConnectionProcessor {
             HttpHeaders.CONTENT_LENGTH,
             HttpHeaders.CONTENT_TYPE,
             HttpHeaders.CONTENT_ENCODING,
-            HttpHeaders.PROXY_AUTHORIZATION);
+            HttpHeaders.PROXY_AUTHORIZATION,
+            HTTP.CONN_DIRECTIVE,
+            HttpUtils.PROXY_CONNECTION,
+            HttpUtils.KEEP_ALIVE);
 
     /**
      * These headers will be removed from client's response if there is no enclosing
      * entity (it means the request has no body).
      */
-    private static final List<String> DEFAULT_BANNED_HEADERS = Collections.singletonList(
-            HttpHeaders.PROXY_AUTHORIZATION);
+    private static final List<String> DEFAULT_BANNED_HEADERS = Arrays.asList(
+            HttpHeaders.PROXY_AUTHORIZATION,
+            HTTP.CONN_DIRECTIVE,
+            HttpUtils.PROXY_CONNECTION,
+            HttpUtils.KEEP_ALIVE);
+
+    /**
+     * These hop-by-hop headers are not forwarded to the client,
+     * since they describe the connection with the upstream server.
+     */
+    private static final List<String> HOP_BY_HOP_HEADERS = Arrays.asList(
+            HTTP.CONN_DIRECTIVE,
+            HttpUtils.PROXY_CONNECTION,
+            HttpUtils.KEEP_ALIVE);
 
     private final Logger logger = LoggerFactory.getLogger(NonConnectClientConnectionProcessor.class);
 
@@ -73,6 +89,16 @@ class NonConnectClientConnectionProcessor implements ClientConnectionProcessor {
     @Autowired
     private HttpClientBuilderFactory clientBuilderFactory;
 
+    @Autowired
+    private ProxyAuthCache proxyAuthCache;
+
+    private EntityBufferPool entityBufferPool;
+
+    @PostConstruct
+    private void init() {
+        this.entityBufferPool = new EntityBufferPool(systemConfig.getInternalBufferTotalLength());
+    }
+
     @Override
     public void process(final ClientConnection clientConnection, final ProxyInfo proxyInfo)
             throws IOException {
@@ -89,14 +115,20 @@ class NonConnectClientConnectionProcessor implements ClientConnectionProcessor {
 
                     // There is no need for caching since
                     // SOCKS communication is one step only
-                    entity = new InputStreamEntity(clientConnection.getInputStream(),
-                            HttpUtils.getContentLength(request),
-                            HttpUtils.getContentType(request));
+                    entity = new StreamingHttpEntity(clientConnection.getSessionInputBuffer(), request);
+                } else if (!clientConnection.isFailoverPossible() && !isBufferable(request)
+                        && !isChallengeExpected(proxyInfo)) {
+
+                    // There is no other proxy to retry with, nor a proxy authentication to answer,
+                    // so no need for caching either: the body is streamed once the upstream connection is established
+                    logger.debug("No failover possible, stream the request's body");
+                    entity = new StreamingHttpEntity(clientConnection.getSessionInputBuffer(), request);
                 } else {
                     entity = new RepeatableHttpEntity(clientConnection.getSessionInputBuffer(),
                             proxyConfig.getTempDirectory(),
                             request,
-                            systemConfig.getInternalBufferLength());
+                            systemConfig.getInternalBufferLength(),
+                            entityBufferPool);
                     clientConnection.registerAutoCloseable((RepeatableHttpEntity) entity);
                 }
 
@@ -129,7 +161,7 @@ class NonConnectClientConnectionProcessor implements ClientConnectionProcessor {
             List<String> bannedHeaders = request instanceof HttpEntityEnclosingRequest ?
                     ENTITY_BANNED_HEADERS : DEFAULT_BANNED_HEADERS;
             for (Header header : request.getAllHeaders()) {
-                if (bannedHeaders.contains(header.getName())) {
+                if (containsIgnoreCase(bannedHeaders, header.getName())) {
                     request.removeHeader(header);
                     logger.debug("Request header {} removed", header);
                 } else {
@@ -148,32 +180,73 @@ class NonConnectClientConnectionProcessor implements ClientConnectionProcessor {
             clientConnection.requestPrepared();
         }
 
-        try (CloseableHttpClient httpClient = clientBuilderFactory.createClientBuilder(proxyInfo).build()) {
-
-            URI uri = clientConnection.getRequestUri();
-            HttpHost target = new HttpHost(uri.getHost(),
-                    uri.getPort(),
-                    uri.getScheme());
+        URI uri = clientConnection.getRequestUri();
+        HttpHost target = new HttpHost(uri.getHost(),
+                uri.getPort(),
+                uri.getScheme());
+
+        HttpHost proxyHost = proxyInfo.getType().isHttp()
+                ? new HttpHost(proxyInfo.getProxyHost().getHostName(), proxyInfo.getProxyHost().getPort())
+                : null;
+        HttpClientContext context = HttpClientContext.create();
+        if (proxyInfo.getType().isSocks()) {
+            InetSocketAddress proxySocketAddress = new InetSocketAddress(proxyInfo.getProxyHost().getHostName(),
+                    proxyInfo.getProxyHost().getPort());
+            context.setAttribute(HttpUtils.SOCKS_ADDRESS, proxySocketAddress);
+        } else if (proxyHost != null && systemConfig.isHttpProxyPreemptiveAuth()) {
+            // Authenticate preemptively, like the previous request to this proxy
+            context.setAuthCache(proxyAuthCache.forProxy(proxyHost));
+        }
 
-            HttpClientContext context = HttpClientContext.create();
-            if (proxyInfo.getType().isSocks()) {
-                InetSocketAddress proxySocketAddress = new InetSocketAddress(proxyInfo.getProxyHost().getHostName(),
-                        proxyInfo.getProxyHost().getPort());
-                context.setAttribute(HttpUtils.SOCKS_ADDRESS, proxySocketAddress);
+        // Execute the request, the client is shared: closing it only unpins its connection pool
+        HttpClientBuilderFactory.PinnedHttpClient httpClient = clientBuilderFactory.getHttpClient(proxyInfo);
+        try (httpClient; CloseableHttpResponse response = httpClient.getHttpClient().execute(target, request,
+                context)) {
+            if (proxyHost != null) {
+                proxyAuthCache.recordExchange(proxyHost, context.getProxyAuthState(),
+                        response.getStatusLine().getStatusCode());
             }
 
-            // Execute the request
-            try (CloseableHttpResponse response = httpClient.execute(target, request, context)) {
+            try {
+                handleResponse(response, clientConnection);
+            } catch (Exception e) {
+                logger.debug("Error on handling non CONNECT response", e);
 
-                try {
-                    handleResponse(response, clientConnection);
-                } catch (Exception e) {
-                    logger.debug("Error on handling non CONNECT response", e);
-                }
+                // The response might be incomplete
+                clientConnection.disablePersistence();
+            }
+        } catch (ClientProtocolException e) {
+            if (proxyHost != null && e.getCause() instanceof NonRepeatableRequestException) {
+                // The streamed body has been consumed by an authentication challenge
+                proxyAuthCache.recordChallenge(proxyHost);
             }
+            throw e;
         }
     }
 
+    /**
+     * Check whether the upstream proxy might answer with a {@code 407} challenge,
+     * in which case the request's body must be repeatable.
+     *
+     * @param proxyInfo the upstream proxy.
+     * @return {@code true} iff it is an HTTP proxy not known to let the requests through.
+     */
+    private boolean isChallengeExpected(final ProxyInfo proxyInfo) {
+        return proxyInfo.getType().isHttp() && proxyAuthCache.isChallengeExpected(
+                new HttpHost(proxyInfo.getProxyHost().getHostName(), proxyInfo.getProxyHost().getPort()));
+    }
+
+    /**
+     * Check whether the request's body is small enough to be buffered in memory.
+     *
+     * @param request the client's request.
+     * @return {@code true} iff the body's length is known and not bigger than the internal buffer.
+     */
+    private boolean isBufferable(final HttpRequest request) {
+        long contentLength = HttpUtils.getContentLength(request);
+        return contentLength >= 0 && contentLength <= systemConfig.getInternalBufferLength();
+    }
+
     /**
      * Handles the Http response for non-CONNECT requests.<br>
      *
@@ -181,6 +254,11 @@ class NonConnectClientConnectionProcessor implements ClientConnectionProcessor {
      */
     private void handleResponse(final CloseableHttpResponse response,
                                 final ClientConnection clientConnection) throws IOException {
+        if (!isRequestConsumed(clientConnection.getHttpRequest()) || !isResponseDelimited(clientConnection, response)) {
+            logger.debug("Cannot keep the client's connection open");
+            clientConnection.disablePersistence();
+        }
+
         StatusLine statusLine = response.getStatusLine();
         logger.debug("Write status line: {}", statusLine);
         clientConnection.write(statusLine);
@@ -189,8 +267,13 @@ class NonConnectClientConnectionProcessor implements ClientConnectionProcessor {
                 response.getFirstHeader(HttpHeaders.VIA)));
         response.removeHeaders(HttpHeaders.VIA);
 
+        clientConnection.write(HttpUtils.createHttpHeader(HTTP.CONN_DIRECTIVE,
+                clientConnection.isPersistent() ? HTTP.CONN_KEEP_ALIVE : HTTP.CONN_CLOSE));
+
         for (Header header : response.getAllHeaders()) {
-            if (HttpHeaders.TRANSFER_ENCODING.equals(header.getName())) {
+            if (containsIgnoreCase(HOP_BY_HOP_HEADERS, header.getName())) {
+                logger.debug("Skip response header: {}", header);
+            } else if (HttpHeaders.TRANSFER_ENCODING.equals(header.getName())) {
 
                 // Strip 'chunked' from Transfer-Encoding header's value
                 // since the response is not chunked
@@ -225,4 +308,44 @@ class NonConnectClientConnectionProcessor implements ClientConnectionProcessor {
         }
 
     }
+
+    /**
+     * Check whether the request's body, if any, has been entirely read from the client's connection.
+     *
+     * @param request the client's request.
+     * @return {@code true} iff the request has no body left to be read.
+     */
+    private boolean isRequestConsumed(final HttpRequest request) {
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            return entity.getContentLength() == 0
+                    || ((entity instanceof RepeatableHttpEntity || entity instanceof StreamingHttpEntity)
+                    && !entity.isStreaming());
+        }
+        return true;
+    }
+
+    /**
+     * Check whether the client can find the end of the response without the connection being closed.<br>
+     * The response's body is written as it is decoded, so it is delimited only by the Content-Length header.
+     *
+     * @param clientConnection the client's connection.
+     * @param response         the upstream response.
+     * @return {@code true} iff the response's length is known to the client.
+     */
+    private boolean isResponseDelimited(final ClientConnection clientConnection, final HttpResponse response) {
+        int statusCode = response.getStatusLine().getStatusCode();
+        if (HttpHead.METHOD_NAME.equalsIgnoreCase(clientConnection.getRequestLine().getMethod())
+                || statusCode < HttpStatus.SC_OK
+                || statusCode == HttpStatus.SC_NO_CONTENT
+                || statusCode == HttpStatus.SC_NOT_MODIFIED) {
+            return true;
+        }
+        HttpEntity entity = response.getEntity();
+        return entity == null || (entity.getContentLength() >= 0 && !entity.isChunked());
+    }
+
+    private static boolean containsIgnoreCase(final List<String> headerNames, final String name) {
+        return headerNames.stream().anyMatch(name::equalsIgnoreCase);
+    }
 }
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.util.InputOutputs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the loaded PAC script up to date, while the local proxy server is running:
+ * the HTTP PAC files are checked periodically, the local ones are watched for changes.<br>
+ * A changed script is swapped in by {@link ProxyAutoConfig#reloadScript()}, without interrupting the connections.
+ * <p>We rely on the Spring context to close this instance!
+ *
+ * @author Eugen Covaci
+ */
+@Component
+class PacFileWatcher implements AutoCloseable {
+
+    /**
+     * The time to wait after a file change event, for the writing to complete (milliseconds).
+     */
+    private static final int FILE_SETTLE_TIME = 200;
+
+    private final Logger logger = LoggerFactory.getLogger(PacFileWatcher.class);
+
+    @Autowired
+    private ProxyConfig proxyConfig;
+
+    @Autowired
+    private SystemConfig systemConfig;
+
+    @Autowired
+    private ProxyAutoConfig proxyAutoConfig;
+
+    @Autowired
+    private ProxyContext proxyContext;
+
+    private ScheduledExecutorService scheduler;
+
+    private WatchService watchService;
+
+    /**
+     * Start watching the PAC file, if the proxy type is PAC and the reload is enabled.
+     */
+    synchronized void start() {
+        if (scheduler != null || watchService != null
+                || !proxyConfig.isAutoConfig() || systemConfig.getPacFileRefreshInterval() <= 0) {
+            return;
+        }
+        String location = proxyConfig.getProxyPacFileLocation();
+        if (location.startsWith("http")) {
+            int interval = systemConfig.getPacFileRefreshInterval();
+            logger.info("Check the PAC file for changes every {} seconds", interval);
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "pac-refresh");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(this::reload, interval, interval, TimeUnit.SECONDS);
+        } else {
+            Path pacFile = Paths.get(location).toAbsolutePath();
+            try {
+                watchService = pacFile.getFileSystem().newWatchService();
+                pacFile.getParent().register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            } catch (IOException e) {
+                logger.warn("Cannot watch the PAC file for changes", e);
+                InputOutputs.close(watchService);
+                watchService = null;
+                return;
+            }
+            logger.info("Watch the PAC file for changes: {}", pacFile);
+            WatchService service = watchService;
+            proxyContext.platformExecutorService().submit(() -> watch(service, pacFile));
+        }
+    }
+
+    private void watch(WatchService service, Path pacFile) {
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (pacFile.getFileName().equals(event.context())) {
+                        changed = true;
+                    }
+                }
+                key.reset();
+                if (changed) {
+                    Thread.sleep(FILE_SETTLE_TIME);
+                    reload();
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            logger.debug("Stop watching the PAC file");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void reload() {
+        try {
+            proxyAutoConfig.reloadScript();
+        } catch (Exception e) {
+            logger.warn("Cannot reload the PAC file, keep the current one", e);
+        }
+    }
+
+    /**
+     * Stop watching the PAC file.
+     */
+    synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        if (watchService != null) {
+            InputOutputs.close(watchService);
+            watchService = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        stop();
+    }
+
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.commons.lang3.Validate;
+import org.kpax.winfoom.exception.PacFileException;
+import org.kpax.winfoom.util.pac.PacScriptEvaluator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of {@link PacScriptEvaluator}s built from the same PAC source, so that the script can be evaluated
+ * by many threads at once: a script engine is not meant to be used concurrently.<br>
+ * The evaluators are created on demand, no more than a maximum number.
+ * Each one is used by a single thread at a time, between {@link #checkout(long)} and
+ * {@link #checkin(PacScriptEvaluator)} or {@link #discard(PacScriptEvaluator)}.<br>
+ * A script engine cannot be stopped, so an evaluator left behind by a timed out evaluation
+ * is {@link #abandon(PacScriptEvaluator)}ed: it still counts against the max size until its task ends,
+ * so the stuck evaluations cannot pile up threads and engines.
+ *
+ * @author Eugen Covaci
+ */
+final class PacScriptEvaluatorPool {
+
+    private final Logger logger = LoggerFactory.getLogger(PacScriptEvaluatorPool.class);
+
+    /**
+     * The evaluator the pool is built from.
+     */
+    private final PacScriptEvaluator primaryEvaluator;
+
+    private final BlockingQueue<PacScriptEvaluator> idleEvaluators = new LinkedBlockingQueue<>();
+
+    /**
+     * The number of evaluators alive, either idle or checked out.
+     */
+    private final AtomicInteger evaluatorCount = new AtomicInteger(1);
+
+    /**
+     * The evaluators still busy with a timed out evaluation.
+     */
+    private final Set<PacScriptEvaluator> abandonedEvaluators = ConcurrentHashMap.newKeySet();
+
+    private final int maxSize;
+
+    private volatile boolean closed;
+
+    /**
+     * Constructor.
+     *
+     * @param primaryEvaluator the evaluator the pool is built from, the first pool member.
+     * @param maxSize          the max number of evaluators.
+     */
+    PacScriptEvaluatorPool(PacScriptEvaluator primaryEvaluator, int maxSize) {
+        Validate.notNull(primaryEvaluator, "primaryEvaluator cannot be null");
+        Validate.isTrue(maxSize > 0, "maxSize must be positive");
+        this.primaryEvaluator = primaryEvaluator;
+        this.maxSize = maxSize;
+        this.idleEvaluators.add(primaryEvaluator);
+    }
+
+    /**
+     * Get an idle evaluator, or create a new one if the max size is not reached,
+     * otherwise wait for one to be checked in.
+     *
+     * @param timeout the max time to wait (milliseconds).
+     * @return an evaluator, for the exclusive use of the caller.
+     * @throws PacFileException if no evaluator is available in time or a new one cannot be created,
+     *                          right away if all the evaluators are abandoned.
+     */
+    PacScriptEvaluator checkout(long timeout) throws PacFileException {
+        if (abandonedEvaluators.size() >= maxSize) {
+            throw new PacFileException("All the PAC script evaluators are stuck in timed out evaluations");
+        }
+        PacScriptEvaluator evaluator = idleEvaluators.poll();
+        if (evaluator != null) {
+            return evaluator;
+        }
+        if (evaluatorCount.incrementAndGet() <= maxSize) {
+            try {
+                logger.debug("Create PAC script evaluator #{}", evaluatorCount.get());
+                return primaryEvaluator.copy();
+            } catch (Exception e) {
+                evaluatorCount.decrementAndGet();
+                throw new PacFileException("Cannot create PAC script evaluator", e);
+            }
+        }
+        evaluatorCount.decrementAndGet();
+        try {
+            evaluator = idleEvaluators.poll(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PacFileException("Interrupted while waiting for a PAC script evaluator", e);
+        }
+        if (evaluator == null) {
+            throw new PacFileException("No PAC script evaluator available in time");
+        }
+        return evaluator;
+    }
+
+    /**
+     * Give back a checked out or abandoned evaluator.
+     *
+     * @param evaluator the evaluator.
+     */
+    void checkin(PacScriptEvaluator evaluator) {
+        abandonedEvaluators.remove(evaluator);
+        if (closed) {
+            evaluator.close();
+        } else {
+            idleEvaluators.offer(evaluator);
+
+            // Closed meanwhile, after the idle evaluators were closed
+            if (closed && idleEvaluators.remove(evaluator)) {
+                evaluator.close();
+            }
+        }
+    }
+
+    /**
+     * Give up on a checked out evaluator whose evaluation timed out but goes on.<br>
+     * It keeps its room in the pool until {@link #discard(PacScriptEvaluator)}ed, when its task ends.
+     *
+     * @param evaluator the evaluator.
+     */
+    void abandon(PacScriptEvaluator evaluator) {
+        abandonedEvaluators.add(evaluator);
+        logger.debug("Abandon PAC script evaluator, abandoned count: {}", abandonedEvaluators.size());
+    }
+
+    /**
+     * Drop a checked out or abandoned evaluator that cannot be used anymore, making room for a new one.
+     *
+     * @param evaluator the evaluator.
+     */
+    void discard(PacScriptEvaluator evaluator) {
+        logger.debug("Discard PAC script evaluator");
+        abandonedEvaluators.remove(evaluator);
+        evaluatorCount.decrementAndGet();
+        evaluator.close();
+    }
+
+    /**
+     * Close the idle evaluators, the checked out ones are closed when checked in or discarded.
+     */
+    void close() {
+        closed = true;
+        PacScriptEvaluator evaluator;
+        while ((evaluator = idleEvaluators.poll()) != null) {
+            evaluator.close();
+        }
+    }
+
+}
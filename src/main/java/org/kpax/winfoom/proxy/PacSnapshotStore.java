@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.commons.lang3.Validate;
+import org.kpax.winfoom.config.SystemConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Keeps the last good PAC script on disk, along with the most used routing decisions,
+ * so the next start does not have to wait for the PAC file download.<br>
+ * The snapshot is a properties file in the application's home directory, replaced as a whole on save.
+ *
+ * @author Eugen Covaci
+ */
+@Component
+class PacSnapshotStore {
+
+    static final String FILENAME = "pac-snapshot.properties";
+
+    private static final String LOCATION_KEY = "location";
+
+    private static final String SCRIPT_KEY = "script";
+
+    private static final String ETAG_KEY = "etag";
+
+    private static final String LAST_MODIFIED_KEY = "lastModified";
+
+    private static final String DECISION_KEY_PREFIX = "decision.";
+
+    private final Logger logger = LoggerFactory.getLogger(PacSnapshotStore.class);
+
+    private Path snapshotFile;
+
+    @Autowired
+    private void setSnapshotFile(@Value("${user.home}") String userHome) {
+        snapshotFile = Paths.get(userHome, SystemConfig.APP_HOME_DIR_NAME, FILENAME);
+    }
+
+    /**
+     * Load the snapshot of a PAC file.
+     *
+     * @param location the PAC file's location.
+     * @return the snapshot, or {@code null} if there is none for this location or it cannot be read.
+     */
+    Snapshot load(String location) {
+        if (!Files.exists(snapshotFile)) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (InputStream inputStream = Files.newInputStream(snapshotFile)) {
+            properties.load(inputStream);
+        } catch (IOException | IllegalArgumentException e) {
+            logger.warn("Cannot read the PAC snapshot file " + snapshotFile, e);
+            return null;
+        }
+        if (!location.equals(properties.getProperty(LOCATION_KEY))
+                || properties.getProperty(SCRIPT_KEY) == null) {
+            logger.debug("No PAC snapshot for: {}", location);
+            return null;
+        }
+        Map<String, String> decisions = new LinkedHashMap<>();
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith(DECISION_KEY_PREFIX)) {
+                decisions.put(name.substring(DECISION_KEY_PREFIX.length()), properties.getProperty(name));
+            }
+        }
+        return new Snapshot(location,
+                properties.getProperty(SCRIPT_KEY),
+                properties.getProperty(ETAG_KEY),
+                properties.getProperty(LAST_MODIFIED_KEY),
+                decisions);
+    }
+
+    /**
+     * Save the snapshot of a PAC file, replacing the existing one.<br>
+     * The file is written aside then moved, so a crash never leaves a partial snapshot.
+     *
+     * @param snapshot the snapshot.
+     */
+    void save(Snapshot snapshot) {
+        Properties properties = new Properties();
+        properties.setProperty(LOCATION_KEY, snapshot.getLocation());
+        properties.setProperty(SCRIPT_KEY, snapshot.getPacSource());
+        if (snapshot.getETag() != null) {
+            properties.setProperty(ETAG_KEY, snapshot.getETag());
+        }
+        if (snapshot.getLastModified() != null) {
+            properties.setProperty(LAST_MODIFIED_KEY, snapshot.getLastModified());
+        }
+        snapshot.getDecisions().forEach((key, proxyLine) -> properties.setProperty(DECISION_KEY_PREFIX + key,
+                proxyLine));
+        try {
+            Files.createDirectories(snapshotFile.getParent());
+            Path tempFile = Files.createTempFile(snapshotFile.getParent(), FILENAME, ".tmp");
+            try {
+                try (OutputStream outputStream = Files.newOutputStream(tempFile)) {
+                    properties.store(outputStream, "The last good PAC script, do not edit");
+                }
+                Files.move(tempFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+            logger.debug("PAC snapshot saved with {} decisions", snapshot.getDecisions().size());
+        } catch (IOException e) {
+            logger.warn("Cannot save the PAC snapshot file " + snapshotFile, e);
+        }
+    }
+
+    /**
+     * A PAC script, its HTTP validators and its routing decisions as proxy lines,
+     * keyed like the {@link ProxyAutoConfig}'s result cache.
+     */
+    static final class Snapshot {
+
+        private final String location;
+
+        private final String pacSource;
+
+        private final String eTag;
+
+        private final String lastModified;
+
+        private final Map<String, String> decisions;
+
+        Snapshot(String location, String pacSource, String eTag, String lastModified,
+                 Map<String, String> decisions) {
+            Validate.notNull(location, "location cannot be null");
+            Validate.notNull(pacSource, "pacSource cannot be null");
+            this.location = location;
+            this.pacSource = pacSource;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.decisions = Collections.unmodifiableMap(decisions);
+        }
+
+        String getLocation() {
+            return location;
+        }
+
+        String getPacSource() {
+            return pacSource;
+        }
+
+        String getETag() {
+            return eTag;
+        }
+
+        String getLastModified() {
+            return lastModified;
+        }
+
+        Map<String, String> getDecisions() {
+            return decisions;
+        }
+    }
+
+}
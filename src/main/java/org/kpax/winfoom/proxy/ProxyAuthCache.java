@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpStatus;
+import org.apache.http.auth.AuthProtocolState;
+import org.apache.http.auth.AuthScheme;
+import org.apache.http.auth.AuthState;
+import org.apache.http.auth.AuthenticationException;
+import org.apache.http.auth.ContextAwareAuthScheme;
+import org.apache.http.auth.Credentials;
+import org.apache.http.auth.MalformedChallengeException;
+import org.apache.http.client.AuthCache;
+import org.apache.http.impl.auth.BasicScheme;
+import org.apache.http.impl.auth.DigestScheme;
+import org.apache.http.impl.client.BasicAuthCache;
+import org.apache.http.protocol.HttpContext;
+import org.kpax.winfoom.util.ExpiringCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the Basic and Digest schemes that authenticated the non-CONNECT requests to each upstream HTTP proxy,
+ * so the next requests send the credentials preemptively instead of waiting for a {@code 407}.<br>
+ * A Digest scheme is shared as is, behind a lock, so the nonce count keeps increasing across requests.<br>
+ * It also tells whether a request to a proxy might be answered with a {@code 407} challenge,
+ * in which case the request's body must be repeatable. What is known about a proxy's challenges expires,
+ * so that a proxy that changed its mind, or is no longer used, is forgotten.
+ */
+@Component
+class ProxyAuthCache {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    /**
+     * The max number of proxies whose challenges are remembered.
+     */
+    private static final int MAX_PROXIES = 1024;
+
+    /**
+     * The time what is known about a proxy's challenges is kept (milliseconds).
+     */
+    private static final long CHALLENGE_TTL = TimeUnit.MINUTES.toMillis(10);
+
+    private final Map<HttpHost, AuthScheme> authSchemes = new ConcurrentHashMap<>();
+
+    /**
+     * Key = the proxy<br>
+     * Value = {@code true} if it asked for a connection based authentication (NTLM, Kerberos),
+     * or answered a request with a {@code 407} despite the cached scheme,
+     * {@code false} if it answered a request without asking for authentication.
+     */
+    private final ExpiringCache<HttpHost, Boolean> proxyChallenges;
+
+    ProxyAuthCache() {
+        this(CHALLENGE_TTL);
+    }
+
+    /**
+     * @param challengeTimeToLive the time what is known about a proxy's challenges is kept (milliseconds).
+     */
+    ProxyAuthCache(long challengeTimeToLive) {
+        this.proxyChallenges = new ExpiringCache<>(MAX_PROXIES, challengeTimeToLive);
+    }
+
+    /**
+     * Create the {@link AuthCache} of a request: the proxy's scheme is shared,
+     * the other hosts' ones are private to the request.
+     *
+     * @param proxy the upstream proxy.
+     * @return a new {@link AuthCache} instance.
+     */
+    AuthCache forProxy(HttpHost proxy) {
+        return new RequestAuthCache(proxy);
+    }
+
+    /**
+     * Check whether a request to this proxy might be answered with a {@code 407} challenge.<br>
+     * It is not expected only when the proxy let the previous requests through without asking for
+     * authentication, or when a Basic scheme authenticates the requests preemptively.
+     *
+     * @param proxy the upstream proxy.
+     * @return {@code true} unless the proxy is known to let the requests through.
+     */
+    boolean isChallengeExpected(HttpHost proxy) {
+        Boolean challenging = proxyChallenges.getIfPresent(proxy);
+        if (challenging != null) {
+            return challenging;
+        }
+        return !(authSchemes.get(proxy) instanceof BasicScheme);
+    }
+
+    /**
+     * Record how the proxy authenticated a request.
+     *
+     * @param proxy          the upstream proxy.
+     * @param proxyAuthState the proxy authentication's state, after the request has been executed.
+     * @param statusCode     the response's status code.
+     */
+    void recordExchange(HttpHost proxy, AuthState proxyAuthState, int statusCode) {
+        AuthScheme authScheme = proxyAuthState.getAuthScheme();
+        if (statusCode == HttpStatus.SC_PROXY_AUTHENTICATION_REQUIRED
+                || (authScheme != null && authScheme.isConnectionBased())) {
+            recordChallenge(proxy);
+        } else if (proxyAuthState.getState() == AuthProtocolState.UNCHALLENGED) {
+            if (proxyChallenges.getIfPresent(proxy) == null) {
+                proxyChallenges.put(proxy, Boolean.FALSE);
+            }
+        } else {
+            proxyChallenges.remove(proxy, Boolean.FALSE);
+        }
+    }
+
+    /**
+     * Record that a request to this proxy has been challenged when it was not expected to,
+     * so that any later request is ready for it.
+     *
+     * @param proxy the upstream proxy.
+     */
+    void recordChallenge(HttpHost proxy) {
+        logger.debug("The proxy {} challenges the requests", proxy);
+        // Replaces the unchallenging flag, if any
+        proxyChallenges.put(proxy, Boolean.TRUE);
+    }
+
+    /**
+     * Remove all the schemes, also what is known about the proxies' challenges.
+     */
+    void clear() {
+        authSchemes.clear();
+        proxyChallenges.clear();
+    }
+
+    private final class RequestAuthCache implements AuthCache {
+
+        private final HttpHost proxy;
+
+        private final AuthCache targetAuthCache = new BasicAuthCache();
+
+        RequestAuthCache(HttpHost proxy) {
+            this.proxy = proxy;
+        }
+
+        @Override
+        public void put(HttpHost host, AuthScheme authScheme) {
+            if (!proxy.equals(host)) {
+                targetAuthCache.put(host, authScheme);
+            } else if (authScheme instanceof SynchronizedAuthScheme) {
+                authSchemes.put(host, ((SynchronizedAuthScheme) authScheme).delegate);
+            } else {
+                logger.debug("Cache {} authentication for {}", authScheme.getSchemeName(), host);
+                authSchemes.put(host, authScheme);
+            }
+        }
+
+        @Override
+        public AuthScheme get(HttpHost host) {
+            if (!proxy.equals(host)) {
+                return targetAuthCache.get(host);
+            }
+            AuthScheme authScheme = authSchemes.get(host);
+            return authScheme instanceof DigestScheme ? new SynchronizedAuthScheme(authScheme) : authScheme;
+        }
+
+        @Override
+        public void remove(HttpHost host) {
+            if (proxy.equals(host)) {
+                authSchemes.remove(host);
+            } else {
+                targetAuthCache.remove(host);
+            }
+        }
+
+        @Override
+        public void clear() {
+            targetAuthCache.clear();
+        }
+    }
+
+    /**
+     * Serializes the use of a shared scheme.
+     */
+    static final class SynchronizedAuthScheme implements ContextAwareAuthScheme {
+
+        private final AuthScheme delegate;
+
+        SynchronizedAuthScheme(AuthScheme delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void processChallenge(Header header) throws MalformedChallengeException {
+            synchronized (delegate) {
+                delegate.processChallenge(header);
+            }
+        }
+
+        @Override
+        public String getSchemeName() {
+            return delegate.getSchemeName();
+        }
+
+        @Override
+        public String getParameter(String name) {
+            synchronized (delegate) {
+                return delegate.getParameter(name);
+            }
+        }
+
+        @Override
+        public String getRealm() {
+            synchronized (delegate) {
+                return delegate.getRealm();
+            }
+        }
+
+        @Override
+        public boolean isConnectionBased() {
+            return delegate.isConnectionBased();
+        }
+
+        @Override
+        public boolean isComplete() {
+            synchronized (delegate) {
+                return delegate.isComplete();
+            }
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public Header authenticate(Credentials credentials, HttpRequest request)
+                throws AuthenticationException {
+            synchronized (delegate) {
+                return delegate.authenticate(credentials, request);
+            }
+        }
+
+        @Override
+        public Header authenticate(Credentials credentials, HttpRequest request, HttpContext context)
+                throws AuthenticationException {
+            synchronized (delegate) {
+                if (delegate instanceof ContextAwareAuthScheme) {
+                    return ((ContextAwareAuthScheme) delegate).authenticate(credentials, request, context);
+                }
+                return delegate.authenticate(credentials, request);
+            }
+        }
+    }
+
+}
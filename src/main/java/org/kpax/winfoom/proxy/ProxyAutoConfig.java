@@ -13,10 +13,21 @@
 package org.kpax.winfoom.proxy;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpHeaders;
 import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
 import org.kpax.winfoom.exception.PacFileException;
+import org.kpax.winfoom.util.ExpiringCache;
 import org.kpax.winfoom.util.HttpUtils;
+import org.kpax.winfoom.util.InputOutputs;
+import org.kpax.winfoom.util.pac.DefaultPacHelperMethods;
+import org.kpax.winfoom.util.pac.GraalPacScriptEvaluator;
 import org.kpax.winfoom.util.pac.NbPacScriptEvaluator;
+import org.kpax.winfoom.util.pac.PacDnsResolver;
+import org.kpax.winfoom.util.pac.PacRuleCompiler;
+import org.kpax.winfoom.util.pac.PacRuleTable;
+import org.kpax.winfoom.util.pac.PacScriptEvaluator;
+import org.netbeans.core.network.proxy.pac.PacUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -24,73 +35,543 @@ import org.springframework.stereotype.Component;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
+import java.net.URLConnection;
 import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Responsible for loading the PAC script file and executing the {@code findProxyForURL} method.
+ * <p>We rely on the Spring context to close this instance!
  */
 @Component
-class ProxyAutoConfig {
+class ProxyAutoConfig implements AutoCloseable {
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
     @Autowired
     private ProxyConfig proxyConfig;
 
+    @Autowired
+    private SystemConfig systemConfig;
+
+    @Autowired
+    private ProxyContext proxyContext;
+
+    @Autowired
+    private PacSnapshotStore pacSnapshotStore;
+
+    @Autowired
+    private ProxyHealthChecker proxyHealthChecker;
+
+    /**
+     * The loaded PAC script, with everything derived from it.<br>
+     * It is built aside, then swapped in as a whole, so the in-flight evaluations finish with the old one.
+     */
+    private volatile PacState pacState;
+
+    /**
+     * Guards the swap of the {@link #pacState}, never held while downloading or parsing.
+     */
+    private final Object stateLock = new Object();
+
+    /**
+     * Serializes the reloads, so an older download never replaces a newer one. The lookups never wait for it.
+     */
+    private final Lock reloadLock = new ReentrantLock();
+
+    /**
+     * Serializes the snapshot writes, so an older state is never saved over a newer one.
+     * Only the writers wait for it.
+     */
+    private final Object snapshotLock = new Object();
+
     /**
-     * The NetBeans implementation of a PAC script evaluator.
+     * The DNS resolver of the PAC helper functions, created on first load.
      */
-    private NbPacScriptEvaluator nbPacScriptEvaluator;
+    private PacDnsResolver dnsResolver;
 
     /**
-     * Load and parse the PAC script file.
+     * Load and parse the PAC script file.<br>
+     * If a snapshot of the same PAC file is available, the script and the routing decisions are taken from it,
+     * and the PAC file is downloaded in background, then swapped in if changed.
      *
-     * @return the {@link NbPacScriptEvaluator} instance.
+     * @return the {@link PacScriptEvaluator} instance.
      * @throws IOException
      * @throws PacFileException
      */
-    synchronized NbPacScriptEvaluator loadScript() throws IOException, PacFileException {
+    PacScriptEvaluator loadScript() throws IOException, PacFileException {
+        URL url = getPacFileUrl();
+        PacState state = systemConfig.isPacSnapshotEnabled() ? loadSnapshot(url) : null;
+        if (state != null) {
+            logger.info("PAC script loaded from snapshot, refresh it from: {}", url);
+            swapState(null, state);
+            proxyContext.platformExecutorService().submit(this::refreshScript);
+            return state.evaluator;
+        }
+        logger.info("Get PAC file from: {}", url);
+        PacDownload download = fetchScript(url, null);
+        state = createPacState(createPacScriptEvaluator(download.content), download);
+        swapState(null, state);
+        proxyContext.platformExecutorService().submit(this::saveSnapshot);
+        return state.evaluator;
+    }
+
+    private PacState loadSnapshot(URL url) {
+        PacSnapshotStore.Snapshot snapshot = pacSnapshotStore.load(url.toString());
+        if (snapshot == null) {
+            return null;
+        }
+        PacScriptEvaluator evaluator;
+        try {
+            evaluator = createPacScriptEvaluator(snapshot.getPacSource());
+        } catch (PacFileException e) {
+            logger.warn("Invalid PAC snapshot, ignore it", e);
+            return null;
+        }
+        PacState state = createPacState(evaluator, new PacDownload(snapshot.getPacSource(),
+                snapshot.getETag(), snapshot.getLastModified()));
+        if (state.resultCache != null) {
+            snapshot.getDecisions().forEach((key, proxyLine) -> {
+                try {
+                    state.resultCache.put(key, HttpUtils.parsePacProxyLine(proxyLine));
+                } catch (IllegalArgumentException e) {
+                    logger.debug("Skip invalid PAC snapshot decision: {}", proxyLine);
+                }
+            });
+        }
+        return state;
+    }
+
+    /**
+     * Refresh the script loaded from snapshot, unless a reload is already running:
+     * that one gets the latest PAC file anyway.
+     */
+    private void refreshScript() {
+        if (!reloadLock.tryLock()) {
+            logger.debug("PAC file reload in progress, skip the refresh");
+            return;
+        }
+        try {
+            reloadScript();
+        } catch (Exception e) {
+            logger.warn("Cannot refresh the PAC file, keep the snapshot", e);
+        } finally {
+            reloadLock.unlock();
+        }
+    }
+
+    /**
+     * Save the current PAC script and its most used routing decisions,
+     * to start from them next time. The decisions are saved only when keyed by host.<br>
+     * The lookups and the reloads do not wait for the disk.
+     */
+    void saveSnapshot() {
+        if (!systemConfig.isPacSnapshotEnabled()) {
+            return;
+        }
+        synchronized (snapshotLock) {
+            PacState state = pacState;
+            if (state == null) {
+                return;
+            }
+            URL url;
+            try {
+                url = getPacFileUrl();
+            } catch (MalformedURLException | IllegalStateException e) {
+                logger.debug("No PAC file location, skip the snapshot", e);
+                return;
+            }
+            Map<String, String> decisions = new LinkedHashMap<>();
+            // The decisions of a script using the url argument are keyed by full URLs:
+            // saving them would leave the browsing history on disk
+            if (state.resultCache != null && !state.evaluator.isUrlArgumentUsed()) {
+                state.resultCache.getRecentValues(systemConfig.getPacSnapshotMaxDecisions())
+                        .forEach((key, proxyInfos) -> decisions.put(key, HttpUtils.toPacProxyLine(proxyInfos)));
+            }
+            pacSnapshotStore.save(new PacSnapshotStore.Snapshot(url.toString(), state.evaluator.getPacSource(),
+                    state.eTag, state.lastModified, decisions));
+        }
+    }
+
+    /**
+     * Load the PAC script file again, if changed, and swap it in.<br>
+     * The HTTP PAC files are downloaded conditionally, based on the {@code ETag}
+     * and {@code Last-Modified} headers of the current script's download.<br>
+     * The download and the parsing take no lock the lookups need: they go on with the current script meanwhile.
+     * The concurrent reloads run one at a time.
+     *
+     * @return {@code true} iff a changed script has been loaded.
+     * @throws IOException
+     * @throws PacFileException if the changed script is not valid, in which case the current one is kept.
+     */
+    boolean reloadScript() throws IOException, PacFileException {
+        reloadLock.lock();
+        try {
+            URL url = getPacFileUrl();
+            PacState current = pacState;
+            PacDownload download = fetchScript(url, current);
+            if (download == null
+                    || (current != null && download.content.equals(current.evaluator.getPacSource()))) {
+                logger.debug("PAC file not changed: {}", url);
+                return false;
+            }
+            PacState state = createPacState(createPacScriptEvaluator(download.content), download);
+            if (!swapState(current, state)) {
+                logger.debug("PAC script replaced meanwhile, drop the reloaded one");
+                return false;
+            }
+            logger.info("PAC file reloaded from: {}", url);
+        } finally {
+            reloadLock.unlock();
+        }
+        saveSnapshot();
+        return true;
+    }
+
+    /**
+     * Publish a new state, then close the replaced state's evaluators:
+     * the idle ones right away, the ones still evaluating when checked in.
+     *
+     * @param expected the state the new one replaces, {@code null} to replace any state.
+     * @param state    the new state.
+     * @return {@code true} iff published, {@code false} if another state has been published since
+     * {@code expected} was read, in which case the new state is dropped.
+     */
+    private boolean swapState(PacState expected, PacState state) {
+        PacState previous;
+        synchronized (stateLock) {
+            previous = pacState;
+            if (expected == null || previous == expected) {
+                pacState = state;
+            }
+        }
+        if (expected != null && previous != expected) {
+            state.evaluatorPool.close();
+            return false;
+        }
+        if (previous != null) {
+            previous.evaluatorPool.close();
+        }
+        return true;
+    }
+
+    private URL getPacFileUrl() throws MalformedURLException {
         URL url = proxyConfig.getProxyPacFileLocationAsURL();
         if (url == null) {
             throw new IllegalStateException("No proxy PAC file location found");
         }
-        logger.info("Get PAC file from: {}", url);
-        try (InputStream inputStream = url.openStream()) {
+        return url;
+    }
+
+    /**
+     * Download the PAC script file, within the socket's connect and read timeouts.
+     *
+     * @param url     the PAC file's location.
+     * @param current the state of the current script, to download an HTTP PAC file only if modified since,
+     *                {@code null} to download it anyway.
+     * @return the PAC file's content, or {@code null} if not modified.
+     * @throws IOException
+     */
+    private PacDownload fetchScript(URL url, PacState current) throws IOException {
+        URLConnection connection = url.openConnection();
+        connection.setConnectTimeout(systemConfig.getSocketConnectTimeout() * 1000);
+        connection.setReadTimeout(systemConfig.getSocketSoTimeout() * 1000);
+        String eTag = null;
+        String lastModified = null;
+        if (connection instanceof HttpURLConnection) {
+            HttpURLConnection httpConnection = (HttpURLConnection) connection;
+            if (current != null) {
+                if (current.eTag != null) {
+                    httpConnection.setRequestProperty(HttpHeaders.IF_NONE_MATCH, current.eTag);
+                }
+                if (current.lastModified != null) {
+                    httpConnection.setRequestProperty(HttpHeaders.IF_MODIFIED_SINCE, current.lastModified);
+                }
+            }
+            if (httpConnection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                httpConnection.disconnect();
+                return null;
+            }
+            eTag = httpConnection.getHeaderField(HttpHeaders.ETAG);
+            lastModified = httpConnection.getHeaderField(HttpHeaders.LAST_MODIFIED);
+        }
+        try (InputStream inputStream = connection.getInputStream()) {
             String content = IOUtils.toString(inputStream, StandardCharsets.UTF_8);
             logger.info("PAC content: {}", content);
+            return new PacDownload(content, eTag, lastModified);
+        }
+    }
+
+    private PacScriptEvaluator createPacScriptEvaluator(String content) throws PacFileException {
+        try {
+            if (SystemConfig.PAC_ENGINE_GRAALJS.equalsIgnoreCase(systemConfig.getPacEngineType())) {
+                logger.debug("Create GraalJS PAC script evaluator");
+                return new GraalPacScriptEvaluator(content, getDnsResolver());
+            }
+            return new NbPacScriptEvaluator(content, getDnsResolver());
+        } catch (Exception e) {
+            throw new PacFileException("The provided PAC file is not valid", e);
+        }
+    }
+
+    private synchronized PacDnsResolver getDnsResolver() {
+        if (dnsResolver == null) {
+            dnsResolver = new PacDnsResolver(systemConfig.getPacDnsCacheSize(),
+                    systemConfig.getPacDnsPositiveTtl() * 1000L,
+                    systemConfig.getPacDnsNegativeTtl() * 1000L,
+                    systemConfig.getPacDnsTimeout() * 1000L);
+        }
+        return dnsResolver;
+    }
+
+    /**
+     * Derive everything needed to evaluate a PAC script: the result cache, the evaluator pool
+     * and, when enabled, the rule table translated from the script.
+     *
+     * @param pacScriptEvaluator the new evaluator.
+     * @param download           the download the evaluator is built from.
+     * @return the new state, not published yet.
+     */
+    private PacState createPacState(PacScriptEvaluator pacScriptEvaluator, PacDownload download) {
+        ExpiringCache<String, List<ProxyInfo>> resultCache = null;
+        if (systemConfig.getPacCacheTtl() > 0) {
+            logger.debug("Create PAC result cache, url used: {}", pacScriptEvaluator.isUrlArgumentUsed());
+            resultCache = new ExpiringCache<>(systemConfig.getPacCacheSize(), systemConfig.getPacCacheTtl() * 1000L);
+        }
+        int poolSize = systemConfig.getPacEnginePoolSize() > 0
+                ? systemConfig.getPacEnginePoolSize() : Runtime.getRuntime().availableProcessors();
+        logger.debug("Create PAC evaluator pool, max size: {}", poolSize);
+        PacScriptEvaluatorPool evaluatorPool = new PacScriptEvaluatorPool(pacScriptEvaluator, poolSize);
+        PacRuleTable ruleTable = systemConfig.isPacRulesEnabled()
+                ? PacRuleCompiler.compile(pacScriptEvaluator.getPacSource(),
+                new DefaultPacHelperMethods(pacScriptEvaluator.getDnsResolver()))
+                : null;
+        if (ruleTable != null && systemConfig.isPacRulesVerify()) {
             try {
-                nbPacScriptEvaluator = new NbPacScriptEvaluator(content);
-            } catch (Exception e) {
-                throw new PacFileException("The provided PAC file is not valid", e);
+                if (!ruleTable.verify(uri -> evaluateScript(evaluatorPool, uri, new AtomicBoolean()))) {
+                    logger.warn("The PAC rule table does not match the script, use the script engine");
+                    ruleTable = null;
+                }
+            } catch (PacFileException e) {
+                logger.warn("Cannot verify the PAC rule table, use the script engine", e);
+                ruleTable = null;
             }
         }
-        return nbPacScriptEvaluator;
+        logger.info("PAC script translated into Java rules: {}", ruleTable != null);
+        return new PacState(pacScriptEvaluator, resultCache, evaluatorPool, ruleTable,
+                download.eTag, download.lastModified);
     }
 
-    private NbPacScriptEvaluator getPacScriptEvaluator() {
-        if (nbPacScriptEvaluator == null) {
+    private PacState getPacState() {
+        PacState state = pacState;
+        if (state == null) {
             throw new IllegalStateException("Proxy PAC file not loaded");
         }
-        return nbPacScriptEvaluator;
+        return state;
     }
 
     boolean isLoaded() {
-        return nbPacScriptEvaluator != null;
+        return pacState != null;
     }
 
     /**
-     * Call the {@code findProxyForURL} method within the PAC script file
+     * Call the {@code findProxyForURL} method within the PAC script file.<br>
+     * The results are cached for a while, so the same URL (or host) is not evaluated over and over,
+     * unless a host lookup timed out meanwhile: the host might have been wrongly taken as unresolvable.<br>
+     * The proxies found are kept under watch by the {@link ProxyHealthChecker}.
      *
      * @param uri the request URI.
      * @return the list of {@link ProxyInfo}.
      * @throws PacFileException
      */
     List<ProxyInfo> findProxyForURL(URI uri) throws PacFileException {
-        String proxyLine = getPacScriptEvaluator().findProxyForURL(uri);
+        PacState state = getPacState();
+        List<ProxyInfo> proxyInfos;
+        if (state.resultCache == null) {
+            proxyInfos = evaluate(state, uri, new AtomicBoolean());
+        } else {
+            String key = state.evaluator.isUrlArgumentUsed() ? PacUtils.toStrippedURLStr(uri) : uri.getHost();
+            AtomicBoolean lookupTimedOut = new AtomicBoolean();
+            proxyInfos = state.resultCache.get(key, () -> evaluate(state, uri, lookupTimedOut));
+            if (lookupTimedOut.get()) {
+                logger.debug("DNS lookup timed out, do not cache the PAC result for: {}", key);
+                state.resultCache.remove(key, proxyInfos);
+            }
+        }
+        proxyHealthChecker.register(proxyInfos);
+        return proxyInfos;
+    }
+
+    private List<ProxyInfo> evaluate(PacState state, URI uri, AtomicBoolean lookupTimedOut) throws PacFileException {
+        String proxyLine = state.ruleTable != null
+                ? state.ruleTable.findProxyForURL(uri) : evaluateScript(state.evaluatorPool, uri, lookupTimedOut);
         logger.debug("proxyLine [{}]", proxyLine);
         return HttpUtils.parsePacProxyLine(proxyLine);
     }
+
+    /**
+     * Evaluate the PAC script with a pooled evaluator, within the configured timeout.<br>
+     * A script engine cannot be stopped, so the evaluator of a timed out evaluation is abandoned:
+     * the caller is released, while the evaluator keeps its room in the pool until its task ends.
+     *
+     * @param pool           the current evaluator pool.
+     * @param uri            the request URI.
+     * @param lookupTimedOut set when a host lookup timed out during this evaluation.
+     * @return the proxy line.
+     * @throws PacFileException
+     */
+    private String evaluateScript(PacScriptEvaluatorPool pool, URI uri, AtomicBoolean lookupTimedOut)
+            throws PacFileException {
+        long timeout = systemConfig.getPacEngineTimeout() * 1000L;
+        PacScriptEvaluator evaluator = pool.checkout(timeout);
+
+        // Set by whoever is done first: the task or the caller giving up.
+        // The last one hands the evaluator back.
+        AtomicBoolean finished = new AtomicBoolean();
+        Future<String> future;
+        try {
+            future = proxyContext.platformExecutorService().submit(() -> {
+                try {
+                    if (finished.get()) {
+                        return null;
+                    }
+                    // The lookups run on this thread, only their own timeouts matter
+                    dnsResolver.pollLookupTimedOut();
+                    try {
+                        return evaluator.findProxyForURL(uri);
+                    } finally {
+                        if (dnsResolver.pollLookupTimedOut()) {
+                            lookupTimedOut.set(true);
+                        }
+                    }
+                } finally {
+                    if (!finished.compareAndSet(false, true)) {
+                        pool.discard(evaluator);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            pool.checkin(evaluator);
+            throw e;
+        }
+        String proxyLine;
+        try {
+            proxyLine = future.get(timeout, TimeUnit.MILLISECONDS);
+            pool.checkin(evaluator);
+        } catch (ExecutionException e) {
+            pool.checkin(evaluator);
+            if (e.getCause() instanceof PacFileException) {
+                throw (PacFileException) e.getCause();
+            }
+            throw new PacFileException("PAC evaluation failed", e.getCause());
+        } catch (TimeoutException e) {
+            abandon(pool, evaluator, finished);
+            throw new PacFileException("PAC evaluation timed out for: " + uri);
+        } catch (InterruptedException e) {
+            abandon(pool, evaluator, finished);
+            Thread.currentThread().interrupt();
+            throw new PacFileException("Interrupted while evaluating the PAC script", e);
+        }
+        return proxyLine;
+    }
+
+    private void abandon(PacScriptEvaluatorPool pool, PacScriptEvaluator evaluator, AtomicBoolean finished) {
+        // Abandoned first, so that the task cannot discard it before
+        pool.abandon(evaluator);
+        if (!finished.compareAndSet(false, true)) {
+            // The task ended meanwhile
+            pool.checkin(evaluator);
+        }
+    }
+
+    @Override
+    public void close() {
+        logger.debug("Close all PAC related resources");
+        saveSnapshot();
+        PacState state = pacState;
+        if (state != null) {
+            state.evaluatorPool.close();
+        }
+        InputOutputs.close(dnsResolver);
+    }
+
+    /**
+     * A loaded PAC script with everything derived from it, immutable,
+     * so that a lookup reads it once, without locking.
+     */
+    private static final class PacState {
+
+        private final PacScriptEvaluator evaluator;
+
+        /**
+         * The parsed results, keyed by the URL or by the host alone when the script never reads the URL,
+         * {@code null} if disabled.
+         */
+        private final ExpiringCache<String, List<ProxyInfo>> resultCache;
+
+        /**
+         * The evaluators sharing the load, built from the {@link #evaluator}'s source.
+         */
+        private final PacScriptEvaluatorPool evaluatorPool;
+
+        /**
+         * The translation of the script, {@code null} if disabled, not translatable or not verified.
+         */
+        private final PacRuleTable ruleTable;
+
+        /**
+         * The {@code ETag} header of the script's download.
+         */
+        private final String eTag;
+
+        /**
+         * The {@code Last-Modified} header of the script's download.
+         */
+        private final String lastModified;
+
+        PacState(PacScriptEvaluator evaluator,
+                 ExpiringCache<String, List<ProxyInfo>> resultCache,
+                 PacScriptEvaluatorPool evaluatorPool,
+                 PacRuleTable ruleTable,
+                 String eTag,
+                 String lastModified) {
+            this.evaluator = evaluator;
+            this.resultCache = resultCache;
+            this.evaluatorPool = evaluatorPool;
+            this.ruleTable = ruleTable;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * A downloaded PAC file, with the HTTP headers of the next conditional download.
+     */
+    private static final class PacDownload {
+
+        private final String content;
+
+        private final String eTag;
+
+        private final String lastModified;
+
+        PacDownload(String content, String eTag, String lastModified) {
+            this.content = content;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+        }
+    }
 }
@@ -13,42 +13,64 @@
 package org.kpax.winfoom.proxy;
 
 import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.Collections;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.stream.Collectors;
 
 /**
- * It implements the proxy blacklisting mechanism.<br>
- * If a proxy doesn't respond to a connect attempt, it can be blacklisted
+ * It implements the proxy blacklisting mechanism, as a circuit breaker per proxy.<br>
+ * If a proxy doesn't respond to a connect attempt, it can be blacklisted (the circuit opens)
  * which means it will not be used again until the blacklist timeout happens.
+ * Then a single trial request is let through (the circuit is half-open): if it succeeds,
+ * the proxy is removed from the blacklist (the circuit closes), otherwise it is blacklisted again,
+ * for twice as long, up to the configured blacklist timeout.<br>
+ * The timeouts are shortened by a random jitter, so the proxies failed together are not retried together.
  */
 @Component
 public class ProxyBlacklist {
 
+    /**
+     * The max time a trial request may take to report its outcome (milliseconds),
+     * before another trial is let through.
+     */
+    private static final long TRIAL_TIMEOUT = 60_000;
+
+    /**
+     * The max fraction of the blacklist timeout taken off by the jitter.
+     */
+    private static final double JITTER = 0.2;
+
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
     /**
      * Key = the blacklisted ProxyInfo<br>
-     * Value = the blacklist timeout Instant
+     * Value = the circuit breaker's state, replaced as a whole on change
      */
-    private final Map<ProxyInfo, Instant> blacklistMap = new ConcurrentHashMap<>();
+    private final Map<ProxyInfo, CircuitState> blacklistMap = new ConcurrentHashMap<>();
 
     private final ChronoUnit temporalUnit = ChronoUnit.MINUTES;
 
     @Autowired
     private ProxyConfig proxyConfig;
 
+    @Autowired
+    private SystemConfig systemConfig;
+
     /**
      * Attempt to blacklist a proxy. Does nothing if the blacklisting is disabled.<br>
      * If the proxy is already blacklisted, it keeps the existent timeout.
+     * If the proxy has been let through for a trial, the new timeout is twice the previous one.
      *
      * @param proxyInfo the proxy to be blacklisted.
      * @return the blacklist timeout {@link Instant} iff the blacklisting is enabled, {@code null} otherwise.
@@ -59,23 +81,59 @@ public class ProxyBlacklist {
             logger.debug("Blacklisting is disabled, nothing to do");
             return null;
         }
-        return blacklistMap.compute(proxyInfo, (key, value) -> {
-            Instant now = Instant.now();
-            if (value == null || value.isBefore(now)) {
-                Instant timeoutInstant = now.plus(proxyConfig.getBlacklistTimeout(),
-                        temporalUnit);
-                logger.debug("Blacklisted until {}", timeoutInstant);
-                return timeoutInstant;
+        CircuitState circuitState = blacklistMap.compute(proxyInfo, (key, value) -> {
+            long now = System.currentTimeMillis();
+            if (value == null || value.openUntil <= now) {
+                int failures = value != null ? value.failures + 1 : 1;
+                long timeout = getTimeout(failures);
+                CircuitState openState = new CircuitState(failures, now + timeout, 0);
+                logger.debug("Blacklisted for {} ms after {} failure(s)", timeout, failures);
+                return openState;
             } else {
-                logger.debug("Already blacklisted until {}", value);
+                logger.debug("Already blacklisted until {}", Instant.ofEpochMilli(value.openUntil));
                 return value;
             }
         });
+        return Instant.ofEpochMilli(circuitState.openUntil);
+    }
+
+    /**
+     * The initial timeout, doubled on each consecutive failure, up to the blacklist timeout, minus the jitter.
+     */
+    private long getTimeout(int failures) {
+        long maxTimeout = Duration.of(proxyConfig.getBlacklistTimeout(), temporalUnit).toMillis();
+        long timeout = Math.min(systemConfig.getBlacklistInitialTimeout() * 1000L, maxTimeout);
+        for (int i = 1; i < failures && timeout < maxTimeout; i++) {
+            timeout *= 2;
+        }
+        timeout = Math.min(timeout, maxTimeout);
+        return timeout - (long) (timeout * JITTER * ThreadLocalRandom.current().nextDouble());
+    }
+
+    /**
+     * Remove a proxy from the blacklist, when it is known to respond again.<br>
+     * A proxy that is not blacklisted is looked up only, so this is cheap enough to call on each success.
+     *
+     * @param proxyInfo the proxy to be removed.
+     * @return {@code true} iff the proxy was blacklisted or let through for a trial.
+     */
+    boolean unblacklist(ProxyInfo proxyInfo) {
+        if (blacklistMap.get(proxyInfo) == null) {
+            return false;
+        }
+        if (blacklistMap.remove(proxyInfo) != null) {
+            logger.debug("Removed from blacklist proxy {}", proxyInfo);
+            return true;
+        }
+        return false;
     }
 
     /**
      * Verify whether a proxy is blacklisted.<br>
-     * If the proxy is in the blacklist map but expired, will be removed.
+     * If the proxy's timeout has happened, the first caller is let through for a trial, and the proxy
+     * stays blacklisted for the others until the trial's outcome is reported,
+     * by {@link #unblacklist(ProxyInfo)} or {@link #blacklist(ProxyInfo)}.<br>
+     * For a proxy that is not blacklisted, this is a lock free lookup.
      *
      * @param proxyInfo the proxy to be checked
      * @return {@code true} iff the proxy is blacklisted
@@ -84,9 +142,23 @@ public class ProxyBlacklist {
         if (proxyConfig.getBlacklistTimeout() < 1) {
             return false;
         }
-        Instant timeoutInstant = blacklistMap.computeIfPresent(
-                proxyInfo, (key, value) -> value.isBefore(Instant.now()) ? null : value);
-        return timeoutInstant != null;
+        CircuitState circuitState = blacklistMap.get(proxyInfo);
+        if (circuitState == null) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        if (circuitState.openUntil > now) {
+            return true;
+        }
+        if (circuitState.trialStart > 0 && now - circuitState.trialStart < TRIAL_TIMEOUT) {
+            return true;
+        }
+        boolean trial = blacklistMap.replace(proxyInfo, circuitState,
+                new CircuitState(circuitState.failures, circuitState.openUntil, now));
+        if (trial) {
+            logger.debug("Let through for a trial the proxy {}", proxyInfo);
+        }
+        return !trial;
     }
 
     /**
@@ -95,10 +167,9 @@ public class ProxyBlacklist {
      * @return the number of currently active blacklisted proxies.
      */
     public int clear() {
-        long count = blacklistMap.keySet().stream()
-                .filter(this::checkBlacklist).count();
+        int count = getActiveBlacklistMap().size();
         blacklistMap.clear();
-        return (int) count;
+        return count;
     }
 
     /**
@@ -110,8 +181,15 @@ public class ProxyBlacklist {
         return temporalUnit;
     }
 
+    /**
+     * @return a map containing the blacklisted proxies, including the ones let through for a trial,
+     * with their timeouts.
+     */
     public Map<ProxyInfo, Instant> getBlacklistMap() {
-        return Collections.unmodifiableMap(blacklistMap);
+        return Collections.unmodifiableMap(
+                blacklistMap.entrySet().stream().
+                        collect(Collectors.toMap(Map.Entry::getKey,
+                                e -> Instant.ofEpochMilli(e.getValue().openUntil))));
     }
 
     public boolean isBlacklistingEnabled() {
@@ -122,10 +200,39 @@ public class ProxyBlacklist {
      * @return a map containing the currently active blacklisted proxies.
      */
     public Map<ProxyInfo, Instant> getActiveBlacklistMap() {
-        Instant now = Instant.now();
+        long now = System.currentTimeMillis();
         return Collections.unmodifiableMap(
                 blacklistMap.entrySet().stream().
-                        filter(e -> !e.getValue().isBefore(now)).
-                        collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue)));
+                        filter(e -> e.getValue().openUntil > now).
+                        collect(Collectors.toMap(Map.Entry::getKey,
+                                e -> Instant.ofEpochMilli(e.getValue().openUntil))));
+    }
+
+    /**
+     * The immutable state of a proxy's circuit breaker: open until the timeout,
+     * then half-open, with or without a trial in progress.
+     */
+    private static final class CircuitState {
+
+        /**
+         * The number of consecutive failures.
+         */
+        private final int failures;
+
+        /**
+         * The blacklist timeout (milliseconds since epoch).
+         */
+        private final long openUntil;
+
+        /**
+         * The start of the trial in progress (milliseconds since epoch), 0 if none.
+         */
+        private final long trialStart;
+
+        CircuitState(int failures, long openUntil, long trialStart) {
+            this.failures = failures;
+            this.openUntil = openUntil;
+            this.trialStart = trialStart;
+        }
     }
 }
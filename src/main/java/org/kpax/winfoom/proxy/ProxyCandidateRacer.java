@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpHost;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.util.HttpUtils;
+import org.kpax.winfoom.util.InputOutputs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Races the connections to the PAC proxies, in the spirit of Happy Eyeballs:
+ * the first proxy gets a head start, then, if it has not connected yet, the next one is tried in parallel,
+ * and so on. The first proxy to connect is used, the pending attempts are cancelled.<br>
+ * So an unreachable proxy costs the head start, instead of the full connect timeout.<br>
+ * The race only runs when the first proxy is not known to be healthy, so a healthy proxy costs
+ * nothing more than the connection made by the processor. The connect times feed the {@link ProxyStatistics}.<br>
+ * The winner's connection is handed to the processor of a CONNECT through an HTTP proxy.
+ * The other processors connect again: the SOCKS handshake is made by the socket itself while connecting,
+ * and the non-CONNECT requests take their connections from the HTTP client's pool.
+ */
+@Component
+class ProxyCandidateRacer {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Autowired
+    private SystemConfig systemConfig;
+
+    @Autowired
+    private ProxyContext proxyContext;
+
+    @Autowired
+    private ProxyBlacklist proxyBlacklist;
+
+    @Autowired
+    private ProxyStatistics proxyStatistics;
+
+    /**
+     * Race the connections to the proxies.<br>
+     * The {@code DIRECT} entries do not take part and keep their positions.
+     * When the first proxy is known to be healthy, there is no race.
+     *
+     * @param clientConnection the client's connection, keeping the winner's connection when it can be used.
+     * @param proxyInfos       the proxies, in the order to try them.
+     * @return the proxies with the winner moved first and the ones that failed to connect moved last
+     * (and blacklisted), or the same proxies if none connected.
+     */
+    List<ProxyInfo> race(ClientConnection clientConnection, List<ProxyInfo> proxyInfos) {
+        List<ProxyInfo> candidates = new ArrayList<>();
+        for (ProxyInfo proxyInfo : proxyInfos) {
+            if (proxyInfo.getProxyHost() != null) {
+                candidates.add(proxyInfo);
+            }
+        }
+        if (candidates.size() < 2 || proxyStatistics.isHealthy(candidates.get(0))) {
+            return proxyInfos;
+        }
+
+        CompletionService<ConnectAttempt> completionService =
+                new ExecutorCompletionService<>(proxyContext.platformExecutorService());
+        List<ConnectAttempt> attempts = new ArrayList<>();
+        List<ProxyInfo> failed = new ArrayList<>();
+        ConnectAttempt winner = null;
+        try {
+            startAttempt(completionService, attempts, candidates.get(0));
+            while (winner == null && failed.size() < candidates.size()) {
+                Future<ConnectAttempt> done;
+                if (attempts.size() < candidates.size() && attempts.size() > failed.size()) {
+                    done = completionService.poll(systemConfig.getProxyRaceDelay(), TimeUnit.MILLISECONDS);
+                    if (done == null) {
+                        logger.debug("No connection after the head start, race the next proxy");
+                        startAttempt(completionService, attempts, candidates.get(attempts.size()));
+                        continue;
+                    }
+                } else if (attempts.size() < candidates.size()) {
+                    // All the started attempts failed, no point to wait
+                    startAttempt(completionService, attempts, candidates.get(attempts.size()));
+                    continue;
+                } else {
+                    done = completionService.take();
+                }
+                try {
+                    winner = done.get();
+                } catch (ExecutionException e) {
+                    ConnectAttempt attempt = ((AttemptFailedException) e.getCause()).attempt;
+                    logger.debug("Proxy {} lost the race: {}", attempt.proxyInfo, e.getCause().getCause());
+                    failed.add(attempt.proxyInfo);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return proxyInfos;
+        } finally {
+            // Cancel the pending attempts
+            for (ConnectAttempt attempt : attempts) {
+                if (attempt != winner || !handOver(clientConnection, winner)) {
+                    InputOutputs.close(attempt.socket);
+                }
+            }
+        }
+
+        if (winner == null) {
+            logger.debug("No proxy connected");
+            return proxyInfos;
+        }
+        logger.debug("Proxy {} won the race in {} ms", winner.proxyInfo, winner.latency);
+        proxyStatistics.recordSuccess(winner.proxyInfo, winner.latency);
+        for (ProxyInfo proxyInfo : failed) {
+            proxyStatistics.recordFailure(proxyInfo);
+            proxyBlacklist.blacklist(proxyInfo);
+        }
+        List<ProxyInfo> proxies = new ArrayList<>(candidates.size());
+        proxies.add(winner.proxyInfo);
+        for (ProxyInfo proxyInfo : candidates) {
+            if (proxyInfo != winner.proxyInfo && !failed.contains(proxyInfo)) {
+                proxies.add(proxyInfo);
+            }
+        }
+        proxies.addAll(failed);
+
+        List<ProxyInfo> ordered = new ArrayList<>(proxyInfos.size());
+        int index = 0;
+        for (ProxyInfo proxyInfo : proxyInfos) {
+            ordered.add(proxyInfo.getProxyHost() != null ? proxies.get(index++) : proxyInfo);
+        }
+        return ordered;
+    }
+
+    /**
+     * Give the winner's connection to the client's connection, if its processor can use it.
+     *
+     * @return {@code true} iff handed over.
+     */
+    private boolean handOver(ClientConnection clientConnection, ConnectAttempt winner) {
+        if (!HttpUtils.HTTP_CONNECT.equalsIgnoreCase(clientConnection.getRequestLine().getMethod())
+                || winner.proxyInfo.getType().isSocks()) {
+            return false;
+        }
+        try {
+            winner.socket.setSoTimeout(systemConfig.getSocketSoTimeout() * 1000);
+        } catch (IOException e) {
+            return false;
+        }
+        clientConnection.setRacedSocket(winner.proxyInfo, winner.socket);
+        return true;
+    }
+
+    private void startAttempt(CompletionService<ConnectAttempt> completionService,
+                              List<ConnectAttempt> attempts,
+                              ProxyInfo proxyInfo) {
+        ConnectAttempt attempt = new ConnectAttempt(proxyInfo, createSocket());
+        attempts.add(attempt);
+        completionService.submit(() -> {
+            HttpHost proxyHost = proxyInfo.getProxyHost();
+            long start = System.nanoTime();
+            try {
+                attempt.socket.connect(new InetSocketAddress(proxyHost.getHostName(), proxyHost.getPort()),
+                        systemConfig.getSocketConnectTimeout() * 1000);
+                attempt.latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            } catch (IOException | RuntimeException e) {
+                throw new AttemptFailedException(attempt, e);
+            }
+            return attempt;
+        });
+    }
+
+    /**
+     * Create a socket the {@link TunnelRelay} can relay, should it become a tunnel's connection.
+     */
+    private Socket createSocket() {
+        if (systemConfig.isTunnelNonBlocking()) {
+            try {
+                return SocketChannel.open().socket();
+            } catch (IOException e) {
+                logger.debug("Cannot open a socket channel, use a plain socket", e);
+            }
+        }
+        return new Socket();
+    }
+
+    private static final class ConnectAttempt {
+
+        private final ProxyInfo proxyInfo;
+
+        private final Socket socket;
+
+        /**
+         * The connect time (milliseconds), once connected.
+         */
+        private volatile long latency;
+
+        ConnectAttempt(ProxyInfo proxyInfo, Socket socket) {
+            this.proxyInfo = proxyInfo;
+            this.socket = socket;
+        }
+    }
+
+    /**
+     * A failed attempt, carrying the attempt itself so the race knows who failed.
+     */
+    private static final class AttemptFailedException extends Exception {
+
+        private final transient ConnectAttempt attempt;
+
+        AttemptFailedException(ConnectAttempt attempt, Exception cause) {
+            super(cause);
+            this.attempt = attempt;
+        }
+    }
+
+}
@@ -50,8 +50,46 @@ public class ProxyContext implements AutoCloseable {
     @Autowired
     private ProxyBlacklist proxyBlacklist;
 
+    @Autowired
+    private HttpClientBuilderFactory httpClientBuilderFactory;
+
+    @Autowired
+    private PacFileWatcher pacFileWatcher;
+
+    @Autowired
+    private ProxyAutoConfig proxyAutoConfig;
+
+    @Autowired
+    private ProxyHealthChecker proxyHealthChecker;
+
+    @Autowired
+    private ProxyStatistics proxyStatistics;
+
+    @Autowired
+    private ProxyDnsResolver proxyDnsResolver;
+
+    @Autowired
+    private TunnelSocketPool tunnelSocketPool;
+
+    @Autowired
+    private TunnelAuthCache tunnelAuthCache;
+
+    @Autowired
+    private ProxyAuthCache proxyAuthCache;
+
     private ThreadPoolExecutor threadPool;
 
+    /**
+     * The executor for the full duplex communication, either the {@link #threadPool}
+     * or a virtual thread per task one.
+     */
+    private ExecutorService executorService;
+
+    /**
+     * The bounded pool handling the client's connections.
+     */
+    private ThreadPoolExecutor connectionThreadPool;
+
     @PostConstruct
     private void init() {
         logger.info("Create thread pool");
@@ -60,11 +98,73 @@ public class ProxyContext implements AutoCloseable {
                 60L, TimeUnit.SECONDS, new SynchronousQueue<>(),
                 new DefaultThreadFactory());
 
+        this.executorService = threadPool;
+        ThreadFactory connectionThreadFactory = new DefaultThreadFactory();
+        if (systemConfig.isVirtualThreads()) {
+            ThreadFactory virtualThreadFactory = createVirtualThreadFactory();
+            if (virtualThreadFactory != null) {
+                ExecutorService virtualThreadExecutor = createThreadPerTaskExecutor(virtualThreadFactory);
+                if (virtualThreadExecutor != null) {
+                    logger.info("Handle the connections on virtual threads");
+                    this.executorService = virtualThreadExecutor;
+                    connectionThreadFactory = virtualThreadFactory;
+                }
+            }
+        }
+
+        // At most maxActiveConnections threads, the connections beyond that are queued,
+        // then rejected when the queue is full
+        int maxActiveConnections = Math.max(1, systemConfig.getMaxActiveConnections());
+        int maxQueuedConnections = systemConfig.getMaxQueuedConnections();
+        logger.info("Create connection thread pool: maxActive={}, maxQueued={}",
+                maxActiveConnections, maxQueuedConnections);
+        this.connectionThreadPool = new ThreadPoolExecutor(maxActiveConnections, maxActiveConnections,
+                60L, TimeUnit.SECONDS,
+                maxQueuedConnections > 0 ? new LinkedBlockingQueue<>(maxQueuedConnections) : new SynchronousQueue<>(),
+                connectionThreadFactory);
+        this.connectionThreadPool.allowCoreThreadTimeOut(true);
+
         logger.info("Done proxy context's initialization");
     }
 
     /**
-     * Start the {@link  ConnectionPoolingManager} also the {@link LocalProxyServer}.
+     * Create a factory of virtual threads.<br>
+     * It is looked up by reflection, since the virtual threads are not available on all supported JDKs.
+     *
+     * @return the factory or {@code null} if the JDK does not support virtual threads.
+     */
+    private ThreadFactory createVirtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (NoSuchMethodException e) {
+            logger.warn("Virtual threads are not available on this JDK, fall back to platform threads");
+        } catch (Exception e) {
+            // Preview feature not enabled
+            logger.warn("Cannot create virtual threads, fall back to platform threads", e);
+        }
+        return null;
+    }
+
+    /**
+     * Create an executor starting a new thread for each task.
+     *
+     * @param threadFactory the factory creating the threads.
+     * @return the executor or {@code null} if the JDK does not support it.
+     */
+    private ExecutorService createThreadPerTaskExecutor(ThreadFactory threadFactory) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, threadFactory);
+        } catch (Exception e) {
+            logger.warn("Cannot create thread per task executor, fall back to platform threads", e);
+        }
+        return null;
+    }
+
+    /**
+     * Start the {@link  ConnectionPoolingManager} also the {@link LocalProxyServer},
+     * the {@link PacFileWatcher} and the {@link ProxyHealthChecker}.
      *
      * @return {@code true} iff it is not aready started.
      * @throws Exception
@@ -73,21 +173,32 @@ public class ProxyContext implements AutoCloseable {
         if (!isStarted()) {
             connectionPoolingManager.start();
             localProxyServer.start();
+            pacFileWatcher.start();
+            proxyHealthChecker.start();
             return true;
         }
         return false;
     }
 
     /**
-     * Stop the {@link  ConnectionPoolingManager} also the {@link LocalProxyServer}.<br>
-     * Also, it removes the {@link Authenticator} - if any.
+     * Stop the {@link  ConnectionPoolingManager} also the {@link LocalProxyServer},
+     * the {@link PacFileWatcher} and the {@link ProxyHealthChecker}.<br>
+     * Also, it removes the {@link Authenticator} - if any - the cached HTTP clients, DNS lookups,
+     * spare tunnel connections and the cached proxy authentications,
+     * and saves the PAC snapshot, if PAC mode.
      *
      * @return {@code true} iff it is not aready stopped.
      */
     public synchronized boolean stop() {
         if (isStarted()) {
+            pacFileWatcher.stop();
+            proxyHealthChecker.stop();
             localProxyServer.close();
             connectionPoolingManager.stop();
+            tunnelSocketPool.clear();
+
+            // The cached clients hold the stopped connection managers
+            httpClientBuilderFactory.clearHttpClients();
 
             // Remove auth for SOCKS proxy
             if (proxyConfig.getProxyType().isSocks5()) {
@@ -95,6 +206,14 @@ public class ProxyContext implements AutoCloseable {
             }
 
             proxyBlacklist.clear();
+            proxyStatistics.clear();
+            proxyDnsResolver.clear();
+            tunnelAuthCache.clear();
+            proxyAuthCache.clear();
+
+            if (proxyConfig.isAutoConfig()) {
+                proxyAutoConfig.saveSnapshot();
+            }
 
             return true;
         }
@@ -110,7 +229,34 @@ public class ProxyContext implements AutoCloseable {
         return localProxyServer.isStarted();
     }
 
+    /**
+     * The executor for the full duplex communication.<br>
+     * It runs the tasks on virtual threads when {@link SystemConfig#isVirtualThreads()} is {@code true}
+     * and the JDK supports them.
+     *
+     * @return the executor service.
+     */
     public ExecutorService executorService() {
+        return executorService;
+    }
+
+    /**
+     * The bounded executor for the connection handling, on virtual threads when available.<br>
+     * It throws {@link RejectedExecutionException} when both the active and the queued connections are at their
+     * limits.
+     *
+     * @return the executor service.
+     */
+    public ExecutorService connectionExecutorService() {
+        return connectionThreadPool;
+    }
+
+    /**
+     * The pool of platform threads, meant for the long running loops like accepting connections.
+     *
+     * @return the thread pool.
+     */
+    public ExecutorService platformExecutorService() {
         return threadPool;
     }
 
@@ -121,6 +267,10 @@ public class ProxyContext implements AutoCloseable {
 
         try {
             threadPool.shutdownNow();
+            connectionThreadPool.shutdownNow();
+            if (executorService != threadPool) {
+                executorService.shutdownNow();
+            }
         } catch (Exception e) {
             logger.warn("Error on closing thread pool", e);
         }
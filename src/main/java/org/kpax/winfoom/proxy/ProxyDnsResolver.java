@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.conn.DnsResolver;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.util.ExpiringCache;
+import org.kpax.winfoom.util.InputOutputs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The DNS resolver of the proxy's own connections: the direct ones and the ones through a SOCKS proxy,
+ * with the host resolved locally.<br>
+ * The lookups are cached, the successful ones for a while, the failed ones for a shorter while.
+ * Concurrent lookups of the same host are made only once, and the cached entries still in use
+ * when close to expiration are refreshed in background.<br>
+ * The addresses are returned with the IPv6 and IPv4 ones interleaved, and {@link #connect} races
+ * the connections to them, in the spirit of Happy Eyeballs (RFC 8305),
+ * so a broken address family costs the connection attempt delay, instead of the full connect timeout.
+ *
+ * @author Eugen Covaci
+ */
+@Component
+class ProxyDnsResolver implements DnsResolver {
+
+    private final Logger logger = LoggerFactory.getLogger(ProxyDnsResolver.class);
+
+    @Autowired
+    private SystemConfig systemConfig;
+
+    @Autowired
+    private ProxyContext proxyContext;
+
+    /**
+     * The cached lookups, {@code null} when the caching is disabled.
+     */
+    private ExpiringCache<String, InetAddress[]> lookupCache;
+
+    @PostConstruct
+    private void init() {
+        if (systemConfig.getDnsPositiveTtl() > 0) {
+            lookupCache = new ExpiringCache<>(systemConfig.getDnsCacheSize(),
+                    systemConfig.getDnsPositiveTtl() * 1000L,
+                    Math.max(systemConfig.getDnsNegativeTtl(), 0) * 1000L,
+                    runnable -> proxyContext.platformExecutorService().execute(runnable));
+        }
+    }
+
+    /**
+     * Resolve a host name, on the caller's thread, unless cached.
+     * The concurrent callers wait for the same lookup.
+     *
+     * @param host the host name.
+     * @return the addresses, the IPv6 and IPv4 ones interleaved.
+     * @throws UnknownHostException if the host cannot be resolved.
+     */
+    @Override
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        if (lookupCache == null) {
+            return lookup(host);
+        }
+        return lookupCache.get(host, () -> lookup(host));
+    }
+
+    /**
+     * Connect a socket to a host, racing the connections to its addresses:
+     * each address gets a head start of {@link SystemConfig#getDnsConnectionAttemptDelay()} over the next one,
+     * a failed attempt starts the next one right away.
+     * The first connected socket is returned, the others are closed.
+     *
+     * @param host          the host name.
+     * @param port          the port.
+     * @param socketCreator creates the unconnected sockets, one per attempt.
+     * @param timeout       the connect timeout of each attempt (milliseconds).
+     * @return the connected socket.
+     * @throws IOException the first attempt's failure, when none connected.
+     */
+    Socket connect(String host, int port, SocketCreator socketCreator, int timeout) throws IOException {
+        InetAddress[] addresses = resolve(host);
+        if (addresses.length == 1) {
+            Socket socket = socketCreator.create();
+            try {
+                socket.connect(new InetSocketAddress(addresses[0], port), timeout);
+            } catch (IOException | RuntimeException e) {
+                InputOutputs.close(socket);
+                throw e;
+            }
+            return socket;
+        }
+
+        CompletionService<Socket> completionService =
+                new ExecutorCompletionService<>(proxyContext.platformExecutorService());
+        List<Socket> sockets = new ArrayList<>();
+        Socket winner = null;
+        IOException failure = null;
+        int failed = 0;
+        try {
+            startAttempt(completionService, sockets, socketCreator, new InetSocketAddress(addresses[0], port),
+                    timeout);
+            while (winner == null && failed < addresses.length) {
+                Future<Socket> done;
+                if (sockets.size() < addresses.length) {
+                    // When all the started attempts failed, no point to wait
+                    done = sockets.size() > failed
+                            ? completionService.poll(systemConfig.getDnsConnectionAttemptDelay(),
+                            TimeUnit.MILLISECONDS)
+                            : null;
+                    if (done == null) {
+                        startAttempt(completionService, sockets, socketCreator,
+                                new InetSocketAddress(addresses[sockets.size()], port), timeout);
+                        continue;
+                    }
+                } else {
+                    done = completionService.take();
+                }
+                try {
+                    winner = done.get();
+                } catch (ExecutionException e) {
+                    logger.debug("Connection attempt to {} failed: {}", host, e.getCause().getMessage());
+                    failed++;
+                    if (failure == null) {
+                        failure = e.getCause() instanceof IOException
+                                ? (IOException) e.getCause() : new IOException(e.getCause());
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while connecting to " + host);
+        } finally {
+            // Cancel the pending attempts
+            for (Socket socket : sockets) {
+                if (socket != winner) {
+                    InputOutputs.close(socket);
+                }
+            }
+        }
+        if (winner == null) {
+            throw failure;
+        }
+        logger.debug("Connected to {} at {}", host, winner.getInetAddress());
+        return winner;
+    }
+
+    private void startAttempt(CompletionService<Socket> completionService,
+                              List<Socket> sockets,
+                              SocketCreator socketCreator,
+                              InetSocketAddress address,
+                              int timeout) throws IOException {
+        Socket socket = socketCreator.create();
+        sockets.add(socket);
+        completionService.submit(() -> {
+            socket.connect(address, timeout);
+            return socket;
+        });
+    }
+
+    /**
+     * Look up a host name, bypassing the cache.
+     *
+     * @param host the host name.
+     * @return the addresses, the IPv6 and IPv4 ones interleaved.
+     * @throws UnknownHostException if the host cannot be resolved.
+     */
+    InetAddress[] lookup(String host) throws UnknownHostException {
+        return interleave(InetAddress.getAllByName(host));
+    }
+
+    /**
+     * Remove all the cached lookups.
+     */
+    void clear() {
+        if (lookupCache != null) {
+            lookupCache.clear();
+        }
+    }
+
+    /**
+     * Interleave the address families, starting with the preferred one, the family of the first address.
+     *
+     * @param addresses the addresses, in the resolver's order.
+     * @return the interleaved addresses.
+     */
+    static InetAddress[] interleave(InetAddress[] addresses) {
+        if (addresses.length < 2) {
+            return addresses;
+        }
+        boolean firstIsIpv6 = addresses[0] instanceof Inet6Address;
+        List<InetAddress> preferred = new ArrayList<>();
+        List<InetAddress> others = new ArrayList<>();
+        for (InetAddress address : addresses) {
+            if (address instanceof Inet6Address == firstIsIpv6) {
+                preferred.add(address);
+            } else {
+                others.add(address);
+            }
+        }
+        InetAddress[] interleaved = new InetAddress[addresses.length];
+        int index = 0;
+        for (int i = 0; i < Math.max(preferred.size(), others.size()); i++) {
+            if (i < preferred.size()) {
+                interleaved[index++] = preferred.get(i);
+            }
+            if (i < others.size()) {
+                interleaved[index++] = others.get(i);
+            }
+        }
+        return interleaved;
+    }
+
+    /**
+     * Creates an unconnected socket.
+     */
+    @FunctionalInterface
+    interface SocketCreator {
+        Socket create() throws IOException;
+    }
+
+}
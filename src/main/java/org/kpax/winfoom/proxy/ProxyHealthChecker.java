@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpHost;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks periodically whether the upstream proxies found by the PAC script accept connections,
+ * so the clients do not pay for discovering a dead proxy:
+ * a dead proxy is blacklisted in advance, a recovered one is removed from the blacklist before its timeout.<br>
+ * The connect times feed the {@link ProxyStatistics}.<br>
+ * Only the proxies found recently are checked.
+ * <p>We rely on the Spring context to close this instance!
+ *
+ * @author Eugen Covaci
+ */
+@Component
+class ProxyHealthChecker implements AutoCloseable {
+
+    /**
+     * A proxy not found during this number of checks is not checked anymore.
+     */
+    private static final int FORGET_AFTER_CHECKS = 10;
+
+    private final Logger logger = LoggerFactory.getLogger(ProxyHealthChecker.class);
+
+    /**
+     * Key = the proxy to check<br>
+     * Value = the last time it has been found (milliseconds)
+     */
+    private final Map<ProxyInfo, Long> watchedProxies = new ConcurrentHashMap<>();
+
+    /**
+     * The watched proxies that did not respond to their last check,
+     * so that only the state changes are logged at info level.
+     */
+    private final Set<ProxyInfo> downProxies = ConcurrentHashMap.newKeySet();
+
+    @Autowired
+    private ProxyConfig proxyConfig;
+
+    @Autowired
+    private SystemConfig systemConfig;
+
+    @Autowired
+    private ProxyBlacklist proxyBlacklist;
+
+    @Autowired
+    private ProxyStatistics proxyStatistics;
+
+    @Autowired
+    private ProxyContext proxyContext;
+
+    private volatile ScheduledExecutorService scheduler;
+
+    /**
+     * Start checking the proxies, if the proxy type is PAC and both the health check and the blacklisting
+     * are enabled.
+     */
+    synchronized void start() {
+        if (scheduler != null || !proxyConfig.isAutoConfig() || !proxyBlacklist.isBlacklistingEnabled()
+                || systemConfig.getProxyHealthCheckInterval() <= 0) {
+            return;
+        }
+        int interval = systemConfig.getProxyHealthCheckInterval();
+        logger.info("Check the PAC proxies every {} seconds", interval);
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "proxy-health");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::checkProxies, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Keep the proxies under watch.
+     *
+     * @param proxyInfos the proxies found by the PAC script.
+     */
+    void register(List<ProxyInfo> proxyInfos) {
+        if (scheduler == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (ProxyInfo proxyInfo : proxyInfos) {
+            if (proxyInfo.getProxyHost() != null) {
+                watchedProxies.put(proxyInfo, now);
+            }
+        }
+    }
+
+    private void checkProxies() {
+        long forgetTime = System.currentTimeMillis()
+                - systemConfig.getProxyHealthCheckInterval() * 1000L * FORGET_AFTER_CHECKS;
+        watchedProxies.values().removeIf(lastFound -> lastFound < forgetTime);
+        downProxies.retainAll(watchedProxies.keySet());
+        List<Future<?>> checks = new ArrayList<>();
+        for (ProxyInfo proxyInfo : watchedProxies.keySet()) {
+            checks.add(proxyContext.platformExecutorService().submit(() -> checkProxy(proxyInfo)));
+        }
+        for (Future<?> check : checks) {
+            try {
+                check.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                logger.debug("Error on checking proxy", e.getCause());
+            }
+        }
+    }
+
+    private void checkProxy(ProxyInfo proxyInfo) {
+        HttpHost proxyHost = proxyInfo.getProxyHost();
+        try (Socket socket = new Socket()) {
+            InetSocketAddress address = new InetSocketAddress(proxyHost.getHostName(), proxyHost.getPort());
+            long start = System.currentTimeMillis();
+            socket.connect(address, systemConfig.getProxyHealthConnectTimeout() * 1000);
+            proxyStatistics.recordSuccess(proxyInfo, System.currentTimeMillis() - start);
+            boolean unblacklisted = proxyBlacklist.unblacklist(proxyInfo);
+            if (downProxies.remove(proxyInfo) || unblacklisted) {
+                logger.info("Proxy {} responds again, removed from blacklist", proxyInfo);
+            }
+        } catch (IOException e) {
+            if (downProxies.add(proxyInfo)) {
+                logger.info("Proxy {} does not respond, blacklist it", proxyInfo);
+            } else {
+                logger.debug("Proxy {} still does not respond", proxyInfo);
+            }
+            logger.debug("Health check error", e);
+            proxyStatistics.recordFailure(proxyInfo);
+            proxyBlacklist.blacklist(proxyInfo);
+        }
+    }
+
+    /**
+     * Stop checking the proxies.
+     */
+    synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        watchedProxies.clear();
+        downProxies.clear();
+    }
+
+    @Override
+    public void close() {
+        stop();
+    }
+
+}
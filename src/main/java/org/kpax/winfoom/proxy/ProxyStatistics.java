@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the health statistics of the upstream proxies: the connect latency, as an exponentially weighted
+ * moving average, and the number of consecutive failures.<br>
+ * They are used to reorder the PAC proxies, the fast and healthy ones first.
+ */
+@Component
+class ProxyStatistics {
+
+    /**
+     * The weight of the last latency in the moving average.
+     */
+    private static final double LATENCY_WEIGHT = 0.3;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final Map<ProxyInfo, Statistics> statisticsMap = new ConcurrentHashMap<>();
+
+    /**
+     * Record a successful connection to a proxy.
+     *
+     * @param proxyInfo the proxy.
+     * @param latency   the connect time (milliseconds).
+     */
+    void recordSuccess(ProxyInfo proxyInfo, long latency) {
+        statisticsMap.computeIfAbsent(proxyInfo, key -> new Statistics()).recordSuccess(latency);
+    }
+
+    /**
+     * Record a successful use of a proxy, whose connect time is unknown.
+     *
+     * @param proxyInfo the proxy.
+     */
+    void recordSuccess(ProxyInfo proxyInfo) {
+        Statistics statistics = statisticsMap.get(proxyInfo);
+        if (statistics != null) {
+            statistics.resetFailures();
+        }
+    }
+
+    /**
+     * Record a failed connection to a proxy.
+     *
+     * @param proxyInfo the proxy.
+     */
+    void recordFailure(ProxyInfo proxyInfo) {
+        statisticsMap.computeIfAbsent(proxyInfo, key -> new Statistics()).recordFailure();
+    }
+
+    /**
+     * Whether a proxy is known to be healthy: it connected before and has not failed since.
+     *
+     * @param proxyInfo the proxy.
+     * @return {@code true} iff the proxy has a known latency and no failure.
+     */
+    boolean isHealthy(ProxyInfo proxyInfo) {
+        Statistics statistics = statisticsMap.get(proxyInfo);
+        return statistics != null && statistics.getLatency() >= 0 && statistics.getFailures() == 0;
+    }
+
+    /**
+     * Reorder the PAC proxies by their health, keeping the PAC order as long as the latencies
+     * are within the tolerance.<br>
+     * The proxies that failed last time go after the healthy ones.
+     * The {@code DIRECT} entries, having no statistics, keep their positions.
+     *
+     * @param proxyInfos the proxies, in the PAC order.
+     * @param tolerance  the latency difference that does not change the PAC order (milliseconds).
+     * @return the proxies in the order to try them.
+     */
+    List<ProxyInfo> order(List<ProxyInfo> proxyInfos, long tolerance) {
+        List<ProxyInfo> healthy = new ArrayList<>();
+        List<ProxyInfo> failing = new ArrayList<>();
+        for (ProxyInfo proxyInfo : proxyInfos) {
+            if (proxyInfo.getProxyHost() != null) {
+                Statistics statistics = statisticsMap.get(proxyInfo);
+                if (statistics != null && statistics.getFailures() > 0) {
+                    failing.add(proxyInfo);
+                } else {
+                    healthy.add(proxyInfo);
+                }
+            }
+        }
+        if (healthy.size() + failing.size() < 2) {
+            return proxyInfos;
+        }
+        List<ProxyInfo> proxies = orderByLatency(healthy, tolerance);
+        proxies.addAll(failing);
+
+        List<ProxyInfo> ordered = new ArrayList<>(proxyInfos.size());
+        int index = 0;
+        for (ProxyInfo proxyInfo : proxyInfos) {
+            ordered.add(proxyInfo.getProxyHost() != null ? proxies.get(index++) : proxyInfo);
+        }
+        if (logger.isDebugEnabled() && !ordered.equals(proxyInfos)) {
+            logger.debug("Proxies reordered by health: {}", ordered);
+        }
+        return ordered;
+    }
+
+    /**
+     * At each step, take the first proxy (in the PAC order) whose latency is within the tolerance
+     * from the lowest one. A proxy without statistics is never passed over.
+     */
+    private List<ProxyInfo> orderByLatency(List<ProxyInfo> proxyInfos, long tolerance) {
+        List<ProxyInfo> remaining = new ArrayList<>(proxyInfos);
+        List<Double> latencies = new ArrayList<>(proxyInfos.size());
+        for (ProxyInfo proxyInfo : proxyInfos) {
+            Statistics statistics = statisticsMap.get(proxyInfo);
+            latencies.add(statistics != null ? statistics.getLatency() : -1);
+        }
+        List<ProxyInfo> ordered = new ArrayList<>(proxyInfos.size());
+        while (!remaining.isEmpty()) {
+            double minLatency = Double.MAX_VALUE;
+            for (double latency : latencies) {
+                if (latency >= 0) {
+                    minLatency = Math.min(minLatency, latency);
+                }
+            }
+            int selected = 0;
+            while (latencies.get(selected) >= 0 && latencies.get(selected) > minLatency + tolerance) {
+                selected++;
+            }
+            ordered.add(remaining.remove(selected));
+            latencies.remove(selected);
+        }
+        return ordered;
+    }
+
+    /**
+     * Remove all the statistics.
+     */
+    void clear() {
+        statisticsMap.clear();
+    }
+
+    private static final class Statistics {
+
+        /**
+         * The latency's moving average (milliseconds), -1 if unknown.
+         */
+        private double latency = -1;
+
+        private int failures;
+
+        synchronized void recordSuccess(long lastLatency) {
+            latency = latency < 0 ? lastLatency : LATENCY_WEIGHT * lastLatency + (1 - LATENCY_WEIGHT) * latency;
+            failures = 0;
+        }
+
+        synchronized void resetFailures() {
+            failures = 0;
+        }
+
+        synchronized void recordFailure() {
+            failures++;
+        }
+
+        synchronized double getLatency() {
+            return latency;
+        }
+
+        synchronized int getFailures() {
+            return failures;
+        }
+    }
+
+}
@@ -22,14 +22,21 @@ import org.kpax.winfoom.util.InputOutputs;
 
 import java.io.*;
 import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * A special type of repeatable {@link AbstractHttpEntity}.<br>
- * The data is cached either internally or externally into a temporary file.
+ * The data is cached either internally, into pooled direct chunks of an {@link EntityBufferPool},
+ * or externally into a temporary file.<br>
+ * A body is buffered internally only when its length is known, it does not exceed the internal buffer's length
+ * and it fits the pool's global budget. Otherwise, it is streamed while being sequentially written into the
+ * temporary file.
  *
  * @author Eugen Covaci {@literal eugen.covaci.q@gmail.com}
  * Created on 4/6/2020
@@ -48,10 +55,17 @@ class RepeatableHttpEntity extends AbstractHttpEntity implements Closeable {
      */
     private final long contentLength;
 
+    private final EntityBufferPool entityBufferPool;
+
+    /**
+     * The chunks holding the data, in read mode, when contentLength < maximum buffered.
+     */
+    private List<ByteBuffer> bufferedChunks;
+
     /**
-     * Write into this buffer when contentLength < maximum buffered.
+     * The length reserved from the {@link EntityBufferPool}'s budget.
      */
-    private byte[] bufferedBytes;
+    private long reservedLength;
 
     /**
      * The temporary file containing the cached data.
@@ -66,39 +80,62 @@ class RepeatableHttpEntity extends AbstractHttpEntity implements Closeable {
     public RepeatableHttpEntity(final SessionInputBufferImpl inputBuffer,
                                 final Path tempDirectory,
                                 final HttpRequest request,
-                                final int internalBufferLength) throws IOException {
+                                final int internalBufferLength,
+                                final EntityBufferPool entityBufferPool) throws IOException {
         this.inputBuffer = inputBuffer;
         this.tempDirectory = tempDirectory;
+        this.entityBufferPool = entityBufferPool;
         this.contentType = request.getFirstHeader(HttpHeaders.CONTENT_TYPE);
         this.contentEncoding = request.getFirstHeader(HttpHeaders.CONTENT_ENCODING);
         this.contentLength = HttpUtils.getContentLength(request);
 
         if (this.contentLength > 0 && this.contentLength <= internalBufferLength) {
-            writeToBuffer();
+            // The chunks are allocated whole, so reserve their full size
+            long footprint = EntityBufferPool.footprint(this.contentLength);
+            if (entityBufferPool.reserve(footprint)) {
+                this.reservedLength = footprint;
+                try {
+                    writeToBuffer();
+                } catch (IOException | RuntimeException e) {
+                    // This instance is not going to be closed
+                    close();
+                    throw e;
+                }
+            }
         }
     }
 
     /**
-     * Read from the {@link SessionInputBufferImpl} into an internal buffer,
+     * Read from the {@link SessionInputBufferImpl} into pooled chunks,
      * no more than {@link #contentLength} bytes.
      *
      * @throws IOException
      */
     private void writeToBuffer() throws IOException {
+        bufferedChunks = new ArrayList<>();
+        byte[] buffer = new byte[InputOutputs.DEFAULT_BUFFER_SIZE];
+        ByteBuffer chunk = null;
         int length;
-        byte[] buffer = new byte[OUTPUT_BUFFER_SIZE];
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
         long remaining = contentLength;
         while (remaining > 0 && InputOutputs.isAvailable(inputBuffer)) {
-            length = inputBuffer.read(buffer, 0, (int) Math.min(OUTPUT_BUFFER_SIZE, remaining));
+            length = inputBuffer.read(buffer, 0, (int) Math.min(buffer.length, remaining));
             if (length == -1) {
                 break;
             }
-            out.write(buffer, 0, length);
             remaining -= length;
+            for (int offset = 0; offset < length; ) {
+                if (chunk == null || !chunk.hasRemaining()) {
+                    chunk = entityBufferPool.acquire();
+                    bufferedChunks.add(chunk);
+                }
+                int count = Math.min(chunk.remaining(), length - offset);
+                chunk.put(buffer, offset, count);
+                offset += count;
+            }
+        }
+        for (ByteBuffer bufferedChunk : bufferedChunks) {
+            bufferedChunk.flip();
         }
-        out.flush();
-        bufferedBytes = out.toByteArray();
     }
 
     @Override
@@ -113,8 +150,8 @@ class RepeatableHttpEntity extends AbstractHttpEntity implements Closeable {
 
     @Override
     public InputStream getContent() throws IOException, UnsupportedOperationException {
-        if (bufferedBytes != null) {
-            return new ByteArrayInputStream(bufferedBytes);
+        if (bufferedChunks != null) {
+            return new ChunksInputStream(bufferedChunks);
         } else if (contentLength == 0) {
             return new ByteArrayInputStream(new byte[0]);
         } else {
@@ -138,18 +175,22 @@ class RepeatableHttpEntity extends AbstractHttpEntity implements Closeable {
 
     @Override
     public void writeTo(OutputStream outStream) throws IOException {
-        if (bufferedBytes != null) {
-            outStream.write(bufferedBytes);
+        if (bufferedChunks != null) {
+            new ChunksInputStream(bufferedChunks).transferTo(outStream);
             outStream.flush();
         } else if (contentLength != 0) {
             if (streaming) {
                 tempFilepath = tempDirectory.resolve(InputOutputs.generateCacheFilename());
-                try (AsynchronousFileChannel tempFileChannel
-                             = AsynchronousFileChannel.open(tempFilepath,
+
+                // The file buffer is a pooled chunk only when the budget allows it
+                boolean fileBufferReserved = entityBufferPool.reserve(EntityBufferPool.CHUNK_SIZE);
+                ByteBuffer fileBuffer = fileBufferReserved
+                        ? entityBufferPool.acquire()
+                        : ByteBuffer.allocate(EntityBufferPool.CHUNK_SIZE);
+                try (FileChannel tempFileChannel = FileChannel.open(tempFilepath,
                         StandardOpenOption.WRITE,
                         StandardOpenOption.CREATE)) {
-                    byte[] buffer = new byte[OUTPUT_BUFFER_SIZE];
-                    long position = 0;
+                    byte[] buffer = new byte[InputOutputs.DEFAULT_BUFFER_SIZE];
 
                     if (contentLength < 0) {
                         if (isChunked()) {
@@ -157,13 +198,8 @@ class RepeatableHttpEntity extends AbstractHttpEntity implements Closeable {
 
                             int length;
                             while ((length = chunkedInputStream.read(buffer)) > 0) {
-
                                 outStream.write(buffer, 0, length);
-                                outStream.flush();
-
-                                // Write to file
-                                tempFileChannel.write(ByteBuffer.wrap(buffer, 0, length), position);
-                                position += length;
+                                writeToFile(buffer, length, fileBuffer, tempFileChannel);
                             }
                         } else {
 
@@ -175,11 +211,7 @@ class RepeatableHttpEntity extends AbstractHttpEntity implements Closeable {
                                     break;
                                 }
                                 outStream.write(buffer, 0, length);
-                                outStream.flush();
-
-                                // Write to file
-                                tempFileChannel.write(ByteBuffer.wrap(buffer, 0, length), position);
-                                position += length;
+                                writeToFile(buffer, length, fileBuffer, tempFileChannel);
                             }
                         }
 
@@ -189,20 +221,26 @@ class RepeatableHttpEntity extends AbstractHttpEntity implements Closeable {
 
                         // consume no more than maxLength
                         while (remaining > 0 && InputOutputs.isAvailable(inputBuffer)) {
-                            length = inputBuffer.read(buffer, 0, (int) Math.min(OUTPUT_BUFFER_SIZE, remaining));
+                            length = inputBuffer.read(buffer, 0, (int) Math.min(buffer.length, remaining));
                             if (length == -1) {
                                 break;
                             }
                             outStream.write(buffer, 0, length);
-                            outStream.flush();
                             remaining -= length;
-
-                            // Write to temp file
-                            tempFileChannel.write(ByteBuffer.wrap(buffer, 0, length), position);
-                            position += length;
+                            writeToFile(buffer, length, fileBuffer, tempFileChannel);
                         }
                     }
+
+                    // Write what is left
+                    fileBuffer.flip();
+                    writeFully(fileBuffer, tempFileChannel);
+                } finally {
+                    if (fileBufferReserved) {
+                        entityBufferPool.release(fileBuffer);
+                        entityBufferPool.unreserve(EntityBufferPool.CHUNK_SIZE);
+                    }
                 }
+                outStream.flush();
                 streaming = false;
             } else {
 
@@ -215,17 +253,103 @@ class RepeatableHttpEntity extends AbstractHttpEntity implements Closeable {
         }
     }
 
+    /**
+     * Accumulate the bytes into the file buffer, writing it to the file only when full,
+     * to avoid many small writes.
+     *
+     * @param bytes           the bytes to write.
+     * @param length          the number of bytes to write.
+     * @param fileBuffer      the file buffer, in write mode.
+     * @param tempFileChannel the temp file channel.
+     * @throws IOException
+     */
+    private void writeToFile(byte[] bytes, int length, ByteBuffer fileBuffer, FileChannel tempFileChannel)
+            throws IOException {
+        for (int offset = 0; offset < length; ) {
+            if (!fileBuffer.hasRemaining()) {
+                fileBuffer.flip();
+                writeFully(fileBuffer, tempFileChannel);
+                fileBuffer.clear();
+            }
+            int count = Math.min(fileBuffer.remaining(), length - offset);
+            fileBuffer.put(bytes, offset, count);
+            offset += count;
+        }
+    }
+
+    /**
+     * A channel write may not write all the remaining bytes, so repeat until it does.
+     */
+    private void writeFully(ByteBuffer byteBuffer, FileChannel fileChannel) throws IOException {
+        while (byteBuffer.hasRemaining()) {
+            fileChannel.write(byteBuffer);
+        }
+    }
+
     @Override
     public boolean isStreaming() {
-        return bufferedBytes == null && streaming;
+        return bufferedChunks == null && streaming;
     }
 
     @Override
     public void close() throws IOException {
 
+        // Give back the chunks, also the reserved length
+        if (bufferedChunks != null) {
+            bufferedChunks.forEach(entityBufferPool::release);
+            bufferedChunks = Collections.emptyList();
+        }
+        if (reservedLength > 0) {
+            entityBufferPool.unreserve(reservedLength);
+            reservedLength = 0;
+        }
+
         // Delete the temp file if exists
         if (tempFilepath != null) {
             Files.deleteIfExists(tempFilepath);
         }
     }
+
+    /**
+     * Read the bytes of the buffered chunks, without altering them.
+     */
+    private static class ChunksInputStream extends InputStream {
+
+        private final List<ByteBuffer> chunks;
+
+        private int index;
+
+        private ByteBuffer current;
+
+        ChunksInputStream(List<ByteBuffer> chunks) {
+            this.chunks = chunks;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (current == null || !current.hasRemaining()) {
+                if (index >= chunks.size()) {
+                    return -1;
+                }
+                current = chunks.get(index++).duplicate();
+            }
+            int count = Math.min(len, current.remaining());
+            current.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return current != null ? current.remaining() : 0;
+        }
+    }
 }
@@ -0,0 +1,503 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.protocol.HTTP;
+import org.kpax.winfoom.util.HeaderDateGenerator;
+import org.kpax.winfoom.util.HttpUtils;
+import org.kpax.winfoom.util.InputOutputs;
+import org.kpax.winfoom.util.ObjectFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A non-blocking alternative to the {@link java.net.ServerSocket#accept()} loop of the {@link LocalProxyServer}.<br>
+ * A single selector thread accepts the connections and reads the request's head (the request line and the headers)
+ * without blocking. Only when the head is completely read, the connection is switched to blocking mode and handed
+ * to the {@link ClientConnectionHandler}, on a pooled thread. Once the response is written, an idle persistent
+ * connection is switched back to non-blocking mode and waits for the next request on the selector.
+ * This way, idle or slow clients do not hold a thread.
+ *
+ * @author Eugen Covaci
+ */
+final class SelectorAcceptor implements Closeable {
+
+    /**
+     * The max length of a request's head (bytes).
+     */
+    static final int MAX_HEAD_LENGTH = 64 * 1024;
+
+    /**
+     * The max time to wait for the selector thread to end (seconds).
+     */
+    private static final int CLOSE_TIMEOUT = 5;
+
+    /**
+     * The min interval between two scans for the expired connections (milliseconds).
+     */
+    private static final long EXPIRATION_CHECK_INTERVAL = 1000;
+
+    private final Logger logger = LoggerFactory.getLogger(SelectorAcceptor.class);
+
+    private final ServerSocketChannel serverSocketChannel;
+
+    private final Selector selector;
+
+    private final ExecutorService executorService;
+
+    private final ClientConnectionHandler clientConnectionHandler;
+
+    /**
+     * The socket timeout (milliseconds), also the max time allowed for reading a request's head.
+     */
+    private final int soTimeout;
+
+    /**
+     * The max time an idle persistent connection waits for the next request (milliseconds).
+     */
+    private final int keepAliveIdleTimeout;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(InputOutputs.DEFAULT_BUFFER_SIZE);
+
+    /**
+     * The connections with a complete head, waiting for their keys to be deregistered.
+     */
+    private final List<SelectionKey> completedKeys = new ArrayList<>();
+
+    /**
+     * The idle persistent connections waiting to be registered with the selector.
+     */
+    private final Queue<RequestHead> idleConnections = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The response written to the connections rejected by the executor.
+     */
+    private final byte[] serviceUnavailableResponse;
+
+    private final CountDownLatch terminated = new CountDownLatch(1);
+
+    /**
+     * The current delay before accepting again, once out of resources (milliseconds).
+     */
+    private long acceptBackoff;
+
+    /**
+     * When to accept again, if accepting is suspended (milliseconds).
+     */
+    private long acceptResumeTime;
+
+    /**
+     * When to scan again for the expired connections (milliseconds).
+     */
+    private long nextExpirationCheck;
+
+    private volatile boolean running;
+
+    /**
+     * Constructor.
+     *
+     * @param port                    the local port.
+     * @param backlog                 the maximum number of pending connections.
+     * @param soTimeout               the socket timeout (milliseconds).
+     * @param keepAliveIdleTimeout    the max time an idle persistent connection waits for the next request
+     *                                (milliseconds).
+     * @param executorService         the executor for the connection handling.
+     * @param clientConnectionHandler    the handler receiving the connections with a complete request's head.
+     * @param serviceUnavailableResponse the response written to the connections rejected by the executor.
+     * @throws IOException
+     */
+    SelectorAcceptor(int port, int backlog, int soTimeout, int keepAliveIdleTimeout,
+                     ExecutorService executorService,
+                     ClientConnectionHandler clientConnectionHandler,
+                     byte[] serviceUnavailableResponse) throws IOException {
+        this.soTimeout = soTimeout;
+        this.keepAliveIdleTimeout = keepAliveIdleTimeout;
+        this.executorService = executorService;
+        this.clientConnectionHandler = clientConnectionHandler;
+        this.serviceUnavailableResponse = serviceUnavailableResponse;
+        this.selector = Selector.open();
+        try {
+            this.serverSocketChannel = ServerSocketChannel.open();
+            this.serverSocketChannel.configureBlocking(false);
+            this.serverSocketChannel.bind(new InetSocketAddress(port), backlog);
+            this.serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            InputOutputs.close(selector);
+            throw e;
+        }
+    }
+
+    /**
+     * Start the selector loop.
+     *
+     * @param loopExecutorService the executor running the selector loop.
+     */
+    void start(ExecutorService loopExecutorService) {
+        running = true;
+        loopExecutorService.execute(this::run);
+    }
+
+    private void run() {
+        logger.debug("Start the selector loop");
+        try {
+            while (running) {
+                try {
+                    selector.select(acceptResumeTime > 0 ?
+                            Math.max(1, Math.min(1000, acceptResumeTime - System.currentTimeMillis())) : 1000);
+                    resumeAccept();
+                    registerIdleConnections();
+                    for (Iterator<SelectionKey> itr = selector.selectedKeys().iterator(); itr.hasNext(); ) {
+                        SelectionKey key = itr.next();
+                        itr.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept(key);
+                        } else if (key.isReadable()) {
+                            read(key);
+                        }
+                    }
+                    dispatchCompleted();
+                    closeExpired();
+                } catch (ClosedSelectorException e) {
+                    break;
+                } catch (Exception e) {
+                    logger.debug("Error on selecting", e);
+                }
+            }
+        } finally {
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    InputOutputs.close(key.channel());
+                }
+            } catch (ClosedSelectorException e) {
+                // Nothing to clean
+            }
+            InputOutputs.close(selector);
+            for (RequestHead requestHead; (requestHead = idleConnections.poll()) != null; ) {
+                InputOutputs.close(requestHead.socketChannel);
+            }
+            terminated.countDown();
+            logger.debug("End the selector loop");
+        }
+    }
+
+    private void accept(SelectionKey acceptKey) throws IOException {
+        SocketChannel socketChannel;
+        while (true) {
+            try {
+                socketChannel = serverSocketChannel.accept();
+            } catch (IOException e) {
+                if (!HttpUtils.isResourceExhausted(e)) {
+                    throw e;
+                }
+                // The pending connections would be selected over and over, stop accepting for a while
+                acceptBackoff = Math.min(Math.max(LocalProxyServer.MIN_ACCEPT_BACKOFF, acceptBackoff * 2),
+                        LocalProxyServer.MAX_ACCEPT_BACKOFF);
+                logger.warn("Out of resources on getting connection, retry in {} ms", acceptBackoff);
+                acceptKey.interestOps(0);
+                acceptResumeTime = System.currentTimeMillis() + acceptBackoff;
+                return;
+            }
+            if (socketChannel == null) {
+                break;
+            }
+            acceptBackoff = 0;
+            try {
+                socketChannel.configureBlocking(false);
+                socketChannel.register(selector, SelectionKey.OP_READ,
+                        new RequestHead(socketChannel, System.currentTimeMillis() + soTimeout, 0));
+            } catch (IOException e) {
+                logger.debug("Error on registering the accepted connection", e);
+                InputOutputs.close(socketChannel);
+            }
+        }
+    }
+
+    /**
+     * Accept again once the delay after running out of resources has passed.
+     */
+    private void resumeAccept() {
+        if (acceptResumeTime > 0 && acceptResumeTime <= System.currentTimeMillis()) {
+            acceptResumeTime = 0;
+            SelectionKey acceptKey = serverSocketChannel.keyFor(selector);
+            if (acceptKey != null && acceptKey.isValid()) {
+                acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+            }
+        }
+    }
+
+    private void read(SelectionKey key) {
+        SocketChannel socketChannel = (SocketChannel) key.channel();
+        RequestHead requestHead = (RequestHead) key.attachment();
+        try {
+            readBuffer.clear();
+            int read = socketChannel.read(readBuffer);
+            if (read < 0) {
+                logger.debug("Connection closed by the client before sending the request's head");
+                key.cancel();
+                InputOutputs.close(socketChannel);
+                return;
+            }
+            readBuffer.flip();
+            if (requestHead.append(readBuffer)) {
+                key.cancel();
+                completedKeys.add(key);
+            } else if (requestHead.length() > MAX_HEAD_LENGTH) {
+                logger.debug("Request's head too large, send the error response");
+                key.cancel();
+                writeBadRequest(socketChannel);
+                InputOutputs.close(socketChannel);
+            }
+        } catch (IOException e) {
+            logger.debug("Error on reading the request's head", e);
+            key.cancel();
+            InputOutputs.close(socketChannel);
+        }
+    }
+
+    /**
+     * Hand the connections having a complete request's head to the {@link ClientConnectionHandler}.<br>
+     * A channel cannot be switched to blocking mode before its cancelled key is deregistered,
+     * which only happens on the next selection operation.
+     */
+    private void dispatchCompleted() throws IOException {
+        if (completedKeys.isEmpty()) {
+            return;
+        }
+        if (selector.selectNow() > 0) {
+            // Make sure the keys selected now are processed without waiting
+            selector.wakeup();
+        }
+        for (SelectionKey key : completedKeys) {
+            SocketChannel socketChannel = (SocketChannel) key.channel();
+            RequestHead requestHead = (RequestHead) key.attachment();
+            try {
+                socketChannel.configureBlocking(true);
+                Socket socket = socketChannel.socket();
+                socket.setSoTimeout(soTimeout);
+                InputStream inputStream = new SequenceInputStream(requestHead.toInputStream(),
+                        socket.getInputStream());
+                executorService.execute(() -> {
+                    try {
+                        // The handler closes the socket, unless it is idle or handed over
+                        int servedRequests = clientConnectionHandler.handleConnection(socket, inputStream,
+                                requestHead.servedRequests, false);
+                        if (servedRequests >= 0) {
+                            if (running) {
+                                idleConnections.add(new RequestHead(socketChannel,
+                                        System.currentTimeMillis() + keepAliveIdleTimeout, servedRequests));
+                                selector.wakeup();
+                            } else {
+                                InputOutputs.close(socket);
+                            }
+                        }
+                    } catch (Exception e) {
+                        logger.debug("Error on handling connection", e);
+                        InputOutputs.close(socket);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                logger.debug("Too many connections, reject the connection");
+                try {
+                    socketChannel.socket().getOutputStream().write(serviceUnavailableResponse);
+                } catch (Exception ex) {
+                    logger.debug("Error on writing the rejection response", ex);
+                }
+                InputOutputs.close(socketChannel);
+            } catch (Exception e) {
+                logger.debug("Error on dispatching the connection", e);
+                InputOutputs.close(socketChannel);
+            }
+        }
+        completedKeys.clear();
+    }
+
+    /**
+     * Register with the selector the persistent connections waiting for the next request.
+     */
+    private void registerIdleConnections() {
+        for (RequestHead requestHead; (requestHead = idleConnections.poll()) != null; ) {
+            try {
+                requestHead.socketChannel.configureBlocking(false);
+                requestHead.socketChannel.register(selector, SelectionKey.OP_READ, requestHead);
+            } catch (IOException e) {
+                logger.debug("Error on registering the idle connection", e);
+                InputOutputs.close(requestHead.socketChannel);
+            }
+        }
+    }
+
+    /**
+     * Close the connections that did not send a complete request's head in time.<br>
+     * The scan visits all the registered keys, so it runs at most once per {@link #EXPIRATION_CHECK_INTERVAL},
+     * not on every wakeup: a deadline may be overrun by up to this interval.
+     */
+    private void closeExpired() {
+        long now = System.currentTimeMillis();
+        if (now < nextExpirationCheck) {
+            return;
+        }
+        nextExpirationCheck = now + EXPIRATION_CHECK_INTERVAL;
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (key.isValid() && attachment instanceof RequestHead && ((RequestHead) attachment).deadline < now) {
+                logger.debug("Timeout on reading the request's head, close the connection");
+                key.cancel();
+                InputOutputs.close(key.channel());
+            }
+        }
+    }
+
+    /**
+     * @return the local port, useful when bound to an ephemeral one.
+     */
+    int getLocalPort() {
+        return serverSocketChannel.socket().getLocalPort();
+    }
+
+    private void writeBadRequest(SocketChannel socketChannel) {
+        try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
+            outputStream.write(ObjectFormat.toCrlf(HttpUtils.toStatusLine(HttpStatus.SC_BAD_REQUEST,
+                    "Request header too large")));
+            outputStream.write(ObjectFormat.toCrlf(HttpUtils.createHttpHeader(HTTP.DATE_HEADER,
+                    new HeaderDateGenerator().getCurrentDate())));
+            outputStream.write(ObjectFormat.CRLF.getBytes());
+
+            // Best effort, the response is small enough to fit the socket's buffer
+            socketChannel.write(ByteBuffer.wrap(outputStream.toByteArray()));
+        } catch (Exception e) {
+            logger.debug("Error on writing error response", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        InputOutputs.close(serverSocketChannel);
+        selector.wakeup();
+        try {
+            // The server socket is released only after the selector loop ends
+            if (!terminated.await(CLOSE_TIMEOUT, TimeUnit.SECONDS)) {
+                logger.warn("The selector loop did not end in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Accumulate the bytes read from a client until the end of the request's head.
+     */
+    private static final class RequestHead {
+
+        private final SocketChannel socketChannel;
+
+        private final long deadline;
+
+        /**
+         * The number of requests already served on this connection.
+         */
+        private final int servedRequests;
+
+        private byte[] bytes = new byte[1024];
+
+        private int length;
+
+        /**
+         * The index of the current line's first byte.
+         */
+        private int lineStart;
+
+        /**
+         * Whether a non-empty line has been read (the leading empty lines are ignored).
+         */
+        private boolean requestLineFound;
+
+        /**
+         * The index of the request line's first byte.
+         */
+        private int headStart;
+
+        private boolean complete;
+
+        RequestHead(SocketChannel socketChannel, long deadline, int servedRequests) {
+            this.socketChannel = socketChannel;
+            this.deadline = deadline;
+            this.servedRequests = servedRequests;
+        }
+
+        /**
+         * Append the available bytes.
+         *
+         * @param buffer the buffer containing the bytes read.
+         * @return {@code true} iff the request's head is complete.
+         */
+        boolean append(ByteBuffer buffer) {
+            int count = buffer.remaining();
+            if (length + count > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + count));
+            }
+            int from = length;
+            buffer.get(bytes, length, count);
+            length += count;
+            for (int i = from; i < length && !complete; i++) {
+                if (bytes[i] == '\n') {
+                    boolean emptyLine = i == lineStart || (i == lineStart + 1 && bytes[lineStart] == '\r');
+                    if (!emptyLine) {
+                        if (!requestLineFound) {
+                            requestLineFound = true;
+                            headStart = lineStart;
+                        }
+                    } else if (requestLineFound) {
+                        complete = true;
+                    }
+                    lineStart = i + 1;
+                }
+            }
+            return complete;
+        }
+
+        int length() {
+            return length;
+        }
+
+        /**
+         * @return an input stream replaying the bytes read so far, starting with the request line
+         * and including those following the head.
+         */
+        InputStream toInputStream() {
+            return new ByteArrayInputStream(bytes, headStart, length - headStart);
+        }
+
+    }
+
+}
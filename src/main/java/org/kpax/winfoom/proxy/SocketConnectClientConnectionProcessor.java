@@ -27,6 +27,7 @@ import org.springframework.stereotype.Component;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.channels.SocketChannel;
 
 /**
  * Process a CONNECT request through a SOCKS proxy or no proxy.
@@ -42,7 +43,10 @@ class SocketConnectClientConnectionProcessor implements ClientConnectionProcesso
     private SystemConfig systemConfig;
 
     @Autowired
-    private ProxyContext proxyContext;
+    private TunnelRelay tunnelRelay;
+
+    @Autowired
+    private ProxyDnsResolver proxyDnsResolver;
 
     @Override
     public void process(final ClientConnection clientConnection, final ProxyInfo proxyInfo)
@@ -59,19 +63,20 @@ class SocketConnectClientConnectionProcessor implements ClientConnectionProcesso
             proxy = Proxy.NO_PROXY;
         }
 
-        try (Socket socket = new Socket(proxy)) {
-            socket.setSoTimeout(systemConfig.getSocketSoTimeout() * 1000);
-            if (proxyInfo.getType().isSocks4()) {
-                HttpUtils.setSocks4(socket);
-            }
+        Socket socket = null;
+        boolean relayed = false;
+        try {
             logger.debug("Open connection");
             try {
-                socket.connect(new InetSocketAddress(target.getHostName(), target.getPort()),
+                // The target is resolved locally, then its addresses are raced
+                socket = proxyDnsResolver.connect(target.getHostName(), target.getPort(),
+                        () -> createSocket(proxy, proxyInfo),
                         systemConfig.getSocketConnectTimeout() * 1000);
             } catch (SocketException e) {
                 if (StringUtils.startsWithIgnoreCase(e.getMessage(), "Connection refused")) {
                     throw new ConnectException(e.getMessage());
                 }
+                throw e;
             }
             logger.debug("Connected to {}", target);
 
@@ -83,19 +88,41 @@ class SocketConnectClientConnectionProcessor implements ClientConnectionProcesso
             clientConnection.writeln();
 
             try {
-                // The proxy facade mediates the full duplex communication
-                // between the client and the remote proxy
-                // This usually ends on connection reset, timeout or any other error
-                InputOutputs.duplex(proxyContext.executorService(),
-                        socket.getInputStream(),
-                        socket.getOutputStream(),
-                        clientConnection.getInputStream(),
-                        clientConnection.getOutputStream());
+                // The relay mediates the full duplex communication
+                // between the client and the remote proxy, off this thread
+                tunnelRelay.relay(clientConnection, socket);
+                relayed = true;
             } catch (Exception e) {
-                logger.error("Error on full duplex", e);
+                logger.error("Error on relaying the tunnel", e);
+            }
+
+        } finally {
+            // Once relayed, the socket is closed by the relay
+            if (!relayed) {
+                InputOutputs.close(socket);
             }
+        }
+    }
 
+    private Socket createSocket(Proxy proxy, ProxyInfo proxyInfo) throws IOException {
+        Socket socket;
+        if (proxy == Proxy.NO_PROXY && tunnelRelay.isEnabled()) {
+            // A channel backed socket, so the tunnel can be relayed by the TunnelRelay.
+            // The SOCKS sockets have no channel, they always fall back to the full duplex
+            socket = SocketChannel.open().socket();
+        } else {
+            socket = new Socket(proxy);
+        }
+        try {
+            socket.setSoTimeout(systemConfig.getSocketSoTimeout() * 1000);
+            if (proxyInfo.getType().isSocks4()) {
+                HttpUtils.setSocks4(socket);
+            }
+        } catch (IOException | RuntimeException e) {
+            InputOutputs.close(socket);
+            throw e;
         }
+        return socket;
     }
 
 }
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.impl.io.ChunkedInputStream;
+import org.apache.http.impl.io.ContentLengthInputStream;
+import org.apache.http.impl.io.IdentityInputStream;
+import org.apache.http.impl.io.SessionInputBufferImpl;
+import org.kpax.winfoom.util.HttpUtils;
+import org.kpax.winfoom.util.InputOutputs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A non-repeatable {@link AbstractHttpEntity} that streams the request's body straight from the client's
+ * connection, once the upstream connection is established. Nothing is cached.<br>
+ * It is meant for the requests that cannot be retried with another proxy.
+ *
+ * @author Eugen Covaci
+ */
+class StreamingHttpEntity extends AbstractHttpEntity {
+
+    private final SessionInputBufferImpl inputBuffer;
+
+    /**
+     * The value of Content-Length header.
+     */
+    private final long contentLength;
+
+    /**
+     * Whether the body has been entirely read from the client's connection.
+     */
+    private boolean consumed;
+
+    /**
+     * The decoded body, created on first use.
+     */
+    private InputStream content;
+
+    StreamingHttpEntity(final SessionInputBufferImpl inputBuffer, final HttpRequest request) {
+        this.inputBuffer = inputBuffer;
+        this.contentType = request.getFirstHeader(HttpHeaders.CONTENT_TYPE);
+        this.contentEncoding = request.getFirstHeader(HttpHeaders.CONTENT_ENCODING);
+        this.contentLength = HttpUtils.getContentLength(request);
+        this.consumed = this.contentLength == 0;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return false;
+    }
+
+    @Override
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException, UnsupportedOperationException {
+        if (content == null) {
+            if (contentLength >= 0) {
+                content = new ContentLengthInputStream(inputBuffer, contentLength);
+            } else if (isChunked()) {
+                content = new ChunkedInputStream(inputBuffer);
+            } else {
+                // Until EOF
+                content = new IdentityInputStream(inputBuffer);
+            }
+        }
+        return content;
+    }
+
+    @Override
+    public void writeTo(OutputStream outStream) throws IOException {
+        if (consumed) {
+            return;
+        }
+        InputStream inputStream = getContent();
+        byte[] buffer = new byte[InputOutputs.DEFAULT_BUFFER_SIZE];
+        int length;
+        while ((length = inputStream.read(buffer)) != -1) {
+            outStream.write(buffer, 0, length);
+        }
+        consumed = true;
+        outStream.flush();
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return !consumed;
+    }
+
+}
@@ -0,0 +1,436 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.kpax.winfoom.util.InputOutputs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link HttpClientConnectionManager} made of several {@link PoolingHttpClientConnectionManager}s, the stripes,
+ * so the leases of different routes do not all wait for the same pool lock.<br>
+ * A route is always leased from the same stripe, chosen by the route's hash, so the per route limit
+ * applies as is; the total limit is the sum of the stripes' limits.<br>
+ * When a lease budget is given, each leased connection also holds a permit of it until released,
+ * so several instances can share one global limit.
+ * A listener can be told when a lease is about to open a new connection, rather than reuse a pooled one,
+ * to keep the open connections of all the instances together within that limit.<br>
+ * An instance is pinned while in use, so it is not retired as unused under a request;
+ * the connections released after the shutdown are simply closed.
+ *
+ * @author Eugen Covaci
+ */
+class StripedConnectionManager implements HttpClientConnectionManager, Closeable {
+
+    private final List<Stripe> stripes;
+
+    /**
+     * The leased connections, with the stripe to return them to.
+     */
+    private final Map<HttpClientConnection, Stripe> leasedConnections = new ConcurrentHashMap<>();
+
+    /**
+     * The permits shared with the other instances, {@code null} if unlimited.
+     */
+    private final Semaphore leaseBudget;
+
+    /**
+     * Called before a new connection is opened, can be {@code null}.
+     */
+    private final Runnable newConnectionListener;
+
+    /**
+     * The time of the last lease request ({@link System#nanoTime()}).
+     */
+    private volatile long lastUsed = System.nanoTime();
+
+    /**
+     * The users pinning this instance, negative once retired.
+     */
+    private final AtomicInteger users = new AtomicInteger();
+
+    private volatile boolean shutdown;
+
+    /**
+     * Constructor.
+     *
+     * @param connectionManagers the stripes, configured alike except the total limit.
+     * @param leaseBudget        the permits shared with the other instances, can be {@code null}.
+     */
+    StripedConnectionManager(List<PoolingHttpClientConnectionManager> connectionManagers, Semaphore leaseBudget) {
+        this(connectionManagers, leaseBudget, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param connectionManagers    the stripes, configured alike except the total limit.
+     * @param leaseBudget           the permits shared with the other instances, can be {@code null}.
+     * @param newConnectionListener called before a leased connection is opened, can be {@code null}.
+     */
+    StripedConnectionManager(List<PoolingHttpClientConnectionManager> connectionManagers, Semaphore leaseBudget,
+                             Runnable newConnectionListener) {
+        Validate.notEmpty(connectionManagers, "connectionManagers cannot be empty");
+        List<Stripe> stripeList = new ArrayList<>(connectionManagers.size());
+        for (PoolingHttpClientConnectionManager connectionManager : connectionManagers) {
+            stripeList.add(new Stripe(connectionManager));
+        }
+        this.stripes = Collections.unmodifiableList(stripeList);
+        this.leaseBudget = leaseBudget;
+        this.newConnectionListener = newConnectionListener;
+    }
+
+    private Stripe getStripe(HttpRoute route) {
+        return stripes.get(Math.floorMod(route.hashCode(), stripes.size()));
+    }
+
+    @Override
+    public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+        lastUsed = System.nanoTime();
+        Stripe stripe = getStripe(route);
+        ConnectionRequest connectionRequest = stripe.connectionManager.requestConnection(route, state);
+        return new ConnectionRequest() {
+            @Override
+            public HttpClientConnection get(long timeout, TimeUnit timeUnit)
+                    throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+                long start = System.nanoTime();
+                boolean contended = stripe.pendingLeases.getAndIncrement() > 0;
+                try {
+                    // The own pool first, so a starved upstream waits on its own limit,
+                    // without holding the permits the other upstreams need
+                    HttpClientConnection connection = connectionRequest.get(timeout, timeUnit);
+                    if (leaseBudget != null) {
+                        acquireBudget(connection, timeout > 0
+                                ? Math.max(timeUnit.toNanos(timeout) - (System.nanoTime() - start), 0) : -1);
+                    }
+                    leasedConnections.put(connection, stripe);
+                    if (shutdown && leasedConnections.remove(connection) != null) {
+                        // Leased while shutting down, missed by shutdown()
+                        discard(connection);
+                        throw new IllegalStateException("Connection manager has been shut down");
+                    }
+                    if (newConnectionListener != null && !connection.isOpen()) {
+                        newConnectionListener.run();
+                    }
+                    return connection;
+                } finally {
+                    stripe.pendingLeases.decrementAndGet();
+                    stripe.recordLease(contended, System.nanoTime() - start);
+                }
+            }
+
+            @Override
+            public boolean cancel() {
+                return connectionRequest.cancel();
+            }
+
+            /**
+             * Acquire a permit for a leased connection, returning the connection to its stripe on failure.
+             *
+             * @param timeout the remaining time (nanoseconds), negative to wait indefinitely.
+             */
+            private void acquireBudget(HttpClientConnection connection, long timeout)
+                    throws InterruptedException, ConnectionPoolTimeoutException {
+                boolean acquired = false;
+                try {
+                    if (timeout < 0) {
+                        leaseBudget.acquire();
+                        acquired = true;
+                    } else {
+                        acquired = leaseBudget.tryAcquire(timeout, TimeUnit.NANOSECONDS);
+                    }
+                } finally {
+                    if (!acquired) {
+                        stripe.connectionManager.releaseConnection(connection, state, 0, TimeUnit.MILLISECONDS);
+                    }
+                }
+                if (!acquired) {
+                    throw new ConnectionPoolTimeoutException("Timeout waiting for the global connection budget");
+                }
+            }
+        };
+    }
+
+    @Override
+    public void releaseConnection(HttpClientConnection connection, Object newState, long validDuration,
+                                  TimeUnit timeUnit) {
+        Stripe stripe = leasedConnections.remove(connection);
+        if (stripe == null) {
+            if (shutdown) {
+                // Leased before the shutdown, released after: its permit is already back
+                InputOutputs.close(connection);
+                return;
+            }
+            throw new IllegalStateException("Connection not leased by this connection manager");
+        }
+        try {
+            stripe.connectionManager.releaseConnection(connection, newState, validDuration, timeUnit);
+        } finally {
+            if (leaseBudget != null) {
+                leaseBudget.release();
+            }
+        }
+    }
+
+    @Override
+    public void connect(HttpClientConnection connection, HttpRoute route, int connectTimeout,
+                        HttpContext context) throws IOException {
+        getStripe(route).connectionManager.connect(connection, route, connectTimeout, context);
+    }
+
+    @Override
+    public void upgrade(HttpClientConnection connection, HttpRoute route, HttpContext context) throws IOException {
+        getStripe(route).connectionManager.upgrade(connection, route, context);
+    }
+
+    @Override
+    public void routeComplete(HttpClientConnection connection, HttpRoute route, HttpContext context)
+            throws IOException {
+        getStripe(route).connectionManager.routeComplete(connection, route, context);
+    }
+
+    @Override
+    public void closeIdleConnections(long idletime, TimeUnit timeUnit) {
+        for (Stripe stripe : stripes) {
+            stripe.connectionManager.closeIdleConnections(idletime, timeUnit);
+        }
+    }
+
+    @Override
+    public void closeExpiredConnections() {
+        for (Stripe stripe : stripes) {
+            stripe.connectionManager.closeExpiredConnections();
+        }
+    }
+
+    /**
+     * Pin this instance, so it cannot be retired while in use.
+     *
+     * @return {@code false} if this instance has been retired or shut down, in which case it must not be used.
+     */
+    boolean pin() {
+        for (; ; ) {
+            int count = users.get();
+            if (count < 0 || shutdown) {
+                return false;
+            }
+            if (users.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Unpin an instance pinned by {@link #pin()}.
+     */
+    void unpin() {
+        users.decrementAndGet();
+    }
+
+    /**
+     * Retire this instance, so it can no longer be pinned.
+     *
+     * @return {@code true} iff it was not pinned.
+     */
+    boolean retire() {
+        return users.compareAndSet(0, -1);
+    }
+
+    /**
+     * Check whether this instance has been left unused.
+     *
+     * @param idleTime the time without any lease request.
+     * @param timeUnit the time unit.
+     * @return {@code true} iff it is not pinned, no connection is leased or being leased,
+     * and none has been requested lately.
+     */
+    boolean isUnused(long idleTime, TimeUnit timeUnit) {
+        if (System.nanoTime() - lastUsed < timeUnit.toNanos(idleTime) || users.get() > 0
+                || !leasedConnections.isEmpty()) {
+            return false;
+        }
+        for (Stripe stripe : stripes) {
+            if (stripe.pendingLeases.get() > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the sum of the stripes' statistics.
+     */
+    PoolStats getTotalStats() {
+        int leased = 0;
+        int pending = 0;
+        int available = 0;
+        int max = 0;
+        for (Stripe stripe : stripes) {
+            PoolStats poolStats = stripe.connectionManager.getTotalStats();
+            leased += poolStats.getLeased();
+            pending += poolStats.getPending();
+            available += poolStats.getAvailable();
+            max += poolStats.getMax();
+        }
+        return new PoolStats(leased, pending, available, max);
+    }
+
+    /**
+     * @return the statistics of each stripe.
+     */
+    List<StripeStatistics> getStripeStatistics() {
+        List<StripeStatistics> statistics = new ArrayList<>(stripes.size());
+        for (Stripe stripe : stripes) {
+            statistics.add(new StripeStatistics(stripe.leases.get(),
+                    stripe.contendedLeases.get(),
+                    stripe.leaseTime.get(),
+                    stripe.connectionManager.getTotalStats()));
+        }
+        return statistics;
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        for (Stripe stripe : stripes) {
+            stripe.connectionManager.shutdown();
+        }
+
+        // Give back the permits of the connections not released yet,
+        // one by one so a concurrent release cannot give back the same permit
+        for (HttpClientConnection connection : leasedConnections.keySet()) {
+            if (leasedConnections.remove(connection) != null) {
+                discard(connection);
+            }
+        }
+    }
+
+    /**
+     * Close a leased connection and give back its permit.
+     */
+    private void discard(HttpClientConnection connection) {
+        InputOutputs.close(connection);
+        if (leaseBudget != null) {
+            leaseBudget.release();
+        }
+    }
+
+    @Override
+    public void close() {
+        shutdown();
+    }
+
+    private static final class Stripe {
+
+        private final PoolingHttpClientConnectionManager connectionManager;
+
+        /**
+         * The leases in progress.
+         */
+        private final AtomicInteger pendingLeases = new AtomicInteger();
+
+        private final AtomicLong leases = new AtomicLong();
+
+        private final AtomicLong contendedLeases = new AtomicLong();
+
+        /**
+         * The total time spent on leasing (nanoseconds).
+         */
+        private final AtomicLong leaseTime = new AtomicLong();
+
+        Stripe(PoolingHttpClientConnectionManager connectionManager) {
+            this.connectionManager = connectionManager;
+        }
+
+        void recordLease(boolean contended, long time) {
+            leases.incrementAndGet();
+            if (contended) {
+                contendedLeases.incrementAndGet();
+            }
+            leaseTime.addAndGet(time);
+        }
+    }
+
+    /**
+     * The statistics of a stripe.
+     */
+    static final class StripeStatistics {
+
+        private final long leases;
+
+        private final long contendedLeases;
+
+        private final long leaseTime;
+
+        private final PoolStats poolStats;
+
+        StripeStatistics(long leases, long contendedLeases, long leaseTime, PoolStats poolStats) {
+            this.leases = leases;
+            this.contendedLeases = contendedLeases;
+            this.leaseTime = leaseTime;
+            this.poolStats = poolStats;
+        }
+
+        /**
+         * @return the number of leases.
+         */
+        long getLeases() {
+            return leases;
+        }
+
+        /**
+         * @return the number of leases started while another one was in progress on the same stripe.
+         */
+        long getContendedLeases() {
+            return contendedLeases;
+        }
+
+        /**
+         * @return the average lease time (microseconds).
+         */
+        long getAverageLeaseTime() {
+            return leases > 0 ? leaseTime / leases / 1000 : 0;
+        }
+
+        PoolStats getPoolStats() {
+            return poolStats;
+        }
+
+        @Override
+        public String toString() {
+            return "[leases: " + leases + "; contended: " + contendedLeases
+                    + "; average lease time: " + getAverageLeaseTime() + "us; pool: " + poolStats + "]";
+        }
+    }
+
+}
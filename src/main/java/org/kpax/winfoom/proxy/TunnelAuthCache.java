@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHost;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers, for each upstream HTTP proxy, the authentication challenge answered by the last accepted CONNECT,
+ * so the next tunnels can select the same scheme and answer it right away.
+ *
+ * @author Eugen Covaci
+ */
+@Component
+class TunnelAuthCache {
+
+    private final Map<HttpHost, Header> challenges = new ConcurrentHashMap<>();
+
+    /**
+     * @param proxy the proxy.
+     * @return the last answered challenge, or {@code null} if none.
+     */
+    Header get(HttpHost proxy) {
+        return challenges.get(proxy);
+    }
+
+    void put(HttpHost proxy, Header challenge) {
+        challenges.put(proxy, challenge);
+    }
+
+    void remove(HttpHost proxy) {
+        challenges.remove(proxy);
+    }
+
+    void clear() {
+        challenges.clear();
+    }
+
+}
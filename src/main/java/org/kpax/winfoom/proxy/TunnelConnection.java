@@ -14,8 +14,13 @@ package org.kpax.winfoom.proxy;
 
 import org.apache.http.*;
 import org.apache.http.auth.AUTH;
+import org.apache.http.auth.AuthProtocolState;
+import org.apache.http.auth.AuthScheme;
 import org.apache.http.auth.AuthSchemeProvider;
+import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.AuthState;
+import org.apache.http.auth.Credentials;
+import org.apache.http.auth.MalformedChallengeException;
 import org.apache.http.client.CredentialsProvider;
 import org.apache.http.client.config.AuthSchemes;
 import org.apache.http.client.config.RequestConfig;
@@ -58,7 +63,10 @@ import java.net.Socket;
 
 /**
  * Establish a tunnel via a HTTP proxy.<br>
- * It is an adaptation of {@link org.apache.http.impl.client.ProxyClient}
+ * It is an adaptation of {@link org.apache.http.impl.client.ProxyClient}<br>
+ * Each tunnel has its own authentication state. The scheme selected by the proxy is remembered,
+ * so the next tunnels answer it right away: Basic and Digest without any challenge,
+ * NTLM and Negotiate starting the handshake with the first request.
  *
  * @author Eugen Covaci
  */
@@ -74,11 +82,16 @@ public class TunnelConnection {
     @Autowired
     private SystemConfig systemConfig;
 
+    @Autowired
+    private TunnelSocketPool tunnelSocketPool;
+
+    @Autowired
+    private TunnelAuthCache tunnelAuthCache;
+
     private HttpProcessor httpProcessor;
     private HttpRequestExecutor requestExec;
     private ProxyAuthenticationStrategy proxyAuthStrategy;
     private HttpAuthenticator authenticator;
-    private AuthState proxyAuthState;
     private ConnectionReuseStrategy reuseStrategy;
 
     private Registry<AuthSchemeProvider> authSchemeRegistry;
@@ -90,7 +103,6 @@ public class TunnelConnection {
         this.requestExec = new HttpRequestExecutor();
         this.proxyAuthStrategy = new ProxyAuthenticationStrategy();
         this.authenticator = new HttpAuthenticator();
-        this.proxyAuthState = new AuthState();
         this.reuseStrategy = new DefaultConnectionReuseStrategy();
         this.authSchemeRegistry = RegistryBuilder.<AuthSchemeProvider>create()
                 .register(AuthSchemes.BASIC, new BasicSchemeFactory())
@@ -103,6 +115,18 @@ public class TunnelConnection {
     public Tunnel open(final HttpHost proxy, final HttpHost target,
                        final ProtocolVersion protocolVersion)
             throws IOException, HttpException {
+        return open(proxy, target, protocolVersion, null);
+    }
+
+    /**
+     * Same as {@link #open(HttpHost, HttpHost, ProtocolVersion)}, but the CONNECT is first sent
+     * on an already opened connection to the proxy.
+     *
+     * @param socket a socket connected to the proxy, closed along with the tunnel, or {@code null} if none.
+     */
+    public Tunnel open(final HttpHost proxy, final HttpHost target,
+                       final ProtocolVersion protocolVersion, final Socket socket)
+            throws IOException, HttpException {
         Args.notNull(proxy, "Proxy host");
         Args.notNull(target, "Target host");
         HttpHost host = target;
@@ -113,31 +137,66 @@ public class TunnelConnection {
                 proxy, false, TunnelType.TUNNELLED, LayerType.PLAIN);
         final ManagedHttpClientConnection connection = ManagedHttpClientConnectionFactory.INSTANCE.create(route,
                 ConnectionConfig.DEFAULT);
+        try {
+            if (socket != null) {
+                connection.bind(socket);
+            }
+            return execute(connection, proxy, target, host, route, protocolVersion);
+        } catch (IOException | HttpException | RuntimeException e) {
+            // Includes the refused tunnel
+            InputOutputs.close(connection);
+            InputOutputs.close(socket);
+            throw e;
+        }
+    }
+
+    private Tunnel execute(final ManagedHttpClientConnection connection, final HttpHost proxy,
+                           final HttpHost target, final HttpHost host, final HttpRoute route,
+                           final ProtocolVersion protocolVersion)
+            throws IOException, HttpException {
         final HttpContext context = new BasicHttpContext();
         final HttpRequest connect = new BasicHttpRequest(HttpUtils.HTTP_CONNECT, host.toHostString(), protocolVersion);
 
+        // This instance may be shared, so the auth state is per tunnel
+        final AuthState proxyAuthState = new AuthState();
+
         // Populate the execution context
         context.setAttribute(HttpCoreContext.HTTP_TARGET_HOST, target);
         context.setAttribute(HttpCoreContext.HTTP_CONNECTION, connection);
         context.setAttribute(HttpCoreContext.HTTP_REQUEST, connect);
         context.setAttribute(HttpClientContext.HTTP_ROUTE, route);
-        context.setAttribute(HttpClientContext.PROXY_AUTH_STATE, this.proxyAuthState);
+        context.setAttribute(HttpClientContext.PROXY_AUTH_STATE, proxyAuthState);
         context.setAttribute(HttpClientContext.CREDS_PROVIDER, credentialsProvider);
         context.setAttribute(HttpClientContext.REQUEST_CONFIG, RequestConfig.DEFAULT);
         context.setAttribute(HttpClientContext.AUTHSCHEME_REGISTRY, this.authSchemeRegistry);
 
         this.requestExec.preProcess(connect, this.httpProcessor, context);
 
+        final boolean preemptive = systemConfig.isTunnelPreemptiveAuth()
+                && preemptAuth(proxy, proxyAuthState, context);
+        Header[] challenges = null;
+        boolean firstAttempt = true;
         HttpResponse response;
         while (true) {
+            boolean spareUsed = false;
             if (!connection.isOpen()) {
-                Socket socket = new Socket(proxy.getHostName(), proxy.getPort());
-                socket.setSoTimeout(systemConfig.getSocketSoTimeout() * 1000);
-                connection.bind(socket);
+                spareUsed = bind(connection, proxy, firstAttempt);
             }
+            firstAttempt = false;
 
-            this.authenticator.generateAuthResponse(connect, this.proxyAuthState, context);
-            response = this.requestExec.execute(connect, connection, context);
+            this.authenticator.generateAuthResponse(connect, proxyAuthState, context);
+            try {
+                response = this.requestExec.execute(connect, connection, context);
+            } catch (IOException e) {
+                if (!spareUsed) {
+                    throw e;
+                }
+                // A blocking spare connection closed by the proxy is only detected now, retry once on a new one
+                logger.debug("Spare connection to {} no longer usable, retry on a new one", proxy, e);
+                InputOutputs.close(connection);
+                connection.bind(tunnelSocketPool.connect(proxy));
+                response = this.requestExec.execute(connect, connection, context);
+            }
 
             final int status = response.getStatusLine().getStatusCode();
             logger.debug("Tunnel status code: {}", status);
@@ -146,9 +205,9 @@ public class TunnelConnection {
             }
 
             if (this.authenticator.isAuthenticationRequested(
-                    proxy, response, this.proxyAuthStrategy, this.proxyAuthState, context)) {
-                if (this.authenticator.handleAuthChallenge(
-                        proxy, response, this.proxyAuthStrategy, this.proxyAuthState, context)) {
+                    proxy, response, this.proxyAuthStrategy, proxyAuthState, context)) {
+                challenges = response.getHeaders(AUTH.PROXY_AUTH);
+                if (handleAuthChallenge(proxy, response, proxyAuthState, context, preemptive)) {
                     // Retry request
                     if (this.reuseStrategy.keepAlive(response, context)) {
                         // Consume response content
@@ -173,6 +232,9 @@ public class TunnelConnection {
         logger.debug("Tunnel final status code: {}", status);
 
         if (status > HttpUtils.MAX_HTTP_SUCCESS_CODE) { // Error case
+            if (status == HttpStatus.SC_PROXY_AUTHENTICATION_REQUIRED) {
+                tunnelAuthCache.remove(proxy);
+            }
 
             // Buffer response content
             final HttpEntity entity = response.getEntity();
@@ -184,7 +246,101 @@ public class TunnelConnection {
             throw new TunnelRefusedException("CONNECT refused by proxy: " + response.getStatusLine(), response);
         }
 
+        rememberAuthChallenge(proxy, proxyAuthState, challenges);
         return new Tunnel(connection, response);
     }
 
+    /**
+     * Bind the connection to a socket connected to the proxy, a spare one if available.
+     *
+     * @return {@code true} iff bound to a spare connection.
+     */
+    private boolean bind(ManagedHttpClientConnection connection, HttpHost proxy, boolean spareAllowed)
+            throws IOException {
+        if (spareAllowed) {
+            Socket socket = tunnelSocketPool.take(proxy);
+            if (socket != null) {
+                connection.bind(socket);
+                return true;
+            }
+        }
+        connection.bind(tunnelSocketPool.connect(proxy));
+        return false;
+    }
+
+    /**
+     * Prepare the auth state to answer the proxy's last accepted challenge.
+     *
+     * @return {@code true} iff the first request carries the authentication.
+     */
+    private boolean preemptAuth(HttpHost proxy, AuthState proxyAuthState, HttpContext context) {
+        Header challenge = tunnelAuthCache.get(proxy);
+        if (challenge == null) {
+            return false;
+        }
+        AuthSchemeProvider authSchemeProvider = authSchemeRegistry.lookup(getSchemeName(challenge));
+        if (authSchemeProvider == null) {
+            return false;
+        }
+        AuthScheme authScheme = authSchemeProvider.create(context);
+        if (!authScheme.isConnectionBased()) {
+            // Basic needs the realm, Digest the nonce too
+            try {
+                authScheme.processChallenge(challenge);
+            } catch (MalformedChallengeException e) {
+                tunnelAuthCache.remove(proxy);
+                return false;
+            }
+        }
+        Credentials credentials = credentialsProvider.getCredentials(
+                new AuthScope(proxy, authScheme.getRealm(), authScheme.getSchemeName()));
+        if (credentials == null) {
+            return false;
+        }
+        logger.debug("Preemptive {} authentication to {}", authScheme.getSchemeName(), proxy);
+        proxyAuthState.update(authScheme, credentials);
+        proxyAuthState.setState(AuthProtocolState.CHALLENGED);
+        return true;
+    }
+
+    private boolean handleAuthChallenge(HttpHost proxy, HttpResponse response, AuthState proxyAuthState,
+                                        HttpContext context, boolean preemptive) {
+        try {
+            return this.authenticator.handleAuthChallenge(
+                    proxy, response, this.proxyAuthStrategy, proxyAuthState, context);
+        } catch (RuntimeException e) {
+            if (!preemptive) {
+                throw e;
+            }
+            // The proxy did not take the preemptive handshake, start over
+            logger.debug("Cannot continue the preemptive authentication", e);
+            tunnelAuthCache.remove(proxy);
+            proxyAuthState.reset();
+            return this.authenticator.handleAuthChallenge(
+                    proxy, response, this.proxyAuthStrategy, proxyAuthState, context);
+        }
+    }
+
+    /**
+     * Remember the challenge of the scheme that succeeded, if any.
+     */
+    private void rememberAuthChallenge(HttpHost proxy, AuthState proxyAuthState, Header[] challenges) {
+        AuthScheme authScheme = proxyAuthState.getAuthScheme();
+        if (authScheme == null || challenges == null) {
+            return;
+        }
+        for (Header challenge : challenges) {
+            if (authScheme.getSchemeName().equalsIgnoreCase(getSchemeName(challenge))) {
+                tunnelAuthCache.put(proxy, challenge);
+                return;
+            }
+        }
+    }
+
+    private static String getSchemeName(Header challenge) {
+        String value = challenge.getValue().trim();
+        int index = value.indexOf(' ');
+        return index > 0 ? value.substring(0, index) : value;
+    }
+
 }
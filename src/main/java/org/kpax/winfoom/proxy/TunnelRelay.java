@@ -0,0 +1,411 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.util.ByteBufferPool;
+import org.kpax.winfoom.util.InputOutputs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Relay the bytes of the CONNECT tunnels between the client and the upstream connection,
+ * so that an established tunnel does not hold one of the bounded connection handling threads.<br>
+ * When enabled, the tunnels are relayed by a fixed number of selector threads, no matter how many tunnels are open.
+ * Each direction has its own pooled direct buffer: when the receiving side cannot keep up,
+ * the sending side is no longer read until the buffer is drained (backpressure).
+ * Only the sockets having a {@link SocketChannel} can be relayed this way.<br>
+ * Otherwise, the tunnel is relayed by a full duplex communication on the unbounded
+ * {@link ProxyContext#executorService()}.
+ * We rely on the Spring context to close this instance!
+ *
+ * @author Eugen Covaci
+ */
+@Component
+class TunnelRelay implements AutoCloseable {
+
+    /**
+     * The capacity of a relay buffer, large enough to hold a TLS record.
+     */
+    private static final int BUFFER_SIZE = 16 * 1024 + 512;
+
+    /**
+     * The max number of released buffers kept for reuse.
+     */
+    private static final int MAX_POOLED_BUFFERS = 1024;
+
+    /**
+     * The min interval between two scans for the idle tunnels (milliseconds).
+     */
+    private static final long IDLE_CHECK_INTERVAL = 1000;
+
+    private final Logger logger = LoggerFactory.getLogger(TunnelRelay.class);
+
+    private final ByteBufferPool bufferPool = new ByteBufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS);
+
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    @Autowired
+    private SystemConfig systemConfig;
+
+    @Autowired
+    private ProxyContext proxyContext;
+
+    private volatile RelayLoop[] relayLoops;
+
+    /**
+     * @return {@code true} iff the tunnels are relayed by selector threads.
+     */
+    boolean isEnabled() {
+        return systemConfig.isTunnelNonBlocking();
+    }
+
+    /**
+     * Relay the bytes between the client's connection and the upstream socket.<br>
+     * On success, both the client's socket and the upstream socket are handed over to this relay,
+     * that closes them when the tunnel ends. On failure, nothing is handed over.
+     *
+     * @param clientConnection the client's connection.
+     * @param upstreamSocket   the connected upstream socket.
+     * @throws IOException
+     */
+    void relay(final ClientConnection clientConnection, final Socket upstreamSocket) throws IOException {
+        boolean selectable = isEnabled()
+                && clientConnection.getSocket().getChannel() != null
+                && upstreamSocket.getChannel() != null;
+        RelayLoop relayLoop = selectable ? getRelayLoop() : null;
+
+        // The bytes already read from the client go first, while still blocking
+        byte[] bufferedBytes = clientConnection.readBufferedBytes();
+        if (bufferedBytes.length > 0) {
+            logger.debug("Forward {} buffered bytes", bufferedBytes.length);
+            upstreamSocket.getOutputStream().write(bufferedBytes);
+        }
+
+        if (relayLoop != null) {
+            Socket clientSocket = clientConnection.detach();
+            relayLoop.register(new RelayedTunnel(clientSocket.getChannel(), upstreamSocket.getChannel()));
+        } else {
+            relayOnThreads(clientConnection, upstreamSocket);
+        }
+    }
+
+    /**
+     * Relay the tunnel by a full duplex communication, off the connection handling thread.
+     *
+     * @param clientConnection the client's connection.
+     * @param upstreamSocket   the connected upstream socket.
+     */
+    private void relayOnThreads(final ClientConnection clientConnection, final Socket upstreamSocket) {
+        final Socket clientSocket = clientConnection.getSocket();
+        proxyContext.executorService().execute(() -> {
+            try {
+                // This usually ends on connection reset, timeout or any other error
+                InputOutputs.duplex(proxyContext.executorService(),
+                        upstreamSocket.getInputStream(),
+                        upstreamSocket.getOutputStream(),
+                        clientConnection.getInputStream(),
+                        clientConnection.getOutputStream());
+            } catch (Exception e) {
+                logger.debug("Error on full duplex", e);
+            } finally {
+                InputOutputs.close(upstreamSocket);
+                InputOutputs.close(clientSocket);
+            }
+        });
+        clientConnection.detach();
+    }
+
+    private RelayLoop getRelayLoop() throws IOException {
+        if (relayLoops == null) {
+            synchronized (this) {
+                if (relayLoops == null) {
+                    RelayLoop[] loops = new RelayLoop[Math.max(1, systemConfig.getTunnelSelectorThreads())];
+                    for (int i = 0; i < loops.length; i++) {
+                        loops[i] = new RelayLoop(i);
+                    }
+                    relayLoops = loops;
+                }
+            }
+        }
+        RelayLoop[] loops = relayLoops;
+        return loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+    }
+
+    @Override
+    public synchronized void close() {
+        if (relayLoops != null) {
+            logger.info("Close the tunnel relay");
+            for (RelayLoop relayLoop : relayLoops) {
+                relayLoop.close();
+            }
+            relayLoops = null;
+        }
+    }
+
+    /**
+     * A selector thread relaying the bytes for its own tunnels.
+     */
+    private class RelayLoop implements Runnable {
+
+        private final Selector selector;
+
+        private final Queue<RelayedTunnel> pendingTunnels = new ConcurrentLinkedQueue<>();
+
+        /**
+         * When to scan again for the idle tunnels (milliseconds).
+         */
+        private long nextIdleCheck;
+
+        private volatile boolean running = true;
+
+        RelayLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            Thread thread = new Thread(this, "tunnel-relay-" + index);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void register(RelayedTunnel tunnel) {
+            pendingTunnels.add(tunnel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    try {
+                        selector.select(1000);
+                        registerPending();
+                        for (Iterator<SelectionKey> itr = selector.selectedKeys().iterator(); itr.hasNext(); ) {
+                            SelectionKey key = itr.next();
+                            itr.remove();
+                            Side side = (Side) key.attachment();
+                            try {
+                                if (key.isValid() && key.isReadable()) {
+                                    side.onReadable();
+                                }
+                                if (key.isValid() && key.isWritable()) {
+                                    side.peer.flush();
+                                }
+                            } catch (IOException | CancelledKeyException e) {
+                                logger.debug("Error on relaying, close the tunnel", e);
+                                side.tunnel.close();
+                            }
+                        }
+                        closeIdle();
+                    } catch (ClosedSelectorException e) {
+                        break;
+                    } catch (Exception e) {
+                        logger.debug("Error on selecting", e);
+                    }
+                }
+            } finally {
+                try {
+                    for (SelectionKey key : selector.keys()) {
+                        ((Side) key.attachment()).tunnel.close();
+                    }
+                } catch (ClosedSelectorException e) {
+                    // Nothing to clean
+                }
+                for (RelayedTunnel tunnel; (tunnel = pendingTunnels.poll()) != null; ) {
+                    tunnel.close();
+                }
+                InputOutputs.close(selector);
+            }
+        }
+
+        private void registerPending() {
+            for (RelayedTunnel tunnel; (tunnel = pendingTunnels.poll()) != null; ) {
+                try {
+                    tunnel.register(selector);
+                } catch (IOException e) {
+                    logger.debug("Error on registering the tunnel", e);
+                    tunnel.close();
+                }
+            }
+        }
+
+        /**
+         * Close the tunnels idle for longer than the socket timeout.<br>
+         * The scan visits all the registered keys, so it runs at most once per {@link #IDLE_CHECK_INTERVAL},
+         * not on every wakeup.
+         */
+        private void closeIdle() {
+            long now = System.currentTimeMillis();
+            if (now < nextIdleCheck) {
+                return;
+            }
+            nextIdleCheck = now + IDLE_CHECK_INTERVAL;
+            long idleLimit = now - systemConfig.getSocketSoTimeout() * 1000L;
+            for (SelectionKey key : selector.keys()) {
+                RelayedTunnel tunnel = ((Side) key.attachment()).tunnel;
+                if (key.isValid() && tunnel.lastActivity < idleLimit) {
+                    logger.debug("Idle tunnel, close it");
+                    tunnel.close();
+                }
+            }
+        }
+
+        void close() {
+            running = false;
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * A pair of connected channels, the client's and the upstream's.
+     */
+    private class RelayedTunnel {
+
+        private final Side client;
+
+        private final Side upstream;
+
+        private long lastActivity = System.currentTimeMillis();
+
+        private boolean closed;
+
+        RelayedTunnel(SocketChannel clientChannel, SocketChannel upstreamChannel) {
+            this.client = new Side(this, clientChannel);
+            this.upstream = new Side(this, upstreamChannel);
+            this.client.peer = upstream;
+            this.upstream.peer = client;
+        }
+
+        void register(Selector selector) throws IOException {
+            client.register(selector);
+            upstream.register(selector);
+        }
+
+        /**
+         * Close the tunnel when each side has reached EOF and all the bytes have been relayed.
+         */
+        void closeIfDone() {
+            if (client.isDone() && upstream.isDone()) {
+                logger.debug("Tunnel ended");
+                close();
+            }
+        }
+
+        void close() {
+            if (!closed) {
+                closed = true;
+                client.close();
+                upstream.close();
+            }
+        }
+    }
+
+    /**
+     * One side of a tunnel.
+     */
+    private class Side {
+
+        private final RelayedTunnel tunnel;
+
+        private final SocketChannel channel;
+
+        /**
+         * The bytes read from this side, waiting to be written to the peer, in write mode.
+         */
+        private ByteBuffer buffer;
+
+        private Side peer;
+
+        private SelectionKey key;
+
+        private boolean eof;
+
+        Side(RelayedTunnel tunnel, SocketChannel channel) {
+            this.tunnel = tunnel;
+            this.channel = channel;
+        }
+
+        void register(Selector selector) throws IOException {
+            buffer = bufferPool.acquire();
+            channel.configureBlocking(false);
+            key = channel.register(selector, SelectionKey.OP_READ, this);
+        }
+
+        void onReadable() throws IOException {
+            int read = channel.read(buffer);
+            if (read < 0) {
+                eof = true;
+                interest(SelectionKey.OP_READ, false);
+            } else if (read > 0) {
+                tunnel.lastActivity = System.currentTimeMillis();
+            }
+            flush();
+        }
+
+        /**
+         * Write the bytes read from this side to the peer.<br>
+         * If the peer cannot take them all, stop reading from this side until it can.
+         *
+         * @throws IOException
+         */
+        void flush() throws IOException {
+            buffer.flip();
+            if (buffer.hasRemaining()) {
+                peer.channel.write(buffer);
+            }
+            buffer.compact();
+            if (buffer.position() > 0) {
+                peer.interest(SelectionKey.OP_WRITE, true);
+                interest(SelectionKey.OP_READ, false);
+            } else {
+                peer.interest(SelectionKey.OP_WRITE, false);
+                if (eof) {
+                    peer.channel.shutdownOutput();
+                    tunnel.closeIfDone();
+                } else {
+                    interest(SelectionKey.OP_READ, true);
+                }
+            }
+        }
+
+        void interest(int op, boolean enabled) {
+            if (key.isValid()) {
+                int ops = key.interestOps();
+                key.interestOps(enabled ? ops | op : ops & ~op);
+            }
+        }
+
+        boolean isDone() {
+            return eof && buffer.position() == 0;
+        }
+
+        void close() {
+            if (key != null) {
+                key.cancel();
+            }
+            InputOutputs.close(channel);
+            bufferPool.release(buffer);
+            buffer = null;
+        }
+    }
+
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpHost;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.util.InputOutputs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opens the connections to the upstream HTTP proxies for the CONNECT tunnels,
+ * and keeps a few spare ones to each proxy in use, opened in background,
+ * so a tunnel does not wait for the TCP handshake.<br>
+ * A spare connection unused for {@link SystemConfig#getTunnelWarmConnectionIdleTimeout()} is closed,
+ * since the proxies drop the idle connections anyway, and so is one already closed by the proxy.
+ * The spare connections to a proxy no longer used for that long are closed by a scheduled task.
+ * <p>We rely on the Spring context to close this instance!
+ *
+ * @author Eugen Covaci
+ */
+@Component
+class TunnelSocketPool implements AutoCloseable {
+
+    private final Logger logger = LoggerFactory.getLogger(TunnelSocketPool.class);
+
+    @Autowired
+    private SystemConfig systemConfig;
+
+    @Autowired
+    private ProxyContext proxyContext;
+
+    private final Map<HttpHost, Pool> pools = new ConcurrentHashMap<>();
+
+    /**
+     * Take a spare connection to a proxy, then open another one in background.
+     *
+     * @param proxy the proxy.
+     * @return a connected socket, or {@code null} if there is no spare connection.
+     */
+    Socket take(HttpHost proxy) {
+        if (systemConfig.getTunnelWarmConnections() <= 0) {
+            return null;
+        }
+        Pool pool = pools.computeIfAbsent(proxy, key -> new Pool());
+        pool.lastUsed = System.currentTimeMillis();
+        long idleLimit = System.currentTimeMillis() - systemConfig.getTunnelWarmConnectionIdleTimeout() * 1000L;
+        Socket socket = null;
+        PooledSocket pooledSocket;
+        while (socket == null && (pooledSocket = pool.sockets.pollFirst()) != null) {
+            if (pooledSocket.created < idleLimit || !isUsable(pooledSocket.socket)) {
+                InputOutputs.close(pooledSocket.socket);
+            } else {
+                socket = pooledSocket.socket;
+            }
+        }
+        refill(proxy, pool);
+        if (socket != null) {
+            logger.debug("Use spare connection to {}", proxy);
+        }
+        return socket;
+    }
+
+    /**
+     * Open a new connection to a proxy.
+     *
+     * @param proxy the proxy.
+     * @return the connected socket.
+     * @throws IOException on connection error.
+     */
+    Socket connect(HttpHost proxy) throws IOException {
+        Socket socket;
+        if (systemConfig.isTunnelNonBlocking()) {
+            // A channel backed socket, so the tunnel can be relayed by the TunnelRelay
+            socket = SocketChannel.open().socket();
+            try {
+                socket.connect(new InetSocketAddress(proxy.getHostName(), proxy.getPort()));
+            } catch (IOException | RuntimeException e) {
+                InputOutputs.close(socket);
+                throw e;
+            }
+        } else {
+            socket = new Socket(proxy.getHostName(), proxy.getPort());
+        }
+        socket.setSoTimeout(systemConfig.getSocketSoTimeout() * 1000);
+        return socket;
+    }
+
+    /**
+     * Check whether the proxy has neither closed the connection nor sent anything on it, without blocking.<br>
+     * A plain socket cannot tell the end of the stream without a blocking read, so only the pending bytes
+     * are checked: a connection closed by the proxy is then detected by the CONNECT itself,
+     * which the {@link TunnelConnection} retries once on a new connection.
+     */
+    private boolean isUsable(Socket socket) {
+        if (socket.isClosed() || socket.isInputShutdown()) {
+            return false;
+        }
+        try {
+            SocketChannel channel = socket.getChannel();
+            if (channel == null) {
+                return socket.getInputStream().available() == 0;
+            }
+            channel.configureBlocking(false);
+            try {
+                // Zero means neither bytes nor the end of the stream
+                return channel.read(ByteBuffer.allocate(1)) == 0;
+            } finally {
+                channel.configureBlocking(true);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void refill(HttpHost proxy, Pool pool) {
+        if (pool.closed) {
+            return;
+        }
+        int missing = systemConfig.getTunnelWarmConnections() - pool.sockets.size() - pool.pending.get();
+        for (int i = 0; i < missing; i++) {
+            pool.pending.incrementAndGet();
+            proxyContext.platformExecutorService().execute(() -> {
+                try {
+                    Socket socket = connect(proxy);
+                    if (proxyContext.isStarted() && !pool.closed) {
+                        PooledSocket pooledSocket = new PooledSocket(socket);
+                        pool.sockets.addLast(pooledSocket);
+
+                        // The pool may have been closed meanwhile
+                        if (pool.closed && pool.sockets.removeFirstOccurrence(pooledSocket)) {
+                            InputOutputs.close(socket);
+                        }
+                    } else {
+                        InputOutputs.close(socket);
+                    }
+                } catch (IOException e) {
+                    logger.debug("Cannot open spare connection to {}: {}", proxy, e.getMessage());
+                } finally {
+                    pool.pending.decrementAndGet();
+                }
+            });
+        }
+    }
+
+    /**
+     * A job that closes the spare connections unused for too long,
+     * and drops the pools of the proxies no longer used.
+     */
+    @Scheduled(fixedRateString = "#{systemConfig.connectionManagerCleanInterval * 1000}")
+    void prune() {
+        long idleLimit = System.currentTimeMillis() - systemConfig.getTunnelWarmConnectionIdleTimeout() * 1000L;
+        for (Iterator<Map.Entry<HttpHost, Pool>> itr = pools.entrySet().iterator(); itr.hasNext(); ) {
+            Map.Entry<HttpHost, Pool> entry = itr.next();
+            Pool pool = entry.getValue();
+            if (pool.lastUsed < idleLimit) {
+                logger.debug("Close the spare connections to the unused proxy {}", entry.getKey());
+                itr.remove();
+                pool.close();
+            } else {
+                for (PooledSocket pooledSocket : pool.sockets) {
+                    if (pooledSocket.created < idleLimit && pool.sockets.removeFirstOccurrence(pooledSocket)) {
+                        InputOutputs.close(pooledSocket.socket);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Close all the spare connections.
+     */
+    void clear() {
+        for (Iterator<Pool> itr = pools.values().iterator(); itr.hasNext(); ) {
+            Pool pool = itr.next();
+            itr.remove();
+            pool.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        clear();
+    }
+
+    private static final class Pool {
+
+        private final Deque<PooledSocket> sockets = new ConcurrentLinkedDeque<>();
+
+        /**
+         * The number of connections being opened.
+         */
+        private final AtomicInteger pending = new AtomicInteger();
+
+        /**
+         * The time of the last take.
+         */
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        private volatile boolean closed;
+
+        void close() {
+            closed = true;
+            PooledSocket pooledSocket;
+            while ((pooledSocket = sockets.pollFirst()) != null) {
+                InputOutputs.close(pooledSocket.socket);
+            }
+        }
+    }
+
+    private static final class PooledSocket {
+
+        private final Socket socket;
+
+        private final long created = System.currentTimeMillis();
+
+        PooledSocket(Socket socket) {
+            this.socket = socket;
+        }
+    }
+
+}
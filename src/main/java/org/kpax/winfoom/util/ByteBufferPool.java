@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.util;
+
+import org.apache.commons.lang3.Validate;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A thread safe pool of direct {@link ByteBuffer}s having the same capacity.<br>
+ * Allocating direct buffers is expensive, so the released ones are kept for reuse,
+ * no more than a maximum number.
+ *
+ * @author Eugen Covaci
+ */
+public final class ByteBufferPool {
+
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The number of buffers kept in the pool (the queue's size is not a constant-time operation).
+     */
+    private final AtomicInteger pooledCount = new AtomicInteger();
+
+    private final int bufferSize;
+
+    private final int maxPooled;
+
+    /**
+     * Constructor.
+     *
+     * @param bufferSize the capacity of each buffer (bytes).
+     * @param maxPooled  the max number of released buffers kept for reuse.
+     */
+    public ByteBufferPool(int bufferSize, int maxPooled) {
+        Validate.isTrue(bufferSize > 0, "bufferSize must be positive");
+        Validate.isTrue(maxPooled >= 0, "maxPooled cannot be negative");
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Get a cleared buffer, either a pooled one or a newly allocated one.
+     *
+     * @return a cleared direct {@link ByteBuffer}.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer != null) {
+            pooledCount.decrementAndGet();
+            return buffer;
+        }
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Give back a buffer acquired from this pool.<br>
+     * The caller must not use the buffer afterwards.
+     *
+     * @param buffer the buffer to release, can be {@code null}.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize) {
+            return;
+        }
+        if (pooledCount.incrementAndGet() <= maxPooled) {
+            buffer.clear();
+            buffers.offer(buffer);
+        } else {
+            // The pool is full, let it be garbage collected
+            pooledCount.decrementAndGet();
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+}
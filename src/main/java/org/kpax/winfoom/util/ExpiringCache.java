@@ -0,0 +1,366 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.util;
+
+import org.apache.commons.lang3.Validate;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A thread safe, bounded cache, whose values expire after a fixed time.<br>
+ * The lookups do not take any global lock. When the cache is full, the least recently used values are evicted,
+ * by the thread that added the last value.<br>
+ * The concurrent lookups of a missing key are coalesced: the value is loaded once,
+ * by the first caller (or by an executor, see {@link #getAsync}), while the others wait for it.
+ * The loading errors are cached for their own, usually shorter, time, or not at all.<br>
+ * Optionally, the values still in use during the last quarter of their time are loaded again in background,
+ * so the hot keys are never loaded on the caller's thread. A failed refresh keeps the old value.
+ *
+ * @param <K> the type of keys.
+ * @param <V> the type of values.
+ * @author Eugen Covaci
+ */
+public final class ExpiringCache<K, V> {
+
+    private final Map<K, Entry<V>> entries = new ConcurrentHashMap<>();
+
+    private final int maxSize;
+
+    /**
+     * The time a value stays in the cache (milliseconds).
+     */
+    private final long timeToLive;
+
+    /**
+     * The time a loading error stays in the cache (milliseconds).
+     */
+    private final long errorTimeToLive;
+
+    /**
+     * Runs the refreshes, {@code null} if the values are not refreshed ahead of their expiration.
+     */
+    private final Executor refreshExecutor;
+
+    /**
+     * Whether a thread is evicting, so the others do not have to.
+     */
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    /**
+     * Constructor for a cache that neither keeps the loading errors nor refreshes the values.
+     *
+     * @param maxSize    the max number of values kept.
+     * @param timeToLive the time a value stays in the cache (milliseconds).
+     */
+    public ExpiringCache(final int maxSize, final long timeToLive) {
+        this(maxSize, timeToLive, 0, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxSize         the max number of values kept.
+     * @param timeToLive      the time a value stays in the cache (milliseconds).
+     * @param errorTimeToLive the time a loading error stays in the cache (milliseconds), 0 to not keep it.
+     * @param refreshExecutor runs the refreshes of the values used during the last quarter of their time,
+     *                        {@code null} to not refresh them.
+     */
+    public ExpiringCache(final int maxSize, final long timeToLive, final long errorTimeToLive,
+                         final Executor refreshExecutor) {
+        Validate.isTrue(maxSize > 0, "maxSize must be positive");
+        Validate.isTrue(timeToLive >= 0, "timeToLive cannot be negative");
+        Validate.isTrue(errorTimeToLive >= 0, "errorTimeToLive cannot be negative");
+        this.maxSize = maxSize;
+        this.timeToLive = timeToLive;
+        this.errorTimeToLive = errorTimeToLive;
+        this.refreshExecutor = refreshExecutor;
+    }
+
+    /**
+     * Get the value mapped to a key, loading it on the caller's thread if missing or expired.
+     *
+     * @param key    the key.
+     * @param loader loads the value when needed.
+     * @param <E>    the type of the loading error.
+     * @return the value.
+     * @throws E if the value cannot be loaded.
+     */
+    @SuppressWarnings("unchecked")
+    public <E extends Exception> V get(final K key, final Loader<? extends V, E> loader) throws E {
+        Entry<V> entry = getEntry(key, loader, null);
+        try {
+            return entry.value.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw (E) cause;
+        } catch (CancellationException e) {
+            throw new IllegalStateException("The loading has been cancelled", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the value to be loaded", e);
+        }
+    }
+
+    /**
+     * Get the value mapped to a key, loading it on an executor if missing or expired,
+     * so the caller can bound its wait. The loading goes on when the caller gives up.<br>
+     * When the executor rejects the loading, the returned value fails with the {@link RejectedExecutionException},
+     * which is not cached.
+     *
+     * @param key      the key.
+     * @param loader   loads the value when needed.
+     * @param executor runs the loading.
+     * @return the value, or the loading error, when available.
+     */
+    public Future<V> getAsync(final K key, final Loader<? extends V, ?> loader, final Executor executor) {
+        return getEntry(key, loader, executor).value;
+    }
+
+    private Entry<V> getEntry(final K key, final Loader<? extends V, ?> loader, final Executor executor) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null || entry.isExpired()) {
+            Entry<V> created = new Entry<>();
+            entry = entries.compute(key, (k, current) -> current == null || current.isExpired() ? created : current);
+            if (entry == created) {
+                if (executor != null) {
+                    try {
+                        executor.execute(() -> load(key, created, loader));
+                    } catch (RejectedExecutionException e) {
+                        // Not a loading error, do not keep it
+                        entries.remove(key, created);
+                        created.value.completeExceptionally(e);
+                    }
+                } else {
+                    load(key, created, loader);
+                }
+                evictIfFull();
+            }
+        } else if (entry.isRefreshDue() && entry.refreshing.compareAndSet(false, true)) {
+            refresh(key, entry, loader);
+        }
+        entry.lastUsed = System.nanoTime();
+        return entry;
+    }
+
+    private void load(final K key, final Entry<V> entry, final Loader<? extends V, ?> loader) {
+        V value;
+        try {
+            value = loader.load();
+        } catch (Exception | Error e) {
+            failed(key, entry, e);
+            return;
+        }
+        loaded(entry, value);
+    }
+
+    /**
+     * Set the entry's times before completing it, so the waiting callers see them.
+     */
+    private void loaded(final Entry<V> entry, final V value) {
+        long now = System.currentTimeMillis();
+        if (refreshExecutor != null) {
+            entry.refreshTime = now + timeToLive * 3 / 4;
+        }
+        entry.expirationTime = now + timeToLive;
+        entry.value.complete(value);
+    }
+
+    private void failed(final K key, final Entry<V> entry, final Throwable e) {
+        entry.expirationTime = System.currentTimeMillis() + errorTimeToLive;
+        if (errorTimeToLive == 0) {
+            entries.remove(key, entry);
+        }
+        entry.value.completeExceptionally(e);
+    }
+
+    /**
+     * Load again a value in background, replacing the entry only on success,
+     * so a transient failure does not evict a good value.
+     */
+    private void refresh(final K key, final Entry<V> entry, final Loader<? extends V, ?> loader) {
+        try {
+            refreshExecutor.execute(() -> {
+                Entry<V> refreshed = new Entry<>();
+                try {
+                    loaded(refreshed, loader.load());
+                } catch (Exception e) {
+                    entry.refreshing.set(false);
+                    return;
+                }
+                refreshed.lastUsed = entry.lastUsed;
+                entries.replace(key, entry, refreshed);
+            });
+        } catch (RejectedExecutionException e) {
+            entry.refreshing.set(false);
+        }
+    }
+
+    /**
+     * Get the value mapped to a key, without loading it.
+     *
+     * @param key the key.
+     * @return the value, or {@code null} if missing, expired, loading or failed.
+     */
+    public V getIfPresent(final K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null || !entry.hasValue() || entry.isExpired()) {
+            return null;
+        }
+        entry.lastUsed = System.nanoTime();
+        return entry.value.getNow(null);
+    }
+
+    /**
+     * Map a key to a known value, replacing the existing one, if any.
+     *
+     * @param key   the key.
+     * @param value the value.
+     */
+    public void put(final K key, final V value) {
+        Entry<V> entry = new Entry<>();
+        loaded(entry, value);
+        entries.put(key, entry);
+        evictIfFull();
+    }
+
+    /**
+     * Remove a key, only if still mapped to a given value.
+     *
+     * @param key   the key.
+     * @param value the value.
+     */
+    public void remove(final K key, final V value) {
+        Entry<V> entry = entries.get(key);
+        if (entry != null && entry.hasValue() && entry.value.getNow(null) == value) {
+            entries.remove(key, entry);
+        }
+    }
+
+    /**
+     * Evict the least recently used values while the cache is full.<br>
+     * A single thread evicts at a time, the others go on.
+     */
+    private void evictIfFull() {
+        while (entries.size() > maxSize && evicting.compareAndSet(false, true)) {
+            try {
+                List<Map.Entry<K, Entry<V>>> eldest = new ArrayList<>(entries.entrySet());
+                eldest.sort(Comparator.comparingLong(mapEntry -> mapEntry.getValue().lastUsed));
+                for (int i = 0, excess = eldest.size() - maxSize; i < excess; i++) {
+                    entries.remove(eldest.get(i).getKey(), eldest.get(i).getValue());
+                }
+            } finally {
+                evicting.set(false);
+            }
+        }
+    }
+
+    /**
+     * Get the most recently used values, skipping the expired, loading or failed ones.
+     *
+     * @param maxSize the max number of values returned.
+     * @return the values by key, from the least to the most recently used.
+     */
+    public Map<K, V> getRecentValues(final int maxSize) {
+        List<Map.Entry<K, Entry<V>>> available = new ArrayList<>();
+        for (Map.Entry<K, Entry<V>> mapEntry : entries.entrySet()) {
+            Entry<V> entry = mapEntry.getValue();
+            if (entry.hasValue() && !entry.isExpired()) {
+                available.add(mapEntry);
+            }
+        }
+        available.sort(Comparator.comparingLong(mapEntry -> mapEntry.getValue().lastUsed));
+        Map<K, V> recentValues = new LinkedHashMap<>();
+        for (Map.Entry<K, Entry<V>> mapEntry : available.subList(Math.max(0, available.size() - maxSize),
+                available.size())) {
+            recentValues.put(mapEntry.getKey(), mapEntry.getValue().value.getNow(null));
+        }
+        return recentValues;
+    }
+
+    /**
+     * Remove all the values.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * @return the number of values kept, including the expired, loading or failed ones.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Loads a value.
+     *
+     * @param <V> the type of value.
+     * @param <E> the type of the loading error.
+     */
+    @FunctionalInterface
+    public interface Loader<V, E extends Exception> {
+        V load() throws E;
+    }
+
+    private static final class Entry<V> {
+
+        private final CompletableFuture<V> value = new CompletableFuture<>();
+
+        /**
+         * A value being loaded never expires, so the waiting callers share it.
+         */
+        private volatile long expirationTime = Long.MAX_VALUE;
+
+        /**
+         * The time after which a use of this entry triggers a background refresh.
+         */
+        private volatile long refreshTime = Long.MAX_VALUE;
+
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        /**
+         * The time of the last use, to find the least recently used values ({@link System#nanoTime()}).
+         */
+        private volatile long lastUsed = System.nanoTime();
+
+        boolean isExpired() {
+            return value.isDone() && System.currentTimeMillis() >= expirationTime;
+        }
+
+        boolean hasValue() {
+            return value.isDone() && !value.isCompletedExceptionally();
+        }
+
+        boolean isRefreshDue() {
+            return hasValue() && System.currentTimeMillis() >= refreshTime;
+        }
+    }
+
+}
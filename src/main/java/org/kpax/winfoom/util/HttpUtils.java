@@ -49,6 +49,10 @@ public final class HttpUtils {
 
     public static final int MAX_HTTP_SUCCESS_CODE = 299;
 
+    public static final String PROXY_CONNECTION = "Proxy-Connection";
+
+    public static final String KEEP_ALIVE = "Keep-Alive";
+
     private HttpUtils() {
     }
 
@@ -133,6 +137,30 @@ public final class HttpUtils {
         return getFirstHeaderValue(request, HttpHeaders.CONTENT_LENGTH).map(Long::parseLong).orElse(-1L);
     }
 
+    /**
+     * Check whether the client expects the connection to remain open after the response,
+     * according to the request's protocol version and its Connection/Proxy-Connection headers.
+     *
+     * @param request the HTTP request.
+     * @return {@code true} iff the client's connection is persistent.
+     */
+    public static boolean isPersistentConnection(HttpRequest request) {
+        boolean keepAlive = false;
+        for (Header header : request.getAllHeaders()) {
+            if (HTTP.CONN_DIRECTIVE.equalsIgnoreCase(header.getName())
+                    || PROXY_CONNECTION.equalsIgnoreCase(header.getName())) {
+                for (String token : header.getValue().split(",")) {
+                    if (HTTP.CONN_CLOSE.equalsIgnoreCase(token.trim())) {
+                        return false;
+                    } else if (HTTP.CONN_KEEP_ALIVE.equalsIgnoreCase(token.trim())) {
+                        keepAlive = true;
+                    }
+                }
+            }
+        }
+        return keepAlive || !request.getProtocolVersion().lessEquals(HttpVersion.HTTP_1_0);
+    }
+
     /**
      * Create a {@link BasicHeader} instance.
      *
@@ -295,6 +323,20 @@ public final class HttpUtils {
         return Collections.unmodifiableList(proxyInfos);
     }
 
+    /**
+     * Format a list of {@link ProxyInfo}s as a PAC proxy line, the reverse of {@link #parsePacProxyLine(String)}.
+     *
+     * @param proxyInfos the list of {@link ProxyInfo}s.
+     * @return the proxy line.
+     */
+    public static String toPacProxyLine(List<ProxyInfo> proxyInfos) {
+        return proxyInfos.stream()
+                .map(proxyInfo -> proxyInfo.getProxyHost() != null
+                        ? proxyInfo.getType() + " " + proxyInfo.getProxyHost().toHostString()
+                        : proxyInfo.getType().toString())
+                .collect(Collectors.joining("; "));
+    }
+
     public static boolean isConnectionRefused(Exception e) {
         return e instanceof SocketException && e.getMessage().startsWith("Connection refused");
     }
@@ -310,6 +352,37 @@ public final class HttpUtils {
                 && StringUtils.startsWithIgnoreCase(e.getMessage(), "Software caused connection abort");
     }
 
+    /**
+     * Check whether this exception signals that the process ran out of file descriptors,
+     * or the system ran out of socket buffers (the Windows equivalent).
+     *
+     * @param e the error to check on
+     * @return {@code true} iff the error signals the exhaustion of the socket resources.
+     */
+    public static boolean isResourceExhausted(Exception e) {
+        return e instanceof IOException
+                && (StringUtils.containsIgnoreCase(e.getMessage(), "Too many open files")
+                || StringUtils.containsIgnoreCase(e.getMessage(), "No buffer space available"));
+    }
+
+    /**
+     * Create the complete response sent when a client's connection cannot be handled because the server is
+     * overloaded. Being constant, it is meant to be created once then written as it is.
+     *
+     * @param retryAfter the value of the Retry-After header (seconds)
+     * @return the response's bytes.
+     */
+    public static byte[] createServiceUnavailableResponse(int retryAfter) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        outputStream.writeBytes(ObjectFormat.toCrlf(toStatusLine(HttpStatus.SC_SERVICE_UNAVAILABLE)));
+        outputStream.writeBytes(ObjectFormat.toCrlf(createHttpHeader(HttpHeaders.RETRY_AFTER,
+                String.valueOf(retryAfter))));
+        outputStream.writeBytes(ObjectFormat.toCrlf(createHttpHeader(HTTP.CONTENT_LEN, "0")));
+        outputStream.writeBytes(ObjectFormat.toCrlf(createHttpHeader(HTTP.CONN_DIRECTIVE, HTTP.CONN_CLOSE)));
+        outputStream.writeBytes(ObjectFormat.CRLF.getBytes());
+        return outputStream.toByteArray();
+    }
+
     public static Header createViaHeader(final ProtocolVersion version, final Header viaHeader) {
         Validate.notNull(version, "version cannot be null");
         String value = String.format("%s.%s winfoom", version.getMajor(), version.getMinor())
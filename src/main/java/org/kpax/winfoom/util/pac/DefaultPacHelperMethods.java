@@ -0,0 +1,396 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.util.pac;
+
+import org.netbeans.core.network.proxy.pac.impl.NbPacHelperMethods;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * The PAC helper methods, with the hot ones ({@code shExpMatch}, {@code isInNet}, {@code isInNetEx})
+ * implemented natively: the glob patterns and the network masks are compiled once and interned,
+ * shared by all the script engines, and the IP literals are parsed without touching the DNS.<br>
+ * When a {@link PacDnsResolver} is provided, the DNS related ones use it instead of blocking lookups.
+ *
+ * @author Eugen Covaci
+ */
+public class DefaultPacHelperMethods extends NbPacHelperMethods {
+
+    /**
+     * The max number of compiled expressions of each kind kept for reuse.
+     */
+    private static final int MAX_INTERNED = 4096;
+
+    private static final Map<String, GlobMatcher> GLOB_MATCHERS = new ConcurrentHashMap<>();
+
+    private static final Map<String, NetMask> NET_MASKS = new ConcurrentHashMap<>();
+
+    private final PacDnsResolver dnsResolver;
+
+    public DefaultPacHelperMethods() {
+        this(null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param dnsResolver the DNS resolver, or {@code null} for the default, blocking lookups.
+     */
+    public DefaultPacHelperMethods(PacDnsResolver dnsResolver) {
+        this.dnsResolver = dnsResolver;
+    }
+
+    /**
+     * Matches a string against a shell expression, where {@code *} matches any sequence of characters
+     * and {@code ?} matches exactly one character.
+     */
+    @Override
+    public boolean shExpMatch(String str, String shexp) {
+        if (str == null || shexp == null) {
+            return false;
+        }
+        return intern(GLOB_MATCHERS, shexp, GlobMatcher::compile).matches(str);
+    }
+
+    /**
+     * Whether the IP address of the host matches the pattern, according to the mask
+     * (IPv4 only, as in {@code isInNet("10.1.2.3", "10.0.0.0", "255.0.0.0")}).<br>
+     * The host is resolved only when it is not an IP literal.
+     */
+    @Override
+    public boolean isInNet(String host, String pattern, String mask) {
+        if (host == null || pattern == null || mask == null) {
+            return false;
+        }
+        NetMask netMask = intern(NET_MASKS, pattern + '/' + mask, key -> NetMask.parse(pattern, mask));
+        if (netMask == null) {
+            return false;
+        }
+        byte[] address = parseIpLiteral(host);
+        if (address == null) {
+            String resolved = dnsResolve(host);
+            address = resolved != null ? parseIpLiteral(resolved) : null;
+        }
+        return address != null && netMask.matches(address);
+    }
+
+    /**
+     * Whether any of the IP addresses of the host belongs to the prefix
+     * (IPv4 or IPv6, as in {@code isInNetEx("10.1.2.3", "10.0.0.0/8")}).<br>
+     * The host is resolved only when it is not an IP literal.
+     */
+    @Override
+    public boolean isInNetEx(String host, String ipPrefix) {
+        if (host == null || ipPrefix == null) {
+            return false;
+        }
+        NetMask netMask = intern(NET_MASKS, ipPrefix, NetMask::parseCidr);
+        if (netMask == null) {
+            return false;
+        }
+        byte[] address = parseIpLiteral(host);
+        if (address != null) {
+            return netMask.matches(address);
+        }
+        String resolved = dnsResolveEx(host);
+        if (resolved != null) {
+            for (String ip : resolved.split(";")) {
+                address = parseIpLiteral(ip.trim());
+                if (address != null && netMask.matches(address)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isResolvable(String host) {
+        if (dnsResolver == null) {
+            return super.isResolvable(host);
+        }
+        return dnsResolve(host) != null;
+    }
+
+    /**
+     * Resolve a host to its preferred IP address.<br>
+     * Like in the browsers, an unresolvable host gives {@code null} to the script,
+     * not the {@code "null"} string, which the helper functions would then try to resolve.
+     */
+    @Override
+    public String dnsResolve(String host) {
+        if (host != null && parseIpLiteral(host) != null) {
+            return host;
+        }
+        if (dnsResolver == null || host == null) {
+            return super.dnsResolve(host);
+        }
+        InetAddress address = dnsResolver.resolveFirst(host);
+        return address != null ? address.getHostAddress() : null;
+    }
+
+    @Override
+    public String myIpAddress() {
+        if (dnsResolver == null) {
+            return super.myIpAddress();
+        }
+        return dnsResolver.myIpAddress(super::myIpAddress);
+    }
+
+    @Override
+    public boolean isResolvableEx(String host) {
+        if (dnsResolver == null) {
+            return super.isResolvableEx(host);
+        }
+        return dnsResolveEx(host) != null;
+    }
+
+    @Override
+    public String dnsResolveEx(String host) {
+        if (host != null && parseIpLiteral(host) != null) {
+            return host;
+        }
+        if (dnsResolver == null || host == null) {
+            return super.dnsResolveEx(host);
+        }
+        InetAddress[] addresses = dnsResolver.resolve(host);
+        if (addresses == null || addresses.length == 0) {
+            return null;
+        }
+        return Arrays.stream(addresses).map(InetAddress::getHostAddress).collect(Collectors.joining(";"));
+    }
+
+    /**
+     * Parse an IP literal, without any DNS lookup.
+     *
+     * @param host the host.
+     * @return the address bytes, or {@code null} if the host is not an IPv4 or IPv6 literal.
+     */
+    static byte[] parseIpLiteral(String host) {
+        if (host.isEmpty()) {
+            return null;
+        }
+        if (host.indexOf(':') < 0) {
+            return parseIPv4(host);
+        }
+        String literal = host.startsWith("[") && host.endsWith("]") ? host.substring(1, host.length() - 1) : host;
+        for (int i = 0; i < literal.length(); i++) {
+            char c = literal.charAt(i);
+            if (Character.digit(c, 16) < 0 && c != ':' && c != '.' && c != '%') {
+                return null;
+            }
+        }
+        try {
+            // A string with a colon is parsed as an IPv6 literal, never looked up
+            return InetAddress.getByName(literal).getAddress();
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    private static byte[] parseIPv4(String str) {
+        byte[] address = new byte[4];
+        int part = 0;
+        int value = -1;
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c == '.') {
+                if (value < 0 || part == 3) {
+                    return null;
+                }
+                address[part++] = (byte) value;
+                value = -1;
+            } else if (c >= '0' && c <= '9') {
+                value = (value < 0 ? 0 : value * 10) + (c - '0');
+                if (value > 255) {
+                    return null;
+                }
+            } else {
+                return null;
+            }
+        }
+        if (value < 0 || part != 3) {
+            return null;
+        }
+        address[part] = (byte) value;
+        return address;
+    }
+
+    /**
+     * Get the compiled form of an expression, compiling it on first use.<br>
+     * When full, the map is simply cleared: the PAC scripts have a fixed set of expressions,
+     * so this only happens with the dynamically built ones.
+     */
+    private static <T> T intern(Map<String, T> interned, String key, Function<String, T> compiler) {
+        T value = interned.get(key);
+        if (value == null) {
+            value = compiler.apply(key);
+            if (value != null) {
+                if (interned.size() >= MAX_INTERNED) {
+                    interned.clear();
+                }
+                interned.put(key, value);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * A compiled shell expression. The common shapes (no wildcard, a single leading or trailing {@code *})
+     * are matched without regular expressions.
+     */
+    static final class GlobMatcher {
+
+        private enum Kind {EQUALS, SUFFIX, PREFIX, ANY, REGEX}
+
+        private final Kind kind;
+
+        private final String literal;
+
+        private final Pattern pattern;
+
+        private GlobMatcher(Kind kind, String literal, Pattern pattern) {
+            this.kind = kind;
+            this.literal = literal;
+            this.pattern = pattern;
+        }
+
+        static GlobMatcher compile(String shexp) {
+            int lastStar = shexp.lastIndexOf('*');
+            if (shexp.indexOf('?') < 0) {
+                if (lastStar < 0) {
+                    return new GlobMatcher(Kind.EQUALS, shexp, null);
+                }
+                int firstStar = shexp.indexOf('*');
+                if (shexp.length() == 1) {
+                    return new GlobMatcher(Kind.ANY, null, null);
+                }
+                if (firstStar == lastStar) {
+                    if (firstStar == 0) {
+                        return new GlobMatcher(Kind.SUFFIX, shexp.substring(1), null);
+                    }
+                    if (lastStar == shexp.length() - 1) {
+                        return new GlobMatcher(Kind.PREFIX, shexp.substring(0, lastStar), null);
+                    }
+                }
+            }
+            StringBuilder regex = new StringBuilder(shexp.length() + 16);
+            int literalStart = 0;
+            for (int i = 0; i < shexp.length(); i++) {
+                char c = shexp.charAt(i);
+                if (c == '*' || c == '?') {
+                    if (i > literalStart) {
+                        regex.append(Pattern.quote(shexp.substring(literalStart, i)));
+                    }
+                    regex.append(c == '*' ? ".*" : ".");
+                    literalStart = i + 1;
+                }
+            }
+            if (literalStart < shexp.length()) {
+                regex.append(Pattern.quote(shexp.substring(literalStart)));
+            }
+            return new GlobMatcher(Kind.REGEX, null, Pattern.compile(regex.toString(), Pattern.DOTALL));
+        }
+
+        boolean matches(String str) {
+            switch (kind) {
+                case EQUALS:
+                    return str.equals(literal);
+                case SUFFIX:
+                    return str.endsWith(literal);
+                case PREFIX:
+                    return str.startsWith(literal);
+                case ANY:
+                    return true;
+                default:
+                    return pattern.matcher(str).matches();
+            }
+        }
+    }
+
+    /**
+     * A parsed network: the network's address and the mask, both of the same length.
+     */
+    static final class NetMask {
+
+        private final byte[] network;
+
+        private final byte[] mask;
+
+        private NetMask(byte[] network, byte[] mask) {
+            this.network = network;
+            this.mask = mask;
+            for (int i = 0; i < network.length; i++) {
+                network[i] &= mask[i];
+            }
+        }
+
+        /**
+         * @return the net mask, or {@code null} if the pattern or the mask is not a valid IPv4 address.
+         */
+        static NetMask parse(String pattern, String mask) {
+            byte[] patternBytes = parseIPv4(pattern);
+            byte[] maskBytes = parseIPv4(mask);
+            return patternBytes != null && maskBytes != null ? new NetMask(patternBytes, maskBytes) : null;
+        }
+
+        /**
+         * @return the net mask, or {@code null} if the prefix is not a valid CIDR notation.
+         */
+        static NetMask parseCidr(String ipPrefix) {
+            int slash = ipPrefix.indexOf('/');
+            if (slash < 0) {
+                return null;
+            }
+            byte[] network = parseIpLiteral(ipPrefix.substring(0, slash).trim());
+            if (network == null) {
+                return null;
+            }
+            int prefixLength;
+            try {
+                prefixLength = Integer.parseInt(ipPrefix.substring(slash + 1).trim());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (prefixLength < 0 || prefixLength > network.length * 8) {
+                return null;
+            }
+            byte[] mask = new byte[network.length];
+            for (int i = 0; i < mask.length; i++) {
+                int bits = Math.min(8, Math.max(0, prefixLength - i * 8));
+                mask[i] = (byte) (0xFF << (8 - bits));
+            }
+            return new NetMask(network, mask);
+        }
+
+        boolean matches(byte[] address) {
+            if (address.length != network.length) {
+                return false;
+            }
+            for (int i = 0; i < address.length; i++) {
+                if ((address[i] & mask[i]) != network[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.util.pac;
+
+import org.graalvm.polyglot.Context;
+import org.graalvm.polyglot.Engine;
+import org.graalvm.polyglot.HostAccess;
+import org.graalvm.polyglot.PolyglotException;
+import org.graalvm.polyglot.Source;
+import org.graalvm.polyglot.Value;
+import org.kpax.winfoom.exception.PacFileException;
+import org.netbeans.core.network.proxy.pac.PacHelperMethods;
+import org.netbeans.core.network.proxy.pac.PacJsEntryFunction;
+import org.netbeans.core.network.proxy.pac.PacParsingException;
+import org.netbeans.core.network.proxy.pac.PacUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.net.URI;
+
+/**
+ * The GraalJS based {@link PacScriptEvaluator}.<br>
+ * The script is parsed once into a {@link Source}, and all the evaluators run in contexts of
+ * the same {@link Engine}, so the parsed and compiled code is shared by the copies.<br>
+ * The sandbox is the same as Nashorn's: no host class lookup, no I/O, no threads, the non-standard globals
+ * deleted and only the helper methods accessible from the script.<br>
+ * The scripts are compiled to machine code only when running on GraalVM, or on a JDK 11+ started with
+ * {@code -XX:+UnlockExperimentalVMOptions -XX:+EnableJVMCI --upgrade-module-path=<the GraalVM compiler jars>}.
+ * Otherwise they are interpreted, much slower than with Nashorn, and GraalJS warns about it on the first use.
+ *
+ * @author Eugen Covaci
+ */
+public class GraalPacScriptEvaluator implements PacScriptEvaluator {
+
+    private static final String LANGUAGE_ID = "js";
+
+    /**
+     * Only the helper methods (and the sandbox's array of allowed globals) are accessible from the scripts.
+     */
+    private static final HostAccess HOST_ACCESS = createHostAccess();
+
+    private static volatile Engine sharedEngine;
+
+    private final Logger logger = LoggerFactory.getLogger(GraalPacScriptEvaluator.class);
+
+    private final String pacSource;
+
+    private final Source source;
+
+    private final boolean urlArgumentUsed;
+
+    private final PacDnsResolver dnsResolver;
+
+    private final Context context;
+
+    private final Value jsMainFunction;
+
+    private final PacJsEntryFunction jsEntryFunction;
+
+    public GraalPacScriptEvaluator(String pacSourceCode, PacDnsResolver dnsResolver) throws PacParsingException {
+        this(pacSourceCode, Source.newBuilder(LANGUAGE_ID, pacSourceCode, "proxy.pac").cached(true).buildLiteral(),
+                PacScriptAnalyzer.isUrlArgumentUsed(pacSourceCode), dnsResolver);
+    }
+
+    private GraalPacScriptEvaluator(String pacSource, Source source, boolean urlArgumentUsed,
+                                    PacDnsResolver dnsResolver) throws PacParsingException {
+        this.pacSource = pacSource;
+        this.source = source;
+        this.urlArgumentUsed = urlArgumentUsed;
+        this.dnsResolver = dnsResolver;
+        this.context = Context.newBuilder(LANGUAGE_ID)
+                .engine(getSharedEngine())
+                .allowHostAccess(HOST_ACCESS)
+                .allowHostClassLookup(className -> false)
+                .allowIO(false)
+                .allowCreateThread(false)
+                .allowNativeAccess(false)
+                .build();
+        try {
+            context.eval(LANGUAGE_ID, PacHelperScriptFactory.GLOBALS_CLEANER_SOURCE)
+                    .invokeMember("call", null, PacHelperScriptFactory.ALLOWED_GLOBALS);
+            context.eval(source);
+            context.eval(LANGUAGE_ID, PacHelperScriptFactory.getPacHelperSource())
+                    .invokeMember("call", null, new DefaultPacHelperMethods(dnsResolver));
+            Value bindings = context.getBindings(LANGUAGE_ID);
+            Value function = bindings.getMember(PacJsEntryFunction.IPV6_AWARE.getJsFunctionName());
+            PacJsEntryFunction entryFunction = PacJsEntryFunction.IPV6_AWARE;
+            if (function == null || !function.canExecute()) {
+                function = bindings.getMember(PacJsEntryFunction.STANDARD.getJsFunctionName());
+                entryFunction = PacJsEntryFunction.STANDARD;
+            }
+            if (function == null || !function.canExecute()) {
+                throw new PacParsingException("Function " + PacJsEntryFunction.STANDARD.getJsFunctionName() +
+                        " or " + PacJsEntryFunction.IPV6_AWARE.getJsFunctionName() + " not found in PAC Script.");
+            }
+            this.jsMainFunction = function;
+            this.jsEntryFunction = entryFunction;
+        } catch (PolyglotException e) {
+            context.close();
+            throw new PacParsingException(e);
+        } catch (PacParsingException e) {
+            context.close();
+            throw e;
+        }
+    }
+
+    private static Engine getSharedEngine() {
+        if (sharedEngine == null) {
+            synchronized (GraalPacScriptEvaluator.class) {
+                if (sharedEngine == null) {
+                    sharedEngine = Engine.newBuilder().build();
+                }
+            }
+        }
+        return sharedEngine;
+    }
+
+    private static HostAccess createHostAccess() {
+        HostAccess.Builder builder = HostAccess.newBuilder().allowArrayAccess(true);
+        for (Method method : DefaultPacHelperMethods.class.getMethods()) {
+            try {
+                PacHelperMethods.class.getMethod(method.getName(), method.getParameterTypes());
+                builder.allowAccess(method);
+            } catch (NoSuchMethodException e) {
+                // Not a helper method
+            }
+        }
+        return builder.build();
+    }
+
+    @Override
+    public String findProxyForURL(URI uri) throws PacFileException {
+        try {
+            Value result = jsMainFunction.execute(PacUtils.toStrippedURLStr(uri), uri.getHost());
+            if (result.isNull()) {
+                return null;
+            }
+            return result.isString() ? result.asString() : result.toString();
+        } catch (PolyglotException e) {
+            if (e.isCancelled()) {
+                throw new PacFileException("The evaluation of the PAC script function has been cancelled", e);
+            }
+            throw new PacFileException("Error when executing PAC script function "
+                    + jsEntryFunction.getJsFunctionName(), e);
+        }
+    }
+
+    @Override
+    public String getPacSource() {
+        return pacSource;
+    }
+
+    @Override
+    public boolean isUrlArgumentUsed() {
+        return urlArgumentUsed;
+    }
+
+    @Override
+    public PacDnsResolver getDnsResolver() {
+        return dnsResolver;
+    }
+
+    /**
+     * The copy shares the parsed source and the engine's compiled code, in a new context.
+     */
+    @Override
+    public PacScriptEvaluator copy() throws PacParsingException {
+        return new GraalPacScriptEvaluator(pacSource, source, urlArgumentUsed, dnsResolver);
+    }
+
+    /**
+     * Close the context, cancelling the evaluation in progress, if any.
+     */
+    @Override
+    public void close() {
+        logger.debug("Close GraalJS context");
+        try {
+            context.close(true);
+        } catch (PolyglotException e) {
+            logger.debug("Error on closing the GraalJS context", e);
+        }
+    }
+
+}
@@ -23,7 +23,6 @@ import org.netbeans.api.scripting.Scripting;
 import org.netbeans.core.network.proxy.pac.PacJsEntryFunction;
 import org.netbeans.core.network.proxy.pac.PacParsingException;
 import org.netbeans.core.network.proxy.pac.PacUtils;
-import org.netbeans.core.network.proxy.pac.impl.NbPacHelperMethods;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -35,16 +34,59 @@ import java.net.URI;
 import java.util.Objects;
 
 /**
- * A simplified version of {@link org.netbeans.core.network.proxy.pac.impl.NbPacScriptEvaluator} class.
+ * A simplified version of {@link org.netbeans.core.network.proxy.pac.impl.NbPacScriptEvaluator} class,
+ * the Nashorn based {@link PacScriptEvaluator}.
  */
-public class NbPacScriptEvaluator {
+public class NbPacScriptEvaluator implements PacScriptEvaluator {
 
     private final Logger logger = LoggerFactory.getLogger(NbPacScriptEvaluator.class);
 
     private final PacScriptEngine scriptEngine;
 
+    /**
+     * Whether the entry function might read its URL argument.
+     */
+    private final boolean urlArgumentUsed;
+
+    private final String pacSource;
+
+    /**
+     * The DNS resolver of the helper functions, {@code null} for the default, blocking lookups.
+     */
+    private final PacDnsResolver dnsResolver;
+
     public NbPacScriptEvaluator(String pacSourceCode) throws PacParsingException {
+        this(pacSourceCode, null);
+    }
+
+    public NbPacScriptEvaluator(String pacSourceCode, PacDnsResolver dnsResolver) throws PacParsingException {
+        this.pacSource = pacSourceCode;
+        this.dnsResolver = dnsResolver;
         scriptEngine = getScriptEngine(pacSourceCode);
+        urlArgumentUsed = PacScriptAnalyzer.isUrlArgumentUsed(pacSourceCode);
+    }
+
+    @Override
+    public boolean isUrlArgumentUsed() {
+        return urlArgumentUsed;
+    }
+
+    @Override
+    public String getPacSource() {
+        return pacSource;
+    }
+
+    @Override
+    public PacDnsResolver getDnsResolver() {
+        return dnsResolver;
+    }
+
+    /**
+     * A Nashorn engine cannot be shared, so the copy evaluates the script in a new engine.
+     */
+    @Override
+    public PacScriptEvaluator copy() throws PacParsingException {
+        return new NbPacScriptEvaluator(pacSource, dnsResolver);
     }
 
     private PacScriptEngine getScriptEngine(String pacSource) throws PacParsingException {
@@ -54,42 +96,17 @@ public class NbPacScriptEvaluator {
             if (engine == null) {
                 throw new PacParsingException("Nashorn engine not found");
             }
-            String[] allowedGlobals =
-                    ("Object,Function,Array,String,Date,Number,BigInt,"
-                            + "Boolean,RegExp,Math,JSON,NaN,Infinity,undefined,"
-                            + "isNaN,isFinite,parseFloat,parseInt,encodeURI,"
-                            + "encodeURIComponent,decodeURI,decodeURIComponent,eval,"
-                            + "escape,unescape,"
-                            + "Error,EvalError,RangeError,ReferenceError,SyntaxError,"
-                            + "TypeError,URIError,ArrayBuffer,Int8Array,Uint8Array,"
-                            + "Uint8ClampedArray,Int16Array,Uint16Array,Int32Array,"
-                            + "Uint32Array,Float32Array,Float64Array,BigInt64Array,"
-                            + "BigUint64Array,DataView,Map,Set,WeakMap,"
-                            + "WeakSet,Symbol,Reflect,Proxy,Promise,SharedArrayBuffer,"
-                            + "Atomics,console,performance,"
-                            + "arguments").split(",");
-
-            Object cleaner = engine.eval("(function(allowed) {\n"
-                    + "   var names = Object.getOwnPropertyNames(this);\n"
-                    + "   MAIN: for (var i = 0; i < names.length; i++) {\n"
-                    + "     for (var j = 0; j < allowed.length; j++) {\n"
-                    + "       if (names[i] === allowed[j]) {\n"
-                    + "         continue MAIN;\n"
-                    + "       }\n"
-                    + "     }\n"
-                    + "     delete this[names[i]];\n"
-                    + "   }\n"
-                    + "})");
+            Object cleaner = engine.eval(PacHelperScriptFactory.GLOBALS_CLEANER_SOURCE);
             try {
-                ((Invocable) engine).invokeMethod(cleaner, "call", null, allowedGlobals);
+                ((Invocable) engine).invokeMethod(cleaner, "call", null, PacHelperScriptFactory.ALLOWED_GLOBALS);
             } catch (NoSuchMethodException ex) {
                 throw new ScriptException(ex);
             }
             engine.eval(pacSource);
-            String helperJSScript = HelperScriptFactory.getPacHelperSource();
+            String helperJSScript = PacHelperScriptFactory.getPacHelperSource();
             logger.debug("PAC Helper JavaScript :\n{}", helperJSScript);
             try {
-                ((Invocable) engine).invokeMethod(engine.eval(helperJSScript), "call", null, new NbPacHelperMethods());
+                ((Invocable) engine).invokeMethod(engine.eval(helperJSScript), "call", null, new DefaultPacHelperMethods(dnsResolver));
             } catch (NoSuchMethodException ex) {
                 throw new ScriptException(ex);
             }
@@ -101,6 +118,7 @@ public class NbPacScriptEvaluator {
         }
     }
 
+    @Override
     public String findProxyForURL(URI uri) throws PacFileException {
         try {
             Object obj = scriptEngine.findProxyForURL(PacUtils.toStrippedURLStr(uri), uri.getHost());
@@ -166,113 +184,4 @@ public class NbPacScriptEvaluator {
         }
     }
 
-    /**
-     * Auto-generates JavaScript source for declaration of
-     * helper functions.
-     */
-    private static class HelperScriptFactory {
-
-        // Netscape functions
-        private static final JsHelperFunction[] JS_HELPER_FUNCTIONS_NS = new JsHelperFunction[]{
-                new JsHelperFunction("isPlainHostName", new String[]{"host"}, Boolean.class),
-                new JsHelperFunction("dnsDomainIs", new String[]{"host", "domain"}, Boolean.class),
-                new JsHelperFunction("localHostOrDomainIs", new String[]{"host", "hostdom"}, Boolean.class),
-                new JsHelperFunction("isResolvable", new String[]{"host"}, Boolean.class),
-                new JsHelperFunction("isInNet", new String[]{"host", "pattern", "mask"}, Boolean.class),
-                new JsHelperFunction("dnsResolve", new String[]{"host"}, String.class),
-                new JsHelperFunction("myIpAddress", new String[]{}, String.class),
-                new JsHelperFunction("dnsDomainLevels", new String[]{"host"}, Integer.class),
-                new JsHelperFunction("shExpMatch", new String[]{"str", "shexp"}, Boolean.class),
-                new JsHelperFunction("weekdayRange", new String[]{"wd1", "wd2", "gmt"}, Boolean.class),
-                new JsHelperFunction("dateRange", new String[]{"day1", "month1", "year1", "day2", "month2", "year2", "gmt"}, Boolean.class),
-                new JsHelperFunction("timeRange", new String[]{"hour1", "min1", "sec1", "hour2", "min2", "sec2", "gmt"}, Boolean.class),
-        };
-
-        // Microsoft functions
-        private static final JsHelperFunction[] JS_HELPER_FUNCTIONS_MS = new JsHelperFunction[]{
-                new JsHelperFunction("isResolvableEx", new String[]{"host"}, Boolean.class),
-                new JsHelperFunction("isInNetEx", new String[]{"host", "ipPrefix"}, Boolean.class),
-                new JsHelperFunction("dnsResolveEx", new String[]{"host"}, String.class),
-                new JsHelperFunction("myIpAddressEx", new String[]{}, String.class),
-                new JsHelperFunction("sortIpAddressList", new String[]{"ipAddressList"}, String.class),
-                new JsHelperFunction("getClientVersion", new String[]{}, String.class)
-        };
-
-        // Debug functions (not part of any spec)
-        private static final JsHelperFunction[] JS_HELPER_FUNCTIONS_DEBUG = new JsHelperFunction[]{
-                new JsHelperFunction("alert", new String[]{"txt"}, Void.class)
-        };
-
-        /**
-         * Gets JavaScript source with PAC Helper function declarations.
-         *
-         * @return JavaScript source code that returns a function that delegates
-         * to its first argument
-         */
-        static String getPacHelperSource() {
-            StringBuilder sb = new StringBuilder(2000);
-            sb.append("(function(self) {\n");
-            addFunctionDecls(sb, JS_HELPER_FUNCTIONS_NS);
-            addFunctionDecls(sb, JS_HELPER_FUNCTIONS_MS);
-            addFunctionDecls(sb, JS_HELPER_FUNCTIONS_DEBUG);
-            sb.append("})\n");
-            return sb.toString();
-        }
-
-
-        private static void addFunctionDecls(StringBuilder sb, JsHelperFunction[] jsHelperFunctions) {
-            for (JsHelperFunction helperFunction : jsHelperFunctions) {
-                sb.append("this['");
-                sb.append(helperFunction.functionName);
-                sb.append("'] = function(");
-                addArgList(sb, helperFunction.argList);
-                sb.append(") {\n");
-                sb.append("    return ");
-                boolean encloseReturnValue = false;
-                if (Number.class.isAssignableFrom(helperFunction.returnType)) {
-                    encloseReturnValue = true;
-                    sb.append("Number(");
-                } else if (helperFunction.returnType == String.class) {
-                    encloseReturnValue = true;
-                    sb.append("String(");
-                }
-                sb.append("self.");
-                sb.append(helperFunction.functionName);
-                sb.append('(');
-                addArgList(sb, helperFunction.argList);
-                sb.append(')');
-                if (encloseReturnValue) {
-                    sb.append(')');
-                }
-                sb.append(";\n");
-                sb.append("}\n\n");
-            }
-        }
-
-        private static void addArgList(StringBuilder sb, String[] argList) {
-            if (argList != null && argList.length > 0) {
-                for (int i = 0; i < argList.length; i++) {
-                    sb.append(argList[i]);
-                    if (i < argList.length - 1) {
-                        sb.append(", ");
-                    }
-                }
-            }
-        }
-
-        private static class JsHelperFunction {
-            final String functionName;
-            final String[] argList;
-            final Class returnType;
-
-            JsHelperFunction(String functionName, String[] argList, Class returnType) {
-                this.functionName = functionName;
-                this.argList = argList;
-                this.returnType = returnType;
-            }
-
-        }
-
-    }
-
 }
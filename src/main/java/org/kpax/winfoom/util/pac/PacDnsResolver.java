@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.util.pac;
+
+import org.kpax.winfoom.util.ExpiringCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * The DNS resolver of the PAC helper functions.<br>
+ * The lookups run in background and are cached, the successful ones for a while, the failed ones for a shorter while.
+ * A caller waits for a lookup only when the host is not cached, and no longer than the lookup timeout.
+ * The cached entries still in use when close to expiration are refreshed in background,
+ * so the hot hosts are never looked up on the caller's thread.<br>
+ * The lookups run on a bounded pool: when too many are pending, a new one fails right away, uncached.<br>
+ * The local IP address is cached too, and refreshed when the network interfaces change.
+ *
+ * @author Eugen Covaci
+ */
+public class PacDnsResolver implements AutoCloseable {
+
+    /**
+     * The interval between the checks of the network interfaces (seconds).
+     */
+    private static final int NETWORK_CHECK_INTERVAL = 10;
+
+    /**
+     * The max number of lookups running at the same time.
+     */
+    private static final int MAX_LOOKUP_THREADS = 16;
+
+    /**
+     * The max number of lookups waiting for a thread.
+     */
+    private static final int MAX_QUEUED_LOOKUPS = 256;
+
+    private final Logger logger = LoggerFactory.getLogger(PacDnsResolver.class);
+
+    private final ExpiringCache<String, InetAddress[]> lookupCache;
+
+    private final long lookupTimeout;
+
+    private final ThreadPoolExecutor lookupExecutor;
+
+    private final ScheduledExecutorService networkMonitor;
+
+    /**
+     * Whether a lookup gave no answer in time on the current thread, since the last {@link #pollLookupTimedOut()}.
+     */
+    private final ThreadLocal<Boolean> lookupTimedOut = new ThreadLocal<>();
+
+    /**
+     * The addresses of the network interfaces, as of the last check.
+     */
+    private volatile List<InterfaceAddress> interfaceAddresses;
+
+    /**
+     * The cached result of {@code myIpAddress}, {@code null} until the first use or after a network change.
+     */
+    private volatile String myIpAddress;
+
+    /**
+     * Constructor.
+     *
+     * @param maxSize       the max number of hosts cached.
+     * @param positiveTtl   the time a successful lookup is cached (milliseconds).
+     * @param negativeTtl   the time a failed lookup is cached (milliseconds).
+     * @param lookupTimeout the max time a caller waits for a lookup (milliseconds).
+     */
+    public PacDnsResolver(int maxSize, long positiveTtl, long negativeTtl, long lookupTimeout) {
+        this.lookupTimeout = lookupTimeout;
+        this.lookupExecutor = new ThreadPoolExecutor(MAX_LOOKUP_THREADS, MAX_LOOKUP_THREADS,
+                60L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(MAX_QUEUED_LOOKUPS), daemonThreadFactory("pac-dns"));
+        this.lookupExecutor.allowCoreThreadTimeOut(true);
+        this.lookupCache = new ExpiringCache<>(maxSize, positiveTtl, negativeTtl, lookupExecutor);
+        this.networkMonitor = Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("pac-network"));
+        this.interfaceAddresses = getInterfaceAddresses();
+        this.networkMonitor.scheduleWithFixedDelay(this::checkNetworkInterfaces,
+                NETWORK_CHECK_INTERVAL, NETWORK_CHECK_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Resolve a host name.<br>
+     * When no answer is given in time, the current thread is flagged, see {@link #pollLookupTimedOut()}.
+     *
+     * @param host the host name.
+     * @return the addresses, or {@code null} if the host cannot be resolved (in time).
+     */
+    public InetAddress[] resolve(String host) {
+        try {
+            return lookupCache.getAsync(host, () -> InetAddress.getAllByName(host), lookupExecutor)
+                    .get(lookupTimeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            logger.debug("DNS lookup timed out for {}", host);
+            lookupTimedOut.set(Boolean.TRUE);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RejectedExecutionException) {
+                logger.debug("Too many DNS lookups pending, give up {}", host);
+                lookupTimedOut.set(Boolean.TRUE);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Check whether a lookup gave no answer in time on the current thread, then clear the flag.<br>
+     * Whatever the current thread computed meanwhile may rest on a host wrongly reported as unresolvable,
+     * so it should not be reused.
+     *
+     * @return {@code true} iff a lookup timed out or was rejected on the current thread since the last call.
+     */
+    public boolean pollLookupTimedOut() {
+        boolean timedOut = lookupTimedOut.get() != null;
+        lookupTimedOut.remove();
+        return timedOut;
+    }
+
+    /**
+     * Resolve a host name to its preferred address: the first IPv4 address, if any.
+     *
+     * @param host the host name.
+     * @return the address, or {@code null} if the host cannot be resolved (in time).
+     */
+    public InetAddress resolveFirst(String host) {
+        InetAddress[] addresses = resolve(host);
+        if (addresses == null || addresses.length == 0) {
+            return null;
+        }
+        for (InetAddress address : addresses) {
+            if (address instanceof Inet4Address) {
+                return address;
+            }
+        }
+        return addresses[0];
+    }
+
+    /**
+     * Get the local IP address, computed once and then again only after a change of the network interfaces.
+     *
+     * @param lookup computes the local IP address.
+     * @return the local IP address.
+     */
+    public String myIpAddress(Supplier<String> lookup) {
+        String ipAddress = myIpAddress;
+        if (ipAddress == null) {
+            ipAddress = lookup.get();
+            myIpAddress = ipAddress;
+        }
+        return ipAddress;
+    }
+
+    private void checkNetworkInterfaces() {
+        List<InterfaceAddress> current = getInterfaceAddresses();
+        if (!current.equals(interfaceAddresses)) {
+            logger.debug("Network interfaces changed, clear DNS cache");
+            interfaceAddresses = current;
+            myIpAddress = null;
+            clear();
+        }
+    }
+
+    private List<InterfaceAddress> getInterfaceAddresses() {
+        List<InterfaceAddress> addresses = new ArrayList<>();
+        try {
+            for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                if (networkInterface.isUp()) {
+                    addresses.addAll(networkInterface.getInterfaceAddresses());
+                }
+            }
+        } catch (SocketException e) {
+            logger.debug("Cannot get the network interfaces", e);
+        }
+        return addresses;
+    }
+
+    /**
+     * Remove all the cached lookups.
+     */
+    public void clear() {
+        lookupCache.clear();
+    }
+
+    @Override
+    public void close() {
+        logger.debug("Close PAC DNS resolver");
+        networkMonitor.shutdownNow();
+        lookupExecutor.shutdownNow();
+    }
+
+    private static ThreadFactory daemonThreadFactory(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+}
@@ -0,0 +1,153 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.kpax.winfoom.util.pac;
+
+/**
+ * Auto-generates JavaScript source for declaration of
+ * helper functions, also provides the sandbox's JavaScript, shared by the {@link PacScriptEvaluator}s.
+ */
+final class PacHelperScriptFactory {
+
+    /**
+     * The standard JavaScript globals kept by the sandbox, any other global is deleted.
+     */
+    static final String[] ALLOWED_GLOBALS =
+            ("Object,Function,Array,String,Date,Number,BigInt,"
+                    + "Boolean,RegExp,Math,JSON,NaN,Infinity,undefined,"
+                    + "isNaN,isFinite,parseFloat,parseInt,encodeURI,"
+                    + "encodeURIComponent,decodeURI,decodeURIComponent,eval,"
+                    + "escape,unescape,"
+                    + "Error,EvalError,RangeError,ReferenceError,SyntaxError,"
+                    + "TypeError,URIError,ArrayBuffer,Int8Array,Uint8Array,"
+                    + "Uint8ClampedArray,Int16Array,Uint16Array,Int32Array,"
+                    + "Uint32Array,Float32Array,Float64Array,BigInt64Array,"
+                    + "BigUint64Array,DataView,Map,Set,WeakMap,"
+                    + "WeakSet,Symbol,Reflect,Proxy,Promise,SharedArrayBuffer,"
+                    + "Atomics,console,performance,"
+                    + "arguments").split(",");
+
+    /**
+     * A function that deletes the globals not in its argument (an array of names).
+     */
+    static final String GLOBALS_CLEANER_SOURCE = "(function(allowed) {\n"
+            + "   var names = Object.getOwnPropertyNames(this);\n"
+            + "   MAIN: for (var i = 0; i < names.length; i++) {\n"
+            + "     for (var j = 0; j < allowed.length; j++) {\n"
+            + "       if (names[i] === allowed[j]) {\n"
+            + "         continue MAIN;\n"
+            + "       }\n"
+            + "     }\n"
+            + "     delete this[names[i]];\n"
+            + "   }\n"
+            + "})";
+
+    // Netscape functions
+    private static final JsHelperFunction[] JS_HELPER_FUNCTIONS_NS = new JsHelperFunction[]{
+            new JsHelperFunction("isPlainHostName", new String[]{"host"}),
+            new JsHelperFunction("dnsDomainIs", new String[]{"host", "domain"}),
+            new JsHelperFunction("localHostOrDomainIs", new String[]{"host", "hostdom"}),
+            new JsHelperFunction("isResolvable", new String[]{"host"}),
+            new JsHelperFunction("isInNet", new String[]{"host", "pattern", "mask"}),
+            new JsHelperFunction("dnsResolve", new String[]{"host"}),
+            new JsHelperFunction("myIpAddress", new String[]{}),
+            new JsHelperFunction("dnsDomainLevels", new String[]{"host"}),
+            new JsHelperFunction("shExpMatch", new String[]{"str", "shexp"}),
+            new JsHelperFunction("weekdayRange", new String[]{"wd1", "wd2", "gmt"}),
+            new JsHelperFunction("dateRange", new String[]{"day1", "month1", "year1", "day2", "month2", "year2", "gmt"}),
+            new JsHelperFunction("timeRange", new String[]{"hour1", "min1", "sec1", "hour2", "min2", "sec2", "gmt"}),
+    };
+
+    // Microsoft functions
+    private static final JsHelperFunction[] JS_HELPER_FUNCTIONS_MS = new JsHelperFunction[]{
+            new JsHelperFunction("isResolvableEx", new String[]{"host"}),
+            new JsHelperFunction("isInNetEx", new String[]{"host", "ipPrefix"}),
+            new JsHelperFunction("dnsResolveEx", new String[]{"host"}),
+            new JsHelperFunction("myIpAddressEx", new String[]{}),
+            new JsHelperFunction("sortIpAddressList", new String[]{"ipAddressList"}),
+            new JsHelperFunction("getClientVersion", new String[]{})
+    };
+
+    // Debug functions (not part of any spec)
+    private static final JsHelperFunction[] JS_HELPER_FUNCTIONS_DEBUG = new JsHelperFunction[]{
+            new JsHelperFunction("alert", new String[]{"txt"})
+    };
+
+    private PacHelperScriptFactory() {
+    }
+
+    /**
+     * Gets JavaScript source with PAC Helper function declarations.
+     *
+     * @return JavaScript source code that returns a function that delegates
+     * to its first argument
+     */
+    static String getPacHelperSource() {
+        StringBuilder sb = new StringBuilder(2000);
+        sb.append("(function(self) {\n");
+        addFunctionDecls(sb, JS_HELPER_FUNCTIONS_NS);
+        addFunctionDecls(sb, JS_HELPER_FUNCTIONS_MS);
+        addFunctionDecls(sb, JS_HELPER_FUNCTIONS_DEBUG);
+        sb.append("})\n");
+        return sb.toString();
+    }
+
+
+    private static void addFunctionDecls(StringBuilder sb, JsHelperFunction[] jsHelperFunctions) {
+        for (JsHelperFunction helperFunction : jsHelperFunctions) {
+            sb.append("this['");
+            sb.append(helperFunction.functionName);
+            sb.append("'] = function(");
+            addArgList(sb, helperFunction.argList);
+            sb.append(") {\n");
+            // The Java results are returned as they are: boolean, int and String values
+            // are JavaScript primitives already, no need for Number(...)/String(...) conversions.
+            // So a failed dnsResolve gives null, as in the browsers, not the "null" string
+            sb.append("    return self.");
+            sb.append(helperFunction.functionName);
+            sb.append('(');
+            addArgList(sb, helperFunction.argList);
+            sb.append(')');
+            sb.append(";\n");
+            sb.append("}\n\n");
+        }
+    }
+
+    private static void addArgList(StringBuilder sb, String[] argList) {
+        if (argList != null && argList.length > 0) {
+            for (int i = 0; i < argList.length; i++) {
+                sb.append(argList[i]);
+                if (i < argList.length - 1) {
+                    sb.append(", ");
+                }
+            }
+        }
+    }
+
+    private static class JsHelperFunction {
+        final String functionName;
+        final String[] argList;
+
+        JsHelperFunction(String functionName, String[] argList) {
+            this.functionName = functionName;
+            this.argList = argList;
+        }
+
+    }
+
+}
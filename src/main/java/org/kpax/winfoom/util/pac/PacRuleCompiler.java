@@ -0,0 +1,554 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.util.pac;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Translates the simple PAC scripts into a {@link PacRuleTable}.<br>
+ * The accepted scripts consist of a single {@code FindProxyForURL(url, host)} function made of
+ * {@code if/else} statements, blocks, {@code return "..."} statements and {@code var x = dnsResolve(host)}
+ * declarations. The conditions may combine with {@code !}, {@code &&} and {@code ||}
+ * the helper functions {@code shExpMatch}, {@code dnsDomainIs}, {@code localHostOrDomainIs},
+ * {@code isPlainHostName}, {@code isResolvable}, {@code isInNet} and the comparisons of the host with
+ * string literals. Anything else makes the script untranslatable.
+ *
+ * @author Eugen Covaci
+ */
+public final class PacRuleCompiler {
+
+    private static final Logger logger = LoggerFactory.getLogger(PacRuleCompiler.class);
+
+    /**
+     * The max number of sample URIs derived from the script.
+     */
+    private static final int MAX_SAMPLES = 1024;
+
+    private static final List<String> DEFAULT_SAMPLE_HOSTS =
+            Arrays.asList("localhost", "plainhost", "www.example.com", "10.0.0.1", "172.16.0.1", "192.168.0.1");
+
+    private static final List<String> PUNCTUATORS =
+            Arrays.asList("===", "!==", "==", "!=", "||", "&&", "(", ")", "{", "}", ",", ";", "!", "=");
+
+    private final List<Token> tokens;
+
+    private final DefaultPacHelperMethods helperMethods;
+
+    /**
+     * The string literals of the conditions.
+     */
+    private final Set<String> conditionLiterals = new LinkedHashSet<>();
+
+    /**
+     * The variables holding {@code dnsResolve(host)}.
+     */
+    private final Set<String> resolvedVariables = new LinkedHashSet<>();
+
+    private int position;
+
+    private String urlParameter;
+
+    private String hostParameter;
+
+    private PacRuleCompiler(List<Token> tokens, DefaultPacHelperMethods helperMethods) {
+        this.tokens = tokens;
+        this.helperMethods = helperMethods;
+    }
+
+    /**
+     * Translate a PAC script.
+     *
+     * @param pacSource     the PAC script's source code.
+     * @param helperMethods the helper functions the rule table calls.
+     * @return the rule table, or {@code null} if the script cannot be translated.
+     */
+    public static PacRuleTable compile(String pacSource, DefaultPacHelperMethods helperMethods) {
+        try {
+            return new PacRuleCompiler(tokenize(pacSource), helperMethods).compileFunction();
+        } catch (UntranslatableException e) {
+            logger.debug("The PAC script cannot be translated: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private PacRuleTable compileFunction() throws UntranslatableException {
+        expect("function");
+        expect("FindProxyForURL");
+        expect("(");
+        urlParameter = nextIdentifier();
+        expect(",");
+        hostParameter = nextIdentifier();
+        expect(")");
+        expect("{");
+        List<PacRuleTable.Statement> statements = new ArrayList<>();
+        while (!peek("}")) {
+            if (peek("var")) {
+                compileDeclaration();
+            } else {
+                statements.add(compileStatement());
+            }
+        }
+        expect("}");
+        if (tokens.get(position).type != TokenType.EOF) {
+            throw new UntranslatableException("Unexpected content after the function");
+        }
+        PacRuleTable.Statement body = merge(statements);
+        if (!body.alwaysReturns()) {
+            throw new UntranslatableException("The function might not return a value");
+        }
+        return new PacRuleTable(body, createSampleUris());
+    }
+
+    /**
+     * Only at the function's top level, so that the variable is always initialized.
+     */
+    private void compileDeclaration() throws UntranslatableException {
+        expect("var");
+        String variable = nextIdentifier();
+        if (variable.equals(urlParameter) || variable.equals(hostParameter)
+                || resolvedVariables.contains(variable)) {
+            throw new UntranslatableException("Variable redefined: " + variable);
+        }
+        expect("=");
+        expect("dnsResolve");
+        expect("(");
+        expect(hostParameter);
+        expect(")");
+        accept(";");
+        resolvedVariables.add(variable);
+    }
+
+    private PacRuleTable.Statement compileStatement() throws UntranslatableException {
+        if (accept(";")) {
+            return new PacRuleTable.BlockStatement(new ArrayList<>());
+        }
+        if (accept("{")) {
+            List<PacRuleTable.Statement> statements = new ArrayList<>();
+            while (!accept("}")) {
+                statements.add(compileStatement());
+            }
+            return merge(statements);
+        }
+        if (accept("return")) {
+            Token token = next();
+            if (token.type != TokenType.STRING) {
+                throw new UntranslatableException("Only string literals can be returned");
+            }
+            accept(";");
+            return new PacRuleTable.ReturnStatement(token.text);
+        }
+        expect("if");
+        expect("(");
+        Expression condition = compileOr();
+        expect(")");
+        PacRuleTable.Statement thenStatement = compileStatement();
+        PacRuleTable.Statement elseStatement = accept("else") ? compileStatement() : null;
+        return new PacRuleTable.IfStatement(condition.condition, condition.hostMatches,
+                thenStatement, elseStatement);
+    }
+
+    /**
+     * Make a block of statements, merging the consecutive simple host rules.
+     */
+    private PacRuleTable.Statement merge(List<PacRuleTable.Statement> statements) {
+        List<PacRuleTable.Statement> merged = new ArrayList<>();
+        PacRuleTable.HostRulesStatement hostRules = null;
+        for (PacRuleTable.Statement statement : statements) {
+            String value = statement instanceof PacRuleTable.IfStatement
+                    ? ((PacRuleTable.IfStatement) statement).getHostRuleValue() : null;
+            if (value != null) {
+                if (hostRules == null) {
+                    hostRules = new PacRuleTable.HostRulesStatement();
+                    merged.add(hostRules);
+                }
+                hostRules.addRule(((PacRuleTable.IfStatement) statement).hostMatches, value);
+            } else {
+                hostRules = null;
+                merged.add(statement);
+            }
+        }
+        return merged.size() == 1 ? merged.get(0) : new PacRuleTable.BlockStatement(merged);
+    }
+
+    private Expression compileOr() throws UntranslatableException {
+        Expression left = compileAnd();
+        while (accept("||")) {
+            Expression right = compileAnd();
+            PacRuleTable.Condition first = left.condition;
+            PacRuleTable.Condition second = right.condition;
+            List<PacRuleTable.HostMatch> hostMatches = null;
+            if (left.hostMatches != null && right.hostMatches != null) {
+                hostMatches = new ArrayList<>(left.hostMatches);
+                hostMatches.addAll(right.hostMatches);
+            }
+            left = new Expression((url, host) -> first.test(url, host) || second.test(url, host), hostMatches);
+        }
+        return left;
+    }
+
+    private Expression compileAnd() throws UntranslatableException {
+        Expression left = compileUnary();
+        while (accept("&&")) {
+            Expression right = compileUnary();
+            PacRuleTable.Condition first = left.condition;
+            PacRuleTable.Condition second = right.condition;
+            left = new Expression((url, host) -> first.test(url, host) && second.test(url, host), null);
+        }
+        return left;
+    }
+
+    private Expression compileUnary() throws UntranslatableException {
+        if (accept("!")) {
+            PacRuleTable.Condition condition = compileUnary().condition;
+            return new Expression((url, host) -> !condition.test(url, host), null);
+        }
+        if (accept("(")) {
+            Expression expression = compileOr();
+            expect(")");
+            return expression;
+        }
+        Token token = next();
+        if (token.type == TokenType.STRING) {
+            // "literal" == host
+            conditionLiterals.add(token.text);
+            boolean equal = compileEqualityOperator();
+            expect(hostParameter);
+            return hostComparison(token.text, equal);
+        }
+        if (token.type != TokenType.IDENTIFIER) {
+            throw new UntranslatableException("Unexpected token: " + token.text);
+        }
+        if (token.text.equals(hostParameter)) {
+            boolean equal = compileEqualityOperator();
+            return hostComparison(nextString(), equal);
+        }
+        expect("(");
+        Expression expression;
+        switch (token.text) {
+            case "shExpMatch": {
+                Value value = compileValue();
+                expect(",");
+                String shexp = nextString();
+                expression = new Expression((url, host) -> helperMethods.shExpMatch(value.get(url, host, helperMethods), shexp),
+                        value == Value.HOST ? toHostMatch(shexp) : null);
+                break;
+            }
+            case "dnsDomainIs": {
+                Value value = compileValue();
+                expect(",");
+                String domain = nextString();
+                expression = new Expression((url, host) -> helperMethods.dnsDomainIs(value.get(url, host, helperMethods), domain),
+                        null);
+                break;
+            }
+            case "localHostOrDomainIs": {
+                Value value = compileValue();
+                expect(",");
+                String hostdom = nextString();
+                expression = new Expression(
+                        (url, host) -> helperMethods.localHostOrDomainIs(value.get(url, host, helperMethods), hostdom), null);
+                break;
+            }
+            case "isPlainHostName": {
+                Value value = compileValue();
+                expression = new Expression((url, host) -> helperMethods.isPlainHostName(value.get(url, host, helperMethods)),
+                        null);
+                break;
+            }
+            case "isResolvable": {
+                Value value = compileValue();
+                expression = new Expression((url, host) -> helperMethods.isResolvable(value.get(url, host, helperMethods)),
+                        null);
+                break;
+            }
+            case "isInNet": {
+                Value value = compileValue();
+                expect(",");
+                String pattern = nextString();
+                expect(",");
+                String mask = nextString();
+                expression = new Expression(
+                        (url, host) -> helperMethods.isInNet(value.get(url, host, helperMethods), pattern, mask), null);
+                break;
+            }
+            default:
+                throw new UntranslatableException("Unsupported function: " + token.text);
+        }
+        expect(")");
+        return expression;
+    }
+
+    /**
+     * @return {@code true} for equality, {@code false} for inequality.
+     */
+    private boolean compileEqualityOperator() throws UntranslatableException {
+        Token token = next();
+        if (token.text.equals("==") || token.text.equals("===")) {
+            return true;
+        } else if (token.text.equals("!=") || token.text.equals("!==")) {
+            return false;
+        }
+        throw new UntranslatableException("Unsupported operator: " + token.text);
+    }
+
+    private Expression hostComparison(String literal, boolean equal) {
+        if (equal) {
+            return new Expression((url, host) -> literal.equals(host),
+                    List.of(new PacRuleTable.HostMatch(literal, false)));
+        }
+        return new Expression((url, host) -> !literal.equals(host), null);
+    }
+
+    /**
+     * @return the match of the host against a shell expression with no wildcard or a single leading {@code *},
+     * {@code null} for the other shell expressions.
+     */
+    private List<PacRuleTable.HostMatch> toHostMatch(String shexp) {
+        if (shexp.indexOf('?') >= 0) {
+            return null;
+        }
+        int lastStar = shexp.lastIndexOf('*');
+        if (lastStar < 0) {
+            return List.of(new PacRuleTable.HostMatch(shexp, false));
+        } else if (lastStar == 0) {
+            return List.of(new PacRuleTable.HostMatch(shexp.substring(1), true));
+        }
+        return null;
+    }
+
+    private Value compileValue() throws UntranslatableException {
+        String identifier = nextIdentifier();
+        if (identifier.equals(urlParameter)) {
+            return Value.URL;
+        } else if (identifier.equals(hostParameter)) {
+            return Value.HOST;
+        } else if (resolvedVariables.contains(identifier)) {
+            return Value.RESOLVED_HOST;
+        } else if (identifier.equals("dnsResolve")) {
+            expect("(");
+            expect(hostParameter);
+            expect(")");
+            return Value.RESOLVED_HOST;
+        }
+        throw new UntranslatableException("Unsupported argument: " + identifier);
+    }
+
+    private List<URI> createSampleUris() {
+        Set<String> hosts = new LinkedHashSet<>(DEFAULT_SAMPLE_HOSTS);
+        Set<String> urls = new LinkedHashSet<>();
+        for (String literal : conditionLiterals) {
+            String sample = literal.replace('*', 'w').replace('?', 'a');
+            if (literal.contains("://")) {
+                urls.add(sample);
+            } else if (!sample.isEmpty()) {
+                hosts.add(sample);
+                if (sample.startsWith(".")) {
+                    hosts.add("www" + sample);
+                    hosts.add(sample.substring(1));
+                }
+            }
+        }
+        for (String host : hosts) {
+            urls.add("http://" + host + "/");
+        }
+        List<URI> uris = new ArrayList<>();
+        for (String url : urls) {
+            try {
+                URI uri = new URI(url);
+                if (uri.getHost() != null) {
+                    uris.add(uri);
+                }
+            } catch (URISyntaxException e) {
+                // Not a valid sample
+            }
+            if (uris.size() == MAX_SAMPLES) {
+                break;
+            }
+        }
+        return uris;
+    }
+
+    private Token next() {
+        Token token = tokens.get(position);
+        if (token.type != TokenType.EOF) {
+            position++;
+        }
+        return token;
+    }
+
+    private boolean peek(String text) {
+        Token token = tokens.get(position);
+        return token.type != TokenType.STRING && token.text.equals(text);
+    }
+
+    private boolean accept(String text) {
+        if (peek(text)) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(String text) throws UntranslatableException {
+        if (!accept(text)) {
+            throw new UntranslatableException("Expected [" + text + "] but found [" + tokens.get(position).text + "]");
+        }
+    }
+
+    private String nextIdentifier() throws UntranslatableException {
+        Token token = next();
+        if (token.type != TokenType.IDENTIFIER) {
+            throw new UntranslatableException("Expected an identifier but found [" + token.text + "]");
+        }
+        return token.text;
+    }
+
+    private String nextString() throws UntranslatableException {
+        Token token = next();
+        if (token.type != TokenType.STRING) {
+            throw new UntranslatableException("Expected a string literal but found [" + token.text + "]");
+        }
+        conditionLiterals.add(token.text);
+        return token.text;
+    }
+
+    static List<Token> tokenize(String source) throws UntranslatableException {
+        List<Token> tokens = new ArrayList<>();
+        int i = 0;
+        int length = source.length();
+        MAIN:
+        while (i < length) {
+            char c = source.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (source.startsWith("//", i)) {
+                int end = source.indexOf('\n', i);
+                i = end < 0 ? length : end + 1;
+            } else if (source.startsWith("/*", i)) {
+                int end = source.indexOf("*/", i + 2);
+                if (end < 0) {
+                    throw new UntranslatableException("Unterminated comment");
+                }
+                i = end + 2;
+            } else if (c == '"' || c == '\'') {
+                StringBuilder sb = new StringBuilder();
+                i++;
+                while (true) {
+                    if (i >= length) {
+                        throw new UntranslatableException("Unterminated string literal");
+                    }
+                    char s = source.charAt(i++);
+                    if (s == c) {
+                        break;
+                    } else if (s == '\\') {
+                        if (i >= length || "\\'\"".indexOf(source.charAt(i)) < 0) {
+                            throw new UntranslatableException("Unsupported escape sequence");
+                        }
+                        sb.append(source.charAt(i++));
+                    } else if (s == '\n' || s == '\r') {
+                        throw new UntranslatableException("Unterminated string literal");
+                    } else {
+                        sb.append(s);
+                    }
+                }
+                tokens.add(new Token(TokenType.STRING, sb.toString()));
+            } else if (Character.isJavaIdentifierStart(c)) {
+                int start = i;
+                while (i < length && Character.isJavaIdentifierPart(source.charAt(i))) {
+                    i++;
+                }
+                tokens.add(new Token(TokenType.IDENTIFIER, source.substring(start, i)));
+            } else {
+                for (String punctuator : PUNCTUATORS) {
+                    if (source.startsWith(punctuator, i)) {
+                        tokens.add(new Token(TokenType.PUNCTUATOR, punctuator));
+                        i += punctuator.length();
+                        continue MAIN;
+                    }
+                }
+                throw new UntranslatableException("Unsupported character: " + c);
+            }
+        }
+        tokens.add(new Token(TokenType.EOF, "<EOF>"));
+        return tokens;
+    }
+
+    /**
+     * The arguments of the helper functions.
+     */
+    private enum Value {
+        URL {
+            @Override
+            String get(String url, String host, DefaultPacHelperMethods helperMethods) {
+                return url;
+            }
+        },
+        HOST {
+            @Override
+            String get(String url, String host, DefaultPacHelperMethods helperMethods) {
+                return host;
+            }
+        },
+        RESOLVED_HOST {
+            @Override
+            String get(String url, String host, DefaultPacHelperMethods helperMethods) {
+                return helperMethods.dnsResolve(host);
+            }
+        };
+
+        abstract String get(String url, String host, DefaultPacHelperMethods helperMethods);
+    }
+
+    private enum TokenType {IDENTIFIER, STRING, PUNCTUATOR, EOF}
+
+    private static final class Token {
+
+        private final TokenType type;
+
+        private final String text;
+
+        private Token(TokenType type, String text) {
+            this.type = type;
+            this.text = text;
+        }
+    }
+
+    private static final class Expression {
+
+        private final PacRuleTable.Condition condition;
+
+        private final List<PacRuleTable.HostMatch> hostMatches;
+
+        private Expression(PacRuleTable.Condition condition, List<PacRuleTable.HostMatch> hostMatches) {
+            this.condition = condition;
+            this.hostMatches = hostMatches;
+        }
+    }
+
+    static final class UntranslatableException extends Exception {
+
+        UntranslatableException(String message) {
+            super(message);
+        }
+    }
+
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.util.pac;
+
+import org.kpax.winfoom.exception.PacFileException;
+import org.netbeans.core.network.proxy.pac.PacUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The native form of a simple PAC script, as produced by {@link PacRuleCompiler}:
+ * the script's statements evaluated in Java, without any script engine.<br>
+ * The consecutive rules that only match the host against literals or domain suffixes are merged
+ * into a suffix trie, so they are checked in a single pass over the host, whatever their number.
+ *
+ * @author Eugen Covaci
+ */
+public final class PacRuleTable {
+
+    private final Logger logger = LoggerFactory.getLogger(PacRuleTable.class);
+
+    private final Statement body;
+
+    /**
+     * The URIs the rule table can be checked against, derived from the script's literals.
+     */
+    private final List<URI> sampleUris;
+
+    PacRuleTable(Statement body, List<URI> sampleUris) {
+        this.body = body;
+        this.sampleUris = Collections.unmodifiableList(sampleUris);
+    }
+
+    /**
+     * The equivalent of the script's {@code FindProxyForURL} function.
+     *
+     * @param uri the request URI.
+     * @return the proxy line.
+     */
+    public String findProxyForURL(URI uri) {
+        return body.execute(PacUtils.toStrippedURLStr(uri), uri.getHost());
+    }
+
+    public List<URI> getSampleUris() {
+        return sampleUris;
+    }
+
+    /**
+     * Cross-check this rule table against the script engine, on the sample URIs.
+     *
+     * @param scriptEngine evaluates the same script with the script engine.
+     * @return {@code true} iff both give the same proxy line for every sample.
+     * @throws PacFileException if the script engine fails.
+     */
+    public boolean verify(ScriptEngineEvaluation scriptEngine) throws PacFileException {
+        boolean verified = true;
+        for (URI uri : sampleUris) {
+            String expected = scriptEngine.findProxyForURL(uri);
+            String actual = findProxyForURL(uri);
+            if (!Objects.equals(expected, actual)) {
+                logger.warn("PAC rule table mismatch for {}: script [{}], rule table [{}]", uri, expected, actual);
+                verified = false;
+            }
+        }
+        logger.debug("PAC rule table checked on {} samples, verified: {}", sampleUris.size(), verified);
+        return verified;
+    }
+
+    /**
+     * The evaluation of a PAC script by a script engine.
+     */
+    @FunctionalInterface
+    public interface ScriptEngineEvaluation {
+        String findProxyForURL(URI uri) throws PacFileException;
+    }
+
+    /**
+     * A boolean expression of the script.
+     */
+    @FunctionalInterface
+    interface Condition {
+        boolean test(String url, String host);
+    }
+
+    /**
+     * A statement of the script.
+     */
+    abstract static class Statement {
+
+        /**
+         * @return the returned value, or {@code null} if the statement completes without returning.
+         */
+        abstract String execute(String url, String host);
+
+        /**
+         * @return whether the statement returns, whatever the input.
+         */
+        abstract boolean alwaysReturns();
+    }
+
+    static final class ReturnStatement extends Statement {
+
+        final String value;
+
+        ReturnStatement(String value) {
+            this.value = value;
+        }
+
+        @Override
+        String execute(String url, String host) {
+            return value;
+        }
+
+        @Override
+        boolean alwaysReturns() {
+            return true;
+        }
+    }
+
+    static final class IfStatement extends Statement {
+
+        final Condition condition;
+
+        /**
+         * The host literals/suffixes the condition is the disjunction of, {@code null} if not that simple.
+         */
+        final List<HostMatch> hostMatches;
+
+        final Statement thenStatement;
+
+        final Statement elseStatement;
+
+        IfStatement(Condition condition, List<HostMatch> hostMatches,
+                    Statement thenStatement, Statement elseStatement) {
+            this.condition = condition;
+            this.hostMatches = hostMatches;
+            this.thenStatement = thenStatement;
+            this.elseStatement = elseStatement;
+        }
+
+        @Override
+        String execute(String url, String host) {
+            if (condition.test(url, host)) {
+                return thenStatement.execute(url, host);
+            } else if (elseStatement != null) {
+                return elseStatement.execute(url, host);
+            }
+            return null;
+        }
+
+        @Override
+        boolean alwaysReturns() {
+            return elseStatement != null && thenStatement.alwaysReturns() && elseStatement.alwaysReturns();
+        }
+
+        /**
+         * @return the returned value if this is a simple host rule ({@code if (host matches) return "...";}),
+         * {@code null} otherwise.
+         */
+        String getHostRuleValue() {
+            if (hostMatches == null || elseStatement != null) {
+                return null;
+            }
+            Statement statement = thenStatement;
+            while (statement instanceof BlockStatement && ((BlockStatement) statement).statements.size() == 1) {
+                statement = ((BlockStatement) statement).statements.get(0);
+            }
+            return statement instanceof ReturnStatement ? ((ReturnStatement) statement).value : null;
+        }
+    }
+
+    static final class BlockStatement extends Statement {
+
+        final List<Statement> statements;
+
+        BlockStatement(List<Statement> statements) {
+            this.statements = statements;
+        }
+
+        @Override
+        String execute(String url, String host) {
+            for (Statement statement : statements) {
+                String value = statement.execute(url, host);
+                if (value != null) {
+                    return value;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        boolean alwaysReturns() {
+            for (Statement statement : statements) {
+                if (statement.alwaysReturns()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A host literal ({@code host == "a.b.com"}) or a host suffix ({@code shExpMatch(host, "*.b.com")}).
+     */
+    static final class HostMatch {
+
+        final String literal;
+
+        final boolean suffix;
+
+        HostMatch(String literal, boolean suffix) {
+            this.literal = literal;
+            this.suffix = suffix;
+        }
+    }
+
+    /**
+     * A sequence of simple host rules, checked at once: the first rule (in the script's order)
+     * whose host literal or suffix matches wins.
+     */
+    static final class HostRulesStatement extends Statement {
+
+        private final TrieNode suffixes = new TrieNode();
+
+        private final Map<String, Integer> literals = new HashMap<>();
+
+        private final List<String> values = new ArrayList<>();
+
+        void addRule(List<HostMatch> hostMatches, String value) {
+            int index = values.size();
+            values.add(value);
+            for (HostMatch hostMatch : hostMatches) {
+                if (hostMatch.suffix) {
+                    TrieNode node = suffixes;
+                    for (int i = hostMatch.literal.length() - 1; i >= 0; i--) {
+                        node = node.children.computeIfAbsent(hostMatch.literal.charAt(i), c -> new TrieNode());
+                    }
+                    if (node.index < 0) {
+                        node.index = index;
+                    }
+                } else {
+                    literals.putIfAbsent(hostMatch.literal, index);
+                }
+            }
+        }
+
+        @Override
+        String execute(String url, String host) {
+            if (host == null) {
+                return null;
+            }
+            int first = Integer.MAX_VALUE;
+            Integer literalIndex = literals.get(host);
+            if (literalIndex != null) {
+                first = literalIndex;
+            }
+            TrieNode node = suffixes;
+            for (int i = host.length() - 1; node != null; i--) {
+                if (node.index >= 0 && node.index < first) {
+                    first = node.index;
+                }
+                node = i >= 0 ? node.children.get(host.charAt(i)) : null;
+            }
+            return first < Integer.MAX_VALUE ? values.get(first) : null;
+        }
+
+        @Override
+        boolean alwaysReturns() {
+            return false;
+        }
+    }
+
+    /**
+     * A node of the suffix trie, keyed by the host's characters from last to first.
+     */
+    private static final class TrieNode {
+
+        private final Map<Character, TrieNode> children = new HashMap<>();
+
+        /**
+         * The index of the first rule whose suffix ends at this node, -1 if none.
+         */
+        private int index = -1;
+    }
+
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.util.pac;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Static analysis of a PAC script's source code.<br>
+ * The analysis is conservative: whenever in doubt, the answer is the one that keeps the script's semantics.
+ *
+ * @author Eugen Covaci
+ */
+public final class PacScriptAnalyzer {
+
+    /**
+     * Matches the entry function's declaration, capturing the name of its first parameter (the URL).
+     */
+    private static final Pattern ENTRY_FUNCTION_PATTERN = Pattern.compile(
+            "(?:function\\s+FindProxyForURL(?:Ex)?\\s*|FindProxyForURL(?:Ex)?\\s*=\\s*function\\s*\\w*\\s*)" +
+                    "\\(\\s*([\\w$]+)\\s*(?:,[^)]*)?\\)");
+
+    /**
+     * The constructs that could read the URL parameter without naming it.
+     */
+    private static final Pattern INDIRECT_ACCESS_PATTERN = Pattern.compile("\\b(?:arguments|eval|Function)\\b");
+
+    private PacScriptAnalyzer() {
+    }
+
+    /**
+     * Check whether the result of the entry function ({@code FindProxyForURL} or {@code FindProxyForURLEx})
+     * might depend on the URL argument, or only on the host.
+     *
+     * @param pacSource the PAC script's source code.
+     * @return {@code false} only if the URL parameter is provably never read.
+     */
+    public static boolean isUrlArgumentUsed(final String pacSource) {
+        if (pacSource == null) {
+            return true;
+        }
+        Matcher matcher = ENTRY_FUNCTION_PATTERN.matcher(pacSource);
+        if (!matcher.find()) {
+            return true;
+        }
+        String urlParameter = matcher.group(1);
+        if (INDIRECT_ACCESS_PATTERN.matcher(pacSource).find() || matcher.find()) {
+            // Either an indirect access, or more than one entry function
+            return true;
+        }
+
+        // Any other occurrence of the parameter's name than the declaration, anywhere, counts as a read
+        Matcher usageMatcher = Pattern.compile("(?<![\\w$.])" + Pattern.quote(urlParameter) + "(?![\\w$])")
+                .matcher(pacSource);
+        int occurrences = 0;
+        while (usageMatcher.find()) {
+            occurrences++;
+        }
+        return occurrences > 1;
+    }
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.util.pac;
+
+import org.kpax.winfoom.exception.PacFileException;
+import org.netbeans.core.network.proxy.pac.PacParsingException;
+
+import java.net.URI;
+
+/**
+ * Evaluates a PAC script with a JavaScript engine.<br>
+ * An instance is not meant to be used by more than one thread at a time: use {@link #copy()} to get another one.
+ *
+ * @author Eugen Covaci
+ */
+public interface PacScriptEvaluator extends AutoCloseable {
+
+    /**
+     * Call the script's {@code FindProxyForURL} (or {@code FindProxyForURLEx}) function.
+     *
+     * @param uri the request URI.
+     * @return the proxy line.
+     * @throws PacFileException if the script fails.
+     */
+    String findProxyForURL(URI uri) throws PacFileException;
+
+    /**
+     * @return the PAC script's source code this evaluator was built from.
+     */
+    String getPacSource();
+
+    /**
+     * @return {@code false} iff the result depends on the host only.
+     * @see PacScriptAnalyzer#isUrlArgumentUsed(String)
+     */
+    boolean isUrlArgumentUsed();
+
+    /**
+     * @return the DNS resolver of the helper functions, might be {@code null}.
+     */
+    PacDnsResolver getDnsResolver();
+
+    /**
+     * Create another evaluator of the same script, sharing whatever can be shared.
+     *
+     * @return the new evaluator.
+     * @throws PacParsingException if the evaluator cannot be created.
+     */
+    PacScriptEvaluator copy() throws PacParsingException;
+
+    /**
+     * Release the script engine, stopping the evaluation in progress, if supported.
+     */
+    @Override
+    default void close() {
+    }
+
+}
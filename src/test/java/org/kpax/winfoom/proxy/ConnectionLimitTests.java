@@ -0,0 +1,176 @@
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.bootstrap.HttpServer;
+import org.apache.http.impl.bootstrap.ServerBootstrap;
+import org.apache.http.impl.io.ContentLengthInputStream;
+import org.apache.http.impl.io.DefaultHttpResponseParser;
+import org.apache.http.impl.io.HttpTransportMetricsImpl;
+import org.apache.http.impl.io.SessionInputBufferImpl;
+import org.apache.http.protocol.HTTP;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.kpax.winfoom.FoomApplicationTest;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.util.InputOutputs;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.kpax.winfoom.TestConstants.LOCAL_PROXY_PORT;
+import static org.mockito.Mockito.when;
+
+/**
+ * The admission control of the {@link LocalProxyServer} in blocking mode,
+ * with a single connection handling thread and no queue.
+ */
+@ExtendWith(SpringExtension.class)
+@ActiveProfiles("test")
+@SpringBootTest(classes = FoomApplicationTest.class)
+@TestPropertySource(properties = {"connections.maxActive=1", "connections.maxQueued=0",
+        "connections.retryAfter=7"})
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@Timeout(10)
+class ConnectionLimitTests {
+
+    @MockBean
+    private ProxyConfig proxyConfig;
+
+    @Autowired
+    private LocalProxyServer localProxyServer;
+
+    @Autowired
+    private ConnectionPoolingManager connectionPoolingManager;
+
+    @Autowired
+    private ProxyContext proxyContext;
+
+    private HttpServer remoteServer;
+
+    private ServerSocket echoServer;
+
+    @BeforeAll
+    void before() throws Exception {
+        remoteServer = ServerBootstrap.bootstrap().registerHandler("/get",
+                (request, response, context) -> response.setEntity(new StringEntity("12345"))).create();
+        remoteServer.start();
+        echoServer = new ServerSocket(0);
+        new Thread(() -> {
+            while (!echoServer.isClosed()) {
+                try {
+                    Socket socket = echoServer.accept();
+                    new Thread(() -> {
+                        try {
+                            socket.getInputStream().transferTo(socket.getOutputStream());
+                        } catch (Exception e) {
+                            // Ignore
+                        } finally {
+                            InputOutputs.close(socket);
+                        }
+                    }).start();
+                } catch (Exception e) {
+                    // Ignore
+                }
+            }
+        }).start();
+        beforeEach();
+        connectionPoolingManager.start();
+        localProxyServer.start();
+    }
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        when(proxyConfig.getLocalPort()).thenReturn(LOCAL_PROXY_PORT);
+        when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.DIRECT);
+
+        // Wait for the previous test's connections to release the only thread
+        ThreadPoolExecutor connectionThreadPool = (ThreadPoolExecutor) proxyContext.connectionExecutorService();
+        while (connectionThreadPool.getActiveCount() > 0) {
+            Thread.sleep(50);
+        }
+    }
+
+    @Test
+    void connect_LimitReached_ServiceUnavailable() throws Exception {
+        try (Socket pending = new Socket("localhost", LOCAL_PROXY_PORT)) {
+
+            // The only thread waits for this connection's request
+            Thread.sleep(300);
+            try (Socket socket = new Socket("localhost", LOCAL_PROXY_PORT)) {
+                SessionInputBufferImpl inputBuffer = bind(socket);
+                writeRequest(socket.getOutputStream());
+                HttpResponse response = new DefaultHttpResponseParser(inputBuffer).parse();
+                assertEquals(HttpStatus.SC_SERVICE_UNAVAILABLE, response.getStatusLine().getStatusCode());
+                assertEquals("7", response.getFirstHeader("Retry-After").getValue());
+                assertEquals(-1, inputBuffer.read());
+            }
+        }
+    }
+
+    @Test
+    void connect_TunnelEstablished_ThreadReleased() throws Exception {
+        try (Socket tunnel = new Socket("localhost", LOCAL_PROXY_PORT)) {
+            SessionInputBufferImpl tunnelBuffer = bind(tunnel);
+            String echo = "localhost:" + echoServer.getLocalPort();
+            tunnel.getOutputStream().write(("CONNECT " + echo + " HTTP/1.1\r\nHost: " + echo + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            HttpResponse connectResponse = new DefaultHttpResponseParser(tunnelBuffer).parse();
+            assertEquals(HttpStatus.SC_OK, connectResponse.getStatusLine().getStatusCode());
+
+            // The open tunnel does not hold the only thread
+            Thread.sleep(300);
+            try (Socket socket = new Socket("localhost", LOCAL_PROXY_PORT)) {
+                SessionInputBufferImpl inputBuffer = bind(socket);
+                writeRequest(socket.getOutputStream());
+                HttpResponse response = new DefaultHttpResponseParser(inputBuffer).parse();
+                assertEquals(HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+                long length = Long.parseLong(response.getFirstHeader(HTTP.CONTENT_LEN).getValue());
+                assertEquals("12345", new String(new ContentLengthInputStream(inputBuffer, length).readAllBytes(),
+                        StandardCharsets.UTF_8));
+            }
+
+            // The tunnel still works
+            tunnel.getOutputStream().write("ping".getBytes(StandardCharsets.US_ASCII));
+            byte[] echoed = new byte[4];
+            for (int i = 0; i < echoed.length; i++) {
+                echoed[i] = (byte) tunnelBuffer.read();
+            }
+            assertEquals("ping", new String(echoed, StandardCharsets.US_ASCII));
+        }
+    }
+
+    private SessionInputBufferImpl bind(Socket socket) throws Exception {
+        socket.setSoTimeout(5000);
+        SessionInputBufferImpl inputBuffer = new SessionInputBufferImpl(new HttpTransportMetricsImpl(), 8192);
+        inputBuffer.bind(socket.getInputStream());
+        return inputBuffer;
+    }
+
+    private void writeRequest(OutputStream outputStream) throws Exception {
+        String host = "localhost:" + remoteServer.getLocalPort();
+        outputStream.write(("GET http://" + host + "/get HTTP/1.1\r\nHost: " + host + "\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII));
+        outputStream.flush();
+    }
+
+    @AfterAll
+    void after() {
+        localProxyServer.close();
+        connectionPoolingManager.stop();
+        remoteServer.stop();
+        InputOutputs.close(echoServer);
+    }
+
+}
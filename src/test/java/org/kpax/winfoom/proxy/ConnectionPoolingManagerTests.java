@@ -0,0 +1,121 @@
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.protocol.BasicHttpContext;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.util.InputOutputs;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The pools of two upstream proxies, the connections accepted by a local server socket.
+ */
+@Timeout(10)
+class ConnectionPoolingManagerTests {
+
+    private final SystemConfig systemConfig = new SystemConfig();
+
+    private final ConnectionPoolingManager connectionPoolingManager = new ConnectionPoolingManager();
+
+    private final ProxyInfo first = new ProxyInfo(ProxyInfo.PacType.DIRECT);
+
+    private final ProxyInfo second = new ProxyInfo(ProxyInfo.PacType.PROXY, new HttpHost("second", 8080));
+
+    private final List<Socket> accepted = new CopyOnWriteArrayList<>();
+
+    private ServerSocket server;
+
+    private HttpRoute route;
+
+    @BeforeEach
+    void before() throws IOException {
+        ReflectionTestUtils.setField(systemConfig, "maxConnections", 1);
+        ReflectionTestUtils.setField(systemConfig, "maxConnectionsPerUpstream", 10);
+        ReflectionTestUtils.setField(systemConfig, "maxConnectionsPerRoute", 10);
+        ReflectionTestUtils.setField(systemConfig, "connectionPoolStripes", 1);
+        ReflectionTestUtils.setField(systemConfig, "connectionManagerIdleTimeout", 30);
+        ReflectionTestUtils.setField(connectionPoolingManager, "systemConfig", systemConfig);
+        ReflectionTestUtils.setField(connectionPoolingManager, "proxyDnsResolver", new ProxyDnsResolver());
+        ReflectionTestUtils.setField(connectionPoolingManager, "httpClientBuilderFactory",
+                new HttpClientBuilderFactory());
+        connectionPoolingManager.start();
+
+        server = new ServerSocket(0);
+        route = new HttpRoute(new HttpHost("127.0.0.1", server.getLocalPort()));
+        new Thread(() -> {
+            while (!server.isClosed()) {
+                try {
+                    accepted.add(server.accept());
+                } catch (IOException e) {
+                    // Closed
+                }
+            }
+        }).start();
+    }
+
+    @AfterEach
+    void after() {
+        connectionPoolingManager.stop();
+        InputOutputs.close(server);
+        accepted.forEach(InputOutputs::close);
+    }
+
+    @Test
+    void requestConnection_OpenConnectionsOverBudget_OtherPoolsIdleClosed() throws Exception {
+        StripedConnectionManager firstManager = connectionPoolingManager.getConnectionManager(first);
+        HttpClientConnection connection = firstManager.requestConnection(route, null).get(1, TimeUnit.SECONDS);
+        firstManager.connect(connection, route, 1000, new BasicHttpContext());
+        firstManager.routeComplete(connection, route, new BasicHttpContext());
+        firstManager.releaseConnection(connection, null, 1, TimeUnit.MINUTES);
+        assertEquals(1, firstManager.getTotalStats().getAvailable());
+
+        // The idle connection does not hold the budget, but opening a new one closes it
+        StripedConnectionManager secondManager = connectionPoolingManager.getConnectionManager(second);
+        connection = secondManager.requestConnection(route, null).get(1, TimeUnit.SECONDS);
+        assertEquals(0, firstManager.getTotalStats().getAvailable());
+        secondManager.releaseConnection(connection, null, 0, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void cleanUpConnectionManager_UnusedProxy_PoolClosed() throws Exception {
+        StripedConnectionManager firstManager = connectionPoolingManager.getConnectionManager(first);
+        connectionPoolingManager.cleanUpConnectionManager();
+        assertSame(firstManager, connectionPoolingManager.getConnectionManager(first));
+
+        ReflectionTestUtils.setField(systemConfig, "connectionManagerIdleTimeout", 0);
+        connectionPoolingManager.cleanUpConnectionManager();
+        assertNotSame(firstManager, connectionPoolingManager.getConnectionManager(first));
+    }
+
+    @Test
+    void cleanUpConnectionManager_PinnedProxy_PoolKept() {
+        StripedConnectionManager firstManager = connectionPoolingManager.getConnectionManager(first);
+        assertTrue(firstManager.pin());
+
+        ReflectionTestUtils.setField(systemConfig, "connectionManagerIdleTimeout", 0);
+        connectionPoolingManager.cleanUpConnectionManager();
+        assertSame(firstManager, connectionPoolingManager.getConnectionManager(first));
+
+        firstManager.unpin();
+        connectionPoolingManager.cleanUpConnectionManager();
+        assertNotSame(firstManager, connectionPoolingManager.getConnectionManager(first));
+    }
+
+}
@@ -0,0 +1,152 @@
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.bootstrap.HttpServer;
+import org.apache.http.impl.bootstrap.ServerBootstrap;
+import org.apache.http.impl.io.ContentLengthInputStream;
+import org.apache.http.impl.io.DefaultHttpResponseParser;
+import org.apache.http.impl.io.HttpTransportMetricsImpl;
+import org.apache.http.impl.io.SessionInputBufferImpl;
+import org.apache.http.protocol.HTTP;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.kpax.winfoom.FoomApplicationTest;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.kpax.winfoom.TestConstants.LOCAL_PROXY_PORT;
+import static org.mockito.Mockito.when;
+
+/**
+ * The persistent client's connections, handled by the {@link LocalProxyServer} in blocking mode.
+ */
+@ExtendWith(SpringExtension.class)
+@ActiveProfiles("test")
+@SpringBootTest(classes = FoomApplicationTest.class)
+@TestPropertySource(properties = {"keepAlive.maxRequests=3", "keepAlive.idleTimeout=1"})
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@Timeout(10)
+class KeepAliveClientConnectionTests {
+
+    @MockBean
+    private ProxyConfig proxyConfig;
+
+    @Autowired
+    private LocalProxyServer localProxyServer;
+
+    @Autowired
+    private ConnectionPoolingManager connectionPoolingManager;
+
+    private HttpServer remoteServer;
+
+    @BeforeAll
+    void before() throws Exception {
+        remoteServer = ServerBootstrap.bootstrap().registerHandler("/get",
+                (request, response, context) -> response.setEntity(new StringEntity("12345"))).create();
+        remoteServer.start();
+        beforeEach();
+        connectionPoolingManager.start();
+        localProxyServer.start();
+    }
+
+    @BeforeEach
+    void beforeEach() {
+        when(proxyConfig.getLocalPort()).thenReturn(LOCAL_PROXY_PORT);
+        when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.DIRECT);
+    }
+
+    @Test
+    void keepAlive_SequentialRequests_SameConnection() throws Exception {
+        try (Socket socket = new Socket("localhost", LOCAL_PROXY_PORT)) {
+            SessionInputBufferImpl inputBuffer = bind(socket);
+            for (int i = 0; i < 2; i++) {
+                writeRequest(socket.getOutputStream());
+                HttpResponse response = new DefaultHttpResponseParser(inputBuffer).parse();
+                assertEquals(HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+                assertEquals(HTTP.CONN_KEEP_ALIVE, response.getFirstHeader(HTTP.CONN_DIRECTIVE).getValue());
+                assertEquals("12345", readBody(inputBuffer, response));
+            }
+        }
+    }
+
+    @Test
+    void keepAlive_PipelinedRequests_AllAnswered() throws Exception {
+        try (Socket socket = new Socket("localhost", LOCAL_PROXY_PORT)) {
+            SessionInputBufferImpl inputBuffer = bind(socket);
+            writeRequest(socket.getOutputStream());
+            writeRequest(socket.getOutputStream());
+            for (int i = 0; i < 2; i++) {
+                HttpResponse response = new DefaultHttpResponseParser(inputBuffer).parse();
+                assertEquals(HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+                assertEquals("12345", readBody(inputBuffer, response));
+            }
+        }
+    }
+
+    @Test
+    void keepAlive_MaxRequestsReached_ConnectionClosed() throws Exception {
+        try (Socket socket = new Socket("localhost", LOCAL_PROXY_PORT)) {
+            SessionInputBufferImpl inputBuffer = bind(socket);
+            HttpResponse response = null;
+            for (int i = 0; i < 3; i++) {
+                writeRequest(socket.getOutputStream());
+                response = new DefaultHttpResponseParser(inputBuffer).parse();
+                assertEquals("12345", readBody(inputBuffer, response));
+            }
+            assertEquals(HTTP.CONN_CLOSE, response.getFirstHeader(HTTP.CONN_DIRECTIVE).getValue());
+            assertEquals(-1, inputBuffer.read());
+        }
+    }
+
+    @Test
+    void keepAlive_IdleTimeout_ConnectionClosed() throws Exception {
+        try (Socket socket = new Socket("localhost", LOCAL_PROXY_PORT)) {
+            SessionInputBufferImpl inputBuffer = bind(socket);
+            writeRequest(socket.getOutputStream());
+            HttpResponse response = new DefaultHttpResponseParser(inputBuffer).parse();
+            assertEquals("12345", readBody(inputBuffer, response));
+            long start = System.currentTimeMillis();
+            assertEquals(-1, inputBuffer.read());
+            Assertions.assertTrue(System.currentTimeMillis() - start < 3000);
+        }
+    }
+
+    private SessionInputBufferImpl bind(Socket socket) throws Exception {
+        socket.setSoTimeout(5000);
+        SessionInputBufferImpl inputBuffer = new SessionInputBufferImpl(new HttpTransportMetricsImpl(), 8192);
+        inputBuffer.bind(socket.getInputStream());
+        return inputBuffer;
+    }
+
+    private void writeRequest(OutputStream outputStream) throws Exception {
+        String host = "localhost:" + remoteServer.getLocalPort();
+        outputStream.write(("GET http://" + host + "/get HTTP/1.1\r\nHost: " + host + "\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII));
+        outputStream.flush();
+    }
+
+    private String readBody(SessionInputBufferImpl inputBuffer, HttpResponse response) throws Exception {
+        long length = Long.parseLong(response.getFirstHeader(HTTP.CONTENT_LEN).getValue());
+        return new String(new ContentLengthInputStream(inputBuffer, length).readAllBytes(), StandardCharsets.UTF_8);
+    }
+
+    @AfterAll
+    void after() {
+        localProxyServer.close();
+        connectionPoolingManager.stop();
+        remoteServer.stop();
+    }
+
+}
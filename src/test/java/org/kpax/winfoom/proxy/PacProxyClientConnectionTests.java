@@ -35,9 +35,8 @@ import org.kpax.winfoom.FoomApplicationTest;
 import org.kpax.winfoom.TestConstants;
 import org.kpax.winfoom.config.ProxyConfig;
 import org.kpax.winfoom.config.SystemConfig;
-import org.kpax.winfoom.util.pac.NbPacScriptEvaluator;
+import org.kpax.winfoom.exception.PacFileException;
 import org.mockserver.integration.ClientAndServer;
-import org.netbeans.core.network.proxy.pac.PacParsingException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -51,6 +50,9 @@ import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Instant;
 import java.util.Map;
 
@@ -144,13 +146,12 @@ public class PacProxyClientConnectionTests {
 
     @Order(1)
     @Test
-    void singleProxy_socks4ConnectAndNonConnect_CorrectResponse() throws IOException, PacParsingException {
+    void singleProxy_socks4ConnectAndNonConnect_CorrectResponse() throws IOException, PacFileException {
         ClientAndServer proxyServer = ClientAndServer.startClientAndServer();
         try {
             String content = String.format("function FindProxyForURL(url, host) {return \"SOCKS4 localhost:%s\";}", proxyServer.getLocalPort());
             logger.debug("content {}", content);
-            NbPacScriptEvaluator nbPacScriptEvaluator = new NbPacScriptEvaluator(content);
-            ReflectionTestUtils.setField(proxyAutoConfig, "nbPacScriptEvaluator", nbPacScriptEvaluator);
+            loadPacScript(content);
 
             HttpHost localProxy = new HttpHost("localhost", LOCAL_PROXY_PORT, "http");
             try (CloseableHttpClient httpClient = HttpClientBuilder.create().disableAutomaticRetries().build()) {
@@ -184,13 +185,12 @@ public class PacProxyClientConnectionTests {
 
     @Order(2)
     @Test
-    void singleProxy_Socks5ConnectAndNonConnect_CorrectResponse() throws IOException, PacParsingException {
+    void singleProxy_Socks5ConnectAndNonConnect_CorrectResponse() throws IOException, PacFileException {
         ClientAndServer proxyServer = ClientAndServer.startClientAndServer();
         try {
             String content = String.format("function FindProxyForURL(url, host) {return \"SOCKS5 localhost:%s\";}", proxyServer.getLocalPort());
             logger.debug("content {}", content);
-            NbPacScriptEvaluator nbPacScriptEvaluator = new NbPacScriptEvaluator(content);
-            ReflectionTestUtils.setField(proxyAutoConfig, "nbPacScriptEvaluator", nbPacScriptEvaluator);
+            loadPacScript(content);
 
             HttpHost localProxy = new HttpHost("localhost", LOCAL_PROXY_PORT, "http");
             try (CloseableHttpClient httpClient = HttpClientBuilder.create().disableAutomaticRetries().build()) {
@@ -223,13 +223,12 @@ public class PacProxyClientConnectionTests {
 
     @Order(3)
     @Test
-    void singleProxy_HttpConnectAndNonConnect_CorrectResponse() throws IOException, PacParsingException {
+    void singleProxy_HttpConnectAndNonConnect_CorrectResponse() throws IOException, PacFileException {
         ClientAndServer proxyServer = ClientAndServer.startClientAndServer();
         try {
             String content = String.format("function FindProxyForURL(url, host) {return \"HTTP localhost:%s\";}", proxyServer.getLocalPort());
             logger.debug("content {}", content);
-            NbPacScriptEvaluator nbPacScriptEvaluator = new NbPacScriptEvaluator(content);
-            ReflectionTestUtils.setField(proxyAutoConfig, "nbPacScriptEvaluator", nbPacScriptEvaluator);
+            loadPacScript(content);
 
             HttpHost localProxy = new HttpHost("localhost", LOCAL_PROXY_PORT, "http");
             try (CloseableHttpClient httpClient = HttpClientBuilder.create().disableAutomaticRetries().build()) {
@@ -262,13 +261,12 @@ public class PacProxyClientConnectionTests {
 
     @Order(4)
     @Test
-    void singleProxy_ProxyConnectAndNonConnect_CorrectResponse() throws IOException, PacParsingException {
+    void singleProxy_ProxyConnectAndNonConnect_CorrectResponse() throws IOException, PacFileException {
         ClientAndServer proxyServer = ClientAndServer.startClientAndServer();
         try {
             String content = String.format("function FindProxyForURL(url, host) {return \"PROXY localhost:%s\";}", proxyServer.getLocalPort());
             logger.debug("content {}", content);
-            NbPacScriptEvaluator nbPacScriptEvaluator = new NbPacScriptEvaluator(content);
-            ReflectionTestUtils.setField(proxyAutoConfig, "nbPacScriptEvaluator", nbPacScriptEvaluator);
+            loadPacScript(content);
 
             HttpHost localProxy = new HttpHost("localhost", LOCAL_PROXY_PORT, "http");
             try (CloseableHttpClient httpClient = HttpClientBuilder.create().disableAutomaticRetries().build()) {
@@ -301,13 +299,12 @@ public class PacProxyClientConnectionTests {
 
     @Order(5)
     @Test
-    void singleProxy_SocksConnectAndNonConnect_CorrectResponse() throws IOException, PacParsingException {
+    void singleProxy_SocksConnectAndNonConnect_CorrectResponse() throws IOException, PacFileException {
         ClientAndServer proxyServer = ClientAndServer.startClientAndServer();
         try {
             String content = String.format("function FindProxyForURL(url, host) {return \"SOCKS localhost:%s\";}", proxyServer.getLocalPort());
             logger.debug("content {}", content);
-            NbPacScriptEvaluator nbPacScriptEvaluator = new NbPacScriptEvaluator(content);
-            ReflectionTestUtils.setField(proxyAutoConfig, "nbPacScriptEvaluator", nbPacScriptEvaluator);
+            loadPacScript(content);
 
             HttpHost localProxy = new HttpHost("localhost", LOCAL_PROXY_PORT, "http");
             try (CloseableHttpClient httpClient = HttpClientBuilder.create().disableAutomaticRetries().build()) {
@@ -340,11 +337,10 @@ public class PacProxyClientConnectionTests {
 
     @Order(6)
     @Test
-    void singleProxy_DirectConnectAndNonConnect_CorrectResponse() throws IOException, PacParsingException {
+    void singleProxy_DirectConnectAndNonConnect_CorrectResponse() throws IOException, PacFileException {
         String content = String.format("function FindProxyForURL(url, host) {return \"DIRECT\";}");
         logger.debug("content {}", content);
-        NbPacScriptEvaluator nbPacScriptEvaluator = new NbPacScriptEvaluator(content);
-        ReflectionTestUtils.setField(proxyAutoConfig, "nbPacScriptEvaluator", nbPacScriptEvaluator);
+        loadPacScript(content);
 
         HttpHost localProxy = new HttpHost("localhost", LOCAL_PROXY_PORT, "http");
         try (CloseableHttpClient httpClient = HttpClientBuilder.create().disableAutomaticRetries().build()) {
@@ -375,7 +371,7 @@ public class PacProxyClientConnectionTests {
     @Order(7)
     @Test
     void multipleProxiesFirstDown_socks4AndHttpConnectAndNonConnect_CorrectResponse()
-            throws IOException, PacParsingException {
+            throws IOException, PacFileException {
         ClientAndServer proxyServer = ClientAndServer.startClientAndServer();
         proxyBlacklist.clear();
         try {
@@ -383,8 +379,7 @@ public class PacProxyClientConnectionTests {
                     "function FindProxyForURL(url, host) {return \"SOCKS4 192.168.111.000:1234;HTTP localhost:%s\";}",
                     proxyServer.getLocalPort());
             logger.debug("content {}", content);
-            NbPacScriptEvaluator nbPacScriptEvaluator = new NbPacScriptEvaluator(content);
-            ReflectionTestUtils.setField(proxyAutoConfig, "nbPacScriptEvaluator", nbPacScriptEvaluator);
+            loadPacScript(content);
 
             HttpHost localProxy = new HttpHost("localhost", LOCAL_PROXY_PORT, "http");
             try (CloseableHttpClient httpClient = HttpClientBuilder.create().disableAutomaticRetries().build()) {
@@ -427,11 +422,10 @@ public class PacProxyClientConnectionTests {
 
     @Order(8)
     @Test
-    void nullProxyLine_DirectConnectAndNonConnect_NoProxyCorrectResponse() throws IOException, PacParsingException {
+    void nullProxyLine_DirectConnectAndNonConnect_NoProxyCorrectResponse() throws IOException, PacFileException {
         String content = String.format("function FindProxyForURL(url, host) {return null;}");
         logger.debug("content {}", content);
-        NbPacScriptEvaluator nbPacScriptEvaluator = new NbPacScriptEvaluator(content);
-        ReflectionTestUtils.setField(proxyAutoConfig, "nbPacScriptEvaluator", nbPacScriptEvaluator);
+        loadPacScript(content);
 
         HttpHost localProxy = new HttpHost("localhost", LOCAL_PROXY_PORT, "http");
         try (CloseableHttpClient httpClient = HttpClientBuilder.create().disableAutomaticRetries().build()) {
@@ -459,6 +453,19 @@ public class PacProxyClientConnectionTests {
         }
     }
 
+    /**
+     * Load the PAC script the way the application does, from a temporary PAC file.
+     *
+     * @param content the PAC script.
+     */
+    private void loadPacScript(String content) throws IOException, PacFileException {
+        Path pacFile = Files.createTempFile("winfoom", ".pac");
+        pacFile.toFile().deleteOnExit();
+        Files.write(pacFile, content.getBytes(StandardCharsets.UTF_8));
+        when(proxyConfig.getProxyPacFileLocationAsURL()).thenReturn(pacFile.toUri().toURL());
+        proxyAutoConfig.loadScript();
+    }
+
     @AfterAll
     void after() {
         try {
@@ -0,0 +1,97 @@
+package org.kpax.winfoom.proxy;
+
+import org.junit.jupiter.api.Test;
+import org.kpax.winfoom.exception.PacFileException;
+import org.kpax.winfoom.util.pac.NbPacScriptEvaluator;
+import org.kpax.winfoom.util.pac.PacScriptEvaluator;
+import org.netbeans.core.network.proxy.pac.PacParsingException;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PacScriptEvaluatorPoolTests {
+
+    private static final String PAC_SOURCE = "function FindProxyForURL(url, host) { return \"DIRECT\"; }";
+
+    @Test
+    void checkout_Idle_SameEvaluator() throws PacParsingException, PacFileException {
+        NbPacScriptEvaluator primary = new NbPacScriptEvaluator(PAC_SOURCE);
+        PacScriptEvaluatorPool pool = new PacScriptEvaluatorPool(primary, 2);
+        PacScriptEvaluator evaluator = pool.checkout(100);
+        assertSame(primary, evaluator);
+        pool.checkin(evaluator);
+        assertSame(primary, pool.checkout(100));
+    }
+
+    @Test
+    void checkout_AllBusyBelowMax_NewEvaluator() throws PacParsingException, PacFileException {
+        NbPacScriptEvaluator primary = new NbPacScriptEvaluator(PAC_SOURCE);
+        PacScriptEvaluatorPool pool = new PacScriptEvaluatorPool(primary, 2);
+        pool.checkout(100);
+        PacScriptEvaluator evaluator = pool.checkout(100);
+        assertNotSame(primary, evaluator);
+        assertEquals(PAC_SOURCE, evaluator.getPacSource());
+    }
+
+    @Test
+    void checkout_AllBusyMaxReached_Timeout() throws PacParsingException, PacFileException {
+        PacScriptEvaluatorPool pool = new PacScriptEvaluatorPool(new NbPacScriptEvaluator(PAC_SOURCE), 1);
+        pool.checkout(100);
+        assertThrows(PacFileException.class, () -> pool.checkout(100));
+    }
+
+    @Test
+    void checkout_Discarded_NewEvaluator() throws PacParsingException, PacFileException {
+        NbPacScriptEvaluator primary = new NbPacScriptEvaluator(PAC_SOURCE);
+        PacScriptEvaluatorPool pool = new PacScriptEvaluatorPool(primary, 1);
+        pool.discard(pool.checkout(100));
+        PacScriptEvaluator evaluator = pool.checkout(100);
+        assertNotNull(evaluator);
+        assertNotSame(primary, evaluator);
+    }
+
+    @Test
+    void checkout_AbandonedNotEnded_StillCounted() throws PacParsingException, PacFileException {
+        PacScriptEvaluatorPool pool = new PacScriptEvaluatorPool(new NbPacScriptEvaluator(PAC_SOURCE), 2);
+        pool.abandon(pool.checkout(100));
+        pool.checkout(100);
+        assertThrows(PacFileException.class, () -> pool.checkout(100));
+    }
+
+    @Test
+    void checkout_AllAbandoned_FailFast() throws PacParsingException, PacFileException {
+        PacScriptEvaluatorPool pool = new PacScriptEvaluatorPool(new NbPacScriptEvaluator(PAC_SOURCE), 1);
+        pool.abandon(pool.checkout(100));
+        long start = System.currentTimeMillis();
+        assertThrows(PacFileException.class, () -> pool.checkout(5000));
+        assertTrue(System.currentTimeMillis() - start < 1000);
+    }
+
+    @Test
+    void checkout_AbandonedEnded_NewEvaluator() throws PacParsingException, PacFileException {
+        PacScriptEvaluatorPool pool = new PacScriptEvaluatorPool(new NbPacScriptEvaluator(PAC_SOURCE), 1);
+        PacScriptEvaluator abandoned = pool.checkout(100);
+        pool.abandon(abandoned);
+        pool.discard(abandoned);
+        assertNotNull(pool.checkout(100));
+    }
+
+    @Test
+    void checkin_Closed_EvaluatorClosed() throws PacParsingException, PacFileException {
+        AtomicInteger closed = new AtomicInteger();
+        PacScriptEvaluator primary = new NbPacScriptEvaluator(PAC_SOURCE) {
+            @Override
+            public void close() {
+                closed.incrementAndGet();
+            }
+        };
+        PacScriptEvaluatorPool pool = new PacScriptEvaluatorPool(primary, 1);
+        PacScriptEvaluator evaluator = pool.checkout(100);
+        pool.close();
+        assertEquals(0, closed.get());
+        pool.checkin(evaluator);
+        assertEquals(1, closed.get());
+    }
+
+}
@@ -0,0 +1,130 @@
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpStatus;
+import org.apache.http.auth.AuthProtocolState;
+import org.apache.http.auth.AuthScheme;
+import org.apache.http.auth.AuthState;
+import org.apache.http.auth.AuthenticationException;
+import org.apache.http.auth.ContextAwareAuthScheme;
+import org.apache.http.auth.MalformedChallengeException;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.AuthCache;
+import org.apache.http.impl.auth.BasicScheme;
+import org.apache.http.impl.auth.DigestScheme;
+import org.apache.http.impl.auth.NTLMScheme;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.protocol.BasicHttpContext;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ProxyAuthCacheTests {
+
+    private final HttpHost proxy = new HttpHost("proxy", 3128);
+
+    private final HttpHost target = new HttpHost("example.com", 80);
+
+    @Test
+    void forProxy_ProxyScheme_SharedTargetSchemeNot() {
+        ProxyAuthCache proxyAuthCache = new ProxyAuthCache();
+        BasicScheme proxyScheme = new BasicScheme();
+        AuthCache first = proxyAuthCache.forProxy(proxy);
+        first.put(proxy, proxyScheme);
+        first.put(target, new BasicScheme());
+
+        AuthCache second = proxyAuthCache.forProxy(proxy);
+        assertSame(proxyScheme, second.get(proxy));
+        assertNull(second.get(target));
+
+        second.remove(proxy);
+        assertNull(first.get(proxy));
+    }
+
+    @Test
+    void forProxy_Digest_NonceCountShared() throws MalformedChallengeException, AuthenticationException {
+        ProxyAuthCache proxyAuthCache = new ProxyAuthCache();
+        DigestScheme digestScheme = new DigestScheme();
+        digestScheme.processChallenge(new BasicHeader("Proxy-Authenticate",
+                "Digest realm=\"test\", nonce=\"abc\", qop=\"auth\""));
+        proxyAuthCache.forProxy(proxy).put(proxy, digestScheme);
+
+        UsernamePasswordCredentials credentials = new UsernamePasswordCredentials("user", "pass");
+        AuthScheme first = proxyAuthCache.forProxy(proxy).get(proxy);
+        AuthScheme second = proxyAuthCache.forProxy(proxy).get(proxy);
+        assertNotNull(first);
+        assertTrue(((ContextAwareAuthScheme) first).authenticate(credentials,
+                new BasicHttpRequest("GET", "http://example.com/"), new BasicHttpContext())
+                .getValue().contains("nc=00000001"));
+        assertTrue(((ContextAwareAuthScheme) second).authenticate(credentials,
+                new BasicHttpRequest("GET", "http://example.com/"), new BasicHttpContext())
+                .getValue().contains("nc=00000002"));
+    }
+
+    @Test
+    void isChallengeExpected_UnknownProxy_True() {
+        assertTrue(new ProxyAuthCache().isChallengeExpected(proxy));
+    }
+
+    @Test
+    void isChallengeExpected_Unchallenged_False() {
+        ProxyAuthCache proxyAuthCache = new ProxyAuthCache();
+        proxyAuthCache.recordExchange(proxy, new AuthState(), HttpStatus.SC_OK);
+        assertFalse(proxyAuthCache.isChallengeExpected(proxy));
+    }
+
+    @Test
+    void isChallengeExpected_BasicSchemeCached_False() {
+        ProxyAuthCache proxyAuthCache = new ProxyAuthCache();
+        proxyAuthCache.forProxy(proxy).put(proxy, new BasicScheme());
+        AuthState authState = new AuthState();
+        authState.setState(AuthProtocolState.SUCCESS);
+        proxyAuthCache.recordExchange(proxy, authState, HttpStatus.SC_OK);
+        assertFalse(proxyAuthCache.isChallengeExpected(proxy));
+    }
+
+    @Test
+    void isChallengeExpected_ConnectionBasedScheme_True() {
+        ProxyAuthCache proxyAuthCache = new ProxyAuthCache();
+        proxyAuthCache.recordExchange(proxy, new AuthState(), HttpStatus.SC_OK);
+        AuthState authState = new AuthState();
+        authState.setState(AuthProtocolState.SUCCESS);
+        authState.update(new NTLMScheme(), new UsernamePasswordCredentials("user", "pass"));
+        proxyAuthCache.recordExchange(proxy, authState, HttpStatus.SC_OK);
+        assertTrue(proxyAuthCache.isChallengeExpected(proxy));
+    }
+
+    @Test
+    void isChallengeExpected_ChallengedDespiteCachedScheme_True() {
+        ProxyAuthCache proxyAuthCache = new ProxyAuthCache();
+        proxyAuthCache.forProxy(proxy).put(proxy, new BasicScheme());
+        proxyAuthCache.recordExchange(proxy, new AuthState(), HttpStatus.SC_PROXY_AUTHENTICATION_REQUIRED);
+        assertTrue(proxyAuthCache.isChallengeExpected(proxy));
+
+        proxyAuthCache.clear();
+        proxyAuthCache.recordExchange(proxy, new AuthState(), HttpStatus.SC_OK);
+        assertFalse(proxyAuthCache.isChallengeExpected(proxy));
+    }
+
+    @Test
+    void isChallengeExpected_UnchallengedExpired_True() {
+        ProxyAuthCache proxyAuthCache = new ProxyAuthCache(0);
+        proxyAuthCache.recordExchange(proxy, new AuthState(), HttpStatus.SC_OK);
+        assertTrue(proxyAuthCache.isChallengeExpected(proxy));
+    }
+
+    @Test
+    void isChallengeExpected_ChallengedAfterUnchallenged_True() {
+        ProxyAuthCache proxyAuthCache = new ProxyAuthCache();
+        proxyAuthCache.recordExchange(proxy, new AuthState(), HttpStatus.SC_OK);
+        proxyAuthCache.recordChallenge(proxy);
+        proxyAuthCache.recordExchange(proxy, new AuthState(), HttpStatus.SC_OK);
+        assertTrue(proxyAuthCache.isChallengeExpected(proxy));
+    }
+
+}
@@ -16,6 +16,7 @@ import java.time.temporal.ChronoUnit;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(SpringExtension.class)
@@ -127,14 +128,41 @@ class ProxyBlacklistTests {
 
     @Order(9)
     @Test
-    void checkBlacklisted_OneBlacklistedExpired_RemoveExpiredAndIsConsistent() throws InterruptedException {
+    void checkBlacklisted_OneBlacklistedExpired_OneTrialThenRemovedAndIsConsistent() throws InterruptedException {
         proxyBlacklist.clear();
         ProxyInfo proxyInfo = new ProxyInfo(ProxyInfo.PacType.DIRECT);
         proxyBlacklist.blacklist(proxyInfo);
         Thread.sleep(BLACKLIST_TIMEOUT * 1000 + 1);
-        proxyBlacklist.checkBlacklist(proxyInfo);
+        assertFalse(proxyBlacklist.checkBlacklist(proxyInfo));
+        assertTrue(proxyBlacklist.checkBlacklist(proxyInfo));
+        assertEquals(0, proxyBlacklist.getActiveBlacklistMap().size());
+        assertTrue(proxyBlacklist.unblacklist(proxyInfo));
         assertEquals(0, proxyBlacklist.getBlacklistMap().size());
         assertFalse(proxyBlacklist.checkBlacklist(proxyInfo));
     }
 
+    @Order(10)
+    @Test
+    void unblacklist_OneBlacklisted_NotBlacklisted() {
+        proxyBlacklist.clear();
+        ProxyInfo proxyInfo = new ProxyInfo(ProxyInfo.PacType.HTTP, new HttpHost("host1", 1234));
+        proxyBlacklist.blacklist(proxyInfo);
+        assertTrue(proxyBlacklist.unblacklist(proxyInfo));
+        assertFalse(proxyBlacklist.checkBlacklist(proxyInfo));
+        assertFalse(proxyBlacklist.unblacklist(proxyInfo));
+    }
+
+    @Order(11)
+    @Test
+    void blacklist_FailedTrial_BlacklistedAgain() throws InterruptedException {
+        proxyBlacklist.clear();
+        ProxyInfo proxyInfo = new ProxyInfo(ProxyInfo.PacType.HTTP, new HttpHost("host1", 1234));
+        proxyBlacklist.blacklist(proxyInfo);
+        Thread.sleep(BLACKLIST_TIMEOUT * 1000 + 1);
+        assertFalse(proxyBlacklist.checkBlacklist(proxyInfo));
+        proxyBlacklist.blacklist(proxyInfo);
+        assertTrue(proxyBlacklist.checkBlacklist(proxyInfo));
+        assertEquals(1, proxyBlacklist.clear());
+    }
+
 }
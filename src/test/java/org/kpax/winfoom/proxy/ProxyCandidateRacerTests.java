@@ -0,0 +1,137 @@
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.util.InputOutputs;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The race between an unreachable proxy (nobody listens on its port) and a reachable one.
+ */
+@Timeout(10)
+class ProxyCandidateRacerTests {
+
+    private final ExecutorService executorService = Executors.newCachedThreadPool();
+
+    private final ProxyStatistics proxyStatistics = new ProxyStatistics();
+
+    private final ProxyBlacklist proxyBlacklist = new ProxyBlacklist();
+
+    private final ProxyCandidateRacer proxyCandidateRacer = new ProxyCandidateRacer();
+
+    private final ProxyInfo direct = new ProxyInfo(ProxyInfo.PacType.DIRECT);
+
+    private ServerSocket reachableServer;
+
+    private ProxyInfo unreachable;
+
+    private ProxyInfo reachable;
+
+    private Socket clientSocket;
+
+    @BeforeEach
+    void before() throws IOException {
+        SystemConfig systemConfig = new SystemConfig();
+        ReflectionTestUtils.setField(systemConfig, "proxyRaceDelay", 300);
+        ReflectionTestUtils.setField(systemConfig, "socketConnectTimeout", 5);
+        ReflectionTestUtils.setField(systemConfig, "socketSoTimeout", 5);
+        ReflectionTestUtils.setField(systemConfig, "blacklistInitialTimeout", 1);
+        ProxyConfig proxyConfig = new ProxyConfig();
+        proxyConfig.setBlacklistTimeout(1);
+        ReflectionTestUtils.setField(proxyBlacklist, "proxyConfig", proxyConfig);
+        ReflectionTestUtils.setField(proxyBlacklist, "systemConfig", systemConfig);
+        ProxyContext proxyContext = new ProxyContext();
+        ReflectionTestUtils.setField(proxyContext, "threadPool", executorService);
+        ReflectionTestUtils.setField(proxyCandidateRacer, "systemConfig", systemConfig);
+        ReflectionTestUtils.setField(proxyCandidateRacer, "proxyContext", proxyContext);
+        ReflectionTestUtils.setField(proxyCandidateRacer, "proxyBlacklist", proxyBlacklist);
+        ReflectionTestUtils.setField(proxyCandidateRacer, "proxyStatistics", proxyStatistics);
+
+        reachableServer = new ServerSocket(0);
+        int unreachablePort;
+        try (ServerSocket closedServer = new ServerSocket(0)) {
+            unreachablePort = closedServer.getLocalPort();
+        }
+        unreachable = new ProxyInfo(ProxyInfo.PacType.PROXY, new HttpHost("localhost", unreachablePort));
+        reachable = new ProxyInfo(ProxyInfo.PacType.PROXY, new HttpHost("localhost", reachableServer.getLocalPort()));
+    }
+
+    @AfterEach
+    void after() {
+        executorService.shutdownNow();
+        InputOutputs.close(clientSocket);
+        InputOutputs.close(reachableServer);
+    }
+
+    @Test
+    void race_UnreachableFirst_ReachableFirstLatencyRecorded() throws Exception {
+        List<ProxyInfo> ordered = proxyCandidateRacer.race(createClientConnection("GET http://example.com/ HTTP/1.1"),
+                Arrays.asList(unreachable, direct, reachable));
+        assertEquals(Arrays.asList(reachable, direct, unreachable), ordered);
+        assertTrue(proxyStatistics.isHealthy(reachable));
+        assertFalse(proxyStatistics.isHealthy(unreachable));
+        assertTrue(proxyBlacklist.checkBlacklist(unreachable));
+    }
+
+    @Test
+    void race_HealthyFirst_NoRace() throws Exception {
+        proxyStatistics.recordSuccess(unreachable, 10);
+        List<ProxyInfo> proxyInfos = Arrays.asList(unreachable, reachable);
+        assertEquals(proxyInfos, proxyCandidateRacer.race(createClientConnection("GET http://example.com/ HTTP/1.1"),
+                proxyInfos));
+        assertTrue(proxyStatistics.isHealthy(unreachable));
+        assertFalse(proxyBlacklist.checkBlacklist(unreachable));
+    }
+
+    @Test
+    void race_Connect_WinnerConnectionHandedOver() throws Exception {
+        ClientConnection clientConnection = createClientConnection("CONNECT example.com:443 HTTP/1.1");
+        proxyCandidateRacer.race(clientConnection, Arrays.asList(unreachable, reachable));
+        assertNull(clientConnection.takeRacedSocket(unreachable));
+        Socket socket = clientConnection.takeRacedSocket(reachable);
+        assertNotNull(socket);
+        try {
+            assertTrue(socket.isConnected());
+            assertEquals(reachableServer.getLocalPort(), socket.getPort());
+            assertNull(clientConnection.takeRacedSocket(reachable));
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    void race_NonConnect_WinnerConnectionClosed() throws Exception {
+        ClientConnection clientConnection = createClientConnection("GET http://example.com/ HTTP/1.1");
+        proxyCandidateRacer.race(clientConnection, Arrays.asList(unreachable, reachable));
+        assertNull(clientConnection.takeRacedSocket(reachable));
+    }
+
+    private ClientConnection createClientConnection(String requestLine) throws IOException, HttpException {
+        clientSocket = new Socket("localhost", reachableServer.getLocalPort());
+        return new ClientConnection(clientSocket, new ByteArrayInputStream(
+                (requestLine + "\r\nHost: example.com\r\n\r\n").getBytes(StandardCharsets.US_ASCII)));
+    }
+
+}
@@ -0,0 +1,195 @@
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.impl.io.ContentLengthInputStream;
+import org.apache.http.impl.io.DefaultHttpRequestParser;
+import org.apache.http.impl.io.DefaultHttpResponseParser;
+import org.apache.http.impl.io.HttpTransportMetricsImpl;
+import org.apache.http.impl.io.SessionInputBufferImpl;
+import org.apache.http.protocol.HTTP;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.kpax.winfoom.FoomApplicationTest;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.util.InputOutputs;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.kpax.winfoom.TestConstants.LOCAL_PROXY_PORT;
+import static org.kpax.winfoom.TestConstants.PROXY_PORT;
+import static org.mockito.Mockito.when;
+
+/**
+ * The requests having a body too large to be buffered in memory, sent through an upstream proxy that
+ * asks for Basic authentication only after reading the whole body, ignoring the {@code Expect} header.
+ */
+@ExtendWith(SpringExtension.class)
+@ActiveProfiles("test")
+@SpringBootTest(classes = FoomApplicationTest.class)
+@TestPropertySource(properties = {"internalBuffer.length=16"})
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+@Timeout(10)
+class ProxyChallengeClientConnectionTests {
+
+    private static final int BODY_LENGTH = 1000;
+
+    @MockBean
+    private ProxyConfig proxyConfig;
+
+    @Autowired
+    private LocalProxyServer localProxyServer;
+
+    @Autowired
+    private ConnectionPoolingManager connectionPoolingManager;
+
+    @Autowired
+    private ProxyAuthCache proxyAuthCache;
+
+    private ServerSocket upstreamProxy;
+
+    /**
+     * For each request received by the upstream proxy: whether it was authenticated.
+     */
+    private final List<Boolean> authenticated = new CopyOnWriteArrayList<>();
+
+    private volatile boolean expectReceived;
+
+    /**
+     * When {@code true}, the next authenticated request is rejected as if the credentials had changed.
+     */
+    private volatile boolean rejectNext;
+
+    @BeforeAll
+    void before() throws Exception {
+        proxyAuthCache.clear();
+        upstreamProxy = new ServerSocket(PROXY_PORT);
+        new Thread(() -> {
+            while (!upstreamProxy.isClosed()) {
+                try {
+                    Socket socket = upstreamProxy.accept();
+                    new Thread(() -> challenge(socket)).start();
+                } catch (Exception e) {
+                    // Closed
+                }
+            }
+        }).start();
+        beforeEach();
+        connectionPoolingManager.start();
+        localProxyServer.start();
+    }
+
+    @BeforeEach
+    void beforeEach() {
+        authenticated.clear();
+        when(proxyConfig.getLocalPort()).thenReturn(LOCAL_PROXY_PORT);
+        when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.HTTP);
+        when(proxyConfig.getProxyHost()).thenReturn("localhost");
+        when(proxyConfig.getProxyPort()).thenReturn(PROXY_PORT);
+    }
+
+    @Test
+    @Order(1)
+    void post_UnknownProxy_BodyResent() throws Exception {
+        HttpResponse response = post();
+        assertEquals(HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+        assertEquals(Arrays.asList(false, true), authenticated);
+        assertFalse(expectReceived);
+    }
+
+    @Test
+    @Order(2)
+    void post_BasicSchemeCached_AuthenticatedPreemptively() throws Exception {
+        HttpResponse response = post();
+        assertEquals(HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+        assertEquals(Arrays.asList(true), authenticated);
+    }
+
+    @Test
+    @Order(3)
+    void post_ChallengedDespiteCachedScheme_NextBodyRepeatable() throws Exception {
+        rejectNext = true;
+        HttpResponse response = post();
+        assertEquals(HttpStatus.SC_PROXY_AUTHENTICATION_REQUIRED, response.getStatusLine().getStatusCode());
+
+        authenticated.clear();
+        response = post();
+        assertEquals(HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+        assertFalse(authenticated.isEmpty());
+    }
+
+    private HttpResponse post() throws Exception {
+        try (Socket socket = new Socket("localhost", LOCAL_PROXY_PORT)) {
+            socket.setSoTimeout(5000);
+            OutputStream outputStream = socket.getOutputStream();
+            outputStream.write(("POST http://example.com/post HTTP/1.1\r\nHost: example.com\r\n"
+                    + "Content-Length: " + BODY_LENGTH + "\r\nConnection: close\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            byte[] body = new byte[BODY_LENGTH];
+            Arrays.fill(body, (byte) 'a');
+            outputStream.write(body);
+            outputStream.flush();
+            SessionInputBufferImpl inputBuffer = new SessionInputBufferImpl(new HttpTransportMetricsImpl(), 8192);
+            inputBuffer.bind(socket.getInputStream());
+            return new DefaultHttpResponseParser(inputBuffer).parse();
+        }
+    }
+
+    /**
+     * Read each request with its body, then answer: {@code 407} unless authenticated, otherwise {@code 200}.
+     */
+    private void challenge(Socket socket) {
+        try {
+            SessionInputBufferImpl inputBuffer = new SessionInputBufferImpl(new HttpTransportMetricsImpl(), 8192);
+            inputBuffer.bind(socket.getInputStream());
+            while (true) {
+                HttpRequest request = new DefaultHttpRequestParser(inputBuffer).parse();
+                long length = Long.parseLong(request.getFirstHeader(HTTP.CONTENT_LEN).getValue());
+                new ContentLengthInputStream(inputBuffer, length).readAllBytes();
+                if (request.containsHeader(HTTP.EXPECT_DIRECTIVE)) {
+                    expectReceived = true;
+                }
+                boolean authorized = request.containsHeader("Proxy-Authorization");
+                authenticated.add(authorized);
+                if (authorized && rejectNext) {
+                    rejectNext = false;
+                    authorized = false;
+                }
+                String response = authorized
+                        ? "HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n"
+                        : "HTTP/1.1 407 Proxy Authentication Required\r\n"
+                        + "Proxy-Authenticate: Basic realm=\"test\"\r\nContent-Length: 0\r\n\r\n";
+                socket.getOutputStream().write(response.getBytes(StandardCharsets.US_ASCII));
+            }
+        } catch (Exception e) {
+            // The connection is closed
+        } finally {
+            InputOutputs.close(socket);
+        }
+    }
+
+    @AfterAll
+    void after() throws IOException {
+        localProxyServer.close();
+        connectionPoolingManager.stop();
+        upstreamProxy.close();
+    }
+
+}
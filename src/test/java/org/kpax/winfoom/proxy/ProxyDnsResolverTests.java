@@ -0,0 +1,160 @@
+package org.kpax.winfoom.proxy;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.util.InputOutputs;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@Timeout(10)
+class ProxyDnsResolverTests {
+
+    private final ExecutorService executorService = Executors.newCachedThreadPool();
+
+    private final SystemConfig systemConfig = new SystemConfig();
+
+    /**
+     * The addresses returned by the next lookups, {@code null} for an unknown host.
+     */
+    private volatile InetAddress[] lookupResult;
+
+    private final AtomicInteger lookups = new AtomicInteger();
+
+    private ProxyDnsResolver proxyDnsResolver;
+
+    @BeforeEach
+    void before() throws UnknownHostException {
+        ReflectionTestUtils.setField(systemConfig, "dnsCacheSize", 16);
+        ReflectionTestUtils.setField(systemConfig, "dnsPositiveTtl", 60);
+        ReflectionTestUtils.setField(systemConfig, "dnsNegativeTtl", 10);
+        ReflectionTestUtils.setField(systemConfig, "dnsConnectionAttemptDelay", 100);
+        lookupResult = new InetAddress[]{InetAddress.getByName("192.0.2.1")};
+    }
+
+    @AfterEach
+    void after() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    void resolve_SameHost_LookedUpOnce() throws Exception {
+        createResolver();
+        InetAddress[] addresses = proxyDnsResolver.resolve("example.com");
+        assertSame(addresses, proxyDnsResolver.resolve("example.com"));
+        assertEquals(1, lookups.get());
+    }
+
+    @Test
+    void resolve_UnknownHost_FailureCachedForNegativeTtl() throws Exception {
+        lookupResult = null;
+        createResolver();
+        assertThrows(UnknownHostException.class, () -> proxyDnsResolver.resolve("unknown.invalid"));
+        assertThrows(UnknownHostException.class, () -> proxyDnsResolver.resolve("unknown.invalid"));
+        assertEquals(1, lookups.get());
+    }
+
+    @Test
+    void resolve_NoNegativeTtl_FailureNotCached() throws Exception {
+        ReflectionTestUtils.setField(systemConfig, "dnsNegativeTtl", 0);
+        lookupResult = null;
+        createResolver();
+        assertThrows(UnknownHostException.class, () -> proxyDnsResolver.resolve("unknown.invalid"));
+        assertThrows(UnknownHostException.class, () -> proxyDnsResolver.resolve("unknown.invalid"));
+        assertEquals(2, lookups.get());
+    }
+
+    @Test
+    void resolve_NearExpiration_RefreshedInBackground() throws Exception {
+        ReflectionTestUtils.setField(systemConfig, "dnsPositiveTtl", 1);
+        createResolver();
+        InetAddress[] addresses = proxyDnsResolver.resolve("example.com");
+
+        // Within the last quarter of the TTL
+        Thread.sleep(800);
+        InetAddress[] refreshed = new InetAddress[]{InetAddress.getByName("192.0.2.2")};
+        lookupResult = refreshed;
+        assertSame(addresses, proxyDnsResolver.resolve("example.com"));
+        for (int i = 0; i < 50 && lookups.get() < 2; i++) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(50);
+        assertSame(refreshed, proxyDnsResolver.resolve("example.com"));
+        assertEquals(2, lookups.get());
+    }
+
+    @Test
+    void connect_FirstAddressUnreachable_NextOneConnected() throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            // The first address is a black hole, or an unreachable network
+            lookupResult = new InetAddress[]{InetAddress.getByName("192.0.2.1"),
+                    InetAddress.getLoopbackAddress()};
+            createResolver();
+            long start = System.currentTimeMillis();
+            Socket socket = proxyDnsResolver.connect("example.com", serverSocket.getLocalPort(), Socket::new, 5000);
+            try {
+                assertEquals(InetAddress.getLoopbackAddress(), socket.getInetAddress());
+                assertTrue(System.currentTimeMillis() - start < 2000);
+            } finally {
+                InputOutputs.close(socket);
+            }
+        }
+    }
+
+    @Test
+    void interleave_Ipv6First_FamiliesAlternate() throws UnknownHostException {
+        InetAddress v6a = InetAddress.getByName("2001:db8::1");
+        InetAddress v6b = InetAddress.getByName("2001:db8::2");
+        InetAddress v6c = InetAddress.getByName("2001:db8::3");
+        InetAddress v4a = InetAddress.getByName("192.0.2.1");
+        InetAddress v4b = InetAddress.getByName("192.0.2.2");
+        assertArrayEquals(new InetAddress[]{v6a, v4a, v6b, v4b, v6c},
+                ProxyDnsResolver.interleave(new InetAddress[]{v6a, v6b, v6c, v4a, v4b}));
+    }
+
+    @Test
+    void interleave_SingleFamily_SameOrder() throws UnknownHostException {
+        InetAddress v4a = InetAddress.getByName("192.0.2.1");
+        InetAddress v4b = InetAddress.getByName("192.0.2.2");
+        assertArrayEquals(new InetAddress[]{v4a, v4b},
+                ProxyDnsResolver.interleave(new InetAddress[]{v4a, v4b}));
+    }
+
+    /**
+     * Create a resolver whose lookups are counted and return {@link #lookupResult}.
+     */
+    private void createResolver() {
+        proxyDnsResolver = new ProxyDnsResolver() {
+            @Override
+            InetAddress[] lookup(String host) throws UnknownHostException {
+                lookups.incrementAndGet();
+                InetAddress[] addresses = lookupResult;
+                if (addresses == null) {
+                    throw new UnknownHostException(host);
+                }
+                return addresses;
+            }
+        };
+        ProxyContext proxyContext = new ProxyContext();
+        ReflectionTestUtils.setField(proxyContext, "threadPool", executorService);
+        ReflectionTestUtils.setField(proxyDnsResolver, "systemConfig", systemConfig);
+        ReflectionTestUtils.setField(proxyDnsResolver, "proxyContext", proxyContext);
+        ReflectionTestUtils.invokeMethod(proxyDnsResolver, "init");
+    }
+
+}
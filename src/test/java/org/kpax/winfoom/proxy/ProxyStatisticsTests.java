@@ -0,0 +1,60 @@
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpHost;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ProxyStatisticsTests {
+
+    private final ProxyInfo first = new ProxyInfo(ProxyInfo.PacType.PROXY, new HttpHost("first", 8080));
+
+    private final ProxyInfo second = new ProxyInfo(ProxyInfo.PacType.PROXY, new HttpHost("second", 8080));
+
+    private final ProxyInfo direct = new ProxyInfo(ProxyInfo.PacType.DIRECT);
+
+    @Test
+    void order_WithinTolerance_PacOrder() {
+        ProxyStatistics proxyStatistics = new ProxyStatistics();
+        proxyStatistics.recordSuccess(first, 120);
+        proxyStatistics.recordSuccess(second, 100);
+        List<ProxyInfo> proxyInfos = Arrays.asList(first, second, direct);
+        assertEquals(proxyInfos, proxyStatistics.order(proxyInfos, 50));
+    }
+
+    @Test
+    void order_SlowFirst_FastFirst() {
+        ProxyStatistics proxyStatistics = new ProxyStatistics();
+        proxyStatistics.recordSuccess(first, 300);
+        proxyStatistics.recordSuccess(second, 100);
+        assertEquals(Arrays.asList(second, first, direct),
+                proxyStatistics.order(Arrays.asList(first, second, direct), 50));
+    }
+
+    @Test
+    void order_FailingFirst_FailingLastDirectKept() {
+        ProxyStatistics proxyStatistics = new ProxyStatistics();
+        proxyStatistics.recordFailure(first);
+        assertEquals(Arrays.asList(direct, second, first),
+                proxyStatistics.order(Arrays.asList(direct, first, second), 50));
+        proxyStatistics.recordSuccess(first);
+        assertEquals(Arrays.asList(direct, first, second),
+                proxyStatistics.order(Arrays.asList(direct, first, second), 50));
+    }
+
+    @Test
+    void isHealthy_KnownLatencyNoFailure_True() {
+        ProxyStatistics proxyStatistics = new ProxyStatistics();
+        assertFalse(proxyStatistics.isHealthy(first));
+        proxyStatistics.recordSuccess(first, 100);
+        assertTrue(proxyStatistics.isHealthy(first));
+        proxyStatistics.recordFailure(first);
+        assertFalse(proxyStatistics.isHealthy(first));
+    }
+
+}
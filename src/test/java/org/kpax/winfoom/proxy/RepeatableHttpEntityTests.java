@@ -20,6 +20,9 @@ import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.io.HttpTransportMetricsImpl;
+import org.apache.http.impl.io.SessionInputBufferImpl;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
 import org.apache.http.protocol.HTTP;
 import org.apache.http.util.EntityUtils;
 import org.junit.jupiter.api.*;
@@ -32,12 +35,15 @@ import org.springframework.test.util.ReflectionTestUtils;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -64,6 +70,8 @@ class RepeatableHttpEntityTests {
 
     private Path tempDirectory;
 
+    private EntityBufferPool entityBufferPool = new EntityBufferPool(1024 * 1024);
+
     @BeforeAll
     void before() throws IOException {
         tempDirectory = Paths.get(System.getProperty("user.dir"), "target", "temp");
@@ -87,7 +95,7 @@ class RepeatableHttpEntityTests {
                             HttpRequest request = clientConnection.getHttpRequest();
                             try {
                                 requestEntity = new RepeatableHttpEntity(clientConnection.getSessionInputBuffer(), tempDirectory, request,
-                                        bufferSize);
+                                        bufferSize, entityBufferPool);
                                 Header transferEncoding = request.getFirstHeader(HTTP.TRANSFER_ENCODING);
                                 if (transferEncoding != null && HTTP.CHUNK_CODING.equalsIgnoreCase(transferEncoding.getValue())) {
                                     requestEntity.setChunked(true);
@@ -119,9 +127,10 @@ class RepeatableHttpEntityTests {
                                     clientConnection.write(HttpUtils.createHttpHeader(tempFileContentHeader, Files.readString(tempFilepath)));
                                 }
 
-                                byte[] bufferedBytes = (byte[]) ReflectionTestUtils.getField(requestEntity, "bufferedBytes");
-                                if (bufferedBytes != null) {
-                                    clientConnection.write(HttpUtils.createHttpHeader(bufferedBytesHeader, String.valueOf(bufferedBytes.length)));
+                                List<ByteBuffer> bufferedChunks = (List<ByteBuffer>) ReflectionTestUtils.getField(requestEntity, "bufferedChunks");
+                                if (bufferedChunks != null) {
+                                    clientConnection.write(HttpUtils.createHttpHeader(bufferedBytesHeader,
+                                            String.valueOf(bufferedChunks.stream().mapToInt(ByteBuffer::remaining).sum())));
                                 }
 
                                 clientConnection.write(HttpUtils.createHttpHeader(HTTP.CONTENT_LEN, "0"));
@@ -254,6 +263,28 @@ class RepeatableHttpEntityTests {
         }
     }
 
+    @Test
+    void repeatable_BufferBiggerThanContentLengthBudgetExceeded_UseTempFile() throws IOException {
+        this.bufferSize = 7;
+        this.entityBufferPool = new EntityBufferPool(2);
+        final String content = "12345";
+        try (CloseableHttpClient httpClient = HttpClientBuilder.create().build()) {
+            HttpHost target = HttpHost.create("http://localhost:" + TestConstants.PROXY_PORT);
+            HttpPost request = new HttpPost("/");
+            request.setEntity(new StringEntity(content));
+
+            try (CloseableHttpResponse response = httpClient.execute(target, request)) {
+                assertEquals(response.getStatusLine().getStatusCode(), HttpStatus.SC_OK);
+                EntityUtils.consume(response.getEntity());
+                assertEquals("false", response.getFirstHeader(streamingHeader).getValue());
+                assertTrue(response.containsHeader(tempFilenameHeader));
+                assertEquals(content, response.getFirstHeader(tempFileContentHeader).getValue());
+                assertFalse(response.containsHeader(bufferedBytesHeader));
+            }
+        } finally {
+            this.entityBufferPool = new EntityBufferPool(1024 * 1024);
+        }
+    }
 
     @Test
     void repeatable_NoAvailableData_DoNotUseTempFile() throws IOException {//OK
@@ -271,6 +302,55 @@ class RepeatableHttpEntityTests {
         }
     }
 
+    @Test
+    void repeatable_ContentLessThanChunk_ReserveWholeChunk() throws IOException {
+        EntityBufferPool bufferPool = new EntityBufferPool(1024 * 1024);
+        try (RepeatableHttpEntity entity = createEntity("12345", 1024, bufferPool)) {
+            assertFalse(entity.isStreaming());
+            assertEquals(EntityBufferPool.CHUNK_SIZE, bufferPool.getReserved());
+        }
+        assertEquals(0, bufferPool.getReserved());
+    }
+
+    @Test
+    void repeatable_BudgetLessThanChunk_Streaming() throws IOException {
+        EntityBufferPool bufferPool = new EntityBufferPool(EntityBufferPool.CHUNK_SIZE - 1);
+        try (RepeatableHttpEntity entity = createEntity("12345", 1024, bufferPool)) {
+            assertTrue(entity.isStreaming());
+            assertEquals(0, bufferPool.getReserved());
+        }
+    }
+
+    @Test
+    void writeTo_Streaming_ReserveFileBuffer() throws IOException {
+        EntityBufferPool bufferPool = new EntityBufferPool(1024 * 1024);
+        long[] reservedWhileWriting = new long[1];
+        try (RepeatableHttpEntity entity = createEntity("12345", 2, bufferPool)) {
+            entity.writeTo(new OutputStream() {
+                @Override
+                public void write(int b) {
+                    reservedWhileWriting[0] = bufferPool.getReserved();
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    reservedWhileWriting[0] = bufferPool.getReserved();
+                }
+            });
+            assertEquals(EntityBufferPool.CHUNK_SIZE, reservedWhileWriting[0]);
+            assertEquals(0, bufferPool.getReserved());
+            assertEquals("12345", Files.readString((Path) ReflectionTestUtils.getField(entity, "tempFilepath")));
+        }
+    }
+
+    private RepeatableHttpEntity createEntity(String content, int internalBufferLength, EntityBufferPool bufferPool)
+            throws IOException {
+        SessionInputBufferImpl inputBuffer = new SessionInputBufferImpl(new HttpTransportMetricsImpl(), 8192);
+        inputBuffer.bind(new ByteArrayInputStream(content.getBytes()));
+        HttpRequest request = new BasicHttpEntityEnclosingRequest("POST", "/");
+        request.addHeader(HTTP.CONTENT_LEN, String.valueOf(content.length()));
+        return new RepeatableHttpEntity(inputBuffer, tempDirectory, request, internalBufferLength, bufferPool);
+    }
 
     @AfterAll
     void after() throws IOException {
@@ -0,0 +1,185 @@
+package org.kpax.winfoom.proxy;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@Timeout(10)
+class SelectorAcceptorTests {
+
+    private static final byte[] SERVICE_UNAVAILABLE = "HTTP/1.1 503 Service Unavailable\r\n\r\n"
+            .getBytes(StandardCharsets.US_ASCII);
+
+    private final ExecutorService executorService = Executors.newCachedThreadPool();
+
+    private final RecordingHandler handler = new RecordingHandler();
+
+    private SelectorAcceptor selectorAcceptor;
+
+    @AfterEach
+    void after() {
+        if (selectorAcceptor != null) {
+            selectorAcceptor.close();
+        }
+        executorService.shutdownNow();
+    }
+
+    @Test
+    void read_HeadInPieces_Dispatched() throws Exception {
+        start(executorService, 3000);
+        try (Socket socket = new Socket("localhost", selectorAcceptor.getLocalPort())) {
+            OutputStream outputStream = socket.getOutputStream();
+            outputStream.write("\r\nGET http://example.com/ HTTP/1.1\r\n".getBytes(StandardCharsets.US_ASCII));
+            outputStream.flush();
+            Thread.sleep(100);
+            outputStream.write("Host: example.com\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            outputStream.flush();
+            assertEquals("HTTP/1.1 200 OK", readHead(socket.getInputStream()));
+        }
+        assertEquals("GET http://example.com/ HTTP/1.1", handler.requestLines.get(0));
+    }
+
+    @Test
+    void dispatch_IdlePersistentConnection_NextRequestDispatched() throws Exception {
+        handler.keepAlive = true;
+        start(executorService, 3000);
+        try (Socket socket = new Socket("localhost", selectorAcceptor.getLocalPort())) {
+            for (int i = 0; i < 2; i++) {
+                socket.getOutputStream().write(("GET http://example.com/" + i + " HTTP/1.1\r\n\r\n")
+                        .getBytes(StandardCharsets.US_ASCII));
+                assertEquals("HTTP/1.1 200 OK", readHead(socket.getInputStream()));
+            }
+        }
+        assertEquals(2, handler.requestLines.size());
+        assertEquals(0, (int) handler.servedRequests.get(0));
+        assertEquals(1, (int) handler.servedRequests.get(1));
+    }
+
+    @Test
+    void read_HeadTooLarge_BadRequest() throws Exception {
+        start(executorService, 3000);
+        try (Socket socket = new Socket("localhost", selectorAcceptor.getLocalPort())) {
+            socket.setSoTimeout(5000);
+            byte[] header = new byte[SelectorAcceptor.MAX_HEAD_LENGTH];
+            Arrays.fill(header, (byte) 'a');
+            OutputStream outputStream = socket.getOutputStream();
+            outputStream.write("GET http://example.com/ HTTP/1.1\r\nX-Large: ".getBytes(StandardCharsets.US_ASCII));
+            outputStream.write(header);
+            outputStream.flush();
+            assertTrue(readHead(socket.getInputStream()).startsWith("HTTP/1.1 400"));
+        }
+        assertTrue(handler.requestLines.isEmpty());
+    }
+
+    @Test
+    void closeExpired_NoHead_ConnectionClosed() throws Exception {
+        start(executorService, 200);
+        try (Socket socket = new Socket("localhost", selectorAcceptor.getLocalPort())) {
+            socket.setSoTimeout(5000);
+            assertEquals(-1, socket.getInputStream().read());
+        }
+        assertTrue(handler.requestLines.isEmpty());
+    }
+
+    @Test
+    void dispatch_ExecutorRejects_ServiceUnavailable() throws Exception {
+        ThreadPoolExecutor rejectingExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), (runnable, executor) -> {
+            throw new RejectedExecutionException();
+        });
+        try {
+            // Occupy the only thread
+            rejectingExecutor.execute(() -> {
+                try {
+                    Thread.sleep(5000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            start(rejectingExecutor, 3000);
+            try (Socket socket = new Socket("localhost", selectorAcceptor.getLocalPort())) {
+                socket.getOutputStream().write("GET http://example.com/ HTTP/1.1\r\n\r\n"
+                        .getBytes(StandardCharsets.US_ASCII));
+                assertEquals("HTTP/1.1 503 Service Unavailable", readHead(socket.getInputStream()));
+            }
+        } finally {
+            rejectingExecutor.shutdownNow();
+        }
+    }
+
+    private void start(ExecutorService connectionExecutorService, int soTimeout) throws IOException {
+        selectorAcceptor = new SelectorAcceptor(0, 50, soTimeout, 3000,
+                connectionExecutorService, handler, SERVICE_UNAVAILABLE);
+        selectorAcceptor.start(executorService);
+    }
+
+    /**
+     * Read a head, byte by byte, to leave the next one's bytes alone.
+     *
+     * @return the first line.
+     */
+    private static String readHead(InputStream inputStream) throws IOException {
+        StringBuilder line = new StringBuilder();
+        String firstLine = null;
+        int current;
+        while ((current = inputStream.read()) != -1) {
+            if (current == '\n') {
+                if (line.length() == 0) {
+                    break;
+                }
+                if (firstLine == null) {
+                    firstLine = line.toString();
+                }
+                line.setLength(0);
+            } else if (current != '\r') {
+                line.append((char) current);
+            }
+        }
+        return firstLine;
+    }
+
+    /**
+     * Records the request line, answers with an empty 200 response.
+     */
+    private static class RecordingHandler extends ClientConnectionHandler {
+
+        private final List<String> requestLines = new CopyOnWriteArrayList<>();
+
+        private final List<Integer> servedRequests = new CopyOnWriteArrayList<>();
+
+        private volatile boolean keepAlive;
+
+        @Override
+        int handleConnection(Socket socket, InputStream inputStream, int servedRequests, boolean waitForNextRequest)
+                throws IOException {
+            requestLines.add(readHead(inputStream));
+            this.servedRequests.add(servedRequests);
+            socket.getOutputStream().write("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n"
+                    .getBytes(StandardCharsets.US_ASCII));
+            if (keepAlive) {
+                return servedRequests + 1;
+            }
+            socket.close();
+            return -1;
+        }
+    }
+
+}
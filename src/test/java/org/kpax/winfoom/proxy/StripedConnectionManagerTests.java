@@ -0,0 +1,141 @@
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StripedConnectionManagerTests {
+
+    @Test
+    void requestConnection_LeaseAndRelease_StatisticsSummed()
+            throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+        PoolingHttpClientConnectionManager first = new PoolingHttpClientConnectionManager();
+        first.setMaxTotal(3);
+        PoolingHttpClientConnectionManager second = new PoolingHttpClientConnectionManager();
+        second.setMaxTotal(2);
+        try (StripedConnectionManager connectionManager =
+                     new StripedConnectionManager(Arrays.asList(first, second), new Semaphore(10))) {
+            HttpRoute route = new HttpRoute(new HttpHost("example.com", 80));
+            HttpClientConnection connection = connectionManager.requestConnection(route, null)
+                    .get(1, TimeUnit.SECONDS);
+            assertEquals(1, connectionManager.getTotalStats().getLeased());
+            assertEquals(5, connectionManager.getTotalStats().getMax());
+
+            connectionManager.releaseConnection(connection, null, 0, TimeUnit.SECONDS);
+            assertEquals(0, connectionManager.getTotalStats().getLeased());
+            assertEquals(1, connectionManager.getStripeStatistics().stream()
+                    .mapToLong(StripedConnectionManager.StripeStatistics::getLeases).sum());
+        }
+    }
+
+    @Test
+    void releaseConnection_NotLeased_IllegalStateException()
+            throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+        PoolingHttpClientConnectionManager other = new PoolingHttpClientConnectionManager();
+        try (StripedConnectionManager connectionManager =
+                     new StripedConnectionManager(Arrays.asList(new PoolingHttpClientConnectionManager()), null)) {
+            HttpClientConnection connection = other.requestConnection(
+                    new HttpRoute(new HttpHost("example.com", 80)), null).get(1, TimeUnit.SECONDS);
+            assertThrows(IllegalStateException.class,
+                    () -> connectionManager.releaseConnection(connection, null, 0, TimeUnit.SECONDS));
+        } finally {
+            other.shutdown();
+        }
+    }
+
+    @Test
+    void requestConnection_BudgetExhausted_OtherUpstreamTimesOut()
+            throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+        Semaphore budget = new Semaphore(1);
+        PoolingHttpClientConnectionManager other = new PoolingHttpClientConnectionManager();
+        try (StripedConnectionManager first = new StripedConnectionManager(
+                Arrays.asList(new PoolingHttpClientConnectionManager()), budget);
+             StripedConnectionManager second = new StripedConnectionManager(Arrays.asList(other), budget)) {
+            HttpRoute route = new HttpRoute(new HttpHost("example.com", 80));
+            HttpClientConnection connection = first.requestConnection(route, null).get(1, TimeUnit.SECONDS);
+            assertEquals(0, budget.availablePermits());
+
+            assertThrows(ConnectionPoolTimeoutException.class,
+                    () -> second.requestConnection(route, null).get(100, TimeUnit.MILLISECONDS));
+            assertEquals(0, other.getTotalStats().getLeased());
+
+            first.releaseConnection(connection, null, 0, TimeUnit.SECONDS);
+            assertEquals(1, budget.availablePermits());
+            connection = second.requestConnection(route, null).get(1, TimeUnit.SECONDS);
+            second.releaseConnection(connection, null, 0, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    void requestConnection_NewConnection_ListenerCalled()
+            throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+        AtomicInteger newConnections = new AtomicInteger();
+        try (StripedConnectionManager connectionManager = new StripedConnectionManager(
+                Arrays.asList(new PoolingHttpClientConnectionManager()), null, newConnections::incrementAndGet)) {
+            HttpClientConnection connection = connectionManager.requestConnection(
+                    new HttpRoute(new HttpHost("example.com", 80)), null).get(1, TimeUnit.SECONDS);
+            assertEquals(1, newConnections.get());
+            connectionManager.releaseConnection(connection, null, 0, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    void isUnused_LeasedThenReleased_UnusedOnceIdle()
+            throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+        try (StripedConnectionManager connectionManager =
+                     new StripedConnectionManager(Arrays.asList(new PoolingHttpClientConnectionManager()), null)) {
+            HttpClientConnection connection = connectionManager.requestConnection(
+                    new HttpRoute(new HttpHost("example.com", 80)), null).get(1, TimeUnit.SECONDS);
+            assertFalse(connectionManager.isUnused(0, TimeUnit.SECONDS));
+
+            connectionManager.releaseConnection(connection, null, 0, TimeUnit.SECONDS);
+            assertTrue(connectionManager.isUnused(0, TimeUnit.SECONDS));
+            assertFalse(connectionManager.isUnused(1, TimeUnit.HOURS));
+        }
+    }
+
+    @Test
+    void releaseConnection_AfterShutdown_ClosedWithoutError()
+            throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+        Semaphore budget = new Semaphore(1);
+        StripedConnectionManager connectionManager =
+                new StripedConnectionManager(Arrays.asList(new PoolingHttpClientConnectionManager()), budget);
+        HttpClientConnection connection = connectionManager.requestConnection(
+                new HttpRoute(new HttpHost("example.com", 80)), null).get(1, TimeUnit.SECONDS);
+        connectionManager.shutdown();
+        assertEquals(1, budget.availablePermits());
+
+        connectionManager.releaseConnection(connection, null, 0, TimeUnit.SECONDS);
+        assertEquals(1, budget.availablePermits());
+        assertFalse(connection.isOpen());
+    }
+
+    @Test
+    void retire_Pinned_NotRetired() {
+        try (StripedConnectionManager connectionManager =
+                     new StripedConnectionManager(Arrays.asList(new PoolingHttpClientConnectionManager()), null)) {
+            assertTrue(connectionManager.pin());
+            assertFalse(connectionManager.isUnused(0, TimeUnit.SECONDS));
+            assertFalse(connectionManager.retire());
+
+            connectionManager.unpin();
+            assertTrue(connectionManager.retire());
+            assertFalse(connectionManager.pin());
+        }
+    }
+
+}
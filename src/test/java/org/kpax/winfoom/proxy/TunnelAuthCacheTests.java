@@ -0,0 +1,44 @@
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHost;
+import org.apache.http.message.BasicHeader;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class TunnelAuthCacheTests {
+
+    private final HttpHost first = new HttpHost("first", 8080);
+
+    private final HttpHost second = new HttpHost("second", 8080);
+
+    private final Header basicChallenge = new BasicHeader("Proxy-Authenticate", "Basic realm=\"test\"");
+
+    private final Header ntlmChallenge = new BasicHeader("Proxy-Authenticate", "NTLM");
+
+    @Test
+    void get_AfterPut_LastChallengeOfSameProxy() {
+        TunnelAuthCache tunnelAuthCache = new TunnelAuthCache();
+        assertNull(tunnelAuthCache.get(first));
+        tunnelAuthCache.put(first, basicChallenge);
+        tunnelAuthCache.put(second, basicChallenge);
+        tunnelAuthCache.put(first, ntlmChallenge);
+        assertSame(ntlmChallenge, tunnelAuthCache.get(first));
+        assertSame(basicChallenge, tunnelAuthCache.get(second));
+    }
+
+    @Test
+    void remove_RejectedChallenge_OtherProxiesKept() {
+        TunnelAuthCache tunnelAuthCache = new TunnelAuthCache();
+        tunnelAuthCache.put(first, basicChallenge);
+        tunnelAuthCache.put(second, ntlmChallenge);
+        tunnelAuthCache.remove(first);
+        assertNull(tunnelAuthCache.get(first));
+        assertSame(ntlmChallenge, tunnelAuthCache.get(second));
+        tunnelAuthCache.clear();
+        assertNull(tunnelAuthCache.get(second));
+    }
+
+}
@@ -0,0 +1,187 @@
+package org.kpax.winfoom.proxy;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.util.InputOutputs;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The tunnels relayed by the selector threads or, when disabled, by a full duplex communication.
+ */
+@Timeout(10)
+class TunnelRelayTests {
+
+    private static final String CONNECT_HEAD = "CONNECT example.com:443 HTTP/1.1\r\nHost: example.com:443\r\n\r\n";
+
+    private final SystemConfig systemConfig = new SystemConfig();
+
+    private final TunnelRelay tunnelRelay = new TunnelRelay();
+
+    private final ExecutorService executorService = Executors.newCachedThreadPool();
+
+    private ServerSocketChannel serverSocketChannel;
+
+    /**
+     * The client's end of the tunnel.
+     */
+    private Socket client;
+
+    /**
+     * The upstream server's end of the tunnel.
+     */
+    private Socket upstream;
+
+    @BeforeEach
+    void before() throws IOException {
+        ReflectionTestUtils.setField(systemConfig, "tunnelNonBlocking", true);
+        ReflectionTestUtils.setField(systemConfig, "tunnelSelectorThreads", 1);
+        ReflectionTestUtils.setField(systemConfig, "socketSoTimeout", 30);
+        ReflectionTestUtils.setField(tunnelRelay, "systemConfig", systemConfig);
+        ProxyContext proxyContext = new ProxyContext();
+        ReflectionTestUtils.setField(proxyContext, "executorService", executorService);
+        ReflectionTestUtils.setField(tunnelRelay, "proxyContext", proxyContext);
+        serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.bind(new InetSocketAddress("localhost", 0));
+    }
+
+    @AfterEach
+    void after() {
+        tunnelRelay.close();
+        executorService.shutdownNow();
+        InputOutputs.close(client);
+        InputOutputs.close(upstream);
+        InputOutputs.close(serverSocketChannel);
+    }
+
+    @Test
+    void relay_BufferedBytes_ForwardedFirst() throws Exception {
+        startTunnel("hello");
+        assertEquals("hello", readString(upstream.getInputStream(), 5));
+
+        client.getOutputStream().write("ping".getBytes(StandardCharsets.US_ASCII));
+        assertEquals("ping", readString(upstream.getInputStream(), 4));
+
+        upstream.getOutputStream().write("pong".getBytes(StandardCharsets.US_ASCII));
+        assertEquals("pong", readString(client.getInputStream(), 4));
+    }
+
+    @Test
+    void relay_ClientHalfClose_UpstreamStillAnswers() throws Exception {
+        startTunnel("");
+        client.getOutputStream().write("request".getBytes(StandardCharsets.US_ASCII));
+        client.shutdownOutput();
+        assertEquals("request", readString(upstream.getInputStream(), 7));
+        assertEquals(-1, upstream.getInputStream().read());
+
+        upstream.getOutputStream().write("response".getBytes(StandardCharsets.US_ASCII));
+        upstream.close();
+        assertEquals("response", readString(client.getInputStream(), 8));
+        assertEquals(-1, client.getInputStream().read());
+    }
+
+    @Test
+    void relay_SlowReader_AllBytesInOrder() throws Exception {
+        startTunnel("");
+        byte[] payload = new byte[8 * 1024 * 1024];
+        new Random(7).nextBytes(payload);
+        Thread writer = new Thread(() -> {
+            try {
+                client.getOutputStream().write(payload);
+                client.shutdownOutput();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        writer.start();
+
+        // Let the socket buffers fill up before reading
+        Thread.sleep(500);
+        assertTrue(writer.isAlive());
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        upstream.getInputStream().transferTo(received);
+        writer.join();
+        assertArrayEquals(payload, received.toByteArray());
+    }
+
+    @Test
+    void relay_Disabled_RelayedOnThreads() throws Exception {
+        ReflectionTestUtils.setField(systemConfig, "tunnelNonBlocking", false);
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            client = new Socket("localhost", serverSocket.getLocalPort());
+            client.setSoTimeout(5000);
+            client.getOutputStream().write((CONNECT_HEAD + "hello").getBytes(StandardCharsets.US_ASCII));
+            Socket clientSide = serverSocket.accept();
+            Socket upstreamSide = new Socket("localhost", serverSocket.getLocalPort());
+            upstream = serverSocket.accept();
+            upstream.setSoTimeout(5000);
+            tunnelRelay.relay(new ClientConnection(clientSide), upstreamSide);
+        }
+        assertEquals("hello", readString(upstream.getInputStream(), 5));
+
+        upstream.getOutputStream().write("pong".getBytes(StandardCharsets.US_ASCII));
+        assertEquals("pong", readString(client.getInputStream(), 4));
+
+        // Both directions ended, the relay closes the sockets
+        client.shutdownOutput();
+        upstream.close();
+        assertEquals(-1, client.getInputStream().read());
+    }
+
+    @Test
+    void closeIdle_NoActivity_TunnelClosed() throws Exception {
+        ReflectionTestUtils.setField(systemConfig, "socketSoTimeout", 1);
+        startTunnel("");
+        long start = System.currentTimeMillis();
+        assertEquals(-1, client.getInputStream().read());
+        assertEquals(-1, upstream.getInputStream().read());
+        assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+    /**
+     * Connect a client to the proxy's end, a proxy's upstream socket to the upstream server,
+     * then hand the proxy's sockets over to the relay.
+     *
+     * @param bufferedBytes the bytes the client sends right after the {@code CONNECT} request's head.
+     */
+    private void startTunnel(String bufferedBytes) throws Exception {
+        client = new Socket("localhost", serverSocketChannel.socket().getLocalPort());
+        client.setSoTimeout(5000);
+        client.getOutputStream().write((CONNECT_HEAD + bufferedBytes).getBytes(StandardCharsets.US_ASCII));
+        SocketChannel clientSide = serverSocketChannel.accept();
+
+        SocketChannel upstreamSide = SocketChannel.open(serverSocketChannel.getLocalAddress());
+        upstream = serverSocketChannel.accept().socket();
+        upstream.setSoTimeout(5000);
+
+        // Wait for the client's bytes to be available, as they would be after a full read
+        Thread.sleep(100);
+        ClientConnection clientConnection = new ClientConnection(clientSide.socket());
+        tunnelRelay.relay(clientConnection, upstreamSide.socket());
+    }
+
+    private static String readString(InputStream inputStream, int length) throws IOException {
+        return new String(inputStream.readNBytes(length), StandardCharsets.US_ASCII);
+    }
+
+}
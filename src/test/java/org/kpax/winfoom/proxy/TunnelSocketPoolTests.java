@@ -0,0 +1,163 @@
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpHost;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.util.InputOutputs;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The spare connections to an upstream proxy, accepted by a local server socket.
+ */
+@Timeout(10)
+class TunnelSocketPoolTests {
+
+    private final SystemConfig systemConfig = new SystemConfig();
+
+    private final TunnelSocketPool tunnelSocketPool = new TunnelSocketPool();
+
+    private final ExecutorService executorService = Executors.newCachedThreadPool();
+
+    /**
+     * The proxy's ends of the accepted connections.
+     */
+    private final List<Socket> accepted = new CopyOnWriteArrayList<>();
+
+    /**
+     * Whether the proxy closes each connection right away.
+     */
+    private volatile boolean closeAccepted;
+
+    private ServerSocket upstreamProxy;
+
+    private HttpHost proxy;
+
+    @BeforeEach
+    void before() throws IOException {
+        ReflectionTestUtils.setField(systemConfig, "tunnelWarmConnections", 2);
+        ReflectionTestUtils.setField(systemConfig, "tunnelWarmConnectionIdleTimeout", 10);
+        ReflectionTestUtils.setField(systemConfig, "tunnelNonBlocking", true);
+        ReflectionTestUtils.setField(systemConfig, "socketSoTimeout", 30);
+        LocalProxyServer localProxyServer = new LocalProxyServer();
+        ReflectionTestUtils.setField(localProxyServer, "started", true);
+        ProxyContext proxyContext = new ProxyContext();
+        ReflectionTestUtils.setField(proxyContext, "threadPool", executorService);
+        ReflectionTestUtils.setField(proxyContext, "localProxyServer", localProxyServer);
+        ReflectionTestUtils.setField(tunnelSocketPool, "systemConfig", systemConfig);
+        ReflectionTestUtils.setField(tunnelSocketPool, "proxyContext", proxyContext);
+
+        upstreamProxy = new ServerSocket(0);
+        proxy = new HttpHost("localhost", upstreamProxy.getLocalPort());
+        executorService.execute(() -> {
+            while (!upstreamProxy.isClosed()) {
+                try {
+                    Socket socket = upstreamProxy.accept();
+                    if (closeAccepted) {
+                        socket.close();
+                    }
+                    accepted.add(socket);
+                } catch (IOException e) {
+                    // Closed
+                }
+            }
+        });
+    }
+
+    @AfterEach
+    void after() {
+        tunnelSocketPool.close();
+        InputOutputs.close(upstreamProxy);
+        accepted.forEach(InputOutputs::close);
+        executorService.shutdownNow();
+    }
+
+    @Test
+    void take_SpareConnectionOpened_SpareConnectionUsed() throws Exception {
+        assertNull(tunnelSocketPool.take(proxy));
+        awaitAccepted(2);
+        Socket socket = tunnelSocketPool.take(proxy);
+        try {
+            assertNotNull(socket);
+            assertTrue(socket.isConnected());
+        } finally {
+            InputOutputs.close(socket);
+        }
+        awaitAccepted(3);
+    }
+
+    @Test
+    void take_ClosedByProxy_NotUsed() throws Exception {
+        closeAccepted = true;
+        assertNull(tunnelSocketPool.take(proxy));
+        awaitAccepted(2);
+
+        // Let the end of the streams reach the spare connections
+        Thread.sleep(100);
+        assertNull(tunnelSocketPool.take(proxy));
+    }
+
+    @Test
+    void take_BytesSentByProxy_NotUsed() throws Exception {
+        ReflectionTestUtils.setField(systemConfig, "tunnelNonBlocking", false);
+        ReflectionTestUtils.setField(systemConfig, "tunnelWarmConnections", 1);
+        assertNull(tunnelSocketPool.take(proxy));
+        awaitAccepted(1);
+        accepted.get(0).getOutputStream().write("HTTP/1.1 408 Request Timeout\r\n\r\n".getBytes());
+        Thread.sleep(100);
+        assertNull(tunnelSocketPool.take(proxy));
+    }
+
+    @Test
+    void prune_UnusedProxy_PoolDropped() throws Exception {
+        ReflectionTestUtils.setField(systemConfig, "tunnelWarmConnectionIdleTimeout", 1);
+        assertNull(tunnelSocketPool.take(proxy));
+        awaitAccepted(2);
+        Thread.sleep(1100);
+        tunnelSocketPool.prune();
+        assertTrue(((Map<?, ?>) ReflectionTestUtils.getField(tunnelSocketPool, "pools")).isEmpty());
+        for (Socket socket : accepted) {
+            socket.setSoTimeout(5000);
+            assertEquals(-1, socket.getInputStream().read());
+        }
+    }
+
+    @Test
+    void prune_UsedProxy_PoolKept() throws Exception {
+        assertNull(tunnelSocketPool.take(proxy));
+        awaitAccepted(2);
+        tunnelSocketPool.prune();
+        assertEquals(1, ((Map<?, ?>) ReflectionTestUtils.getField(tunnelSocketPool, "pools")).size());
+        Socket socket = tunnelSocketPool.take(proxy);
+        try {
+            assertNotNull(socket);
+        } finally {
+            InputOutputs.close(socket);
+        }
+    }
+
+    private void awaitAccepted(int count) throws InterruptedException {
+        while (accepted.size() < count) {
+            Thread.sleep(10);
+        }
+        // Let the pool register the connected sockets
+        Thread.sleep(50);
+    }
+
+}
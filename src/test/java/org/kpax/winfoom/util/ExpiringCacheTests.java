@@ -0,0 +1,181 @@
+package org.kpax.winfoom.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExpiringCacheTests {
+
+    @Test
+    void get_SameKey_LoadedOnce() throws Exception {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, 60_000);
+        AtomicInteger loads = new AtomicInteger();
+        assertEquals("a", cache.get("key", () -> "a" + loads.incrementAndGet()).substring(0, 1));
+        assertEquals("a1", cache.get("key", () -> "b" + loads.incrementAndGet()));
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void get_Expired_LoadedAgain() throws Exception {
+        ExpiringCache<String, Integer> cache = new ExpiringCache<>(10, 0);
+        AtomicInteger loads = new AtomicInteger();
+        cache.get("key", loads::incrementAndGet);
+        cache.get("key", loads::incrementAndGet);
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    void get_MaxSizeExceeded_EldestEvicted() throws Exception {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(2, 60_000);
+        cache.get("a", () -> "a");
+        cache.get("b", () -> "b");
+        cache.get("c", () -> "c");
+        assertEquals(2, cache.size());
+        assertEquals("a2", cache.get("a", () -> "a2"));
+    }
+
+    @Test
+    void get_LoadingError_NotCached() throws Exception {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, 60_000);
+        assertThrows(IOException.class, () -> cache.get("key", () -> {
+            throw new IOException("Cannot load");
+        }));
+        assertEquals("value", cache.get("key", () -> "value"));
+    }
+
+    @Test
+    void get_ConcurrentMisses_LoadedOnce() throws Exception {
+        ExpiringCache<String, Integer> cache = new ExpiringCache<>(10, 60_000);
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        ExecutorService executorService = Executors.newFixedThreadPool(4);
+        try {
+            Callable<Integer> lookup = () -> cache.get("key", () -> {
+                loading.await();
+                return loads.incrementAndGet();
+            });
+            Future<Integer> first = executorService.submit(lookup);
+            Future<Integer> second = executorService.submit(lookup);
+            Thread.sleep(100);
+            loading.countDown();
+            assertEquals(1, first.get());
+            assertEquals(1, second.get());
+            assertEquals(1, loads.get());
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    @Test
+    void getIfPresent_MissingOrExpired_Null() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, 60_000);
+        assertNull(cache.getIfPresent("key"));
+        cache.put("key", "value");
+        assertEquals("value", cache.getIfPresent("key"));
+
+        ExpiringCache<String, String> expiringCache = new ExpiringCache<>(10, 0);
+        expiringCache.put("key", "value");
+        assertNull(expiringCache.getIfPresent("key"));
+    }
+
+    @Test
+    void getRecentValues_MaxSize_MostRecentlyUsed() throws Exception {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, 60_000);
+        cache.put("a", "a");
+        cache.put("b", "b");
+        cache.put("c", "c");
+        cache.get("a", () -> "a2");
+        assertEquals(Arrays.asList("c", "a"), new ArrayList<>(cache.getRecentValues(2).keySet()));
+        assertEquals("a", cache.getRecentValues(2).get("a"));
+    }
+
+    @Test
+    void remove_SameValue_LoadedAgain() throws Exception {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, 60_000);
+        String value = cache.get("key", () -> "a");
+        cache.remove("key", "b");
+        assertEquals("a", cache.get("key", () -> "c"));
+        cache.remove("key", value);
+        assertEquals("c", cache.get("key", () -> "c"));
+    }
+
+    @Test
+    void get_LoadingErrorWithErrorTtl_Cached() throws Exception {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, 60_000, 60_000, null);
+        AtomicInteger loads = new AtomicInteger();
+        ExpiringCache.Loader<String, IOException> failing = () -> {
+            loads.incrementAndGet();
+            throw new IOException("Cannot load");
+        };
+        assertThrows(IOException.class, () -> cache.get("key", failing));
+        assertThrows(IOException.class, () -> cache.get("key", failing));
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void get_NearExpiration_RefreshedInBackground() throws Exception {
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            ExpiringCache<String, Integer> cache = new ExpiringCache<>(10, 400, 0, executorService);
+            AtomicInteger loads = new AtomicInteger();
+            assertEquals(1, cache.get("key", loads::incrementAndGet));
+
+            // Within the last quarter: the old value is returned, the new one loaded in background
+            Thread.sleep(320);
+            assertEquals(1, cache.get("key", loads::incrementAndGet));
+            executorService.submit(() -> null).get();
+            assertEquals(2, cache.get("key", loads::incrementAndGet));
+            assertEquals(2, loads.get());
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    @Test
+    void get_RefreshFails_OldValueKept() throws Exception {
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            ExpiringCache<String, String> cache = new ExpiringCache<>(10, 400, 0, executorService);
+            assertEquals("a", cache.get("key", () -> "a"));
+            Thread.sleep(320);
+            ExpiringCache.Loader<String, IOException> failing = () -> {
+                throw new IOException("Cannot load");
+            };
+            assertEquals("a", cache.get("key", failing));
+            executorService.submit(() -> null).get();
+            assertEquals("a", cache.get("key", failing));
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    @Test
+    void getAsync_ConcurrentMisses_LoadedOnceInBackground() throws Exception {
+        ExecutorService executorService = Executors.newCachedThreadPool();
+        try {
+            ExpiringCache<String, Integer> cache = new ExpiringCache<>(10, 60_000);
+            AtomicInteger loads = new AtomicInteger();
+            CountDownLatch loading = new CountDownLatch(1);
+            ExpiringCache.Loader<Integer, InterruptedException> loader = () -> {
+                loading.await();
+                return loads.incrementAndGet();
+            };
+            Future<Integer> first = cache.getAsync("key", loader, executorService);
+            Future<Integer> second = cache.getAsync("key", loader, executorService);
+            assertThrows(TimeoutException.class, () -> first.get(50, TimeUnit.MILLISECONDS));
+            loading.countDown();
+            assertEquals(1, first.get());
+            assertEquals(1, second.get());
+            assertEquals(1, loads.get());
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+}
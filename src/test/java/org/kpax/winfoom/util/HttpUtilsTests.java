@@ -24,10 +24,10 @@ import org.kpax.winfoom.proxy.ProxyInfo;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
-import static org.junit.jupiter.api.Assertions.assertEquals;
-import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.*;
 
 /**
  * @author Eugen Covaci {@literal eugen.covaci.q@gmail.com}
@@ -136,6 +136,14 @@ class HttpUtilsTests {
         assertNull(proxyInfos.get(2).getProxyHost());
     }
 
+    @Test
+    void toPacProxyLine_parsed_SameProxies() {
+        List<ProxyInfo> proxyInfos = HttpUtils.parsePacProxyLine("PROXY localhost:1080;SOCKS5 bla:80; DIRECT");
+        String proxyLine = HttpUtils.toPacProxyLine(proxyInfos);
+        assertEquals("PROXY localhost:1080; SOCKS5 bla:80; DIRECT", proxyLine);
+        assertEquals(proxyInfos, HttpUtils.parsePacProxyLine(proxyLine));
+    }
+
     @Test
     void stripChunked_NotChunked_SameValue() {
         String value = "bla";
@@ -164,4 +172,39 @@ class HttpUtilsTests {
         assertEquals(HttpHeaders.VIA, viaHeader.getName());
         assertEquals("1.1 winfoom, 1.0 bla (bla)", viaHeader.getValue());
     }
+
+    @Test
+    void isPersistentConnection_Http11NoHeader_True() {
+        HttpRequest request = new BasicHttpRequest("GET", "http://happy/people", HttpVersion.HTTP_1_1);
+        assertTrue(HttpUtils.isPersistentConnection(request));
+    }
+
+    @Test
+    void isPersistentConnection_Http11Close_False() {
+        HttpRequest request = new BasicHttpRequest("GET", "http://happy/people", HttpVersion.HTTP_1_1);
+        request.addHeader("Proxy-Connection", "close");
+        assertFalse(HttpUtils.isPersistentConnection(request));
+    }
+
+    @Test
+    void isPersistentConnection_Http10NoHeader_False() {
+        HttpRequest request = new BasicHttpRequest("GET", "http://happy/people", HttpVersion.HTTP_1_0);
+        assertFalse(HttpUtils.isPersistentConnection(request));
+    }
+
+    @Test
+    void isPersistentConnection_Http10KeepAlive_True() {
+        HttpRequest request = new BasicHttpRequest("GET", "http://happy/people", HttpVersion.HTTP_1_0);
+        request.addHeader(HttpHeaders.CONNECTION, "keep-alive");
+        assertTrue(HttpUtils.isPersistentConnection(request));
+    }
+
+    @Test
+    void createServiceUnavailableResponse_RetryAfter_CompleteResponse() {
+        String response = new String(HttpUtils.createServiceUnavailableResponse(5), StandardCharsets.UTF_8);
+        assertTrue(response.startsWith("HTTP/1.1 503 Service Unavailable\r\n"));
+        assertTrue(response.contains("Retry-After: 5\r\n"));
+        assertTrue(response.contains("Content-Length: 0\r\n"));
+        assertTrue(response.endsWith("\r\n\r\n"));
+    }
 }
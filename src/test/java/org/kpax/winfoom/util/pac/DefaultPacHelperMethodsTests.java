@@ -0,0 +1,53 @@
+package org.kpax.winfoom.util.pac;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DefaultPacHelperMethodsTests {
+
+    private final DefaultPacHelperMethods helperMethods = new DefaultPacHelperMethods();
+
+    @Test
+    void shExpMatch_AllShapes_MatchAsGlob() {
+        assertTrue(helperMethods.shExpMatch("www.example.com", "www.example.com"));
+        assertTrue(helperMethods.shExpMatch("www.example.com", "*.example.com"));
+        assertTrue(helperMethods.shExpMatch("www.example.com", "www.*"));
+        assertTrue(helperMethods.shExpMatch("www.example.com", "*"));
+        assertTrue(helperMethods.shExpMatch("www.example.com", "w?w.*.com"));
+        assertFalse(helperMethods.shExpMatch("wwwxexample.com", "www.example.com"));
+        assertFalse(helperMethods.shExpMatch("example.com", "*.example.com"));
+        assertFalse(helperMethods.shExpMatch("www.example.org", "w?w.*.com"));
+        assertFalse(helperMethods.shExpMatch("www.example.com", "[w]ww.*"));
+    }
+
+    @Test
+    void isInNet_IpLiteral_MatchWithoutDns() {
+        assertTrue(helperMethods.isInNet("10.1.2.3", "10.0.0.0", "255.0.0.0"));
+        assertTrue(helperMethods.isInNet("192.168.1.77", "192.168.1.0", "255.255.255.0"));
+        assertFalse(helperMethods.isInNet("192.168.2.77", "192.168.1.0", "255.255.255.0"));
+        assertFalse(helperMethods.isInNet("10.1.2.3", "10.0.0", "255.0.0.0"));
+    }
+
+    @Test
+    void isInNetEx_IpLiteral_MatchWithoutDns() {
+        assertTrue(helperMethods.isInNetEx("10.1.2.3", "10.0.0.0/8"));
+        assertTrue(helperMethods.isInNetEx("172.16.5.4", "172.16.0.0/12"));
+        assertFalse(helperMethods.isInNetEx("172.32.5.4", "172.16.0.0/12"));
+        assertTrue(helperMethods.isInNetEx("2001:db8::1", "2001:db8::/32"));
+        assertFalse(helperMethods.isInNetEx("2001:db9::1", "2001:db8::/32"));
+        assertFalse(helperMethods.isInNetEx("10.1.2.3", "2001:db8::/32"));
+        assertFalse(helperMethods.isInNetEx("10.1.2.3", "10.0.0.0/33"));
+    }
+
+    @Test
+    void parseIpLiteral_NotLiteral_Null() {
+        assertArrayEquals(new byte[]{10, 1, 2, 3}, DefaultPacHelperMethods.parseIpLiteral("10.1.2.3"));
+        assertNotNull(DefaultPacHelperMethods.parseIpLiteral("[::1]"));
+        assertNull(DefaultPacHelperMethods.parseIpLiteral("10.1.2"));
+        assertNull(DefaultPacHelperMethods.parseIpLiteral("10.1.2.256"));
+        assertNull(DefaultPacHelperMethods.parseIpLiteral("www.example.com"));
+        assertNull(DefaultPacHelperMethods.parseIpLiteral("host:8080x"));
+    }
+
+}
@@ -26,4 +26,19 @@ public class NbPacScriptEvaluatorTests {
         String proxyForURL = nbPacScriptEvaluator.findProxyForURL(new URI("http://host:80/path?param1=val"));
         assertEquals("DIRECT", proxyForURL);
     }
+
+    @Test
+    void findProxyForURL_UnresolvableHost_DnsResolveNull()
+            throws PacParsingException, URISyntaxException, PacFileException {
+        PacDnsResolver dnsResolver = new PacDnsResolver(16, 60_000, 60_000, 5_000);
+        try {
+            NbPacScriptEvaluator nbPacScriptEvaluator = new NbPacScriptEvaluator(
+                    "function FindProxyForURL(url, host) {\n" +
+                            "  return dnsResolve(host) === null ? \"DIRECT\" : \"PROXY resolved:80\";\n" +
+                            "}", dnsResolver);
+            assertEquals("DIRECT", nbPacScriptEvaluator.findProxyForURL(new URI("http://unknown.invalid/")));
+        } finally {
+            dnsResolver.close();
+        }
+    }
 }
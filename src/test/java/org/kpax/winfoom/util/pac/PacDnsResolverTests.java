@@ -0,0 +1,77 @@
+package org.kpax.winfoom.util.pac;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PacDnsResolverTests {
+
+    private PacDnsResolver dnsResolver;
+
+    @BeforeEach
+    void before() {
+        dnsResolver = new PacDnsResolver(16, 60_000, 60_000, 5_000);
+    }
+
+    @AfterEach
+    void after() {
+        dnsResolver.close();
+    }
+
+    @Test
+    void resolve_Localhost_Cached() {
+        InetAddress[] addresses = dnsResolver.resolve("localhost");
+        assertNotNull(addresses);
+        assertTrue(addresses[0].isLoopbackAddress());
+        assertSame(addresses, dnsResolver.resolve("localhost"));
+    }
+
+    @Test
+    void resolve_UnknownHost_Null() {
+        assertNull(dnsResolver.resolve("unknown.invalid"));
+        assertNull(dnsResolver.resolveFirst("unknown.invalid"));
+    }
+
+    @Test
+    void myIpAddress_SecondCall_NoLookup() {
+        AtomicInteger lookups = new AtomicInteger();
+        Supplier<String> lookup = () -> {
+            lookups.incrementAndGet();
+            return "10.1.2.3";
+        };
+        assertEquals("10.1.2.3", dnsResolver.myIpAddress(lookup));
+        assertEquals("10.1.2.3", dnsResolver.myIpAddress(lookup));
+        assertEquals(1, lookups.get());
+    }
+
+    @Test
+    void dnsResolve_IpLiteral_NoLookup() {
+        DefaultPacHelperMethods helperMethods = new DefaultPacHelperMethods(dnsResolver);
+        assertEquals("10.1.2.3", helperMethods.dnsResolve("10.1.2.3"));
+        assertTrue(helperMethods.isResolvable("localhost"));
+        assertFalse(helperMethods.isResolvable("unknown.invalid"));
+    }
+
+    @Test
+    void resolve_Timeout_FlaggedOnCurrentThread() throws Exception {
+        PacDnsResolver impatientResolver = new PacDnsResolver(16, 60_000, 60_000, 0);
+        try {
+            assertNull(impatientResolver.resolve("timeout.invalid"));
+            Thread other = new Thread(() -> assertFalse(impatientResolver.pollLookupTimedOut()));
+            other.start();
+            other.join();
+            assertTrue(impatientResolver.pollLookupTimedOut());
+            assertFalse(impatientResolver.pollLookupTimedOut());
+        } finally {
+            impatientResolver.close();
+        }
+        assertFalse(dnsResolver.pollLookupTimedOut());
+    }
+
+}
@@ -0,0 +1,66 @@
+package org.kpax.winfoom.util.pac;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PacRuleCompilerTests {
+
+    private final DefaultPacHelperMethods helperMethods = new DefaultPacHelperMethods();
+
+    @Test
+    void compile_HostRules_FirstMatchWins() throws URISyntaxException {
+        String pacSource = "function FindProxyForURL(url, host) {\n" +
+                "  // Internal hosts\n" +
+                "  if (shExpMatch(host, \"*.example.com\") || host == \"example.com\") return \"DIRECT\";\n" +
+                "  if (shExpMatch(host, \"*.com\")) { return 'PROXY com:80'; }\n" +
+                "  if (shExpMatch(host, \"www.example.com\")) return \"PROXY never:80\";\n" +
+                "  if (shExpMatch(url, \"https://*\")) return \"PROXY secure:80\";\n" +
+                "  return \"PROXY default:80\";\n" +
+                "}";
+        PacRuleTable ruleTable = PacRuleCompiler.compile(pacSource, helperMethods);
+        assertNotNull(ruleTable);
+        assertEquals("DIRECT", ruleTable.findProxyForURL(new URI("http://www.example.com/path")));
+        assertEquals("DIRECT", ruleTable.findProxyForURL(new URI("http://example.com/")));
+        assertEquals("PROXY com:80", ruleTable.findProxyForURL(new URI("http://other.com/")));
+        assertEquals("PROXY secure:80", ruleTable.findProxyForURL(new URI("https://host.org/")));
+        assertEquals("PROXY default:80", ruleTable.findProxyForURL(new URI("http://host.org/")));
+    }
+
+    @Test
+    void compile_ConditionsAndVariables_SameAsScript() throws URISyntaxException {
+        String pacSource = "function FindProxyForURL(url, host) {\n" +
+                "  var ip = dnsResolve(host);\n" +
+                "  if (isInNet(ip, \"10.0.0.0\", \"255.0.0.0\") && !(host === \"10.0.0.1\")) {\n" +
+                "    return \"DIRECT\";\n" +
+                "  } else if (shExpMatch(host, \"192.168.?.*\")) {\n" +
+                "    return \"PROXY local:80\";\n" +
+                "  }\n" +
+                "  return \"PROXY default:80\";\n" +
+                "}";
+        PacRuleTable ruleTable = PacRuleCompiler.compile(pacSource, helperMethods);
+        assertNotNull(ruleTable);
+        assertEquals("DIRECT", ruleTable.findProxyForURL(new URI("http://10.1.2.3/")));
+        assertEquals("PROXY default:80", ruleTable.findProxyForURL(new URI("http://10.0.0.1/")));
+        assertEquals("PROXY local:80", ruleTable.findProxyForURL(new URI("http://192.168.1.1/")));
+        assertEquals("PROXY default:80", ruleTable.findProxyForURL(new URI("http://192.168.10.1/")));
+        assertTrue(ruleTable.getSampleUris().contains(new URI("http://10.0.0.1/")));
+    }
+
+    @Test
+    void compile_UnsupportedConstructs_Null() {
+        assertNull(PacRuleCompiler.compile("function FindProxyForURL(url, host) {\n" +
+                "  if (url.substring(0, 4) == \"ftp:\") return \"DIRECT\";\n" +
+                "  return \"PROXY default:80\";\n" +
+                "}", helperMethods));
+        assertNull(PacRuleCompiler.compile("var proxy = \"PROXY default:80\";\n" +
+                "function FindProxyForURL(url, host) { return proxy; }", helperMethods));
+        assertNull(PacRuleCompiler.compile("function FindProxyForURL(url, host) {\n" +
+                "  if (isPlainHostName(host)) return \"DIRECT\";\n" +
+                "}", helperMethods));
+    }
+
+}
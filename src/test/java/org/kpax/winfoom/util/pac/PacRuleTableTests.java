@@ -0,0 +1,70 @@
+package org.kpax.winfoom.util.pac;
+
+import org.junit.jupiter.api.Test;
+import org.kpax.winfoom.exception.PacFileException;
+import org.netbeans.core.network.proxy.pac.PacParsingException;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The rule tables translated from the test PAC files, checked against the script engine.
+ */
+class PacRuleTableTests {
+
+    private static final List<String> EXTRA_URLS = Arrays.asList("http://localhost/", "https://www.example.com/path",
+            "http://10.1.2.3:8080/", "http://192.168.0.1/index.html", "ftp://localdomain.com/file", "http://intranet/");
+
+    @Test
+    void findProxyForURL_TestPacFiles_SameAsScript() throws IOException, URISyntaxException, PacFileException {
+        DefaultPacHelperMethods helperMethods = new DefaultPacHelperMethods();
+        int translated = 0;
+        for (Path pacFile : getTestPacFiles()) {
+            String pacSource = new String(Files.readAllBytes(pacFile), StandardCharsets.UTF_8);
+            PacRuleTable ruleTable = PacRuleCompiler.compile(pacSource, helperMethods);
+            NbPacScriptEvaluator scriptEvaluator;
+            try {
+                scriptEvaluator = new NbPacScriptEvaluator(pacSource);
+            } catch (PacParsingException e) {
+                assertNull(ruleTable, "Invalid script translated: " + pacFile.getFileName());
+                continue;
+            }
+            if (ruleTable == null) {
+                continue;
+            }
+            translated++;
+            List<URI> uris = new ArrayList<>(ruleTable.getSampleUris());
+            for (String url : EXTRA_URLS) {
+                uris.add(new URI(url));
+            }
+            for (URI uri : uris) {
+                assertEquals(scriptEvaluator.findProxyForURL(uri), ruleTable.findProxyForURL(uri),
+                        pacFile.getFileName() + " " + uri);
+            }
+            assertTrue(ruleTable.verify(scriptEvaluator::findProxyForURL));
+            scriptEvaluator.close();
+        }
+        assertTrue(translated > 0);
+    }
+
+    private List<Path> getTestPacFiles() throws IOException, URISyntaxException {
+        Path directory = Paths.get(getClass().getClassLoader().getResource("proxy-simple.pac").toURI()).getParent();
+        List<Path> pacFiles = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.pac")) {
+            stream.forEach(pacFiles::add);
+        }
+        return pacFiles;
+    }
+
+}
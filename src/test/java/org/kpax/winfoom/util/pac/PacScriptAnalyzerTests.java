@@ -0,0 +1,41 @@
+package org.kpax.winfoom.util.pac;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PacScriptAnalyzerTests {
+
+    @Test
+    void isUrlArgumentUsed_HostOnly_False() throws IOException {
+        assertFalse(PacScriptAnalyzer.isUrlArgumentUsed(load("proxy-simple-http.pac")));
+        assertFalse(PacScriptAnalyzer.isUrlArgumentUsed(
+                "function FindProxyForURL(url, host) { return isPlainHostName(host) ? \"DIRECT\" : \"PROXY p:80\"; }"));
+    }
+
+    @Test
+    void isUrlArgumentUsed_UrlRead_True() throws IOException {
+        assertTrue(PacScriptAnalyzer.isUrlArgumentUsed(load("proxy-complex.pac")));
+    }
+
+    @Test
+    void isUrlArgumentUsed_IndirectAccess_True() {
+        assertTrue(PacScriptAnalyzer.isUrlArgumentUsed(
+                "function FindProxyForURL(u, h) { return arguments[0] ? \"DIRECT\" : \"DIRECT\"; }"));
+    }
+
+    @Test
+    void isUrlArgumentUsed_NoEntryFunction_True() {
+        assertTrue(PacScriptAnalyzer.isUrlArgumentUsed("function FindProxyForURL0(url, host) {}"));
+    }
+
+    private String load(String resource) throws IOException {
+        return IOUtils.toString(Thread.currentThread().getContextClassLoader().getResourceAsStream(resource),
+                StandardCharsets.UTF_8);
+    }
+}